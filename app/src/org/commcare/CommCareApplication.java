@@ -32,6 +32,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteException;
 
 import org.commcare.activities.LoginActivity;
+import org.commcare.adapters.MenuBadgeCache;
 import org.commcare.android.database.app.models.UserKeyRecord;
 import org.commcare.android.database.global.models.ApplicationRecord;
 import org.commcare.android.javarosa.AndroidLogEntry;
@@ -68,6 +69,7 @@ import org.commcare.models.database.HybridFileBackedSqlHelpers;
 import org.commcare.models.database.HybridFileBackedSqlStorage;
 import org.commcare.models.database.MigrationException;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.SqlStorageRegistry;
 import org.commcare.models.database.global.DatabaseGlobalOpenHelper;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.models.legacy.LegacyInstallUtils;
@@ -84,6 +86,7 @@ import org.commcare.services.CommCareSessionService;
 import org.commcare.session.CommCareSession;
 import org.commcare.tasks.DeleteLogs;
 import org.commcare.tasks.LogSubmissionTask;
+import org.commcare.tasks.PrewarmFormDefs;
 import org.commcare.tasks.PurgeStaleArchivedFormsTask;
 import org.commcare.tasks.UpdateTask;
 import org.commcare.tasks.templates.ManagedAsyncTask;
@@ -94,6 +97,7 @@ import org.commcare.utils.CommCareExceptionHandler;
 import org.commcare.utils.CommCareUtil;
 import org.commcare.utils.CrashUtil;
 import org.commcare.utils.FileUtil;
+import org.commcare.utils.FixtureInstanceCache;
 import org.commcare.utils.GlobalConstants;
 import org.commcare.utils.MultipleAppsUtil;
 import org.commcare.utils.PendingCalcs;
@@ -147,6 +151,11 @@ public class CommCareApplication extends MultiDexApplication {
     private AndroidSessionWrapper sessionWrapper;
 
     private final Object globalDbHandleLock = new Object();
+
+    // shared storage objects, cleared when the user session or seated app they belong to ends
+    private final SqlStorageRegistry globalStorageRegistry = new SqlStorageRegistry("global");
+    private final SqlStorageRegistry appStorageRegistry = new SqlStorageRegistry("app");
+    private final SqlStorageRegistry userStorageRegistry = new SqlStorageRegistry("user");
     private SQLiteDatabase globalDatabase;
 
     private ArchiveFileRoot mArchiveFileRoot;
@@ -311,6 +320,9 @@ public class CommCareApplication extends MultiDexApplication {
             if (this.sessionServiceIsBound) {
                 releaseUserResourcesAndServices();
             }
+            userStorageRegistry.clear();
+            FixtureInstanceCache.clear();
+            MenuBadgeCache.clear();
             bindUserSessionService(symmetricKey, record, restoreSession);
         }
     }
@@ -346,6 +358,8 @@ public class CommCareApplication extends MultiDexApplication {
 
     public void releaseUserResourcesAndServices() {
         String userBeingLoggedOut = CommCareApplication.instance().getCurrentUserId();
+        // Buffered log entries have to be written before the user's storage is closed
+        AndroidLogger.haltBufferedLogger();
         try {
             CommCareApplication.instance().getSession().closeServiceResources();
         } catch (SessionUnavailableException e) {
@@ -354,6 +368,7 @@ public class CommCareApplication extends MultiDexApplication {
         }
 
         unbindUserSessionService();
+        clearUserStorageRegistry();
         TimedStatsTracker.registerEndSession(userBeingLoggedOut);
     }
 
@@ -482,6 +497,7 @@ public class CommCareApplication extends MultiDexApplication {
         int resourceState;
         try {
             currentApp = app;
+            appStorageRegistry.clear();
 
             if (currentApp.initializeApplication()) {
                 resourceState = STATE_READY;
@@ -515,6 +531,7 @@ public class CommCareApplication extends MultiDexApplication {
         if (isSeated(record)) {
             this.currentApp.teardownSandbox();
             this.currentApp = null;
+            appStorageRegistry.clear();
         }
     }
 
@@ -545,17 +562,18 @@ public class CommCareApplication extends MultiDexApplication {
     }
 
     public <T extends Persistable> SqlStorage<T> getGlobalStorage(String table, Class<T> c) {
-        return new SqlStorage<>(table, c, new AndroidDbHelper(this.getApplicationContext()) {
-            @Override
-            public SQLiteDatabase getHandle() {
-                synchronized (globalDbHandleLock) {
-                    if (globalDatabase == null || !globalDatabase.isOpen()) {
-                        globalDatabase = new DatabaseGlobalOpenHelper(this.c).getWritableDatabase("null");
+        return globalStorageRegistry.get(SqlStorage.class, table, c, () ->
+                new SqlStorage<>(table, c, new AndroidDbHelper(this.getApplicationContext()) {
+                    @Override
+                    public SQLiteDatabase getHandle() {
+                        synchronized (globalDbHandleLock) {
+                            if (globalDatabase == null || !globalDatabase.isOpen()) {
+                                globalDatabase = new DatabaseGlobalOpenHelper(this.c).getWritableDatabase("null");
+                            }
+                            return globalDatabase;
+                        }
                     }
-                    return globalDatabase;
-                }
-            }
-        });
+                }));
     }
 
     public <T extends Persistable> SqlStorage<T> getAppStorage(Class<T> c) {
@@ -563,11 +581,15 @@ public class CommCareApplication extends MultiDexApplication {
     }
 
     public <T extends Persistable> SqlStorage<T> getAppStorage(String name, Class<T> c) {
-        return currentApp.getStorage(name, c);
+        CommCareApp app = currentApp;
+        return appStorageRegistry.get(app.getUniqueId(), SqlStorage.class, name, c,
+                () -> app.getStorage(name, c));
     }
 
     public <T extends Persistable> HybridFileBackedSqlStorage<T> getFileBackedAppStorage(String name, Class<T> c) {
-        return currentApp.getFileBackedStorage(name, c);
+        CommCareApp app = currentApp;
+        return appStorageRegistry.get(app.getUniqueId(), HybridFileBackedSqlStorage.class, name, c,
+                () -> app.getFileBackedStorage(name, c));
     }
 
     public <T extends Persistable> SqlStorage<T> getUserStorage(Class<T> c) {
@@ -575,12 +597,28 @@ public class CommCareApplication extends MultiDexApplication {
     }
 
     public <T extends Persistable> SqlStorage<T> getUserStorage(String storage, Class<T> c) {
-        return new SqlStorage<>(storage, c, buildUserDbHandle());
+        return userStorageRegistry.get(SqlStorage.class, storage, c,
+                () -> new SqlStorage<>(storage, c, buildUserDbHandle()));
     }
 
     public <T extends Persistable> HybridFileBackedSqlStorage<T> getFileBackedUserStorage(String storage, Class<T> c) {
-        return new HybridFileBackedSqlStorage<>(storage, c, buildUserDbHandle(),
-                getUserKeyRecordId(), CommCareApplication.instance().getCurrentApp());
+        // file-backed storage keeps the user and app it was built for, not just a lazy db handle
+        String userKeyRecordId = getUserKeyRecordId();
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        return userStorageRegistry.get(app.getUniqueId() + "|" + userKeyRecordId,
+                HybridFileBackedSqlStorage.class, storage, c,
+                () -> new HybridFileBackedSqlStorage<>(storage, c, buildUserDbHandle(),
+                        userKeyRecordId, app));
+    }
+
+    /**
+     * Drop the shared user storage objects, since they are bound to the session that is ending
+     */
+    private void clearUserStorageRegistry() {
+        Logger.log(LogTypes.TYPE_MAINTENANCE, userStorageRegistry.getStats());
+        userStorageRegistry.clear();
+        Logger.log(LogTypes.TYPE_MAINTENANCE, FixtureInstanceCache.clear());
+        Logger.log(LogTypes.TYPE_MAINTENANCE, MenuBadgeCache.clear());
     }
 
     public String getUserKeyRecordId() {
@@ -730,6 +768,8 @@ public class CommCareApplication extends MultiDexApplication {
                             WorkManager.getInstance(CommCareApplication.instance())
                                     .enqueueUniqueWork(DELETE_LOGS_REQUEST, ExistingWorkPolicy.KEEP, deleteLogsRequest);
                         }
+
+                        schedulePrewarmFormDefs(false);
                     }
 
                     TimedStatsTracker.registerStartSession();
@@ -755,6 +795,20 @@ public class CommCareApplication extends MultiDexApplication {
         sessionServiceIsBinding = true;
     }
 
+    /**
+     * Queue up background parsing of the installed forms
+     *
+     * @param afterInstall Whether new form versions were just installed, in which case the
+     *                     forms should be warmed up soon rather than when the device is idle
+     */
+    public void schedulePrewarmFormDefs(boolean afterInstall) {
+        if (afterInstall) {
+            PrewarmFormDefs.scheduleAfterInstall();
+        } else {
+            PrewarmFormDefs.scheduleWhenIdle();
+        }
+    }
+
     // check if it's been a week since last run
     private boolean shouldRunLogDeletion() {
         long lastLogDeletionRun = HiddenPreferences.getLastLogDeletionTime();
@@ -951,6 +1005,9 @@ public class CommCareApplication extends MultiDexApplication {
      * Used for manually linking to a session service during tests
      */
     public void setTestingService(CommCareSessionService service) {
+        userStorageRegistry.clear();
+        FixtureInstanceCache.clear();
+        MenuBadgeCache.clear();
         sessionServiceIsBound = true;
         mBoundService = service;
         mConnection = new ServiceConnection() {
@@ -983,10 +1040,12 @@ public class CommCareApplication extends MultiDexApplication {
 
     private static void setupLoggerStorage(boolean userStorageAvailable) {
         boolean loggingEnabled = HiddenPreferences.isLoggingEnabled();
+        boolean bufferLogs = DeveloperPreferences.isBufferedLoggingEnabled();
+        AndroidLogger.haltBufferedLogger();
         if (userStorageAvailable) {
             if (loggingEnabled) {
                 Logger.registerLogger(new AndroidLogger(app.getUserStorage(AndroidLogEntry.STORAGE_KEY,
-                        AndroidLogEntry.class)));
+                        AndroidLogEntry.class), bufferLogs));
             } else {
                 Logger.detachLogger();
             }
@@ -997,7 +1056,8 @@ public class CommCareApplication extends MultiDexApplication {
         } else {
             if (loggingEnabled) {
                 Logger.registerLogger(new AndroidLogger(
-                        app.getGlobalStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class)));
+                        app.getGlobalStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class),
+                        bufferLogs));
             } else {
                 Logger.detachLogger();
             }
@@ -38,6 +38,7 @@ import org.commcare.fragments.ContainerFragment;
 import org.commcare.google.services.ads.AdLocation;
 import org.commcare.google.services.ads.AdMobManager;
 import org.commcare.models.AndroidSessionWrapper;
+import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.preferences.HiddenPreferences;
 import org.commcare.provider.SimprintsCalloutProcessing;
 import org.commcare.session.CommCareSession;
@@ -123,6 +124,8 @@ public class EntitySelectActivity extends SaveSessionCommCareActivity
     private boolean mNoDetailMode = false;
 
     private EntityLoaderTask loader;
+    // Whether the current adapter was built from streamed chunks of a load still in progress
+    private boolean adapterIsStreaming = false;
 
     private boolean inAwesomeMode = false;
     private FrameLayout rightFrame;
@@ -473,6 +476,11 @@ public class EntitySelectActivity extends SaveSessionCommCareActivity
 
         if (loader == null && !EntityLoaderTask.attachToActivity(this)) {
             EntityLoaderTask entityLoader = new EntityLoaderTask(shortSelect, evalContext());
+            entityLoader.enableParallelLoading(asw::getIsolatedEvaluationContext);
+            // Only stream into an empty screen; reloads keep showing the old list until done
+            if (adapter == null && DeveloperPreferences.isEntityStreamingEnabled()) {
+                entityLoader.streamPartialResults();
+            }
             entityLoader.attachListener(this);
             entityLoader.executeParallel(selectDatum.getNodeset());
             return true;
@@ -836,23 +844,14 @@ public class EntitySelectActivity extends SaveSessionCommCareActivity
                                   NodeEntityFactory factory, int focusTargetIndex) {
         loader = null;
 
-        AdapterView visibleView;
-        if (shortSelect.shouldBeLaidOutInGrid()) {
-            visibleView = ((GridView)this.findViewById(R.id.screen_entity_select_grid));
-        } else {
-            ListView listView = this.findViewById(R.id.screen_entity_select_list);
-            EntitySelectViewSetup.setupDivider(this, listView, shortSelect.usesEntityTileView());
-            visibleView = listView;
-        }
-
-        adapter = new EntityListAdapter(this, shortSelect, references, entities, factory,
-                hideActionsFromEntityList, shortSelect.getCustomActions(evalContext()), inAwesomeMode);
-        visibleView.setAdapter(adapter);
-        adapter.registerDataSetObserver(this.mListStateObserver);
-        containerFragment.setData(adapter);
-
-        if (entitySelectSearchUI != null) {
-            entitySelectSearchUI.restoreSearchString();
+        AdapterView visibleView = getVisibleEntityView();
+        // The streamed adapter was built before the entities were prepared, so it's replaced by
+        // one over the prepared list, keeping the user's place in the list
+        int streamedPosition = adapterIsStreaming ? visibleView.getFirstVisiblePosition() : -1;
+        adapterIsStreaming = false;
+        setupAdapter(visibleView, entities, references, factory);
+        if (streamedPosition > 0 && focusTargetIndex == -1) {
+            visibleView.setSelection(streamedPosition);
         }
 
         // Pre-select entity if one was provided in original intent
@@ -890,6 +889,43 @@ public class EntitySelectActivity extends SaveSessionCommCareActivity
         }
     }
 
+    @Override
+    public void deliverPartialLoadResult(List<Entity<TreeReference>> entities,
+                                         List<TreeReference> references,
+                                         NodeEntityFactory factory) {
+        if (adapter == null) {
+            // copy, since later chunks are appended to the adapter's list
+            setupAdapter(getVisibleEntityView(), new ArrayList<>(entities), references, factory);
+            adapterIsStreaming = true;
+            findViewById(R.id.entity_select_loading).setVisibility(View.GONE);
+        } else if (adapterIsStreaming) {
+            adapter.appendEntities(entities);
+        }
+    }
+
+    private AdapterView getVisibleEntityView() {
+        if (shortSelect.shouldBeLaidOutInGrid()) {
+            return ((GridView)this.findViewById(R.id.screen_entity_select_grid));
+        } else {
+            ListView listView = this.findViewById(R.id.screen_entity_select_list);
+            EntitySelectViewSetup.setupDivider(this, listView, shortSelect.usesEntityTileView());
+            return listView;
+        }
+    }
+
+    private void setupAdapter(AdapterView visibleView, List<Entity<TreeReference>> entities,
+                              List<TreeReference> references, NodeEntityFactory factory) {
+        adapter = new EntityListAdapter(this, shortSelect, references, entities, factory,
+                hideActionsFromEntityList, shortSelect.getCustomActions(evalContext()), inAwesomeMode);
+        visibleView.setAdapter(adapter);
+        adapter.registerDataSetObserver(this.mListStateObserver);
+        containerFragment.setData(adapter);
+
+        if (entitySelectSearchUI != null) {
+            entitySelectSearchUI.restoreSearchString();
+        }
+    }
+
     private void restoreAdapterStateFromSession() {
         entitySelectSearchUI.restoreSearchString();
 
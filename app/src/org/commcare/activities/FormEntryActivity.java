@@ -287,6 +287,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
 
     @Override
     public void onActivityResultSessionSafe(int requestCode, int resultCode, Intent intent) {
+        uiController.finishPendingRelevancyUpdate();
         if (requestCode == FormEntryConstants.FORM_PREFERENCES_KEY) {
             uiController.refreshCurrentView(false);
             return;
@@ -383,10 +384,9 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
             if (pendingIndex == null) {
                 return null;
             }
-            for (QuestionWidget q : uiController.questionsView.getWidgets()) {
-                if (q.getFormId().equals(pendingIndex)) {
-                    return q;
-                }
+            QuestionWidget q = uiController.questionsView.getWidget(pendingIndex);
+            if (q != null) {
+                return q;
             }
             Logger.log(LogTypes.SOFT_ASSERT,
                     "getPendingWidget couldn't find question widget with a form index that " +
@@ -556,6 +556,8 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     private boolean saveAnswersForCurrentScreen(boolean evaluateConstraints,
                                                 boolean failOnRequired,
                                                 boolean headless) {
+        uiController.finishPendingRelevancyUpdate();
+
         // only try to save if the current event is a question or a field-list
         // group
         boolean success = true;
@@ -597,6 +599,32 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
         return success;
     }
 
+    /**
+     * Save the answers on the current screen that differ from what the form already holds,
+     * without evaluating constraints. Saving an answer recomputes everything that depends on
+     * it, so this keeps a change to one question from redoing that work for every other
+     * question on the screen.
+     */
+    protected void saveChangedAnswersForCurrentScreen() {
+        if (!isEventQuestionOrListGroup()) {
+            return;
+        }
+        HashMap<FormIndex, IAnswerData> answers = uiController.questionsView.getAnswers();
+        List<FormIndex> indexKeys = new ArrayList<>(answers.keySet());
+        Collections.sort(indexKeys, FormIndex::compareTo);
+
+        for (FormIndex index : indexKeys) {
+            if (mFormController.getEvent(index) == FormEntryController.EVENT_QUESTION) {
+                IAnswerData answer = answers.get(index);
+                IAnswerData savedAnswer =
+                        mFormController.getQuestionPrompt(index).getAnswerValue();
+                if (!QuestionWidget.isSameAnswer(answer, savedAnswer)) {
+                    saveAnswer(answer, index, false);
+                }
+            }
+        }
+    }
+
     private boolean isEventQuestionOrListGroup() {
         return (mFormController.getEvent() == FormEntryController.EVENT_QUESTION) ||
                 (mFormController.getEvent() == FormEntryController.EVENT_GROUP
@@ -762,6 +790,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     }
 
     public void setFormLanguage(String[] languages, int index) {
+        uiController.finishPendingRelevancyUpdate();
         mFormController.setLanguage(languages[index]);
         dismissAlertDialog();
         if (currentPromptIsQuestion()) {
@@ -1270,13 +1299,11 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     public void widgetEntryChanged(QuestionWidget changedWidget) {
         try {
             uiController.recordLastChangedWidgetIndex(changedWidget);
-            uiController.updateFormRelevancies();
+            uiController.updateFormRelevancies(() -> FormNavigationUI.updateNavigationCues(
+                    this, mFormController, uiController.questionsView));
         } catch (XPathTypeMismatchException e) {
             UserfacingErrorHandling.logErrorAndShowDialog(this, e, FormEntryConstants.EXIT);
-            return;
         }
-
-        FormNavigationUI.updateNavigationCues(this, mFormController, uiController.questionsView);
     }
 
     private boolean canNavigateForward() {
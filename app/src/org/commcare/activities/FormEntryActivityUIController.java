@@ -3,6 +3,7 @@ package org.commcare.activities;
 import android.content.pm.ActivityInfo;
 import android.graphics.Rect;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.SpannableStringBuilder;
 import android.util.Log;
 import android.view.ContextThemeWrapper;
@@ -22,11 +23,15 @@ import org.commcare.activities.components.FormEntryConstants;
 import org.commcare.activities.components.FormLayoutHelpers;
 import org.commcare.activities.components.FormNavigationController;
 import org.commcare.activities.components.FormNavigationUI;
+import org.commcare.activities.components.FormRelevancyEvaluator;
 import org.commcare.activities.components.FormRelevancyUpdating;
+import org.commcare.activities.components.FormRelevancyUpdating.WidgetDiff;
+import org.commcare.activities.components.FormRelevancyUpdating.WidgetSnapshot;
 import org.commcare.dalvik.R;
 import org.commcare.google.services.analytics.AnalyticsParamValue;
 import org.commcare.google.services.analytics.FirebaseAnalyticsUtil;
 import org.commcare.interfaces.CommCareActivityUIController;
+import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.preferences.LocalePreferences;
 import org.commcare.utils.BlockingActionsManager;
 import org.commcare.utils.CompoundIntentList;
@@ -37,11 +42,9 @@ import org.commcare.views.dialogs.DialogChoiceItem;
 import org.commcare.views.dialogs.HorizontalPaneledChoiceDialog;
 import org.commcare.views.dialogs.PaneledChoiceDialog;
 import org.commcare.views.media.AudioController;
-import org.commcare.views.widgets.IntentWidget;
 import org.commcare.views.widgets.QuestionWidget;
 import org.javarosa.core.model.Constants;
 import org.javarosa.core.model.FormIndex;
-import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.data.InvalidData;
 import org.javarosa.core.services.Logger;
 import org.javarosa.core.services.locale.Localization;
@@ -52,9 +55,6 @@ import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.XPathUnhandledException;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Vector;
 
 public class FormEntryActivityUIController implements CommCareActivityUIController,
         Animation.AnimationListener {
@@ -77,6 +77,11 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
 
     private boolean formRelevanciesUpdateInProgress = false;
 
+    private final FormRelevancyEvaluator relevancyEvaluator = new FormRelevancyEvaluator();
+    // an answer changed while the previous change was still being evaluated
+    private boolean relevancyUpdateRequested = false;
+    private Runnable onRequestedRelevancyUpdate;
+
     private static final String KEY_LAST_CHANGED_WIDGET = "index-of-last-changed-widget";
 
     enum AnimationType {
@@ -168,6 +173,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
         if (FormEntryActivity.mFormController == null) {
             throw new RuntimeException("Form state is lost! Cannot refresh current view. This shouldn't happen, please submit a bug report.");
         }
+        finishPendingRelevancyUpdate();
         int event = FormEntryActivity.mFormController.getEvent();
 
         // When we refresh, repeat dialog state isn't maintained, so step back to the previous
@@ -278,6 +284,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
      * appropriate view. Also saves answers to the data model without checking constraints.
      */
     protected void showPreviousView(boolean showSwipeAnimation) {
+        finishPendingRelevancyUpdate();
         if (shouldIgnoreNavigationAction()) {
             return;
         }
@@ -358,22 +365,31 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
             return new QuestionsView(activity, blockingActionsManager);
         }
 
-        // Makes a "clear answer" menu pop up on long-click of
-        // select-one/select-multiple questions
         for (QuestionWidget qw : odkv.getWidgets()) {
-            if (!qw.getPrompt().isReadOnly() &&
-                    !FormEntryActivity.mFormController.isFormReadOnly() &&
-                    (qw.getPrompt().getControlType() == Constants.CONTROL_SELECT_ONE ||
-                            qw.getPrompt().getControlType() == Constants.CONTROL_SELECT_MULTI)) {
-                activity.registerForContextMenu(qw);
-            }
+            registerForClearAnswerMenu(qw);
         }
+        odkv.setOnWidgetBuiltListener(this::registerForClearAnswerMenu);
+        // widgets built as the screen scrolls read their answers from the form
+        odkv.setBeforeBuildingOnDemand(this::finishPendingRelevancyUpdate);
 
         FormNavigationUI.updateNavigationCues(activity, FormEntryActivity.mFormController, odkv);
 
         return odkv;
     }
 
+    /**
+     * Makes a "clear answer" menu pop up on long-click of
+     * select-one/select-multiple questions
+     */
+    private void registerForClearAnswerMenu(QuestionWidget qw) {
+        if (!qw.getPrompt().isReadOnly() &&
+                !FormEntryActivity.mFormController.isFormReadOnly() &&
+                (qw.getPrompt().getControlType() == Constants.CONTROL_SELECT_ONE ||
+                        qw.getPrompt().getControlType() == Constants.CONTROL_SELECT_MULTI)) {
+            activity.registerForContextMenu(qw);
+        }
+    }
+
     /**
      * Determines what should be displayed on the screen. Possible options are: a question, an ask
      * repeat dialog, or the submit screen. Also saves answers to the data model after checking
@@ -384,6 +400,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
     }
 
     private void showNextView(boolean resuming) {
+        finishPendingRelevancyUpdate();
         AudioController.INSTANCE.releaseCurrentMediaEntity();
         if (shouldIgnoreNavigationAction()) {
             isAnimatingSwipe = false;
@@ -528,6 +545,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
         // Panel 2: Add another option
         View.OnClickListener addAnotherListener = v -> {
             dialog.dismiss();
+            finishPendingRelevancyUpdate();
             try {
                 FormEntryActivity.mFormController.newRepeat();
             } catch (XPathUnhandledException | XPathTypeMismatchException e) {
@@ -606,17 +624,14 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
 
         boolean displayed = false;
         //We need to see if question in violation is on the screen, so we can show this cleanly.
-        for (QuestionWidget q : questionsView.getWidgets()) {
-            if (index.equals(q.getFormId())) {
-
-                if (q.getAnswer() instanceof InvalidData) {
-                    constraintText = ((InvalidData)q.getAnswer()).getErrorMessage();
-                }
-
-                q.notifyInvalid(constraintText, requestFocus);
-                displayed = true;
-                break;
+        QuestionWidget q = questionsView.getWidget(index);
+        if (q != null) {
+            if (q.getAnswer() instanceof InvalidData) {
+                constraintText = ((InvalidData)q.getAnswer()).getErrorMessage();
             }
+
+            q.notifyInvalid(constraintText, requestFocus);
+            displayed = true;
         }
 
         if (!displayed) {
@@ -678,7 +693,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
     }
 
     protected void recordLastChangedWidgetIndex(QuestionWidget changedWidget) {
-        indexOfLastChangedWidget = questionsView.getWidgets().indexOf(changedWidget);
+        indexOfLastChangedWidget = questionsView.getPosition(changedWidget);
     }
 
     /**
@@ -702,19 +717,39 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
     }
 
     protected void updateFormRelevancies() {
+        updateFormRelevancies(null);
+    }
+
+    /**
+     * @param onUpdated Run once the questions on screen reflect the change, which happens after
+     *                  this returns when updates are done in the background
+     */
+    protected void updateFormRelevancies(Runnable onUpdated) {
+        if (relevancyEvaluator.isEvaluating()) {
+            // The form can't be written to while it's being evaluated, so pick this change up
+            // once the previous one is done. Later changes are folded into the same update.
+            relevancyUpdateRequested = true;
+            onRequestedRelevancyUpdate = onUpdated;
+            return;
+        }
         if (formRelevanciesUpdateInProgress) {
             // Don't allow this method to call itself downstream accidentally
             return;
         }
         formRelevanciesUpdateInProgress = true;
+        long start = SystemClock.uptimeMillis();
+
+        // This needs to be taken before saving, because at that point the widgets will have
+        // already started being updated to the values for the new view
+        WidgetSnapshot snapshot = new WidgetSnapshot(questionsView);
 
-        ArrayList<QuestionWidget> oldWidgets = questionsView.getWidgets();
-        // These 2 calls need to be made here, rather than in the for loop below, because at that
-        // point the widgets will have already started being updated to the values for the new view
-        ArrayList<Vector<SelectChoice>> oldSelectChoices =
-                FormRelevancyUpdating.getOldSelectChoicesForEachWidget(oldWidgets);
-        ArrayList<String> oldQuestionTexts =
-                FormRelevancyUpdating.getOldQuestionTextsForEachWidget(oldWidgets);
+        if (DeveloperPreferences.areBackgroundRelevancyUpdatesEnabled()) {
+            activity.saveChangedAnswersForCurrentScreen();
+            formRelevanciesUpdateInProgress = false;
+            evaluateRelevanciesInBackground(snapshot, SystemClock.uptimeMillis() - start,
+                    onUpdated);
+            return;
+        }
 
         activity.saveAnswersForCurrentScreen(FormEntryConstants.DO_NOT_EVALUATE_CONSTRAINTS);
 
@@ -725,40 +760,78 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
             UserfacingErrorHandling.logErrorAndShowDialog(activity, e, FormEntryConstants.EXIT);
             return;
         }
-        Set<FormEntryPrompt> promptsLeftInView = new HashSet<>();
+        applyWidgetDiff(FormRelevancyUpdating.getWidgetDiff(snapshot, newValidPrompts));
+        FormRelevancyEvaluator.logUpdateTiming(false, SystemClock.uptimeMillis() - start, 0,
+                newValidPrompts.length);
 
-        ArrayList<Integer> shouldRemoveFromView = new ArrayList<>();
-        // Loop through all of the old widgets to determine which ones should stay in the new view
-        for (int i = 0; i < oldWidgets.size(); i++) {
+        formRelevanciesUpdateInProgress = false;
+        if (onUpdated != null) {
+            onUpdated.run();
+        }
+    }
+
+    private void evaluateRelevanciesInBackground(WidgetSnapshot snapshot, long uiMillis,
+                                                 Runnable onUpdated) {
+        final QuestionsView viewToUpdate = questionsView;
+        relevancyEvaluator.evaluate(FormEntryActivity.mFormController, snapshot,
+                new FormRelevancyEvaluator.Listener() {
+                    @Override
+                    public void onWidgetDiffReady(WidgetDiff diff) {
+                        if (viewToUpdate == questionsView) {
+                            long start = SystemClock.uptimeMillis();
+                            applyWidgetDiff(diff);
+                            FormRelevancyEvaluator.logUpdateTiming(true,
+                                    uiMillis + SystemClock.uptimeMillis() - start,
+                                    diff.getBackgroundMillis(), diff.newValidPrompts.length);
+                            if (onUpdated != null) {
+                                onUpdated.run();
+                            }
+                        }
+                        runRequestedRelevancyUpdate();
+                    }
 
-            //Intent widgets need to be fully rebuilt to update their intent callouts
-            //depending on model changes.
-            if (oldWidgets.get(i) instanceof IntentWidget) {
-                shouldRemoveFromView.add(i);
-                continue;
-            }
-            FormEntryPrompt oldPrompt = oldWidgets.get(i).getPrompt();
-            String priorQuestionTextForThisWidget = oldQuestionTexts.get(i);
-            Vector<SelectChoice> priorSelectChoicesForThisWidget = oldSelectChoices.get(i);
-
-            FormEntryPrompt equivalentNewPrompt =
-                    FormRelevancyUpdating.getEquivalentPromptInNewList(newValidPrompts,
-                            oldPrompt, priorQuestionTextForThisWidget, priorSelectChoicesForThisWidget);
-            if (equivalentNewPrompt != null) {
-                promptsLeftInView.add(equivalentNewPrompt);
-            } else {
-                // If there is no equivalent prompt in the list of new prompts, then this prompt is
-                // no longer relevant in the new view, so it should get removed
-                shouldRemoveFromView.add(i);
-            }
+                    @Override
+                    public void onEvaluationFailed(XPathException e) {
+                        relevancyUpdateRequested = false;
+                        onRequestedRelevancyUpdate = null;
+                        UserfacingErrorHandling.logErrorAndShowDialog(activity, e,
+                                FormEntryConstants.EXIT);
+                    }
+                });
+    }
+
+    private void runRequestedRelevancyUpdate() {
+        if (relevancyUpdateRequested) {
+            relevancyUpdateRequested = false;
+            Runnable onUpdated = onRequestedRelevancyUpdate;
+            onRequestedRelevancyUpdate = null;
+            updateFormRelevancies(onUpdated);
+        }
+    }
+
+    /**
+     * Bring the questions on screen up to date right away if that's being done in the
+     * background, since the form is about to be used from the UI thread
+     */
+    protected void finishPendingRelevancyUpdate() {
+        // finishing an update can start the one requested while it was running
+        while (relevancyEvaluator.isEvaluating()) {
+            relevancyEvaluator.finishPending();
         }
+    }
+
+    boolean isRelevancyUpdatePending() {
+        return relevancyEvaluator.isEvaluating();
+    }
+
+    private void applyWidgetDiff(WidgetDiff diff) {
         // Remove "atomically" to not mess up iterations
-        questionsView.removeQuestionsFromIndex(shouldRemoveFromView);
+        questionsView.removeQuestionsFromIndex(diff.widgetsToRemove);
 
         // Now go through add add any new prompts that we need
-        for (int i = 0; i < newValidPrompts.length; ++i) {
-            FormEntryPrompt prompt = newValidPrompts[i];
-            if (!promptsLeftInView.contains(prompt)) {
+        for (int i = 0; i < diff.newValidPrompts.length; ++i) {
+            FormEntryPrompt prompt = diff.newValidPrompts[i];
+            if (!diff.promptsLeftInView.contains(prompt)) {
                 // If the old version of this prompt was NOT left in the view, then add it
                 questionsView.addQuestionToIndex(prompt,
                         FormEntryActivity.mFormController.getWidgetFactory(),
@@ -767,7 +840,5 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
             }
         }
         updateCompoundIntentButtonVisibility();
-
-        formRelevanciesUpdateInProgress = false;
     }
 }
@@ -25,8 +25,8 @@ import org.commcare.utils.MarkupUtil;
 import org.commcare.views.ClippingFrame;
 import org.commcare.views.QuestionsView;
 import org.commcare.views.UserfacingErrorHandling;
-import org.commcare.views.widgets.QuestionWidget;
 import org.javarosa.form.api.FormController;
+import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xpath.XPathException;
 
 import java.util.ArrayList;
@@ -220,15 +220,16 @@ public class FormNavigationUI {
 
         FloatingLabel[] labelTypes = FloatingLabel.values();
 
-        for (QuestionWidget widget : currentView.getWidgets()) {
-            String hint = widget.getPrompt().getAppearanceHint();
+        for (int i = 0; i < currentView.getQuestionCount(); i++) {
+            FormEntryPrompt prompt = currentView.getPrompt(i);
+            String hint = prompt.getAppearanceHint();
             if (hint == null) {
                 continue;
             }
             for (FloatingLabel type : labelTypes) {
                 if (type.getAppearance().equals(hint)) {
-                    CharSequence widgetText = widget.getPrompt().getQuestionText();
-                    String markdownWidgetText = widget.getPrompt().getMarkdownText();
+                    CharSequence widgetText = prompt.getQuestionText();
+                    String markdownWidgetText = prompt.getMarkdownText();
                     if (markdownWidgetText != null) {
                         widgetText = MarkupUtil.returnMarkdown(activity, markdownWidgetText);
                     }
@@ -0,0 +1,133 @@
+package org.commcare.activities.components;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.commcare.activities.components.FormRelevancyUpdating.WidgetDiff;
+import org.commcare.activities.components.FormRelevancyUpdating.WidgetSnapshot;
+import org.javarosa.form.api.FormController;
+import org.javarosa.xpath.XPathException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Works out which questions on the current screen changed after an answer was saved without
+ * holding up the UI thread, which matters on screens with many questions or expensive
+ * relevancy conditions.
+ *
+ * Only one evaluation runs at a time, and nothing else may use the form while it's running, so
+ * anything on the UI thread that's about to touch the form has to call {@link #finishPending()}
+ * first. Results are always handed over on the UI thread.
+ */
+public class FormRelevancyEvaluator {
+    private static final String TAG = FormRelevancyEvaluator.class.getSimpleName();
+
+    // the time available to draw a frame at 60fps
+    private static final long FRAME_BUDGET_MS = 16;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "form-relevancy"));
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private FutureTask<WidgetDiff> pending;
+    private Listener pendingListener;
+
+    public interface Listener {
+        void onWidgetDiffReady(WidgetDiff diff);
+
+        void onEvaluationFailed(XPathException e);
+    }
+
+    /**
+     * Start working out the changes to the widgets in the snapshot. The answers on screen must
+     * have already been saved to the form.
+     */
+    public void evaluate(FormController formController, WidgetSnapshot snapshot,
+                         Listener listener) {
+        if (pending != null) {
+            throw new IllegalStateException("An evaluation is already in progress");
+        }
+        final FutureTask<WidgetDiff> evaluation = new FutureTask<>(() -> {
+            long start = SystemClock.uptimeMillis();
+            WidgetDiff diff = FormRelevancyUpdating.getWidgetDiff(snapshot,
+                    formController.getQuestionPrompts());
+            diff.backgroundMillis = SystemClock.uptimeMillis() - start;
+            return diff;
+        });
+        pending = evaluation;
+        pendingListener = listener;
+        executor.execute(() -> {
+            evaluation.run();
+            mainHandler.post(() -> deliver(evaluation));
+        });
+    }
+
+    public boolean isEvaluating() {
+        return pending != null;
+    }
+
+    /**
+     * Wait for the evaluation in progress, if there is one, and hand over its result now
+     * instead of when the UI thread gets to it
+     */
+    public void finishPending() {
+        if (pending != null) {
+            deliver(pending);
+        }
+    }
+
+    private void deliver(FutureTask<WidgetDiff> evaluation) {
+        if (evaluation != pending) {
+            // already handed over or discarded
+            return;
+        }
+        Listener listener = pendingListener;
+        pending = null;
+        pendingListener = null;
+        try {
+            WidgetDiff diff = waitFor(evaluation);
+            if (diff != null) {
+                listener.onWidgetDiffReady(diff);
+            }
+        } catch (XPathException e) {
+            listener.onEvaluationFailed(e);
+        }
+    }
+
+    private static WidgetDiff waitFor(FutureTask<WidgetDiff> evaluation) {
+        try {
+            return evaluation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Record how long an update held up the UI thread, so the cost of updates on large screens
+     * can be followed
+     */
+    public static void logUpdateTiming(boolean inBackground, long uiMillis,
+                                       long backgroundMillis, int promptCount) {
+        String timing = "Relevancy update for " + promptCount + " questions" +
+                (inBackground ? " in background" : "") + ": ui=" + uiMillis + "ms" +
+                (inBackground ? ", background=" + backgroundMillis + "ms" : "");
+        if (uiMillis > FRAME_BUDGET_MS) {
+            Log.w(TAG, timing);
+        } else {
+            Log.d(TAG, timing);
+        }
+    }
+}
@@ -1,37 +1,113 @@
 package org.commcare.activities.components;
 
-import org.commcare.views.widgets.QuestionWidget;
+import org.commcare.views.QuestionsView;
+import org.commcare.views.widgets.IntentWidget;
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.form.api.FormEntryPrompt;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Vector;
 
 /**
  * @author amstone326
  */
 public class FormRelevancyUpdating {
+
+    /**
+     * What the widgets on screen were showing before an answer changed. It has to be taken
+     * before the answer is saved, since saving changes what the widgets' prompts report.
+     */
+    public static class WidgetSnapshot {
+        private final ArrayList<FormEntryPrompt> prompts = new ArrayList<>();
+        private final ArrayList<Boolean> mustRebuild = new ArrayList<>();
+        private final ArrayList<Vector<SelectChoice>> selectChoices;
+        private final ArrayList<String> questionTexts;
+
+        /**
+         * Covers every question on the screen, including ones whose widgets haven't been built
+         */
+        public WidgetSnapshot(QuestionsView questionsView) {
+            for (int i = 0; i < questionsView.getQuestionCount(); i++) {
+                prompts.add(questionsView.getPrompt(i));
+                //Intent widgets need to be fully rebuilt to update their intent callouts
+                //depending on model changes.
+                mustRebuild.add(questionsView.getBuiltWidget(i) instanceof IntentWidget);
+            }
+            selectChoices = getOldSelectChoicesForEachPrompt(prompts);
+            questionTexts = getOldQuestionTextsForEachPrompt(prompts);
+        }
+    }
+
+    /**
+     * The changes needed to bring the widgets in a snapshot up to date with a new set of prompts
+     */
+    public static class WidgetDiff {
+        public final FormEntryPrompt[] newValidPrompts;
+        public final ArrayList<Integer> widgetsToRemove = new ArrayList<>();
+        public final Set<FormEntryPrompt> promptsLeftInView = new HashSet<>();
+        long backgroundMillis;
+
+        private WidgetDiff(FormEntryPrompt[] newValidPrompts) {
+            this.newValidPrompts = newValidPrompts;
+        }
+
+        /**
+         * @return How long it took to work out the diff, if it was done in the background
+         */
+        public long getBackgroundMillis() {
+            return backgroundMillis;
+        }
+    }
+
+    /**
+     * Only reads from the form, so it can run away from the UI thread as long as nothing writes
+     * to the form in the meantime
+     */
+    public static WidgetDiff getWidgetDiff(WidgetSnapshot snapshot, FormEntryPrompt[] newValidPrompts) {
+        WidgetDiff diff = new WidgetDiff(newValidPrompts);
+        // Loop through all of the old widgets to determine which ones should stay in the new view
+        for (int i = 0; i < snapshot.prompts.size(); i++) {
+            if (snapshot.mustRebuild.get(i)) {
+                diff.widgetsToRemove.add(i);
+                continue;
+            }
+            FormEntryPrompt equivalentNewPrompt =
+                    getEquivalentPromptInNewList(newValidPrompts, snapshot.prompts.get(i),
+                            snapshot.questionTexts.get(i), snapshot.selectChoices.get(i));
+            if (equivalentNewPrompt != null) {
+                diff.promptsLeftInView.add(equivalentNewPrompt);
+            } else {
+                // If there is no equivalent prompt in the list of new prompts, then this prompt is
+                // no longer relevant in the new view, so it should get removed
+                diff.widgetsToRemove.add(i);
+            }
+        }
+        return diff;
+    }
+
     /**
-     * @return A list of the select choices for each widget in the list of old widgets, with the
+     * @return A list of the select choices for each prompt in the list of old prompts, with the
      * original order preserved
      */
-    public static ArrayList<Vector<SelectChoice>> getOldSelectChoicesForEachWidget(ArrayList<QuestionWidget> oldWidgets) {
+    public static ArrayList<Vector<SelectChoice>> getOldSelectChoicesForEachPrompt(ArrayList<FormEntryPrompt> oldPrompts) {
         ArrayList<Vector<SelectChoice>> selectChoicesList = new ArrayList<>();
-        for (QuestionWidget qw : oldWidgets) {
-            Vector<SelectChoice> oldSelectChoices = qw.getPrompt().getOldSelectChoices();
+        for (FormEntryPrompt prompt : oldPrompts) {
+            Vector<SelectChoice> oldSelectChoices = prompt.getOldSelectChoices();
             selectChoicesList.add(oldSelectChoices);
         }
         return selectChoicesList;
     }
 
     /**
-     * @return A list of the question texts for each widget in the list of old widgets, with the
+     * @return A list of the question texts for each prompt in the list of old prompts, with the
      * original order preserved
      */
-    public static ArrayList<String> getOldQuestionTextsForEachWidget(ArrayList<QuestionWidget> oldWidgets) {
+    public static ArrayList<String> getOldQuestionTextsForEachPrompt(ArrayList<FormEntryPrompt> oldPrompts) {
         ArrayList<String> questionTextList = new ArrayList<>();
-        for (QuestionWidget qw : oldWidgets) {
-            questionTextList.add(qw.getPrompt().getQuestionText());
+        for (FormEntryPrompt prompt : oldPrompts) {
+            questionTextList.add(prompt.getQuestionText());
         }
         return questionTextList;
     }
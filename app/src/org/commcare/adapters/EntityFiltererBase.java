@@ -4,23 +4,46 @@ import android.app.Activity;
 
 import org.commcare.cases.entity.Entity;
 import org.commcare.cases.entity.NodeEntityFactory;
+import org.commcare.models.AsyncNodeEntityFactory;
 import org.javarosa.core.model.instance.TreeReference;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Skeleton for filtering the entity select list.
  *
+ * All filterers share a single search thread. Starting a filterer while
+ * another search is pending or running is expected to be preceded by
+ * cancelling the old one, which stops it at its next cancellation check
+ * rather than blocking the caller until it finishes.
+ *
  * @author Phillip Mates (pmates@dimagi.com).
  */
 public abstract class EntityFiltererBase {
+    // Searches started within this window of the previous one are delayed
+    // by it, so that a burst of keystrokes only runs the last search
+    private static final long DEBOUNCE_MILLIS = 150;
+    private static final long READY_CHECK_MILLIS = 100;
+
+    private static final ScheduledExecutorService searchExecutor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "entity-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static long lastSearchStart = 0;
+
     private final NodeEntityFactory nodeFactory;
     private final EntityListAdapter adapter;
     protected final List<Entity<TreeReference>> matchList;
     protected final List<Entity<TreeReference>> fullEntityList;
-    private Thread thread;
-    private boolean cancelled = false;
+    private Future<?> pendingSearch;
+    private volatile boolean cancelled = false;
     private final Activity context;
 
     public EntityFiltererBase(Activity context,
@@ -35,34 +58,83 @@ public abstract class EntityFiltererBase {
     }
 
     public void start() {
-        thread = new Thread(() -> {
-            //Make sure that we have loaded the necessary cached data
-            //before we attempt to search over it
-            while (!nodeFactory.isEntitySetReady()) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        start(true);
+    }
+
+    /**
+     * @param debounce Whether this search can be delayed if it closely
+     *                 follows a previous one
+     */
+    public synchronized void start(boolean debounce) {
+        long delay = debounce ? getDebounceDelay() : 0;
+        pendingSearch = searchExecutor.schedule(this::runSearch, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized long getDebounceDelay() {
+        long now = System.currentTimeMillis();
+        long sinceLast = now - lastSearchStart;
+        lastSearchStart = now;
+        // the first search in a burst runs immediately
+        return sinceLast >= DEBOUNCE_MILLIS ? 0 : DEBOUNCE_MILLIS;
+    }
+
+    private void runSearch() {
+        //Make sure that we have loaded the necessary cached data
+        //before we attempt to search over it
+        if (!awaitEntitySetReady()) {
+            return;
+        }
+        filter();
+
+        finishSearch();
+    }
+
+    /**
+     * Wait, in slices so that a cancelled search doesn't hold up the search thread, until the
+     * factory has loaded the data the search needs
+     *
+     * @return false if the search was cancelled or interrupted before the data was ready
+     */
+    private boolean awaitEntitySetReady() {
+        while (!isCancelled()) {
+            try {
+                if (nodeFactory instanceof AsyncNodeEntityFactory) {
+                    // wakes up as soon as priming finishes rather than at the end of the slice
+                    if (((AsyncNodeEntityFactory)nodeFactory).awaitEntitySetReady(READY_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } else if (nodeFactory.isEntitySetReady()) {
+                    return true;
+                } else {
+                    Thread.sleep(READY_CHECK_MILLIS);
                 }
+            } catch (InterruptedException e) {
+                return false;
             }
-            filter();
-
-            finishSearch();
-        });
-        thread.start();
+        }
+        return false;
     }
 
     private void finishSearch() {
-        context.runOnUiThread(() -> adapter.setCurrent(matchList));
+        if (isCancelled()) {
+            return;
+        }
+        context.runOnUiThread(() -> {
+            // a newer search may have been started after this one finished
+            if (!isCancelled()) {
+                adapter.setCurrent(matchList);
+                onSearchApplied();
+            }
+        });
     }
 
     public void cancelSearch() {
         cancelled = true;
         adapter.clearSearch();
-        try {
-            thread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        synchronized (this) {
+            if (pendingSearch != null) {
+                pendingSearch.cancel(false);
+            }
         }
     }
 
@@ -70,6 +142,13 @@ public abstract class EntityFiltererBase {
         return cancelled;
     }
 
+    /**
+     * Called on the UI thread once the results of this search have been
+     * displayed
+     */
+    protected void onSearchApplied() {
+    }
+
     /**
      * Uses the provided filter logic to build the list of matching
      * entities from the full list of entities
@@ -35,21 +35,34 @@ public class EntityKeyFilterer extends EntityFiltererBase {
 
     @Override
     protected void filter() {
-        if (isCancelled() || orderedKeySet.isEmpty()) {
+        if (isCancelled()) {
             return;
         }
+        matchList.addAll(getMatches(fullEntityList, orderedKeySet));
+    }
+
+    /**
+     * @return The entities whose extra keys are in the key set, in key set order
+     */
+    static List<Entity<TreeReference>> getMatches(List<Entity<TreeReference>> entityList,
+                                                  LinkedHashSet<String> orderedKeySet) {
+        List<Entity<TreeReference>> matches = new ArrayList<>();
+        if (orderedKeySet.isEmpty()) {
+            return matches;
+        }
 
         // Add entities whose extra keys are in the key set, preserving key set
         // ordering. Don't assume one-to-one correspondence between entities
         // and keys: depending on the appliciation we might want to attach the
         // same data to multiple entities
         HashMap<String, List<Entity<TreeReference>>> keyToEntitiesMap =
-                buildKeyToEntitiesMap(fullEntityList);
+                buildKeyToEntitiesMap(entityList);
         for (String key : orderedKeySet) {
             if (keyToEntitiesMap.containsKey(key)) {
-                matchList.addAll(keyToEntitiesMap.get(key));
+                matches.addAll(keyToEntitiesMap.get(key));
             }
         }
+        return matches;
     }
 
     /**
@@ -12,6 +12,7 @@ import org.commcare.CommCareApplication;
 import org.commcare.activities.CommCareActivity;
 import org.commcare.cases.entity.Entity;
 import org.commcare.cases.entity.NodeEntityFactory;
+import org.commcare.cases.entity.SortableEntityAdapter;
 import org.commcare.dalvik.R;
 import org.commcare.interfaces.AndroidSortableEntityAdapter;
 import org.commcare.preferences.MainConfigurablePreferences;
@@ -72,6 +73,11 @@ public class EntityListAdapter extends AndroidSortableEntityAdapter implements L
 
     private EntityFiltererBase entityFilterer = null;
 
+    // terms and results of the last string search that ran to completion, used as
+    // the starting point of a search that narrows it down
+    private String[] lastCompletedSearchTerms;
+    private List<Entity<TreeReference>> lastCompletedMatches;
+
     // Asyncronous image loader, allows rows with images to scroll smoothly
     private final CachingAsyncImageLoader mImageLoader;
 
@@ -128,6 +134,80 @@ public class EntityListAdapter extends AndroidSortableEntityAdapter implements L
         update();
     }
 
+    /**
+     * Add entities streamed in from a load that is still in progress.
+     *
+     * The new chunk is sorted on its own and then merged into the list, which is already
+     * sorted, so each chunk costs a sort of the chunk plus a linear merge rather than a sort of
+     * everything loaded so far. While a search or callout filter is showing, it's run over the
+     * new chunk and the matches are added to the end of the list on screen; the filter is run
+     * over the whole list again, which puts the matches in order, when the load finishes.
+     */
+    public synchronized void appendEntities(List<Entity<TreeReference>> entities) {
+        int[] currentSort = getCurrentSort();
+        if (currentSort != null && currentSort.length > 0) {
+            List<Entity<TreeReference>> chunk = new ArrayList<>(entities);
+            new ChunkSorter(chunk, detail).sortChunk(currentSort, isCurrentSortReversed());
+            full.addAll(chunk);
+            // the list is now two sorted runs, which the stable merge sort behind sort() joins
+            // in a single pass
+            sort(currentSort, isCurrentSortReversed());
+        } else {
+            full.addAll(entities);
+        }
+        clearCompletedSearch();
+
+        if (isFilteringByCalloutResult) {
+            showChunkMatches(EntityKeyFilterer.getMatches(entities, getCalloutKeys()));
+        } else if (!"".equals(searchQuery)) {
+            showChunkMatches(EntityStringFilterer.getMatches(entities, currentSearchTerms,
+                    mFuzzySearchEnabled));
+        } else {
+            setCurrent(new ArrayList<>(full));
+        }
+    }
+
+    private void showChunkMatches(List<Entity<TreeReference>> matches) {
+        if (current == full) {
+            // the whole list is showing, chunk included
+            update();
+            return;
+        }
+        List<Entity<TreeReference>> shown = new ArrayList<>(current);
+        shown.addAll(matches);
+        setCurrent(shown);
+    }
+
+    /**
+     * Sorts a chunk of entities the same way the adapter sorts its list
+     */
+    private static class ChunkSorter extends SortableEntityAdapter {
+        ChunkSorter(List<Entity<TreeReference>> chunk, Detail detail) {
+            // sorted explicitly below, rather than by the default order on construction
+            super(chunk, detail, false);
+        }
+
+        void sortChunk(int[] fields, boolean reverse) {
+            sort(fields, reverse);
+        }
+
+        @Override
+        public void notifyBadFilter(String[] args) {
+            // only sorts, never filters
+        }
+    }
+
+    synchronized void recordCompletedSearch(String[] searchTerms,
+                                            List<Entity<TreeReference>> matches) {
+        lastCompletedSearchTerms = searchTerms;
+        lastCompletedMatches = matches;
+    }
+
+    private synchronized void clearCompletedSearch() {
+        lastCompletedSearchTerms = null;
+        lastCompletedMatches = null;
+    }
+
     void clearSearch() {
         currentSearchTerms = null;
         searchQuery = "";
@@ -323,10 +403,44 @@ public class EntityListAdapter extends AndroidSortableEntityAdapter implements L
         searchQuery = filterRaw;
         entityFilterer =
                 new EntityStringFilterer(this, searchTerms,
-                        mFuzzySearchEnabled, mNodeFactory, full, commCareActivity);
+                        mFuzzySearchEnabled, mNodeFactory, getSearchBase(searchTerms), commCareActivity);
         entityFilterer.start();
     }
 
+    /**
+     * @return The entities a search for the given terms has to consider. When the
+     * search only narrows down the last completed one, its matches are enough.
+     */
+    private List<Entity<TreeReference>> getSearchBase(String[] searchTerms) {
+        // fuzzy matching can accept an extended term that the shorter term didn't
+        // match, so only exact searches can start from the previous results
+        if (mFuzzySearchEnabled || lastCompletedSearchTerms == null ||
+                !isRefinementOf(searchTerms, lastCompletedSearchTerms)) {
+            return full;
+        }
+        return lastCompletedMatches;
+    }
+
+    /**
+     * @return whether every entity matching the new terms must also have
+     * matched the old terms, i.e. every old term is contained in a new one
+     */
+    private static boolean isRefinementOf(String[] newTerms, String[] oldTerms) {
+        for (String oldTerm : oldTerms) {
+            boolean contained = false;
+            for (String newTerm : newTerms) {
+                if (newTerm.contains(oldTerm)) {
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Filter entity list to only include entities that have extra keys present
      * in the provided mapping.  Reorders entities by the key ordering of the
@@ -338,16 +452,19 @@ public class EntityListAdapter extends AndroidSortableEntityAdapter implements L
         if (entityFilterer != null) {
             entityFilterer.cancelSearch();
         }
+        isFilteringByCalloutResult = true;
+        entityFilterer = new EntityKeyFilterer(this, mNodeFactory, full, commCareActivity,
+                getCalloutKeys());
+        entityFilterer.start(false);
+    }
+
+    private LinkedHashSet<String> getCalloutKeys() {
         LinkedHashSet<String> keysToFilterBy = new LinkedHashSet<>();
         for (Enumeration en = calloutResponseData.keys(); en.hasMoreElements(); ) {
             String key = (String)en.nextElement();
             keysToFilterBy.add(key);
         }
-
-        isFilteringByCalloutResult = true;
-        entityFilterer =
-                new EntityKeyFilterer(this, mNodeFactory, full, commCareActivity, keysToFilterBy);
-        entityFilterer.start();
+        return keysToFilterBy;
     }
 
     void update() {
@@ -357,6 +474,7 @@ public class EntityListAdapter extends AndroidSortableEntityAdapter implements L
     }
 
     public void sortEntities(int[] keys) {
+        clearCompletedSearch();
         sort(keys);
     }
 
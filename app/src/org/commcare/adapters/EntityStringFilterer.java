@@ -8,6 +8,7 @@ import org.commcare.CommCareApplication;
 import org.commcare.cases.entity.Entity;
 import org.commcare.cases.entity.NodeEntityFactory;
 import org.commcare.cases.util.StringUtils;
+import org.commcare.models.AsyncNodeEntityFactory;
 import org.commcare.modern.util.Pair;
 import org.commcare.util.EntityProvider;
 import org.commcare.util.EntitySortUtil;
@@ -30,6 +31,8 @@ public class EntityStringFilterer extends EntityFiltererBase {
     private final String[] searchTerms;
     private final ArrayList<Pair<Integer, Integer>> matchScores = new ArrayList<>();
     private final boolean isFuzzySearchEnabled;
+    private final NodeEntityFactory nodeFactory;
+    private final EntityListAdapter adapter;
 
     public EntityStringFilterer(EntityListAdapter adapter,
                                 String[] searchTerms,
@@ -40,6 +43,8 @@ public class EntityStringFilterer extends EntityFiltererBase {
         super(context, nodeFactory, adapter, fullEntityList);
 
         this.isFuzzySearchEnabled = isFuzzySearchEnabled;
+        this.nodeFactory = nodeFactory;
+        this.adapter = adapter;
         this.isFilterEmpty = searchTerms == null || searchTerms.length == 0;
         this.searchTerms = searchTerms;
 
@@ -66,11 +71,18 @@ public class EntityStringFilterer extends EntityFiltererBase {
         }
     }
 
-    private Entity<TreeReference> getEntityAtIndex(SQLiteDatabase db, int index) {
+    @Override
+    protected void onSearchApplied() {
+        adapter.recordCompletedSearch(searchTerms, matchList);
+    }
+
+    private Entity<TreeReference> getEntityAtIndex(SQLiteDatabase db,
+                                                   List<Entity<TreeReference>> entities,
+                                                   int index) {
         if (index % 500 == 0) {
             db.yieldIfContendedSafely();
         }
-        Entity<TreeReference> e = fullEntityList.get(index);
+        Entity<TreeReference> e = entities.get(index);
         if (isCancelled()) {
             return null;
         }
@@ -90,16 +102,56 @@ public class EntityStringFilterer extends EntityFiltererBase {
         }
         db.beginTransaction();
         try {
-            EntitySortUtil.sortEntities(fullEntityList,
+            List<Entity<TreeReference>> entitiesToMatch = getEntitiesToMatch();
+            EntitySortUtil.sortEntities(entitiesToMatch,
                     searchTerms,
                     currentLocale,
                     isFuzzySearchEnabled,
                     matchScores,
                     matchList,
-                    index -> getEntityAtIndex(db, index));
+                    index -> getEntityAtIndex(db, entitiesToMatch, index));
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
+
+    /**
+     * Match the entities against the search terms on the calling thread
+     *
+     * @return The matching entities, in match order
+     */
+    static List<Entity<TreeReference>> getMatches(List<Entity<TreeReference>> entities,
+                                                  String[] searchTerms,
+                                                  boolean isFuzzySearchEnabled) {
+        List<Entity<TreeReference>> matches = new ArrayList<>();
+        if (searchTerms == null || searchTerms.length == 0) {
+            matches.addAll(entities);
+            return matches;
+        }
+        ArrayList<Pair<Integer, Integer>> matchScores = new ArrayList<>();
+        EntitySortUtil.sortEntities(entities,
+                searchTerms,
+                Locale.getDefault(),
+                isFuzzySearchEnabled,
+                matchScores,
+                matches,
+                entities::get);
+        return matches;
+    }
+
+    /**
+     * Fuzzy matches can't be found through the search index, so only exact searches are
+     * narrowed down before being refined by the regular matching logic.
+     */
+    private List<Entity<TreeReference>> getEntitiesToMatch() {
+        if (!isFuzzySearchEnabled && nodeFactory instanceof AsyncNodeEntityFactory) {
+            List<Entity<TreeReference>> candidates =
+                    ((AsyncNodeEntityFactory)nodeFactory).getSearchCandidates(fullEntityList, searchTerms);
+            if (candidates != null) {
+                return candidates;
+            }
+        }
+        return fullEntityList;
+    }
 }
@@ -3,7 +3,7 @@ package org.commcare.adapters;
 import android.database.DataSetObserver;
 import android.graphics.Bitmap;
 import android.util.Log;
-import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -16,7 +16,9 @@ import org.commcare.activities.CommCareActivity;
 import org.commcare.dalvik.R;
 import org.commcare.logging.XPathErrorLogger;
 import org.commcare.models.AndroidSessionWrapper;
+import org.commcare.models.database.UserDataVersion;
 import org.commcare.preferences.DeveloperPreferences;
+import org.commcare.session.SessionDescriptorUtil;
 import org.commcare.suite.model.EntityDatum;
 import org.commcare.suite.model.Entry;
 import org.commcare.suite.model.Menu;
@@ -27,10 +29,12 @@ import org.commcare.suite.model.Text;
 import org.commcare.util.CommCarePlatform;
 import org.commcare.util.LogTypes;
 import org.commcare.util.LoggerInterface;
+import org.commcare.utils.AndroidInstanceInitializer;
 import org.commcare.utils.MediaUtil;
 import org.commcare.views.UserfacingErrorHandling;
 import org.commcare.views.media.AudioPlaybackButton;
 import org.commcare.views.media.ViewId;
+import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.services.Logger;
@@ -43,8 +47,8 @@ import org.javarosa.xpath.parser.XPathSyntaxException;
 import java.io.File;
 import java.util.Set;
 
+import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.schedulers.Schedulers;
 
 /**
  * Load module menu items
@@ -58,7 +62,8 @@ public class MenuAdapter extends BaseAdapter {
     private String errorMessage = "";
     final CommCareActivity context;
     private final MenuDisplayable[] displayableData;
-    private SparseArray<String> badgeCache = new SparseArray<>();
+    private final String sessionState;
+    private final SparseBooleanArray badgesInFlight = new SparseBooleanArray();
 
     private class MenuLogger implements LoggerInterface {
 
@@ -89,6 +94,7 @@ public class MenuAdapter extends BaseAdapter {
         this.displayableData = menuLoader.getMenus();
         this.errorMessage = menuLoader.getErrorMessage();
         this.loadError = menuLoader.getLoadException();
+        this.sessionState = SessionDescriptorUtil.createSessionDescriptor(asw.getSession());
     }
 
     public void showAnyLoadErrors(CommCareActivity activity) {
@@ -219,34 +225,66 @@ public class MenuAdapter extends BaseAdapter {
         badgeView.setVisibility(View.GONE);
         badgeView.setTag(position);
 
-        if (badgeCache.get(position) != null) {
-            updateBadgeView(badgeView, badgeCache.get(position));
-        } else {
-            Text badgeTextObject = menuDisplayable.getRawBadgeTextObject();
-            if (badgeTextObject != null) {
-                Set<String> instancesNeededByBadgeCalculation =
-                        (new InstanceNameAccumulatingAnalyzer()).accumulate(badgeTextObject);
-                context.attachDisposableToLifeCycle(
-                        menuDisplayable.getTextForBadge(asw.getRestrictedEvaluationContext(menuDisplayable.getCommandID(), instancesNeededByBadgeCalculation))
-                                .subscribeOn(Schedulers.single())
-                                .observeOn(AndroidSchedulers.mainThread())
-                                .subscribe(badgeText -> {
-                                            // Make sure that badgeView corresponds to the right position and update it
-                                            if (((int)badgeView.getTag()) == position) {
-                                                updateBadgeView(badgeView, badgeText);
-                                            }
-                                        },
-                                        throwable -> UserfacingErrorHandling.createErrorDialog(context, throwable.getLocalizedMessage(), true)
-                                )
-                );
-            } else {
-                updateBadgeView(badgeView, "");
+        Text badgeTextObject = menuDisplayable.getRawBadgeTextObject();
+        if (badgeTextObject == null) {
+            updateBadgeView(badgeView, "");
+            return;
+        }
+
+        String badgeKey = MenuBadgeCache.buildKey(menuDisplayable.getCommandID(), sessionState);
+        MenuBadgeCache.CachedBadge cachedBadge = MenuBadgeCache.get(badgeKey);
+        if (cachedBadge != null) {
+            // Show the last value while checking whether it's still current
+            updateBadgeView(badgeView, cachedBadge.text);
+            if (cachedBadge.isCurrent()) {
+                return;
             }
         }
+        if (badgesInFlight.get(position)) {
+            return;
+        }
+        badgesInFlight.put(position, true);
+
+        long dataVersion = UserDataVersion.get();
+        Set<String> instancesNeededByBadgeCalculation =
+                (new InstanceNameAccumulatingAnalyzer()).accumulate(badgeTextObject);
+        EvaluationContext badgeContext = buildBadgeEvaluationContext(
+                menuDisplayable.getCommandID(), instancesNeededByBadgeCalculation);
+        context.attachDisposableToLifeCycle(
+                Single.defer(() -> menuDisplayable.getTextForBadge(badgeContext))
+                        .subscribeOn(MenuBadgeCache.getScheduler())
+                        .observeOn(AndroidSchedulers.mainThread())
+                        .subscribe(badgeText -> {
+                                    badgesInFlight.delete(position);
+                                    MenuBadgeCache.put(badgeKey, badgeText, dataVersion);
+                                    // Make sure that badgeView corresponds to the right position and update it
+                                    if (((int)badgeView.getTag()) == position) {
+                                        updateBadgeView(badgeView, badgeText);
+                                    }
+                                },
+                                throwable -> {
+                                    badgesInFlight.delete(position);
+                                    UserfacingErrorHandling.createErrorDialog(context, throwable.getLocalizedMessage(), true);
+                                }
+                        )
+        );
+    }
+
+    /**
+     * Badges are computed in parallel, so each gets its own instance initializer rather than
+     * sharing the session's, whose case and ledger instances are reused between contexts, and
+     * its own copy of any cached fixture it reads, since the cached roots are shared too.
+     *
+     * Must be called on the UI thread: the session can change as the user navigates, so its
+     * state is read into the context here, and only the badge text is computed on a worker.
+     */
+    private EvaluationContext buildBadgeEvaluationContext(String commandId, Set<String> instancesNeeded) {
+        return asw.getSession().getEvaluationContext(
+                new AndroidInstanceInitializer(asw.getSession()).withPrivateFixtureCopies(),
+                commandId, instancesNeeded);
     }
 
     private void updateBadgeView(View badgeView, String badgeText) {
-        badgeCache.put((Integer)badgeView.getTag(), badgeText);
         if (badgeText != null && !"".equals(badgeText) && !"0".equals(badgeText)) {
             if (badgeText.length() > 3) {
                 // A badge can only fit up to 3 characters
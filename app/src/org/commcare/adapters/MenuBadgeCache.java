@@ -0,0 +1,114 @@
+package org.commcare.adapters;
+
+import org.commcare.models.database.UserDataVersion;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Badge text for menu items, kept for the rest of the session so that reopening a menu doesn't
+ * recompute every badge before showing anything.
+ *
+ * Each badge is stored with the {@link UserDataVersion} from before it was computed. A badge
+ * whose version is out of date is still shown while it's being recomputed, since counts are
+ * usually close to their last value. Badges are only held in memory, since their text comes
+ * from user data.
+ */
+public class MenuBadgeCache {
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_WORKERS = 3;
+
+    private static final Map<String, CachedBadge> badges =
+            new LinkedHashMap<String, CachedBadge>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedBadge> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private static final AtomicInteger freshHits = new AtomicInteger();
+    private static final AtomicInteger staleHits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+
+    // badges are independent of each other, so a few can be computed at once
+    private static final Scheduler badgeScheduler = Schedulers.from(Executors.newFixedThreadPool(
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_WORKERS)),
+            runnable -> new Thread(runnable, "menu-badges")));
+
+    public static class CachedBadge {
+        public final String text;
+        public final long dataVersion;
+
+        CachedBadge(String text, long dataVersion) {
+            this.text = text;
+            this.dataVersion = dataVersion;
+        }
+
+        public boolean isCurrent() {
+            return dataVersion == UserDataVersion.get();
+        }
+    }
+
+    /**
+     * @param commandId    The command the badge belongs to
+     * @param sessionState Describes the session the badge was computed in, since badges in a
+     *                     menu reached after selecting a case can depend on that case
+     */
+    public static String buildKey(String commandId, String sessionState) {
+        return commandId + "|" + sessionState;
+    }
+
+    /**
+     * @return The last badge text computed for the key, which may be out of date, or null if
+     * there isn't one
+     */
+    public static CachedBadge get(String key) {
+        CachedBadge badge;
+        synchronized (badges) {
+            badge = badges.get(key);
+        }
+        if (badge == null) {
+            misses.incrementAndGet();
+        } else if (badge.isCurrent()) {
+            freshHits.incrementAndGet();
+        } else {
+            staleHits.incrementAndGet();
+        }
+        return badge;
+    }
+
+    /**
+     * @param dataVersion The data version from before the badge was computed
+     */
+    public static void put(String key, String text, long dataVersion) {
+        synchronized (badges) {
+            badges.put(key, new CachedBadge(text, dataVersion));
+        }
+    }
+
+    public static Scheduler getScheduler() {
+        return badgeScheduler;
+    }
+
+    /**
+     * Drop every badge and reset the stats, since the session they belong to is ending
+     *
+     * @return The stats for the session that's ending
+     */
+    public static String clear() {
+        synchronized (badges) {
+            badges.clear();
+        }
+        String stats = "Menu badge cache: freshHits=" + freshHits.get() +
+                ", staleHits=" + staleHits.get() + ", misses=" + misses.get();
+        freshHits.set(0);
+        staleHits.set(0);
+        misses.set(0);
+        return stats;
+    }
+}
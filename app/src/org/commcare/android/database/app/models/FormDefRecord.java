@@ -180,6 +180,10 @@ public class FormDefRecord extends Persisted {
         return mFormFilePath;
     }
 
+    public String getJrFormId() {
+        return mJrFormId;
+    }
+
     public String getMediaPath() {
         return mFormMediaPath;
     }
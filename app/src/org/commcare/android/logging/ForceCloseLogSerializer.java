@@ -41,7 +41,8 @@ public class ForceCloseLogSerializer extends StreamLogSerializer implements Devi
             if (singleEntry != null) {
                 serializeLog(singleEntry.getID(), singleEntry);
             } else {
-                for (ForceCloseLogEntry entry : logStorage) {
+                for (ForceCloseLogEntry entry :
+                        logStorage.iterateInPages(AndroidLogSerializer.STORAGE_PAGE_SIZE)) {
                     serializeLog(entry.getID(), entry);
                 }
             }
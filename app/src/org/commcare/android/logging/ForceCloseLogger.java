@@ -6,6 +6,7 @@ import org.commcare.CommCareApp;
 import org.commcare.CommCareApplication;
 import org.commcare.dalvik.R;
 import org.commcare.logging.AndroidLogSerializer;
+import org.commcare.logging.AndroidLogger;
 import org.commcare.logging.DeviceReportWriter;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.network.CommcareRequestGenerator;
@@ -45,6 +46,8 @@ public class ForceCloseLogger {
     }
 
     public static void reportExceptionInBg(final Throwable exception) {
+        // The process may not outlive this, so don't leave log entries waiting to be written
+        AndroidLogger.flushBufferedLogger();
         new Thread(() -> sendToServerOrStore(exception)).start();
     }
 
@@ -8,6 +8,7 @@ import org.commcare.android.javarosa.PollSensorAction;
 import org.commcare.engine.extensions.IntentExtensionParser;
 import org.commcare.engine.extensions.PollSensorExtensionParser;
 import org.commcare.engine.extensions.XFormExtensionUtils;
+import org.commcare.logic.FormDefCache;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.resources.model.MissingMediaException;
 import org.commcare.resources.model.Resource;
@@ -106,6 +107,9 @@ public class XFormAndroidInstaller extends FileSystemInstaller {
         FormDefRecord formDefRecord = new FormDefRecord("NAME", formDef.getMainInstance().schema, local.getLocalURI(), GlobalConstants.MEDIA_REF, r.getVersion());
         formDefId = formDefRecord.save(platform.getFormDefStorage());
 
+        // hash the form now so that opening it can go straight to the cached binary
+        FormDefCache.recordFormHash(platform.getApp(), formDefId, new File(local.getLocalURI()));
+
         return upgrade ? Resource.RESOURCE_STATUS_UPGRADE : Resource.RESOURCE_STATUS_INSTALLED;
     }
 
@@ -130,6 +134,7 @@ public class XFormAndroidInstaller extends FileSystemInstaller {
 //                // otherwise it's resource version would have got bumped to the resource
 //                // version of new resource in the update.
                 platform.getFormDefStorage().remove(formDefId);
+                FormDefCache.forgetFormHashes(platform.getApp(), formDefId);
                 return super.uninstall(r, platform);
             }
             return true;
@@ -151,7 +156,11 @@ public class XFormAndroidInstaller extends FileSystemInstaller {
         }
 
         //Update the form file path
-        FormDefRecord.updateFilePath(((AndroidCommCarePlatform)platform).getFormDefStorage(), formDefId, new File(localRawUri).getAbsolutePath());
+        AndroidCommCarePlatform androidPlatform = (AndroidCommCarePlatform)platform;
+        File formXml = new File(localRawUri);
+        FormDefRecord.updateFilePath(androidPlatform.getFormDefStorage(), formDefId, formXml.getAbsolutePath());
+        // replaces the hash recorded for the record's previous file
+        FormDefCache.recordFormHash(androidPlatform.getApp(), formDefId, formXml);
         return true;
     }
 
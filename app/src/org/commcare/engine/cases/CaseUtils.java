@@ -1,5 +1,11 @@
 package org.commcare.engine.cases;
 
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntCursor;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.commcare.CommCareApplication;
@@ -12,8 +18,14 @@ import org.commcare.cases.util.CasePurgeFilter;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.SqlStorageIterator;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.CaseDbDigest;
+import org.commcare.models.database.user.models.CasePurgeJournal;
+import org.commcare.modern.database.DatabaseHelper;
+import org.commcare.modern.database.TableBuilder;
 import org.commcare.modern.engine.cases.CaseIndexTable;
 import org.commcare.modern.util.Pair;
+import org.commcare.preferences.DeveloperPreferences;
+import org.commcare.preferences.HiddenPreferences;
 import org.commcare.util.LogTypes;
 import org.commcare.utils.CommCareUtil;
 import org.javarosa.core.model.User;
@@ -28,10 +40,17 @@ import org.javarosa.core.util.DAG;
 import org.javarosa.core.util.MD5;
 import org.javarosa.model.xform.XPathReference;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
-
-import static org.commcare.cases.util.CaseDBUtils.xordata;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utilities for performing complex operations on the case database.
@@ -40,35 +59,70 @@ import static org.commcare.cases.util.CaseDBUtils.xordata;
  */
 public class CaseUtils {
 
-    public static String computeCaseDbHash(SqlStorage<?> storage) {
-        long timeStart = System.currentTimeMillis();
+    // How long incremental purges can go without a full purge confirming their results
+    private static final long FULL_PURGE_AUDIT_INTERVAL = TimeUnit.DAYS.toMillis(7);
 
-        byte[] data = new byte[MD5.length];
-        for (int i = 0; i < data.length; ++i) {
-            data[i] = 0;
+    /**
+     * @return The digest of the logged in user's case database, as sent to the server with sync
+     * requests
+     */
+    public static String getCaseDbHash() {
+        return getCaseDbHash(CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class),
+                CommCareApplication.instance().getUserDbHandle(),
+                DeveloperPreferences.shouldVerifyCaseDbHash());
+    }
+
+    /**
+     * Read the case database digest from its incrementally maintained copy, only hashing every
+     * case if that copy isn't available yet.
+     *
+     * @param verify Also hash every case, and replace the maintained digest (logging the
+     *               problem) if the two differ
+     */
+    public static String getCaseDbHash(SqlStorage<?> storage, SQLiteDatabase db, boolean verify) {
+        CaseDbDigest storedDigest = new CaseDbDigest(db);
+        db.beginTransaction();
+        try {
+            CaseDbDigest.Digest digest = storedDigest.read();
+            if (digest == null || verify) {
+                CaseDbDigest.Digest computed = computeCaseDbDigest(storage);
+                if (digest != null && !digest.toHashString().equals(computed.toHashString())) {
+                    Logger.log(LogTypes.SOFT_ASSERT, String.format(
+                            "Maintained case db hash %s [%d cases] didn't match computed hash %s [%d cases]",
+                            digest.toHashString(), digest.getCaseCount(),
+                            computed.toHashString(), computed.getCaseCount()));
+                }
+                storedDigest.store(computed);
+                digest = computed;
+            }
+            db.setTransactionSuccessful();
+            return digest.toHashString();
+        } finally {
+            db.endTransaction();
         }
-        boolean casesExist = false;
-        long count = 0;
+    }
+
+    public static String computeCaseDbHash(SqlStorage<?> storage) {
+        return computeCaseDbDigest(storage).toHashString();
+    }
+
+    private static CaseDbDigest.Digest computeCaseDbDigest(SqlStorage<?> storage) {
+        long timeStart = System.currentTimeMillis();
 
+        CaseDbDigest.Digest digest = new CaseDbDigest.Digest();
         for (SqlStorageIterator i = storage.iterate(false, new String[]{Case.INDEX_CASE_ID}); i.hasMore(); ) {
-            byte[] current = MD5.hash(i.peekIncludedMetadata(Case.INDEX_CASE_ID).getBytes());
-            data = xordata(data, current);
-            casesExist = true;
-            count++;
+            digest.toggle(i.peekIncludedMetadata(Case.INDEX_CASE_ID), 1);
             i.nextID();
         }
 
-        //In the base case (with no cases), the case hash is empty
-        if (!casesExist) {
-            return "";
+        if (digest.getCaseCount() > 0) {
+            long timeEnd = System.currentTimeMillis();
+            Logger.log(LogTypes.TYPE_MAINTENANCE, String.format(
+                    "Hashed %d Cases records in %dms",
+                    digest.getCaseCount(), timeEnd - timeStart));
         }
 
-        long timeEnd = System.currentTimeMillis();
-        Logger.log(LogTypes.TYPE_MAINTENANCE, String.format(
-                "Hashed %d Cases records in %dms",
-                count, timeEnd-timeStart));
-
-        return MD5.toHex(data);
+        return digest;
     }
     /**
      * Perform a case purge against the logged in user with the logged in app in local storage.
@@ -76,15 +130,15 @@ public class CaseUtils {
      * Will fail if the app is not ready for DB operations at the user level.
      */
     public static void purgeCases() {
-        long start = System.currentTimeMillis();
+        PurgeMetrics metrics = new PurgeMetrics();
         //We need to determine if we're using ownership for purging. For right now, only in sync mode
-        Vector<String> owners = new Vector<>();
-        Vector<String> users = new Vector<>();
+        HashSet<String> owners = new HashSet<>();
+        ArrayList<String> users = new ArrayList<>();
         for (IStorageIterator<User> userIterator = CommCareApplication.instance()
                 .getUserStorage(User.STORAGE_KEY, User.class).iterate(); userIterator.hasMore(); ) {
             String id = userIterator.nextRecord().getUniqueId();
-            owners.addElement(id);
-            users.addElement(id);
+            owners.add(id);
+            users.add(id);
         }
 
         //Now add all of the relevant groups
@@ -98,22 +152,43 @@ public class CaseUtils {
             for (TreeReference ref : ec.expandReference(XPathReference.getPathExpr("/groups/group/@id").getReference())) {
                 AbstractTreeElement<AbstractTreeElement> idelement = ec.resolveReference(ref);
                 if (idelement.getValue() != null) {
-                    owners.addElement(idelement.getValue().uncast().getString());
+                    owners.add(idelement.getValue().uncast().getString());
                 }
             }
         }
+        metrics.endPhase("owners");
+
+        String userId = CommCareApplication.instance().getSession().getLoggedInUser().getUniqueId();
+        String ownersHash = getOwnersHash(owners);
 
         SQLiteDatabase db;
         db = CommCareApplication.instance().getUserDbHandle();
 
         db.beginTransaction();
         int removedCaseCount;
-        int removedLedgers;
+        int removedLedgers = 0;
+        String fullPurgeReason;
         try {
             SqlStorage<ACase> storage = CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class);
-            DAG<String, int[], String> fullCaseGraph = getFullCaseGraph(storage, new AndroidCaseIndexTable(), owners);
+            AndroidCaseIndexTable indexTable = new AndroidCaseIndexTable(db);
+            CasePurgeJournal journal = new CasePurgeJournal(db);
+
+            fullPurgeReason = getFullPurgeReason(journal, userId, ownersHash);
+            DAG<String, int[], String> caseGraph = null;
+            if (fullPurgeReason == null) {
+                int maxAffectedCases = storage.getNumRecords() / 2;
+                caseGraph = getAffectedCaseGraph(db, indexTable, journal.getTouchedCases(),
+                        owners, maxAffectedCases, metrics);
+                if (caseGraph == null) {
+                    fullPurgeReason = "more than " + maxAffectedCases + " cases affected";
+                }
+            }
+            if (fullPurgeReason != null) {
+                caseGraph = getFullCaseGraph(storage, indexTable, owners, metrics);
+            }
+            metrics.endPhase("graph");
 
-            CasePurgeFilter filter = new CasePurgeFilter(fullCaseGraph);
+            CasePurgeFilter filter = new CasePurgeFilter(caseGraph);
             if (filter.invalidEdgesWereRemoved()) {
                 Logger.log(LogTypes.SOFT_ASSERT, "An invalid edge was created in the internal " +
                         "case DAG of a case purge filter, meaning that at least 1 case on the " +
@@ -123,44 +198,218 @@ public class CaseUtils {
                         "but were missing: " + filter.getMissingCasesString() + ". As a result, the " +
                         "following cases were also removed from the device: " + filter.getRemovedCasesString());
             }
+            metrics.endPhase("filter");
 
-            Vector<Integer> casesRemoved = storage.removeAll(filter.getCasesToRemove());
+            Vector<Integer> casesToRemove = filter.getCasesToRemove();
+            ArrayList<String> removedCaseIds = getCaseIds(storage, casesToRemove);
+            Vector<Integer> casesRemoved = storage.removeAll(casesToRemove);
             removedCaseCount = casesRemoved.size();
-
-            AndroidCaseIndexTable indexTable = new AndroidCaseIndexTable(db);
-            for (int recordId : casesRemoved) {
-                indexTable.clearCaseIndices(recordId);
+            indexTable.clearCaseIndices(casesRemoved);
+            new CaseDbDigest(db).removeCases(removedCaseIds);
+            metrics.endPhase("remove");
+
+            // Ledgers only lose their case when one is removed, so they are re-checked on
+            // incremental purges that removed something and on every full purge
+            if (fullPurgeReason != null || removedCaseCount > 0) {
+                SqlStorage<Ledger> stockStorage = CommCareApplication.instance().getUserStorage(Ledger.STORAGE_KEY, Ledger.class);
+                LedgerPurgeFilter stockFilter = new LedgerPurgeFilter(stockStorage, storage);
+                removedLedgers = stockStorage.removeAll(stockFilter).size();
             }
-
-
-            SqlStorage<Ledger> stockStorage = CommCareApplication.instance().getUserStorage(Ledger.STORAGE_KEY, Ledger.class);
-            LedgerPurgeFilter stockFilter = new LedgerPurgeFilter(stockStorage, storage);
-            removedLedgers = stockStorage.removeAll(stockFilter).size();
+            journal.clear();
             db.setTransactionSuccessful();
-
+            metrics.endPhase("ledgers");
         } finally {
             db.endTransaction();
         }
 
-        long taken = System.currentTimeMillis() - start;
+        if (fullPurgeReason != null) {
+            HiddenPreferences.setLastFullCasePurge(userId, ownersHash);
+        }
 
         Logger.log(LogTypes.TYPE_MAINTENANCE, String.format(
-                "Purged [%d Case, %d Ledger] records in %dms",
-                removedCaseCount, removedLedgers, taken));
+                "Purged [%d Case, %d Ledger] records in %dms with %s purge over %d cases (%s)",
+                removedCaseCount, removedLedgers, metrics.getTotalMillis(),
+                fullPurgeReason == null ? "an incremental" : "a full [" + fullPurgeReason + "]",
+                metrics.casesEvaluated, metrics));
 
     }
 
+    private static ArrayList<String> getCaseIds(SqlStorage<ACase> storage, Collection<Integer> recordIds) {
+        ArrayList<String> caseIds = new ArrayList<>(recordIds.size());
+        if (recordIds.isEmpty()) {
+            return caseIds;
+        }
+        HashMap<Integer, String[]> metadata = new HashMap<>();
+        storage.bulkReadMetadata(new LinkedHashSet<>(recordIds), new String[]{Case.INDEX_CASE_ID}, metadata);
+        for (String[] caseMetadata : metadata.values()) {
+            caseIds.add(caseMetadata[0]);
+        }
+        return caseIds;
+    }
+
+    /**
+     * @return Why the next purge needs to evaluate every case, or null if only the cases affected
+     * by changes since the last purge need to be
+     */
+    private static String getFullPurgeReason(CasePurgeJournal journal, String userId, String ownersHash) {
+        if (journal.isFullPurgeRequested()) {
+            return "requested";
+        }
+        if (!ownersHash.equals(HiddenPreferences.getLastCasePurgeOwners(userId))) {
+            // a change in ownership can make any case purgeable
+            return "owners changed";
+        }
+        long sinceLastFullPurge = System.currentTimeMillis() - HiddenPreferences.getLastFullCasePurgeTime(userId);
+        if (sinceLastFullPurge < 0 || sinceLastFullPurge > FULL_PURGE_AUDIT_INTERVAL) {
+            return "periodic audit";
+        }
+        return null;
+    }
+
+    private static String getOwnersHash(Set<String> owners) {
+        ArrayList<String> sortedOwners = new ArrayList<>(owners);
+        Collections.sort(sortedOwners);
+        StringBuilder joined = new StringBuilder();
+        for (String owner : sortedOwners) {
+            joined.append(owner).append('\n');
+        }
+        return MD5.toHex(MD5.hash(joined.toString().getBytes()));
+    }
+
+    /**
+     * Build the part of the case graph that the given cases belong to: every case connected to
+     * one of them through indices, in either direction. Whether a case is purged only depends
+     * on the cases it is connected to, so purging this subgraph gives the same result for these
+     * cases as purging the full graph.
+     *
+     * @return The subgraph, or null if it grew past the given number of cases, in which case a
+     * full purge is cheaper
+     */
+    private static DAG<String, int[], String> getAffectedCaseGraph(SQLiteDatabase db,
+                                                                   AndroidCaseIndexTable indexTable,
+                                                                   Set<String> touchedCases,
+                                                                   Set<String> owners,
+                                                                   int maxCases,
+                                                                   PurgeMetrics metrics) {
+        DAG<String, int[], String> caseGraph = new DAG<>();
+        HashSet<String> visited = new HashSet<>(touchedCases);
+        Collection<String> frontier = touchedCases;
+        ArrayList<Pair<String, String>> indexHolder = new ArrayList<>();
+
+        while (!frontier.isEmpty()) {
+            IntObjectHashMap<String> layer = readCaseNodes(db, frontier, owners, caseGraph);
+            metrics.casesEvaluated += layer.size();
+            if (metrics.casesEvaluated > maxCases) {
+                return null;
+            }
+
+            ArrayList<String> next = new ArrayList<>();
+
+            // Cases this layer indexes
+            ArrayList<Integer> recordIds = new ArrayList<>(layer.size());
+            for (IntCursor recordId : layer.keys()) {
+                recordIds.add(recordId.value);
+            }
+            for (Map.Entry<Integer, Vector<Pair<String, String>>> indices :
+                    indexTable.getCaseIndexMap(recordIds).entrySet()) {
+                String caseID = layer.get(indices.getKey());
+                for (Pair<String, String> index : indices.getValue()) {
+                    addIndex(indexHolder, index);
+                }
+                for (Pair<String, String> index : indexHolder) {
+                    caseGraph.setEdge(caseID, index.first, index.second);
+                    if (visited.add(index.first)) {
+                        next.add(index.first);
+                    }
+                }
+                indexHolder.clear();
+            }
+
+            // Cases which index this layer
+            ArrayList<String> caseIds = new ArrayList<>(layer.size());
+            for (ObjectCursor<String> caseID : layer.values()) {
+                caseIds.add(caseID.value);
+            }
+            for (String indexingCase : indexTable.getCaseIdsIndexing(caseIds)) {
+                if (visited.add(indexingCase)) {
+                    next.add(indexingCase);
+                }
+            }
+
+            frontier = next;
+        }
+        metrics.sampleMemory();
+        return caseGraph;
+    }
+
+    /**
+     * Add a node to the graph for each of the given cases that exists on the device
+     *
+     * @return The case ids of the added nodes, keyed by record id
+     */
+    private static IntObjectHashMap<String> readCaseNodes(SQLiteDatabase db, Collection<String> caseIds,
+                                                          Set<String> owners,
+                                                          DAG<String, int[], String> caseGraph) {
+        IntObjectHashMap<String> found = new IntObjectHashMap<>();
+        String caseIdColumn = TableBuilder.scrubName(Case.INDEX_CASE_ID);
+        String[] projection = new String[]{DatabaseHelper.ID_COL, caseIdColumn,
+                TableBuilder.scrubName(Case.INDEX_OWNER_ID), TableBuilder.scrubName(Case.INDEX_CASE_STATUS)};
+        for (Pair<String, String[]> whereParams : TableBuilder.sqlList(caseIds)) {
+            Cursor c = db.query(ACase.STORAGE_KEY, projection, caseIdColumn + " IN " + whereParams.first,
+                    whereParams.second, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    int caseRecordId = c.getInt(0);
+                    String caseID = c.getString(1);
+                    caseGraph.addNode(caseID, new int[]{
+                            getNodeStatus(owners, c.getString(2), "closed".equals(c.getString(3))),
+                            caseRecordId});
+                    found.put(caseRecordId, caseID);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return found;
+    }
+
+    private static int getNodeStatus(Set<String> owners, String ownerId, boolean closed) {
+        boolean owned = true;
+        if (owners != null) {
+            owned = owners.contains(ownerId);
+        }
+
+        int nodeStatus = 0;
+        if (owned) {
+            nodeStatus |= CasePurgeFilter.STATUS_OWNED;
+        }
+
+        if (!closed) {
+            nodeStatus |= CasePurgeFilter.STATUS_OPEN;
+        }
+
+        if (owned && !closed) {
+            nodeStatus |= CasePurgeFilter.STATUS_RELEVANT;
+        }
+        return nodeStatus;
+    }
+
     public static DAG<String, int[], String> getFullCaseGraph(SqlStorage<ACase> caseStorage,
                                                               AndroidCaseIndexTable indexTable,
                                                               Vector<String> owners) {
-        DAG<String, int[], String> caseGraph = new DAG<>();
-        Vector<Pair<String, String>> indexHolder = new Vector<>();
-
-        HashMap<Integer, Vector<Pair<String, String>>> caseIndexMap = indexTable.getCaseIndexMap();
+        return getFullCaseGraph(caseStorage, indexTable,
+                owners == null ? null : new HashSet<>(owners), new PurgeMetrics());
+    }
 
-        // Pass 1: Create a DAG which contains all of the cases on the phone as nodes, and has a
-        // directed edge for each index (from the 'child' case pointing to the 'parent' case) with
-        // the appropriate relationship tagged
+    private static DAG<String, int[], String> getFullCaseGraph(SqlStorage<ACase> caseStorage,
+                                                               AndroidCaseIndexTable indexTable,
+                                                               Set<String> owners,
+                                                               PurgeMetrics metrics) {
+        // Pass 1: Read the record id, case id and purge status of every case on the phone
+        IntArrayList recordIds = new IntArrayList();
+        IntArrayList statuses = new IntArrayList();
+        ArrayList<String> caseIds = new ArrayList<>();
+        boolean inRecordIdOrder = true;
         for (SqlStorageIterator<ACase> i = caseStorage.iterate(false, new String[]{
                 Case.INDEX_OWNER_ID, Case.INDEX_CASE_STATUS, Case.INDEX_CASE_ID}); i.hasMore(); ) {
 
@@ -168,60 +417,123 @@ public class CaseUtils {
             boolean closed = i.peekIncludedMetadata(Case.INDEX_CASE_STATUS).equals("closed");
             String caseID = i.peekIncludedMetadata(Case.INDEX_CASE_ID);
             int caseRecordId = i.nextID();
+            int nodeStatus = getNodeStatus(owners, ownerId, closed);
+
+            int count = recordIds.size();
+            if (count > 0 && recordIds.get(count - 1) > caseRecordId) {
+                inRecordIdOrder = false;
+            }
+            recordIds.add(caseRecordId);
+            statuses.add(nodeStatus);
+            caseIds.add(caseID);
+        }
+        metrics.casesEvaluated = recordIds.size();
+        metrics.sampleMemory();
 
+        int[] order = inRecordIdOrder ? null : getRecordIdOrder(recordIds);
 
-            boolean owned = true;
-            if (owners != null) {
-                owned = owners.contains(ownerId);
-            }
-
-            Vector<Pair<String, String>> indices = caseIndexMap.get(caseRecordId);
-
-            if (indices != null) {
-                // In order to deal with multiple indices pointing to the same case with different
-                // relationships, we'll need to traverse once to eliminate any ambiguity
-                for (Pair<String, String> index : indices) {
-                    Pair<String, String> toReplace = null;
-                    boolean skip = false;
-                    for (Pair<String, String> existing : indexHolder) {
-                        if (existing.first.equals(index.first)) {
-                            if (existing.second.equals(CaseIndex.RELATIONSHIP_EXTENSION) && !index.second.equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
-                                toReplace = existing;
-                            } else {
-                                skip = true;
-                            }
-                            break;
-                        }
-                    }
-                    if (toReplace != null) {
-                        indexHolder.removeElement(toReplace);
-                    }
-                    if (!skip) {
-                        indexHolder.addElement(index);
-                    }
+        // Pass 2: Create a DAG which contains all of the cases on the phone as nodes, and has a
+        // directed edge for each index (from the 'child' case pointing to the 'parent' case) with
+        // the appropriate relationship tagged. The index table is walked in record id order
+        // alongside the cases, so only one case's indices are held at a time.
+        DAG<String, int[], String> caseGraph = new DAG<>();
+        ArrayList<Pair<String, String>> indexHolder = new ArrayList<>();
+        AndroidCaseIndexTable.IndexRowCursor indexRows = indexTable.getIndicesOrderedByCase();
+        try {
+            for (int n = 0; n < recordIds.size(); n++) {
+                int i = order == null ? n : order[n];
+                int caseRecordId = recordIds.get(i);
+                String caseID = caseIds.get(i);
+
+                // skip over indices left behind by cases that no longer exist
+                while (indexRows.hasRow() && indexRows.getRecordId() < caseRecordId) {
+                    indexRows.advance();
+                }
+                while (indexRows.hasRow() && indexRows.getRecordId() == caseRecordId) {
+                    addIndex(indexHolder, new Pair<>(indexRows.getTarget(), indexRows.getRelationship()));
+                    indexRows.advance();
                 }
-            }
-            int nodeStatus = 0;
-            if (owned) {
-                nodeStatus |= CasePurgeFilter.STATUS_OWNED;
-            }
 
-            if (!closed) {
-                nodeStatus |= CasePurgeFilter.STATUS_OPEN;
-            }
+                caseGraph.addNode(caseID, new int[]{statuses.get(i), caseRecordId});
 
-            if (owned && !closed) {
-                nodeStatus |= CasePurgeFilter.STATUS_RELEVANT;
+                for (Pair<String, String> index : indexHolder) {
+                    caseGraph.setEdge(caseID, index.first, index.second);
+                }
+                indexHolder.clear();
             }
+        } finally {
+            indexRows.close();
+        }
+        metrics.sampleMemory();
 
-            caseGraph.addNode(caseID, new int[]{nodeStatus, caseRecordId});
+        return caseGraph;
+    }
 
-            for (Pair<String, String> index : indexHolder) {
-                caseGraph.setEdge(caseID, index.first, index.second);
+    /**
+     * In order to deal with multiple indices pointing to the same case with different
+     * relationships, only keep one index per target, preferring non-extension relationships
+     */
+    private static void addIndex(ArrayList<Pair<String, String>> indexHolder, Pair<String, String> index) {
+        for (int j = 0; j < indexHolder.size(); j++) {
+            Pair<String, String> existing = indexHolder.get(j);
+            if (existing.first.equals(index.first)) {
+                if (existing.second.equals(CaseIndex.RELATIONSHIP_EXTENSION) && !index.second.equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
+                    indexHolder.remove(j);
+                    indexHolder.add(index);
+                }
+                return;
             }
-            indexHolder.removeAllElements();
         }
+        indexHolder.add(index);
+    }
+
+    /**
+     * @return Positions into the given list, ordered by the record ids at those positions
+     */
+    private static int[] getRecordIdOrder(IntArrayList recordIds) {
+        // pack (record id, position) into longs so a primitive sort orders them by record id
+        long[] packed = new long[recordIds.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = ((long)recordIds.get(i) << 32) | i;
+        }
+        Arrays.sort(packed);
+        int[] order = new int[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            order[i] = (int)(packed[i] & 0xFFFFFFFFL);
+        }
+        return order;
+    }
 
-        return caseGraph;
+    /**
+     * Tracks the time taken by each phase of a purge, and the most heap in use at the end of any
+     * of them
+     */
+    private static class PurgeMetrics {
+        private final long start = System.currentTimeMillis();
+        private long phaseStart = start;
+        private long peakMemoryBytes = 0;
+        private final StringBuilder phases = new StringBuilder();
+        int casesEvaluated = 0;
+
+        void endPhase(String phase) {
+            long now = System.currentTimeMillis();
+            sampleMemory();
+            phases.append(phase).append("=").append(now - phaseStart).append("ms, ");
+            phaseStart = now;
+        }
+
+        void sampleMemory() {
+            Runtime runtime = Runtime.getRuntime();
+            peakMemoryBytes = Math.max(peakMemoryBytes, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        long getTotalMillis() {
+            return System.currentTimeMillis() - start;
+        }
+
+        @Override
+        public String toString() {
+            return phases + "peakHeap=" + (peakMemoryBytes / 1024) + "KB";
+        }
     }
 }
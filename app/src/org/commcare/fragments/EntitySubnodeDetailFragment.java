@@ -96,6 +96,13 @@ public class EntitySubnodeDetailFragment extends EntityDetailFragment implements
         }
     }
 
+    @Override
+    public void deliverPartialLoadResult(List<Entity<TreeReference>> entities,
+                                         List<TreeReference> references,
+                                         NodeEntityFactory factory) {
+        // Subnode lists are small and never request streaming
+    }
+
     @Override
     public void deliverLoadError(Exception e) {
         ((CommCareActivity)getActivity()).displayCaseListLoadException(e);
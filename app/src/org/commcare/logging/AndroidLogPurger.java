@@ -2,12 +2,12 @@ package org.commcare.logging;
 
 import org.commcare.android.javarosa.AndroidLogEntry;
 import org.commcare.models.database.SqlStorage;
-import org.javarosa.core.log.LogEntry;
+import org.commcare.modern.util.Pair;
 import org.javarosa.core.log.StreamLogSerializer;
-import org.javarosa.core.services.storage.EntityFilter;
 import org.javarosa.core.util.SortedIntSet;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Implementation of a log purger shared by all Android log serializers
@@ -24,16 +24,31 @@ public class AndroidLogPurger<T extends AndroidLogEntry> implements StreamLogSer
 
     @Override
     public void purge(final SortedIntSet IDs) {
-        logStorage.removeAll(new EntityFilter<LogEntry>() {
-            @Override
-            public int preFilter(int id, Hashtable<String, Object> metaData) {
-                return IDs.contains(id) ? PREFILTER_INCLUDE : PREFILTER_EXCLUDE;
-            }
+        logStorage.removeIdRanges(toIdRanges(IDs));
+    }
 
-            @Override
-            public boolean matches(LogEntry e) {
-                throw new RuntimeException("can't happen");
+    /**
+     * Logs are serialized in id order, so the ids to purge are almost always one unbroken run,
+     * and can be removed with a single range delete
+     *
+     * @return The runs of consecutive ids in the set, as their first and last ids
+     */
+    private static List<Pair<Integer, Integer>> toIdRanges(SortedIntSet IDs) {
+        List<Pair<Integer, Integer>> ranges = new ArrayList<>();
+        if (IDs.size() == 0) {
+            return ranges;
+        }
+        int rangeStart = IDs.get(0);
+        int previous = rangeStart;
+        for (int i = 1; i < IDs.size(); i++) {
+            int id = IDs.get(i);
+            if (id != previous + 1) {
+                ranges.add(new Pair<>(rangeStart, previous));
+                rangeStart = id;
             }
-        });
+            previous = id;
+        }
+        ranges.add(new Pair<>(rangeStart, previous));
+        return ranges;
     }
 }
@@ -15,6 +15,9 @@ import java.io.IOException;
 public class AndroidLogSerializer <T extends AndroidLogEntry>
         extends StreamLogSerializer implements DeviceReportElement {
 
+    // how many log entries are read from storage at a time while serializing
+    public static final int STORAGE_PAGE_SIZE = 500;
+
     private XmlSerializer serializer;
 
     private AndroidLogEntry singleEntry;
@@ -68,7 +71,7 @@ public class AndroidLogSerializer <T extends AndroidLogEntry>
                 serializeLog(singleEntry.getID(), singleEntry);
             }
             else {
-                for (AndroidLogEntry entry : logStorage) {
+                for (AndroidLogEntry entry : logStorage.iterateInPages(STORAGE_PAGE_SIZE)) {
                     serializeLog(entry.getID(), entry);
                 }
             }
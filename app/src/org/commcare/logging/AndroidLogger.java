@@ -1,7 +1,10 @@
 package org.commcare.logging;
 
+import android.util.Log;
+
 import org.commcare.android.javarosa.AndroidLogEntry;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.util.LogTypes;
 import org.javarosa.core.api.ILogger;
 import org.javarosa.core.log.IFullLogSerializer;
 import org.javarosa.core.log.LogEntry;
@@ -10,38 +13,250 @@ import org.javarosa.core.log.StreamLogSerializer;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Logging engine for CommCare ODK Environments.
  *
+ * When buffered, entries are queued and written by a background thread in batches, each in a
+ * single transaction, instead of in a transaction of their own on the thread that logged them.
+ * The queue is bounded; once it's full new entries are dropped and counted, and the count is
+ * logged once the writer catches up. Buffered entries are written out before anything reads the
+ * logs, on panic, before the user's storage is closed and before a crash is reported.
+ *
  * @author ctsims
  */
 public class AndroidLogger implements ILogger {
+    private static final String TAG = AndroidLogger.class.getSimpleName();
 
     //TODO: Currently assumes that it gets back iterated records in RecordID order.
     //when serializing a limited number of records then clearing
 
+    static final int MAX_BUFFERED_ENTRIES = 1000;
+    private static final int MAX_BATCH_SIZE = 100;
+    // gives entries logged in quick succession a chance to be written together
+    private static final long WRITE_DELAY_MS = 250;
+    // the writer can be waiting on a transaction held by the thread that's flushing, so
+    // flushing gives up rather than wait on it forever
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    private static final ScheduledExecutorService writer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "log-writer"));
+
+    // the buffered logger that is registered, so it can be flushed from outside of logging
+    private static volatile AndroidLogger activeBufferedLogger;
+
     private final SqlStorage<AndroidLogEntry> storage;
+    private final boolean buffered;
+    private final long writeDelayMs;
+
+    private final Queue<AndroidLogEntry> buffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger bufferedCount = new AtomicInteger();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean halted = false;
+    // set, while holding the write lock, once halting has written out the buffer
+    private volatile boolean writesStopped = false;
 
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // drops that haven't been logged yet
+    private final AtomicInteger unreportedDrops = new AtomicInteger();
 
     public AndroidLogger(SqlStorage<AndroidLogEntry> storage) {
+        this(storage, false);
+    }
+
+    /**
+     * @param buffered Whether to write entries in the background. Only one buffered logger is
+     *                 active at a time, so creating one halts the previous one.
+     */
+    public AndroidLogger(SqlStorage<AndroidLogEntry> storage, boolean buffered) {
+        this(storage, buffered, WRITE_DELAY_MS);
+    }
+
+    /**
+     * @param writeDelayMs How long buffered entries wait to be written in the background
+     */
+    AndroidLogger(SqlStorage<AndroidLogEntry> storage, boolean buffered, long writeDelayMs) {
         this.storage = storage;
+        this.buffered = buffered;
+        this.writeDelayMs = writeDelayMs;
+        if (buffered) {
+            haltBufferedLogger();
+            activeBufferedLogger = this;
+        }
     }
 
     @Override
     public void log(String type, String message, Date logDate) {
-        storage.write(new AndroidLogEntry(type, message, logDate));
+        AndroidLogEntry entry = new AndroidLogEntry(type, message, logDate);
+        if (!buffered) {
+            storage.write(entry);
+            return;
+        }
+        if (halted || !reserveBufferSpace()) {
+            dropped.incrementAndGet();
+            unreportedDrops.incrementAndGet();
+            return;
+        }
+        buffer.add(entry);
+        scheduleWrite();
+    }
+
+    private boolean reserveBufferSpace() {
+        while (true) {
+            int count = bufferedCount.get();
+            if (count >= MAX_BUFFERED_ENTRIES) {
+                return false;
+            }
+            if (bufferedCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.schedule(() -> {
+                writeScheduled.set(false);
+                writeLock.lock();
+                try {
+                    writeBuffer();
+                } finally {
+                    writeLock.unlock();
+                }
+                if (!buffer.isEmpty()) {
+                    scheduleWrite();
+                }
+            }, writeDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write out every buffered entry on the calling thread
+     *
+     * @return false if the entries couldn't be written because the writer was stuck
+     */
+    public boolean flush() {
+        return flush(false);
+    }
+
+    /**
+     * @param last Whether to stop writing entries once these have been written
+     */
+    private boolean flush(boolean last) {
+        if (!buffered) {
+            return true;
+        }
+        try {
+            if (!writeLock.tryLock(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Gave up waiting to flush " + bufferedCount.get() + " log entries");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            writeBuffer();
+            return true;
+        } finally {
+            if (last) {
+                writesStopped = true;
+            }
+            writeLock.unlock();
+        }
+    }
+
+    private void writeBuffer() {
+        if (writesStopped) {
+            // An entry can get past the check in log() just as the logger is halted, and the
+            // storage may be gone by the time it would be written
+            dropBuffer();
+            return;
+        }
+        int drops = unreportedDrops.getAndSet(0);
+        if (drops > 0 && !halted) {
+            buffer.add(new AndroidLogEntry(LogTypes.TYPE_MAINTENANCE,
+                    "Dropped " + drops + " log entries while logging was backed up", new Date()));
+            bufferedCount.incrementAndGet();
+        }
+        while (!buffer.isEmpty()) {
+            writeBatch();
+        }
+    }
+
+    private void dropBuffer() {
+        int count = 0;
+        while (buffer.poll() != null) {
+            count++;
+        }
+        bufferedCount.addAndGet(-count);
+        dropped.addAndGet(count);
+        unreportedDrops.set(0);
+    }
+
+    private void writeBatch() {
+        ArrayList<AndroidLogEntry> batch = new ArrayList<>();
+        AndroidLogEntry entry;
+        while (batch.size() < MAX_BATCH_SIZE && (entry = buffer.poll()) != null) {
+            batch.add(entry);
+        }
+        bufferedCount.addAndGet(-batch.size());
+
+        try {
+            storage.writeAll(batch);
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+        } catch (RuntimeException e) {
+            // Logging here could feed back into this logger, so only report to the system log
+            Log.e(TAG, "Unable to write " + batch.size() + " log entries", e);
+            dropped.addAndGet(batch.size());
+        }
+    }
+
+    /**
+     * Write out the entries held by the buffered logger in use, if there is one
+     */
+    public static void flushBufferedLogger() {
+        AndroidLogger logger = activeBufferedLogger;
+        if (logger != null) {
+            logger.flush();
+        }
+    }
+
+    /**
+     * Write out the entries held by the buffered logger in use, if there is one, and stop it
+     * from taking new ones, since the storage it writes to is going away
+     */
+    public static void haltBufferedLogger() {
+        AndroidLogger logger = activeBufferedLogger;
+        if (logger != null) {
+            logger.halt();
+        }
     }
 
     @Override
     public void clearLogs() {
+        flush();
         storage.removeAll();
     }
 
     @Override
     public <T> T serializeLogs(IFullLogSerializer<T> serializer) {
+        flush();
         ArrayList<LogEntry> logs = new ArrayList<>();
-        for (AndroidLogEntry entry : storage) {
+        for (AndroidLogEntry entry : storage.iterateInPages(AndroidLogSerializer.STORAGE_PAGE_SIZE)) {
             logs.add(entry);
         }
         return serializer.serializeLogs(logs.toArray(new LogEntry[logs.size()]));
@@ -49,15 +264,17 @@ public class AndroidLogger implements ILogger {
 
     @Override
     public void serializeLogs(StreamLogSerializer serializer) throws IOException {
-        for (AndroidLogEntry entry : storage) {
+        flush();
+        for (AndroidLogEntry entry : storage.iterateInPages(AndroidLogSerializer.STORAGE_PAGE_SIZE)) {
             serializer.serializeLog(entry.getID(), entry);
         }
     }
 
     @Override
     public void serializeLogs(StreamLogSerializer serializer, int limit) throws IOException {
+        flush();
         int count = 0;
-        for (AndroidLogEntry entry : storage) {
+        for (AndroidLogEntry entry : storage.iterateInPages(AndroidLogSerializer.STORAGE_PAGE_SIZE)) {
             serializer.serializeLog(entry.getID(), entry);
             count++;
             if (count > limit) {
@@ -68,16 +285,30 @@ public class AndroidLogger implements ILogger {
 
     @Override
     public void panic() {
-        //Unclear
+        flush();
     }
 
     @Override
     public int logSize() {
-        return storage.getNumRecords();
+        return storage.getNumRecords() + bufferedCount.get();
     }
 
     @Override
     public void halt() {
-        //Meh.
+        if (!buffered) {
+            return;
+        }
+        // stop taking entries first, so that none arrive after the last flush
+        halted = true;
+        flush(true);
+        if (activeBufferedLogger == this) {
+            activeBufferedLogger = null;
+        }
+        Log.i(TAG, getStats());
+    }
+
+    public String getStats() {
+        return "Buffered logging: written=" + written.get() + ", batches=" + batches.get() +
+                ", dropped=" + dropped.get();
     }
 }
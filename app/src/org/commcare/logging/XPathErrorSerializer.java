@@ -37,7 +37,8 @@ public class XPathErrorSerializer
         serializer.attribute(null, "version", ERROR_FORMAT_VERSION + "");
 
         try {
-            for (XPathErrorEntry entry : errorLogStorage) {
+            for (XPathErrorEntry entry :
+                    errorLogStorage.iterateInPages(AndroidLogSerializer.STORAGE_PAGE_SIZE)) {
                 serializeLog(entry.getID(), entry);
             }
         } finally {
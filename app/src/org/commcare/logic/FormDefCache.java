@@ -0,0 +1,516 @@
+package org.commcare.logic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.commcare.CommCareApp;
+import org.commcare.CommCareApplication;
+import org.commcare.android.database.app.models.FormDefRecord;
+import org.commcare.android.logging.ForceCloseLogger;
+import org.commcare.android.resource.installers.XFormAndroidInstaller;
+import org.commcare.engine.extensions.XFormExtensionUtils;
+import org.commcare.preferences.DeveloperPreferences;
+import org.commcare.util.LogTypes;
+import org.commcare.utils.FileUtil;
+import org.commcare.utils.GlobalConstants;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches for getting from a form definition record to a fresh FormDef without re-parsing the
+ * form's xml.
+ *
+ * A form's serialized binary is written once to the app's cache directory, named after the md5
+ * hash of the form xml. The hash itself is looked up by the form record id plus the xml file's
+ * modification time and size, so that opening a form doesn't require reading the whole xml
+ * file. Hashes are recorded at install time and remembered in a small sidecar file, which is
+ * deleted once its fingerprint no longer matches the form record.
+ *
+ * Recently opened forms also have their serialized bytes held in memory, since a FormDef is
+ * modified by form entry and each load needs its own copy.
+ *
+ * Forms are only ever parsed from xml one at a time, so a background warm-up and a form being
+ * opened take turns, and whichever parses a form second finds it already cached.
+ */
+public class FormDefCache {
+    private static final String TAG = FormDefCache.class.getSimpleName();
+
+    private static final long MEMORY_BUDGET_BYTES = 8 * 1024 * 1024;
+
+    private static final LinkedHashMap<String, byte[]> serializedForms =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytesHeld = 0;
+
+    // form fingerprint -> md5 hash of the form xml
+    private static final HashMap<String, String> formHashes = new HashMap<>();
+
+    private static final Object parseLock = new Object();
+
+    private static final String FORM_OPEN_COUNT_PREFIX = "form-open-count-";
+    private static final long OPEN_COUNT_WRITE_INTERVAL_MILLIS = 60 * 1000;
+
+    // form opens not yet written to the preferences of pendingOpenCountApp, guarded by
+    // pendingOpenCounts
+    private static final HashMap<String, Integer> pendingOpenCounts = new HashMap<>();
+    private static CommCareApp pendingOpenCountApp;
+    private static long lastOpenCountWrite = 0;
+
+    // how each form open was served, since the process started
+    private static final AtomicInteger memoryLoads = new AtomicInteger();
+    private static final AtomicInteger binaryLoads = new AtomicInteger();
+    private static final AtomicInteger coldParses = new AtomicInteger();
+    private static final AtomicInteger prewarmParses = new AtomicInteger();
+
+    /**
+     * @return A new FormDef for the given record, loaded from the fastest available cache and
+     * falling back to parsing the form's xml
+     */
+    public static FormDef getFormDef(Context context, FormDefRecord formDefRecord) {
+        File formXml = new File(formDefRecord.getFilePath());
+        String formHash = getFormHash(formDefRecord.getID(), formXml);
+        recordFormOpened(formDefRecord.getJrFormId());
+
+        FormDef fd = null;
+        boolean wasInMemory = isInMemory(formHash);
+        byte[] serializedForm = getSerializedForm(formHash);
+        if (serializedForm != null) {
+            fd = deserializeFormDef(context, serializedForm);
+            if (fd == null) {
+                Logger.log(LogTypes.TYPE_RESOURCES,
+                        "Deserialization of " + formXml.getName() + " form failed.");
+                // Remove the cached copies, and make a new .formdef from xml
+                removeSerializedForm(formHash);
+            } else if (wasInMemory) {
+                memoryLoads.incrementAndGet();
+            } else {
+                binaryLoads.incrementAndGet();
+            }
+        }
+
+        if (fd == null) {
+            synchronized (parseLock) {
+                // the warm-up may have cached the form while this was waiting to parse it
+                serializedForm = getSerializedForm(formHash);
+                if (serializedForm != null) {
+                    fd = deserializeFormDef(context, serializedForm);
+                }
+                if (fd != null) {
+                    binaryLoads.incrementAndGet();
+                } else {
+                    coldParses.incrementAndGet();
+                    Logger.log(LogTypes.TYPE_RESOURCES, "Form " + formDefRecord.getJrFormId() +
+                            " had to be parsed from xml when opened");
+                    fd = loadFormFromFile(formXml);
+                    cacheFormDef(fd, formHash);
+                }
+            }
+        }
+        return fd;
+    }
+
+    /**
+     * Make sure the given form can be loaded from its binary cache without first having to be
+     * parsed from xml
+     *
+     * @return whether the form had to be parsed
+     */
+    public static boolean warmCache(FormDefRecord formDefRecord) {
+        File formXml = new File(formDefRecord.getFilePath());
+        String formHash = getFormHash(formDefRecord.getID(), formXml);
+        if (formHash == null) {
+            return false;
+        }
+        synchronized (parseLock) {
+            if (getCachedForm(formHash).exists()) {
+                return false;
+            }
+            prewarmParses.incrementAndGet();
+            cacheFormDef(loadFormFromFile(formXml), formHash);
+            return true;
+        }
+    }
+
+    /**
+     * Count an open of the given form. Counts are only written out once a minute at most, since
+     * they're just a hint for which forms to warm up first.
+     */
+    private static void recordFormOpened(String jrFormId) {
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        synchronized (pendingOpenCounts) {
+            if (pendingOpenCountApp != app) {
+                writeOpenCounts();
+                pendingOpenCountApp = app;
+            }
+            Integer pending = pendingOpenCounts.get(jrFormId);
+            pendingOpenCounts.put(jrFormId, pending == null ? 1 : pending + 1);
+            if (System.currentTimeMillis() - lastOpenCountWrite >= OPEN_COUNT_WRITE_INTERVAL_MILLIS) {
+                writeOpenCounts();
+            }
+        }
+    }
+
+    /**
+     * Write out any form opens that haven't been recorded in the app preferences yet
+     */
+    public static void flushOpenCounts() {
+        synchronized (pendingOpenCounts) {
+            writeOpenCounts();
+        }
+    }
+
+    private static void writeOpenCounts() {
+        lastOpenCountWrite = System.currentTimeMillis();
+        if (pendingOpenCountApp == null || pendingOpenCounts.isEmpty()) {
+            return;
+        }
+        SharedPreferences prefs = pendingOpenCountApp.getAppPreferences();
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, Integer> pending : pendingOpenCounts.entrySet()) {
+            String key = FORM_OPEN_COUNT_PREFIX + pending.getKey();
+            editor.putInt(key, prefs.getInt(key, 0) + pending.getValue());
+        }
+        editor.apply();
+        pendingOpenCounts.clear();
+    }
+
+    /**
+     * @return How many times the form with the given xmlns has been opened in the given app,
+     * including opens that haven't been written out yet
+     */
+    public static int getOpenCount(CommCareApp app, String jrFormId) {
+        int count = app.getAppPreferences().getInt(FORM_OPEN_COUNT_PREFIX + jrFormId, 0);
+        synchronized (pendingOpenCounts) {
+            Integer pending = pendingOpenCounts.get(jrFormId);
+            if (pendingOpenCountApp == app && pending != null) {
+                count += pending;
+            }
+        }
+        return count;
+    }
+
+    static int getParseCount() {
+        return coldParses.get() + prewarmParses.get();
+    }
+
+    public static String getStats() {
+        return "memoryLoads=" + memoryLoads.get() + ", binaryLoads=" + binaryLoads.get() +
+                ", coldParses=" + coldParses.get() + ", prewarmParses=" + prewarmParses.get();
+    }
+
+    /**
+     * Remember the hash of a freshly installed form, so it doesn't have to be computed the
+     * first time the form is opened
+     */
+    public static void recordFormHash(CommCareApp app, int formDefId, File formXml) {
+        String hash = FileUtil.getMd5Hash(formXml);
+        if (hash == null) {
+            return;
+        }
+        String fingerprint = getFingerprint(formDefId, formXml);
+        forgetStaleHashes(getCacheDir(app), formDefId, fingerprint);
+        synchronized (formHashes) {
+            formHashes.put(fingerprint, hash);
+        }
+        writeHashSidecar(getCacheDir(app), fingerprint, hash);
+    }
+
+    /**
+     * Forget the hashes recorded for a form record that was removed, or pointed at a different
+     * xml file
+     */
+    public static void forgetFormHashes(CommCareApp app, int formDefId) {
+        forgetStaleHashes(getCacheDir(app), formDefId, null);
+    }
+
+    /**
+     * Drop every hash recorded for the given form record, from memory and from disk, other than
+     * the one for the current fingerprint
+     */
+    private static void forgetStaleHashes(String cacheDir, int formDefId, String currentFingerprint) {
+        String prefix = formDefId + "-";
+        synchronized (formHashes) {
+            Iterator<String> fingerprints = formHashes.keySet().iterator();
+            while (fingerprints.hasNext()) {
+                String fingerprint = fingerprints.next();
+                if (fingerprint.startsWith(prefix) && !fingerprint.equals(currentFingerprint)) {
+                    fingerprints.remove();
+                }
+            }
+        }
+
+        File[] cachedFiles = new File(cacheDir).listFiles();
+        if (cachedFiles == null) {
+            return;
+        }
+        String current = currentFingerprint == null ?
+                null : getHashSidecar(cacheDir, currentFingerprint).getName();
+        for (File file : cachedFiles) {
+            String name = file.getName();
+            if (name.startsWith("form-" + prefix) && name.endsWith(".md5") && !name.equals(current)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String getFormHash(int formDefId, File formXml) {
+        String fingerprint = getFingerprint(formDefId, formXml);
+        synchronized (formHashes) {
+            String hash = formHashes.get(fingerprint);
+            if (hash != null) {
+                return hash;
+            }
+        }
+
+        String hash = readHashSidecar(fingerprint);
+        if (hash == null) {
+            hash = FileUtil.getMd5Hash(formXml);
+            if (hash == null) {
+                return null;
+            }
+            // the xml changed since its hash was last recorded
+            forgetStaleHashes(getCacheDir(), formDefId, fingerprint);
+            writeHashSidecar(getCacheDir(), fingerprint, hash);
+        }
+        synchronized (formHashes) {
+            formHashes.put(fingerprint, hash);
+        }
+        return hash;
+    }
+
+    private static String getFingerprint(int formDefId, File formXml) {
+        return formDefId + "-" + formXml.lastModified() + "-" + formXml.length();
+    }
+
+    private static String readHashSidecar(String fingerprint) {
+        File sidecar = getHashSidecar(getCacheDir(), fingerprint);
+        if (!sidecar.exists()) {
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(sidecar);
+            String hash = new String(StreamsUtil.inputStreamToByteArray(is), "UTF-8").trim();
+            return hash.isEmpty() ? null : hash;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            StreamsUtil.closeStream(is);
+        }
+    }
+
+    private static void writeHashSidecar(String cacheDir, String fingerprint, String hash) {
+        try {
+            writeAtomically(getHashSidecar(cacheDir, fingerprint), hash.getBytes("UTF-8"));
+        } catch (IOException e) {
+            // the hash can always be recomputed
+            Log.w(TAG, "Couldn't record form hash: " + e.getMessage());
+        }
+    }
+
+    private static byte[] getSerializedForm(String formHash) {
+        if (formHash == null) {
+            return null;
+        }
+        synchronized (serializedForms) {
+            byte[] serializedForm = serializedForms.get(formHash);
+            if (serializedForm != null) {
+                return serializedForm;
+            }
+        }
+
+        File formBin = getCachedForm(formHash);
+        if (!formBin.exists()) {
+            return null;
+        }
+        Log.i(TAG, "Attempting to load form from cached file: " + formBin.getAbsolutePath());
+        InputStream is = null;
+        try {
+            is = new FileInputStream(formBin);
+            byte[] serializedForm = StreamsUtil.inputStreamToByteArray(is);
+            holdInMemory(formHash, serializedForm);
+            return serializedForm;
+        } catch (IOException e) {
+            Logger.log(LogTypes.TYPE_RESOURCES, "Reading cached form " + formBin.getName() + " failed.");
+            formBin.delete();
+            return null;
+        } finally {
+            StreamsUtil.closeStream(is);
+        }
+    }
+
+    private static boolean isInMemory(String formHash) {
+        synchronized (serializedForms) {
+            return formHash != null && serializedForms.containsKey(formHash);
+        }
+    }
+
+    private static void holdInMemory(String formHash, byte[] serializedForm) {
+        synchronized (serializedForms) {
+            byte[] previous = serializedForms.put(formHash, serializedForm);
+            if (previous != null) {
+                bytesHeld -= previous.length;
+            }
+            bytesHeld += serializedForm.length;
+
+            // keep the most recently used form even if it alone is over budget
+            Iterator<Map.Entry<String, byte[]>> eldest = serializedForms.entrySet().iterator();
+            while (bytesHeld > MEMORY_BUDGET_BYTES && serializedForms.size() > 1) {
+                bytesHeld -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static void removeSerializedForm(String formHash) {
+        synchronized (serializedForms) {
+            byte[] removed = serializedForms.remove(formHash);
+            if (removed != null) {
+                bytesHeld -= removed.length;
+            }
+        }
+        getCachedForm(formHash).delete();
+
+        // start over from the xml, including its hash
+        String cacheDir = getCacheDir();
+        synchronized (formHashes) {
+            Iterator<Map.Entry<String, String>> hashes = formHashes.entrySet().iterator();
+            while (hashes.hasNext()) {
+                Map.Entry<String, String> entry = hashes.next();
+                if (entry.getValue().equals(formHash)) {
+                    getHashSidecar(cacheDir, entry.getKey()).delete();
+                    hashes.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop all forms held in memory
+     */
+    public static void clearMemory() {
+        synchronized (serializedForms) {
+            serializedForms.clear();
+            bytesHeld = 0;
+        }
+    }
+
+    private static FormDef loadFormFromFile(File formXmlFile) {
+        FileInputStream fis;
+        // no binary, read from xml
+        Log.i(TAG, "Attempting to load from: " + formXmlFile.getAbsolutePath());
+        try {
+            fis = new FileInputStream(formXmlFile);
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException("Error reading XForm file", e);
+        }
+        XFormAndroidInstaller.registerAndroidLevelFormParsers();
+        FormDef fd = XFormExtensionUtils.getFormFromInputStream(fis);
+        if (fd == null) {
+            throw new RuntimeException("Error reading XForm file: FormDef is null");
+        }
+        if (DeveloperPreferences.useExpressionCachingInForms()) {
+            fd.enableExpressionCaching();
+        }
+        return fd;
+    }
+
+    /**
+     * Recreate a {@link FormDef} from its serialized form.
+     */
+    private static FormDef deserializeFormDef(Context context, byte[] serializedForm) {
+        try {
+            // create new form def
+            FormDef fd = new FormDef(DeveloperPreferences.useExpressionCachingInForms());
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(serializedForm));
+
+            // read serialized formdef into new formdef
+            fd.readExternal(dis, CommCareApplication.instance().getPrototypeFactory(context));
+            return fd;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Write the (not yet initialized) FormDef to the binary cache, unless one already exists
+     * for its hash
+     */
+    private static void cacheFormDef(FormDef fd, String formHash) {
+        if (formHash == null) {
+            return;
+        }
+        File formBin = getCachedForm(formHash);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            fd.writeExternal(dos);
+            dos.flush();
+            byte[] serializedForm = bos.toByteArray();
+
+            if (!formBin.exists()) {
+                writeAtomically(formBin, serializedForm);
+            }
+            holdInMemory(formHash, serializedForm);
+        } catch (Exception e) {
+            // The cache is a bonus, so if we can't write it, don't crash, but log
+            // it so we can clean up whatever is preventing the cached version from
+            // working
+            Logger.log(LogTypes.TYPE_RESOURCES, "XForm could not be serialized. Error trace:\n" + ForceCloseLogger.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Write to a temporary file and move it into place, so that a reader never sees a partially
+     * written file
+     */
+    private static void writeAtomically(File destination, byte[] data) throws IOException {
+        File temp = new File(destination.getAbsolutePath() + "." + Thread.currentThread().getId() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            os.write(data);
+        } finally {
+            StreamsUtil.closeStream(os);
+        }
+        if (!temp.renameTo(destination)) {
+            temp.delete();
+            throw new IOException("Couldn't move " + temp.getName() + " into place");
+        }
+    }
+
+    private static File getCachedForm(String hash) {
+        return new File(getCacheDir(), hash + ".formdef");
+    }
+
+    private static File getHashSidecar(String cacheDir, String fingerprint) {
+        return new File(cacheDir, "form-" + fingerprint + ".md5");
+    }
+
+    private static String getCacheDir() {
+        return getCacheDir(CommCareApplication.instance().getCurrentApp());
+    }
+
+    private static String getCacheDir(CommCareApp app) {
+        return app.fsPath(GlobalConstants.FILE_CC_CACHE);
+    }
+}
@@ -224,6 +224,15 @@ public class AndroidSessionWrapper implements SessionWrapperInterface {
         return session.getEvaluationContext(getIIF());
     }
 
+    /**
+     * @return A context over the current session that shares no instances with any other
+     * context, so that it can be evaluated on another thread while they're in use
+     */
+    public EvaluationContext getIsolatedEvaluationContext() {
+        return session.getEvaluationContext(
+                new AndroidInstanceInitializer(session).withPrivateFixtureCopies());
+    }
+
     @Override
     public EvaluationContext getRestrictedEvaluationContext(String commandId,
                                                             Set<String> instancesToInclude) {
@@ -235,6 +235,14 @@ public class AsyncEntity extends Entity<TreeReference> {
         }
     }
 
+    /**
+     * @return The key this entity's values are stored under in the entity cache, or null if
+     * they aren't cachable
+     */
+    public String getCacheIndex() {
+        return mCacheIndex;
+    }
+
     public void setSortData(String cacheKey, String val) {
         int sortIndex = EntityStorageCache.getSortFieldIdFromCacheKey(mDetailId, cacheKey);
         if (sortIndex != -1) {
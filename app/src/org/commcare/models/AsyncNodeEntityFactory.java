@@ -22,8 +22,13 @@ import org.javarosa.core.model.utils.CacheHost;
 import org.javarosa.core.util.OrderedHashtable;
 import org.javarosa.xpath.expr.XPathExpression;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.Vector;
 
 /**
@@ -31,15 +36,33 @@ import java.util.Vector;
  */
 public class AsyncNodeEntityFactory extends NodeEntityFactory {
     private static final String TAG = AsyncNodeEntityFactory.class.getSimpleName();
+
+    // Number of entity_cache rows pulled into memory per query while priming
+    private static final int PRIME_PAGE_SIZE = 2000;
+    private static final String CACHE_NAME = "case";
+
     private final OrderedHashtable<String, XPathExpression> mVariableDeclarations;
 
     private final Hashtable<String, AsyncEntity> mEntitySet = new Hashtable<>();
+    // Cache rows loaded by the priming thread for entities that haven't been constructed yet,
+    // keyed by entity key. Guarded by mPrimingLock along with mEntitySet registration.
+    private final HashMap<String, List<String[]>> mUnclaimedPrimeData = new HashMap<>();
+    // Once entities are prepared every entity has been constructed, so rows primed after that
+    // which don't match an entity will never be claimed. Guarded by mPrimingLock.
+    private boolean mEntitiesPrepared = false;
+    private final Object mPrimingLock = new Object();
     private final EntityStorageCache mEntityCache;
+    // Entities with a stored value for every searchable field, reused across searches until
+    // the cache table is next written to. Guarded by mIndexedKeysLock.
+    private Set<String> mIndexedKeys = null;
+    private long mIndexedKeysVersion = -1;
+    private final Object mIndexedKeysLock = new Object();
 
     private CacheHost mCacheHost = null;
     private Boolean mTemplateIsCachable = null;
     private static final Object mAsyncLock = new Object();
     private Thread mAsyncPrimingThread;
+    private final CountDownLatch mPrimingComplete = new CountDownLatch(1);
 
     // Don't show entity list until we primeCache and caches all fields
     private final boolean isBlockingAsyncMode;
@@ -48,7 +71,7 @@ public class AsyncNodeEntityFactory extends NodeEntityFactory {
         super(d, ec);
 
         mVariableDeclarations = detail.getVariableDeclarations();
-        mEntityCache = new EntityStorageCache("case");
+        mEntityCache = new EntityStorageCache(CACHE_NAME);
         isBlockingAsyncMode = detail.hasSortField();
     }
 
@@ -76,11 +99,41 @@ public class AsyncNodeEntityFactory extends NodeEntityFactory {
                         mEntityCache, mCacheIndex, detail.getId(), entityKey);
 
         if (mCacheIndex != null) {
-            mEntitySet.put(mCacheIndex, entity);
+            registerEntity(mCacheIndex, entity);
+            // Now that we know the template is cachable, start loading the cache in the
+            // background while the rest of the entities are constructed
+            startCachePriming();
         }
         return entity;
     }
 
+    private void registerEntity(String cacheIndex, AsyncEntity entity) {
+        synchronized (mPrimingLock) {
+            mEntitySet.put(cacheIndex, entity);
+            List<String[]> primedRows = mUnclaimedPrimeData.remove(cacheIndex);
+            if (primedRows != null) {
+                for (String[] row : primedRows) {
+                    entity.setSortData(row[0], row[1]);
+                }
+            }
+        }
+    }
+
+    private void startCachePriming() {
+        synchronized (mAsyncLock) {
+            if (mAsyncPrimingThread == null) {
+                mAsyncPrimingThread = new Thread(() -> {
+                    try {
+                        primeCache();
+                    } finally {
+                        mPrimingComplete.countDown();
+                    }
+                });
+                mAsyncPrimingThread.start();
+            }
+        }
+    }
+
     @Override
     protected void setEvaluationContextDefaultQuerySet(EvaluationContext ec,
                                                        List<TreeReference> result) {
@@ -92,7 +145,8 @@ public class AsyncNodeEntityFactory extends NodeEntityFactory {
 
 
     /**
-     * Bulk loads search field cache from db.
+     * Bulk loads search field cache from db, in pages keyed on the entity and cache keys so
+     * that arbitrarily large case lists are fully primed.
      * Note that the cache is lazily built upon first case list search.
      */
     private void primeCache() {
@@ -114,11 +168,12 @@ public class AsyncNodeEntityFactory extends NodeEntityFactory {
         //Create our full args tree. We need the elements from the cache primer
         //along with the specific keys we wanna pull out
 
-        String[] args = new String[cachePrimeKeys[1].length + sortKeys.size()];
-        System.arraycopy(cachePrimeKeys[1], 0, args, 0, cachePrimeKeys[1].length);
+        String[] args = new String[1 + cachePrimeKeys[1].length + sortKeys.size()];
+        args[0] = CACHE_NAME;
+        System.arraycopy(cachePrimeKeys[1], 0, args, 1, cachePrimeKeys[1].length);
 
         for (int i = 0; i < sortKeys.size(); ++i) {
-            args[cachePrimeKeys[1].length + i] = getCacheKey(detail.getId(), String.valueOf(sortKeys.get(i)));
+            args[1 + cachePrimeKeys[1].length + i] = getCacheKey(detail.getId(), String.valueOf(sortKeys.get(i)));
         }
 
         String[] names = cachePrimeKeys[0];
@@ -128,20 +183,42 @@ public class AsyncNodeEntityFactory extends NodeEntityFactory {
 
         SQLiteDatabase db = CommCareApplication.instance().getUserDbHandle();
 
+        // Pinning the cache name lets the NAME_ENTITY_KEY index serve the ORDER BY, so each page
+        // is read straight off the index instead of sorting the whole join again
         String sqlStatement = "SELECT entity_key, cache_key, value FROM entity_cache JOIN AndroidCase ON entity_cache.entity_key = AndroidCase.commcare_sql_id WHERE " +
-                whereClause + " AND " + EntityStorageCache.COL_APP_ID + " = '" + AppUtils.getCurrentAppId() +
+                "entity_cache.cache_name = ? AND " + whereClause + " AND " + EntityStorageCache.COL_APP_ID + " = '" + AppUtils.getCurrentAppId() +
                 "' AND cache_key IN " + validKeys;
+        String orderAndLimit = " ORDER BY entity_key, cache_key LIMIT " + PRIME_PAGE_SIZE;
+        String firstPageStatement = sqlStatement + orderAndLimit;
+        String nextPageStatement = sqlStatement +
+                " AND (entity_key > ? OR (entity_key = ? AND cache_key > ?))" + orderAndLimit;
         if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
-            DbUtil.explainSql(db, sqlStatement, args);
+            DbUtil.explainSql(db, nextPageStatement, buildNextPageArgs(args, "", ""));
         }
 
-        populateEntitySet(db, sqlStatement, args);
+        String[] lastKeys = new String[2];
+        int rowsLoaded = populateEntitySet(db, firstPageStatement, args, lastKeys);
+        int pages = 1;
+        while (rowsLoaded == PRIME_PAGE_SIZE) {
+            rowsLoaded = populateEntitySet(db, nextPageStatement,
+                    buildNextPageArgs(args, lastKeys[0], lastKeys[1]), lastKeys);
+            pages++;
+        }
 
         if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
-            Log.d(TAG, "Sequential Cache Load: " + (System.currentTimeMillis() - now) + "ms");
+            Log.d(TAG, "Paged Cache Load: " + pages + " pages in " + (System.currentTimeMillis() - now) + "ms");
         }
     }
 
+    private static String[] buildNextPageArgs(String[] args, String lastEntityKey, String lastCacheKey) {
+        String[] pageArgs = new String[args.length + 3];
+        System.arraycopy(args, 0, pageArgs, 0, args.length);
+        pageArgs[args.length] = lastEntityKey;
+        pageArgs[args.length + 1] = lastEntityKey;
+        pageArgs[args.length + 2] = lastCacheKey;
+        return pageArgs;
+    }
+
     private String buildValidKeys(Vector<Integer> sortKeys, DetailField[] fields) {
         String validKeys = "(";
         boolean added = false;
@@ -175,37 +252,160 @@ public class AsyncNodeEntityFactory extends NodeEntityFactory {
         return whereClause;
     }
 
-    private void populateEntitySet(SQLiteDatabase db, String sqlStatement, String[] args) {
-        //TODO: This will _only_ query up to about a meg of data, which is an un-great limitation.
-        //Should probably split this up SQL LIMIT based looped
-        //For reference the current limitation is about 10k rows with 1 field each.
+    /**
+     * Loads one page of cache rows into the entity set, holding on to rows for entities that
+     * haven't been constructed yet.
+     *
+     * @param lastKeys Set to the entity and cache key of the last row read
+     * @return The number of rows read
+     */
+    private int populateEntitySet(SQLiteDatabase db, String sqlStatement, String[] args,
+                                  String[] lastKeys) {
+        int rows = 0;
         Cursor walker = db.rawQuery(sqlStatement, args);
-        while (walker.moveToNext()) {
-            String entityId = walker.getString(walker.getColumnIndex("entity_key"));
-            String cacheId = walker.getString(walker.getColumnIndex("cache_key"));
-            String val = walker.getString(walker.getColumnIndex("value"));
-            if (this.mEntitySet.containsKey(entityId)) {
-                this.mEntitySet.get(entityId).setSortData(cacheId, val);
+        try {
+            // the selected columns are fixed, so resolve their indices once per page
+            int entityKeyIndex = walker.getColumnIndex("entity_key");
+            int cacheKeyIndex = walker.getColumnIndex("cache_key");
+            int valueIndex = walker.getColumnIndex("value");
+            while (walker.moveToNext()) {
+                String entityId = walker.getString(entityKeyIndex);
+                String cacheId = walker.getString(cacheKeyIndex);
+                String val = walker.getString(valueIndex);
+                primeEntity(entityId, cacheId, val);
+                lastKeys[0] = entityId;
+                lastKeys[1] = cacheId;
+                rows++;
+            }
+        } finally {
+            walker.close();
+        }
+        return rows;
+    }
+
+    private void primeEntity(String entityId, String cacheId, String val) {
+        synchronized (mPrimingLock) {
+            AsyncEntity entity = mEntitySet.get(entityId);
+            if (entity != null) {
+                entity.setSortData(cacheId, val);
+            } else if (!mEntitiesPrepared) {
+                List<String[]> rows = mUnclaimedPrimeData.get(entityId);
+                if (rows == null) {
+                    rows = new ArrayList<>();
+                    mUnclaimedPrimeData.put(entityId, rows);
+                }
+                rows.add(new String[]{cacheId, val});
             }
         }
-        walker.close();
     }
 
     @Override
     protected void prepareEntitiesInternal(List<Entity<TreeReference>> entities) {
-        // if blocking mode load cache on the same thread and set any data thats not cached
+        // Priming usually starts as soon as the first cachable entity is built, but make sure
+        // it has been kicked off
+        startCachePriming();
+
+        // if blocking mode wait for the cache to load and set any data thats not cached.
+        // Otherwise we want to show the entity list asap and cache any uncached data later
+        // on UI thread during Adapter's getView
         if (isBlockingAsyncMode) {
-            primeCache();
+            waitForCachePriming();
             setUnCachedData(entities);
-        } else {
-            // otherwise we want to show the entity list asap and hence want to offload the loading cache part to a separate
-            // thread while caching any uncached data later on UI thread during Adapter's getView
-            synchronized (mAsyncLock) {
-                if (mAsyncPrimingThread == null) {
-                    mAsyncPrimingThread = new Thread(this::primeCache);
-                    mAsyncPrimingThread.start();
-                }
+            mEntityCache.flush();
+        }
+
+        // Entities that were never constructed won't claim their rows, and rows primed from here
+        // on are dropped instead of held for the life of the factory
+        synchronized (mPrimingLock) {
+            mEntitiesPrepared = true;
+            mUnclaimedPrimeData.clear();
+        }
+    }
+
+    private void waitForCachePriming() {
+        Thread primingThread;
+        synchronized (mAsyncLock) {
+            primingThread = mAsyncPrimingThread;
+        }
+        try {
+            primingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Use the entity search index to narrow down which entities could match a non-fuzzy search.
+     * Entities without a stored value for every searchable field can't be ruled out by the
+     * index, so they are always kept.
+     *
+     * @param searchTerms normalized search terms
+     * @return The subset of entities, in their original order, which may match all terms, or
+     * null if the index can't help with this search
+     */
+    public List<Entity<TreeReference>> getSearchCandidates(List<Entity<TreeReference>> entities,
+                                                           String[] searchTerms) {
+        if (mTemplateIsCachable == null || !mTemplateIsCachable) {
+            return null;
+        }
+
+        List<String> cacheKeys = new ArrayList<>();
+        DetailField[] fields = detail.getFields();
+        for (int i = 0; i < fields.length; ++i) {
+            // only sort fields are matched against in non-fuzzy searches
+            if (fields[i].getSort() != null) {
+                cacheKeys.add(getCacheKey(detail.getId(), String.valueOf(i)));
+            }
+        }
+        if (cacheKeys.isEmpty()) {
+            return null;
+        }
+
+        // make sure everything computed so far is visible to the index
+        mEntityCache.flush();
+
+        Set<String> matchingKeys = null;
+        for (String term : searchTerms) {
+            Set<String> termMatches = mEntityCache.getSearchIndexCandidates(cacheKeys, term);
+            if (termMatches == null) {
+                // too short to look up, so leave it to the full matching logic
+                continue;
+            }
+            if (matchingKeys == null) {
+                matchingKeys = termMatches;
+            } else {
+                matchingKeys.retainAll(termMatches);
+            }
+        }
+        if (matchingKeys == null) {
+            return null;
+        }
+
+        Set<String> indexedKeys = getIndexedEntityKeys(cacheKeys);
+        List<Entity<TreeReference>> candidates = new ArrayList<>();
+        for (Entity<TreeReference> entity : entities) {
+            String cacheIndex = ((AsyncEntity)entity).getCacheIndex();
+            if (cacheIndex == null || !indexedKeys.contains(cacheIndex) ||
+                    matchingKeys.contains(cacheIndex)) {
+                candidates.add(entity);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return Keys of entities with a stored value for every one of the provided cache keys,
+     * only going back to the table if it has been written to since the last lookup. The cache
+     * keys are the detail's searchable fields, which are the same on every call.
+     */
+    private Set<String> getIndexedEntityKeys(List<String> cacheKeys) {
+        synchronized (mIndexedKeysLock) {
+            long version = mEntityCache.getStoredValuesVersion();
+            if (mIndexedKeys == null || version != mIndexedKeysVersion) {
+                mIndexedKeys = mEntityCache.getEntityKeysWithStoredValues(cacheKeys);
+                mIndexedKeysVersion = version;
             }
+            return mIndexedKeys;
         }
     }
 
@@ -225,6 +425,20 @@ public class AsyncNodeEntityFactory extends NodeEntityFactory {
         }
     }
 
+    /**
+     * Block until the entity set is ready to be searched, or the timeout elapses
+     *
+     * @return whether the entity set is ready
+     */
+    public boolean awaitEntitySetReady(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (mAsyncLock) {
+            if (mAsyncPrimingThread == null) {
+                return true;
+            }
+        }
+        return mPrimingComplete.await(timeout, unit);
+    }
+
     public boolean isBlockingAsyncMode() {
         return isBlockingAsyncMode;
     }
@@ -12,8 +12,8 @@ import org.commcare.core.process.XmlFormRecordProcessor;
 import org.commcare.data.xml.TransactionParser;
 import org.commcare.engine.cases.CaseUtils;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.encryption.EncryptionIO;
 import org.commcare.preferences.DeveloperPreferences;
-import org.commcare.utils.FormUploadUtil;
 import org.commcare.xml.AndroidTransactionParserFactory;
 import org.commcare.xml.LedgerXmlParsers;
 import org.javarosa.xml.util.InvalidStructureException;
@@ -27,8 +27,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -62,11 +60,8 @@ public class FormRecordProcessor {
             UnfullfilledRequirementsException {
         String form = record.getFilePath();
 
-        final File f = new File(form);
-
-        final Cipher decrypter =
-                FormUploadUtil.getDecryptCipher((new SecretKeySpec(record.getAesKey(), "AES")));
-        InputStream is = new CipherInputStream(new FileInputStream(f), decrypter);
+        InputStream is =
+                EncryptionIO.getFileInputStream(form, new SecretKeySpec(record.getAesKey(), "AES"));
 
         AndroidTransactionParserFactory factory = new AndroidTransactionParserFactory(c, null) {
             @Override
@@ -207,8 +202,8 @@ public class FormRecordProcessor {
         try {
             //decrypter
             if (useCipher) {
-                Cipher decrypter = FormUploadUtil.getDecryptCipher((new SecretKeySpec(r.getAesKey(), "AES")));
-                is = new CipherInputStream(new FileInputStream(recordFile), decrypter);
+                is = EncryptionIO.getFileInputStream(recordFile.getAbsolutePath(),
+                        new SecretKeySpec(r.getAesKey(), "AES"));
             } else {
                 is = new FileInputStream(recordFile);
             }
@@ -238,8 +233,8 @@ public class FormRecordProcessor {
         KXmlParser parser = new KXmlParser();
         InputStream is = null;
         try {
-            Cipher decrypter = FormUploadUtil.getDecryptCipher((new SecretKeySpec(r.getAesKey(), "AES")));
-            is = new CipherInputStream(new FileInputStream(recordFile), decrypter);
+            is = EncryptionIO.getFileInputStream(recordFile.getAbsolutePath(),
+                    new SecretKeySpec(r.getAesKey(), "AES"));
 
             parser.setInput(is, "UTF-8");
             parser.setFeature(KXmlParser.FEATURE_PROCESS_NAMESPACES, true);
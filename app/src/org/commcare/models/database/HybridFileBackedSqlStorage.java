@@ -12,6 +12,7 @@ import org.commcare.modern.database.DatabaseHelper;
 import org.commcare.modern.database.TableBuilder;
 import org.commcare.modern.util.Pair;
 import org.commcare.utils.FileUtil;
+import org.commcare.utils.FixtureInstanceCache;
 import org.commcare.utils.GlobalConstants;
 import org.javarosa.core.io.StreamsUtil;
 import org.javarosa.core.services.storage.EntityFilter;
@@ -26,6 +27,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -263,6 +265,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
                 if (blobFitsInDb(bos)) {
                     db.beginTransaction();
                     startedTransaction = true;
+                    recordsChanged(db);
                     // serialized object small enough to fit in db
                     ContentValues contentValues = helper.getNonDataContentValues(persistable);
                     contentValues.put(DatabaseHelper.DATA_COL, bos.toByteArray());
@@ -274,6 +277,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
 
                     db.beginTransaction();
                     startedTransaction = true;
+                    recordsChanged(db);
 
                     ContentValues contentValues = helper.getNonDataContentValues(persistable);
                     contentValues.put(DatabaseHelper.FILE_COL, dataFilePath);
@@ -308,6 +312,18 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
         }
     }
 
+    @Override
+    public int[] writeAll(List<? extends T> records, boolean serializeInParallel) {
+        // large records are written to files, which can't be part of a batch statement, and
+        // each write has to commit on its own so an orphaned file is never left unrecorded
+        int[] ids = new int[records.size()];
+        for (int i = 0; i < ids.length; i++) {
+            write(records.get(i));
+            ids[i] = records.get(i).getID();
+        }
+        return ids;
+    }
+
     private ByteArrayOutputStream writeExternalizableToStream(Externalizable extObj) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
@@ -374,6 +390,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
             if (blobFitsInDb(bos)) {
                 db.beginTransaction();
                 startedTransaction = true;
+                recordsChanged(db);
                 updateEntryToStoreInDb(extObj, objectInDb, filename, bos, db, id);
             } else {
                 String newFilePath = HybridFileBackedSqlHelpers.newFileForEntry(dbDir).getAbsolutePath();
@@ -381,6 +398,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
 
                 db.beginTransaction();
                 startedTransaction = true;
+                recordsChanged(db);
                 updateEntryToStoreInFs(extObj, objectInDb, filename,
                         newFilePath, fileEncryptionKey, bos, db, id);
             }
@@ -454,6 +472,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
         String filename = HybridFileBackedSqlHelpers.getEntryFilename(helper, table, id);
         db.beginTransaction();
         try {
+            recordsChanged(db);
             db.delete(table, DatabaseHelper.ID_COL + "=?", new String[]{String.valueOf(id)});
             db.setTransactionSuccessful();
         } finally {
@@ -473,6 +492,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
             List<String> filesToRemove;
             db.beginTransaction();
             try {
+                recordsChanged(db);
                 filesToRemove = HybridFileBackedSqlHelpers.getFilesToRemove(ids, helper, table);
                 List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(ids);
                 for (Pair<String, String[]> whereParams : whereParamList) {
@@ -490,14 +510,64 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
 
     @Override
     public void removeAll() {
-        wipeTable(getDbOrThrow(), table);
+        SQLiteDatabase db = getDbOrThrow();
+        db.beginTransaction();
+        try {
+            recordsChanged(db);
+            wipeTable(db, table);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         FileUtil.deleteFileOrDir(dbDir);
     }
 
+    @Override
+    public void removeIdRanges(List<Pair<Integer, Integer>> idRanges) {
+        // records may have files to remove along with them, so they're removed by id
+        List<Integer> ids = new ArrayList<>();
+        for (Pair<Integer, Integer> range : idRanges) {
+            Cursor c = getDbOrThrow().query(table, new String[]{DatabaseHelper.ID_COL},
+                    DatabaseHelper.ID_COL + " BETWEEN ? AND ?",
+                    new String[]{String.valueOf(range.first), String.valueOf(range.second)},
+                    null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getInt(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        remove(ids);
+    }
+
+    @Override
+    public List<T> readPage(int afterId, int pageSize) {
+        // records may be kept in files rather than the table, so they're read one at a time
+        List<Integer> ids = new ArrayList<>();
+        Cursor c = getDbOrThrow().query(table, new String[]{DatabaseHelper.ID_COL},
+                DatabaseHelper.ID_COL + " > ?", new String[]{String.valueOf(afterId)},
+                null, null, DatabaseHelper.ID_COL, String.valueOf(pageSize));
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getInt(0));
+            }
+        } finally {
+            c.close();
+        }
+        List<T> page = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            page.add(read(id));
+        }
+        return page;
+    }
+
     @Override
     public Vector<Integer> removeAll(EntityFilter ef) {
         Vector<Integer> removed = new Vector<>();
-        for (IStorageIterator iterator = this.iterate(); iterator.hasMore(); ) {
+        // records are only read when the filter needs them
+        for (IStorageIterator iterator = this.iterate(false); iterator.hasMore(); ) {
             int id = iterator.nextID();
             switch (ef.preFilter(id, null)) {
                 case EntityFilter.PREFILTER_INCLUDE:
@@ -521,6 +591,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
             List<String> filesToRemove;
             db.beginTransaction();
             try {
+                recordsChanged(db);
                 filesToRemove = HybridFileBackedSqlHelpers.getFilesToRemove(removed, helper, table);
                 for (Pair<String, String[]> whereParams : whereParamList) {
                     String whereClause = DatabaseHelper.ID_COL + " IN " + whereParams.first;
@@ -538,6 +609,18 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
         return removed;
     }
 
+    /**
+     * Values computed from stored data, like cached fixture instances, are only good until the
+     * data changes. Called from inside the transaction making the change, so that caches can
+     * hold off until it has been committed.
+     */
+    private void recordsChanged(SQLiteDatabase db) {
+        UserDataVersion.tableChanged(table);
+        if (FIXTURE_STORAGE_TABLE_NAME.equals(table)) {
+            FixtureInstanceCache.fixturesWritten(db);
+        }
+    }
+
     @Override
     public SqlStorageIterator<T> iterate(boolean includeData) {
         SQLiteDatabase db = getDbOrThrow();
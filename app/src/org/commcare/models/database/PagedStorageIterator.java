@@ -0,0 +1,57 @@
+package org.commcare.models.database;
+
+import org.javarosa.core.services.storage.Persistable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over storage in id order one page of records at a time, so that iterating over a
+ * large table doesn't keep a cursor open over all of it or hold all of its records at once.
+ *
+ * Records added while iterating are included if their ids come after the last one read.
+ */
+class PagedStorageIterator<T extends Persistable> implements Iterator<T> {
+    private final SqlStorage<T> storage;
+    private final int pageSize;
+
+    private List<T> page;
+    private int positionInPage = 0;
+    private int lastId = -1;
+    private boolean lastPageRead = false;
+
+    PagedStorageIterator(SqlStorage<T> storage, int pageSize) {
+        this.storage = storage;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page != null && positionInPage < page.size()) {
+            return true;
+        }
+        if (lastPageRead) {
+            return false;
+        }
+        page = storage.readPage(lastId, pageSize);
+        positionInPage = 0;
+        lastPageRead = page.size() < pageSize;
+        return !page.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T record = page.get(positionInPage++);
+        lastId = record.getID();
+        return record;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
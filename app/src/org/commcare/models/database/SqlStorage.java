@@ -1,6 +1,9 @@
 package org.commcare.models.database;
 
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.text.TextUtils;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
@@ -30,12 +33,18 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author ctsims
@@ -49,6 +58,14 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
 
     public static final boolean STORAGE_OUTPUT_DEBUG = false;
 
+    // the least work worth handing to another thread when serializing records in parallel
+    private static final int MIN_RECORDS_PER_SERIALIZATION_WORKER = 50;
+    private static final int SERIALIZATION_WORKERS =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private static final ExecutorService serializationExecutor = Executors.newFixedThreadPool(
+            SERIALIZATION_WORKERS, runnable -> new Thread(runnable, "storage-serialization"));
+
     String table;
     private final Class<? extends T> ctype;
     protected final EncryptedModel em;
@@ -261,6 +278,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
     public int add(Externalizable e) {
         SQLiteDatabase db;
         db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
         int i = -1;
         db.beginTransaction();
         try {
@@ -444,6 +462,35 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         return iterate();
     }
 
+    /**
+     * Iterate over every record in id order, reading them a page at a time, so that no more
+     * than a page of records is held in memory however large the table is
+     */
+    public Iterable<T> iterateInPages(final int pageSize) {
+        return () -> new PagedStorageIterator<>(this, pageSize);
+    }
+
+    /**
+     * @return Up to pageSize records with ids greater than afterId, in id order
+     */
+    public List<T> readPage(int afterId, int pageSize) {
+        Cursor c = helper.getHandle().query(table,
+                new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL},
+                DatabaseHelper.ID_COL + " > ?", new String[]{String.valueOf(afterId)},
+                null, null, DatabaseHelper.ID_COL, String.valueOf(pageSize));
+        try {
+            List<T> page = new ArrayList<>(c.getCount());
+            int idIndex = c.getColumnIndexOrThrow(DatabaseHelper.ID_COL);
+            int dataIndex = c.getColumnIndexOrThrow(DatabaseHelper.DATA_COL);
+            while (c.moveToNext()) {
+                page.add(newObject(c.getBlob(dataIndex), c.getInt(idIndex)));
+            }
+            return page;
+        } finally {
+            c.close();
+        }
+    }
+
     @Override
     public T read(int id) {
         return newObject(readBytes(id), id);
@@ -466,6 +513,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
     @Override
     public void remove(int id) {
         SQLiteDatabase db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
         db.beginTransaction();
         try {
             db.delete(table, DatabaseHelper.ID_COL + "=?", new String[]{String.valueOf(id)});
@@ -480,6 +528,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             return;
         }
         SQLiteDatabase db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
         db.beginTransaction();
         try {
             List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(ids);
@@ -503,11 +552,13 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
     }
 
     public static void wipeTableWithoutCommit(SQLiteDatabase db, String table) {
+        UserDataVersion.tableChanged(table);
         db.delete(table, null, null);
     }
 
 
     public static void wipeTable(SQLiteDatabase db, String table) {
+        UserDataVersion.tableChanged(table);
         db.beginTransaction();
         try {
             if (isTableExist(db, table)) {
@@ -539,6 +590,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(toRemove);
 
         SQLiteDatabase db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
         db.beginTransaction();
         try {
             for (Pair<String, String[]> whereParams : whereParamList) {
@@ -552,10 +604,35 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         return toRemove;
     }
 
+    /**
+     * Remove every record with an id in one of the given ranges, in a single transaction and
+     * without reading the records
+     *
+     * @param idRanges The first and last id of each range, inclusive
+     */
+    public void removeIdRanges(List<Pair<Integer, Integer>> idRanges) {
+        if (idRanges.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
+        db.beginTransaction();
+        try {
+            for (Pair<Integer, Integer> range : idRanges) {
+                db.delete(table, DatabaseHelper.ID_COL + " BETWEEN ? AND ?",
+                        new String[]{String.valueOf(range.first), String.valueOf(range.second)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public Vector<Integer> removeAll(EntityFilter ef) {
         Vector<Integer> removed = new Vector<>();
-        for (IStorageIterator iterator = this.iterate(); iterator.hasMore(); ) {
+        // records are only read when the filter needs them
+        for (IStorageIterator iterator = this.iterate(false); iterator.hasMore(); ) {
             int id = iterator.nextID();
             switch (ef.preFilter(id, null)) {
                 case EntityFilter.PREFILTER_INCLUDE:
@@ -575,6 +652,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
     @Override
     public void update(int id, Externalizable e) {
         SQLiteDatabase db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
         db.beginTransaction();
         try {
             db.update(table, helper.getContentValues(e), DatabaseHelper.ID_COL + "=?", new String[]{String.valueOf(id)});
@@ -591,6 +669,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             return;
         }
         SQLiteDatabase db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
         db.beginTransaction();
         try {
             long ret = db.insertOrThrow(table, DatabaseHelper.DATA_COL, helper.getContentValues(p));
@@ -608,6 +687,190 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         }
     }
 
+    /**
+     * Write all of the records in a single transaction. New records are added and given ids,
+     * and records that already have an id are updated.
+     *
+     * Records are all serialized before anything is written, and each distinct set of columns
+     * is written with one compiled statement (when {@link #STORAGE_OPTIMIZATIONS_ACTIVE}), so a
+     * large batch costs much less than writing each record on its own.
+     *
+     * @param serializeInParallel Whether to spread the serialization of large batches over
+     *                            several threads. Only safe for records that don't share any
+     *                            state that's changed while they're serialized.
+     * @return The id of each record, in the order given
+     */
+    public int[] writeAll(List<? extends T> records, boolean serializeInParallel) {
+        int[] ids = new int[records.size()];
+        if (records.isEmpty()) {
+            return ids;
+        }
+        ContentValues[] values = serializeAll(records, serializeInParallel);
+
+        SQLiteDatabase db = helper.getHandle();
+        UserDataVersion.tableChanged(table);
+        db.beginTransaction();
+        HashMap<String, SQLiteStatement> statements = new HashMap<>();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                int id = records.get(i).getID();
+                if (id == -1) {
+                    ids[i] = insertValues(db, statements, values[i]);
+                } else {
+                    updateValues(db, statements, id, values[i]);
+                    ids[i] = id;
+                }
+            }
+            for (int i = 0; i < ids.length; i++) {
+                // needed in case the records are used after being written to storage
+                records.get(i).setID(ids[i]);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            db.endTransaction();
+        }
+        return ids;
+    }
+
+    public int[] writeAll(List<? extends T> records) {
+        return writeAll(records, false);
+    }
+
+    /**
+     * Update all of the records, which must already be in storage, in a single transaction
+     */
+    public void updateAll(List<? extends T> records, boolean serializeInParallel) {
+        for (T record : records) {
+            if (record.getID() == -1) {
+                throw new IllegalArgumentException("Can't update a record that hasn't been written to " + table);
+            }
+        }
+        writeAll(records, serializeInParallel);
+    }
+
+    public void updateAll(List<? extends T> records) {
+        updateAll(records, false);
+    }
+
+    private ContentValues[] serializeAll(final List<? extends T> records, boolean serializeInParallel) {
+        final ContentValues[] values = new ContentValues[records.size()];
+        int workers = Math.min(SERIALIZATION_WORKERS, records.size() / MIN_RECORDS_PER_SERIALIZATION_WORKER);
+        if (!serializeInParallel || workers < 2) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = helper.getContentValues(records.get(i));
+            }
+            return values;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int worker = 0; worker < workers; worker++) {
+            final int first = worker;
+            final int stride = workers;
+            tasks.add(() -> {
+                for (int i = first; i < values.length; i += stride) {
+                    values[i] = helper.getContentValues(records.get(i));
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> result : serializationExecutor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while serializing records for " + table, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return values;
+    }
+
+    private int insertValues(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements,
+                             ContentValues values) {
+        long ret;
+        if (STORAGE_OPTIMIZATIONS_ACTIVE) {
+            List<String> columns = getSortedColumns(values);
+            String key = "insert:" + TextUtils.join(",", columns);
+            SQLiteStatement insert = statements.get(key);
+            if (insert == null) {
+                insert = db.compileStatement("INSERT INTO " + table + " (" +
+                        TextUtils.join(", ", columns) + ") VALUES (" +
+                        TextUtils.join(", ", Collections.nCopies(columns.size(), "?")) + ")");
+                statements.put(key, insert);
+            }
+            bindValues(insert, columns, values);
+            ret = insert.executeInsert();
+            if (ret == -1) {
+                throw new SQLException("Unable to insert record into " + table);
+            }
+        } else {
+            ret = db.insertOrThrow(table, DatabaseHelper.DATA_COL, values);
+        }
+
+        if (ret > Integer.MAX_VALUE) {
+            throw new RuntimeException("Waaaaaaaaaay too many values");
+        }
+        return (int)ret;
+    }
+
+    private void updateValues(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements,
+                              int id, ContentValues values) {
+        if (!STORAGE_OPTIMIZATIONS_ACTIVE) {
+            db.update(table, values, DatabaseHelper.ID_COL + "=?", new String[]{String.valueOf(id)});
+            return;
+        }
+        List<String> columns = getSortedColumns(values);
+        String key = "update:" + TextUtils.join(",", columns);
+        SQLiteStatement update = statements.get(key);
+        if (update == null) {
+            update = db.compileStatement("UPDATE " + table + " SET " +
+                    TextUtils.join("=?, ", columns) + "=? WHERE " + DatabaseHelper.ID_COL + "=?");
+            statements.put(key, update);
+        }
+        bindValues(update, columns, values);
+        update.bindLong(columns.size() + 1, id);
+        update.execute();
+    }
+
+    /**
+     * Records of one model normally all have the same columns, but the columns are worked out
+     * per record, so they're sorted to find records that can share a statement
+     */
+    private static List<String> getSortedColumns(ContentValues values) {
+        List<String> columns = new ArrayList<>(values.keySet());
+        Collections.sort(columns);
+        return columns;
+    }
+
+    private static void bindValues(SQLiteStatement statement, List<String> columns,
+                                   ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            Object value = values.get(columns.get(i));
+            int index = i + 1;
+            if (value == null) {
+                statement.bindNull(index);
+            } else if (value instanceof String) {
+                statement.bindString(index, (String)value);
+            } else if (value instanceof Integer || value instanceof Long) {
+                statement.bindLong(index, ((Number)value).longValue());
+            } else if (value instanceof byte[]) {
+                statement.bindBlob(index, (byte[])value);
+            } else {
+                throw new IllegalArgumentException("Can't write value of type " +
+                        value.getClass().getName() + " to column " + columns.get(i));
+            }
+        }
+    }
+
     /**
      * @return An iterator which can provide a list of all of the indices in this table.
      */
@@ -0,0 +1,90 @@
+package org.commcare.models.database;
+
+import org.javarosa.core.services.storage.Persistable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out shared storage instances per (storage type, table, model class), so that hot paths
+ * which repeatedly ask for the same storage don't redo the model reflection and helper setup
+ * every time.
+ *
+ * Storage objects only resolve their database handle when they're used, so sharing them is
+ * safe for as long as the scope they were built for (a user session, a seated app) is alive.
+ * The owner of the registry is responsible for clearing it when that scope ends. Storage that
+ * holds on to something from its scope when it's built (an app, a user's key record) is also
+ * keyed by an id for that scope, captured along with it, so that a lookup racing a scope change
+ * can never hand out storage built for the previous scope.
+ */
+public class SqlStorageRegistry {
+
+    private final String scope;
+    // replaced rather than emptied on clear, so a storage built while clearing can't leak into
+    // the next scope
+    private volatile ConcurrentHashMap<String, SqlStorage<?>> storages = new ConcurrentHashMap<>();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public interface StorageBuilder<S> {
+        S build();
+    }
+
+    public SqlStorageRegistry(String scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * @return The shared storage for the given table and class, built with the provided builder
+     * if there isn't one yet
+     */
+    public <T extends Persistable, S extends SqlStorage<T>> S get(Class<?> storageType, String table,
+                                                                 Class<T> c, StorageBuilder<S> builder) {
+        return get("", storageType, table, c, builder);
+    }
+
+    /**
+     * @param scopeId Identifies the state the builder captures, such as the app it builds
+     *                storage for
+     * @return The shared storage for the given scope, table and class, built with the provided
+     * builder if there isn't one yet
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Persistable, S extends SqlStorage<T>> S get(String scopeId, Class<?> storageType,
+                                                                 String table, Class<T> c,
+                                                                 StorageBuilder<S> builder) {
+        String key = scopeId + "|" + storageType.getName() + "|" + table + "|" + c.getName();
+        ConcurrentHashMap<String, SqlStorage<?>> storages = this.storages;
+        SqlStorage<?> storage = storages.get(key);
+        if (storage != null) {
+            reused.incrementAndGet();
+            return (S)storage;
+        }
+
+        S newStorage = builder.build();
+        storage = storages.putIfAbsent(key, newStorage);
+        if (storage != null) {
+            // another thread got there first, so use theirs
+            reused.incrementAndGet();
+            return (S)storage;
+        }
+        created.incrementAndGet();
+        return newStorage;
+    }
+
+    /**
+     * Drop all shared storage, since the scope it was built for has ended
+     */
+    public void clear() {
+        storages = new ConcurrentHashMap<>();
+    }
+
+    public long getInstantiationsAvoided() {
+        return reused.get();
+    }
+
+    public String getStats() {
+        return scope + " storage: created=" + created.get() + ", reused=" + reused.get() +
+                ", held=" + storages.size();
+    }
+}
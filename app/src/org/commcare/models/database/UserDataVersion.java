@@ -0,0 +1,37 @@
+package org.commcare.models.database;
+
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.cases.ledger.Ledger;
+import org.commcare.cases.model.StorageIndexedTreeElementModel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stamp that moves whenever case, ledger or fixture data is written, so that values computed
+ * from that data can tell whether they're still current without being recomputed.
+ *
+ * It starts from the time the process started, so a stamp is never reused after a restart.
+ */
+public class UserDataVersion {
+    private static final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+    // indexed fixture tables are all named by adding the fixture name to the same prefix
+    private static final String INDEXED_FIXTURE_TABLE_PREFIX =
+            StorageIndexedTreeElementModel.getTableName("");
+
+    public static long get() {
+        return version.get();
+    }
+
+    /**
+     * Move the stamp if the given table holds data that the stamp covers
+     */
+    static void tableChanged(String table) {
+        if (ACase.STORAGE_KEY.equals(table) ||
+                Ledger.STORAGE_KEY.equals(table) ||
+                HybridFileBackedSqlStorage.FIXTURE_STORAGE_TABLE_NAME.equals(table) ||
+                table.startsWith(INDEXED_FIXTURE_TABLE_PREFIX)) {
+            version.incrementAndGet();
+        }
+    }
+}
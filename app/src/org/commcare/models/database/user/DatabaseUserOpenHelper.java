@@ -20,7 +20,11 @@ import org.commcare.models.database.DbUtil;
 import org.commcare.models.database.IndexedFixturePathUtils;
 import org.commcare.android.database.user.models.ACase;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.CaseDbDigest;
+import org.commcare.models.database.user.models.CasePurgeJournal;
+import org.commcare.models.database.user.models.EntitySearchIndex;
 import org.commcare.models.database.user.models.EntityStorageCache;
+import org.commcare.models.database.user.models.RestoreCheckpoint;
 import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.android.database.user.models.SessionStateDescriptor;
 import org.commcare.modern.database.DatabaseIndexingUtils;
@@ -64,9 +68,13 @@ public class DatabaseUserOpenHelper extends SQLiteOpenHelper {
      * v.24 - Adds and indexes column for Case external_id
      * v.25 - No DB changes, validates SessionStateDescriptor records corrupted due to an earlier bug in v23 migration (In 2.44 and 2.44.1)
      * v.26 - Adds a column for 'last_sync' in IndexedFixtureIndex
+     * v.27 - Adds the entity search index table, and clears the entity cache so it is rebuilt alongside it
+     * v.28 - Adds the case purge journal table, and a target -> record index for case index storage
+     * v.29 - Adds the table holding the incrementally maintained case db digest
+     * v.30 - Adds the table holding the checkpoint of a restore being committed in chunks
      */
 
-    private static final int USER_DB_VERSION = 26;
+    private static final int USER_DB_VERSION = 30;
 
     private static final String USER_DB_LOCATOR = "database_sandbox_";
 
@@ -159,9 +167,20 @@ public class DatabaseUserOpenHelper extends SQLiteOpenHelper {
             database.execSQL(EntityStorageCache.getTableDefinition());
             EntityStorageCache.createIndexes(database);
 
+            database.execSQL(EntitySearchIndex.getTableDefinition());
+            EntitySearchIndex.createIndexes(database);
+
             database.execSQL(AndroidCaseIndexTable.getTableDefinition());
             AndroidCaseIndexTable.createIndexes(database);
 
+            database.execSQL(CasePurgeJournal.getTableDefinition());
+
+            database.execSQL(CaseDbDigest.getTableDefinition());
+            // a new database has no cases, so its digest can be maintained from the start
+            new CaseDbDigest(database).reset();
+
+            database.execSQL(RestoreCheckpoint.getTableDefinition());
+
             database.setVersion(USER_DB_VERSION);
 
             database.setTransactionSuccessful();
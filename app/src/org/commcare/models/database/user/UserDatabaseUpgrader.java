@@ -28,7 +28,11 @@ import org.commcare.android.database.user.models.ACase;
 import org.commcare.android.database.user.models.ACasePreV6Model;
 import org.commcare.android.database.user.models.AUser;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.CaseDbDigest;
+import org.commcare.models.database.user.models.CasePurgeJournal;
+import org.commcare.models.database.user.models.EntitySearchIndex;
 import org.commcare.models.database.user.models.EntityStorageCache;
+import org.commcare.models.database.user.models.RestoreCheckpoint;
 import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.android.database.user.models.FormRecordV1;
 import org.commcare.android.database.user.models.GeocodeCacheModel;
@@ -216,6 +220,30 @@ class UserDatabaseUpgrader {
                 oldVersion = 26;
             }
         }
+
+        if (oldVersion == 26) {
+            if (upgradeTwentySixTwentySeven(db)) {
+                oldVersion = 27;
+            }
+        }
+
+        if (oldVersion == 27) {
+            if (upgradeTwentySevenTwentyEight(db)) {
+                oldVersion = 28;
+            }
+        }
+
+        if (oldVersion == 28) {
+            if (upgradeTwentyEightTwentyNine(db)) {
+                oldVersion = 29;
+            }
+        }
+
+        if (oldVersion == 29) {
+            if (upgradeTwentyNineThirty(db)) {
+                oldVersion = 30;
+            }
+        }
     }
 
     private boolean upgradeOneTwo(final SQLiteDatabase db) {
@@ -731,6 +759,60 @@ class UserDatabaseUpgrader {
         }
     }
 
+    /**
+     * Add the entity search index. Existing entity cache values were never indexed, so
+     * clear the cache to let it rebuild alongside the index.
+     */
+    private boolean upgradeTwentySixTwentySeven(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.delete(EntityStorageCache.TABLE_NAME, null, null);
+            db.execSQL(EntitySearchIndex.getTableDefinition());
+            EntitySearchIndex.createIndexes(db);
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private boolean upgradeTwentySevenTwentyEight(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL(CasePurgeJournal.getTableDefinition());
+            // nothing has been journaled yet, so the first purge needs to see every case
+            CasePurgeJournal.requestFullPurge(db);
+            AndroidCaseIndexTable.createTargetIndex(db);
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private boolean upgradeTwentyEightTwentyNine(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            // left empty, so the digest is computed in full the first time it's needed
+            db.execSQL(CaseDbDigest.getTableDefinition());
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private boolean upgradeTwentyNineThirty(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL(RestoreCheckpoint.getTableDefinition());
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void migrateV2FormRecordsForSingleApp(String appId,
                                                   SqlStorage<FormRecordV2> oldStorage,
                                                   Vector<FormRecordV3> upgradedRecords) {
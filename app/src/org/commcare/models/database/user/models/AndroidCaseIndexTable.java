@@ -4,6 +4,7 @@ import android.content.ContentValues;
 
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.commcare.CommCareApplication;
 import org.commcare.android.database.user.models.ACase;
@@ -18,10 +19,14 @@ import org.commcare.modern.database.DatabaseIndexingUtils;
 import org.commcare.modern.engine.cases.CaseIndexTable;
 import org.commcare.modern.util.Pair;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -68,6 +73,17 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         String typeFirstIndexId = "NAME_TARGET_RECORD";
         String typeFirstIndex = COL_INDEX_NAME + ", " + COL_CASE_RECORD_ID + ", " + COL_INDEX_TARGET;
         db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(typeFirstIndexId, TABLE_NAME, typeFirstIndex));
+
+        createTargetIndex(db);
+    }
+
+    /**
+     * Index for walking from a case to the cases which index it
+     */
+    public static void createTargetIndex(SQLiteDatabase db) {
+        String targetFirstIndexId = "TARGET_RECORD";
+        String targetFirstIndex = COL_INDEX_TARGET + ", " + COL_CASE_RECORD_ID;
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(targetFirstIndexId, TABLE_NAME, targetFirstIndex));
     }
 
     /**
@@ -92,6 +108,142 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         }
     }
 
+    /**
+     * Brings the stored indices for a batch of (already written) cases in line with their
+     * current indices. Rows for indices which haven't changed are left alone, and new rows are
+     * written with a single compiled statement.
+     *
+     * @return Counts of the rows which were inserted, deleted and left unchanged
+     */
+    public BulkIndexResult indexCases(Collection<Case> cases) {
+        BulkIndexResult result = new BulkIndexResult();
+        if (cases.isEmpty()) {
+            return result;
+        }
+
+        ArrayList<Integer> recordIds = new ArrayList<>();
+        for (Case c : cases) {
+            recordIds.add(c.getID());
+        }
+
+        db.beginTransaction();
+        SQLiteStatement insert = null;
+        SQLiteStatement delete = null;
+        try {
+            HashMap<Integer, List<StoredIndex>> storedIndices = readStoredIndices(recordIds);
+            insert = db.compileStatement("INSERT INTO " + TABLE_NAME + " (" +
+                    COL_CASE_RECORD_ID + ", " + COL_INDEX_NAME + ", " + COL_INDEX_TYPE + ", " +
+                    COL_INDEX_TARGET + ", " + COL_INDEX_RELATIONSHIP + ") VALUES (?, ?, ?, ?, ?)");
+            delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " +
+                    DatabaseHelper.ID_COL + " = ?");
+
+            for (Case c : cases) {
+                List<StoredIndex> stored = storedIndices.remove(c.getID());
+                for (CaseIndex ci : c.getIndices()) {
+                    if (removeMatch(stored, ci)) {
+                        result.rowsUnchanged++;
+                    } else {
+                        insert.bindLong(1, c.getID());
+                        bindStringOrNull(insert, 2, ci.getName());
+                        bindStringOrNull(insert, 3, ci.getTargetType());
+                        bindStringOrNull(insert, 4, ci.getTarget());
+                        bindStringOrNull(insert, 5, ci.getRelationship());
+                        insert.executeInsert();
+                        result.rowsInserted++;
+                    }
+                }
+                if (stored != null) {
+                    for (StoredIndex staleIndex : stored) {
+                        delete.bindLong(1, staleIndex.rowId);
+                        delete.execute();
+                        result.rowsDeleted++;
+                        if (staleIndex.target != null) {
+                            result.removedTargets.add(staleIndex.target);
+                        }
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (insert != null) {
+                insert.close();
+            }
+            if (delete != null) {
+                delete.close();
+            }
+            db.endTransaction();
+        }
+        return result;
+    }
+
+    private HashMap<Integer, List<StoredIndex>> readStoredIndices(Collection<Integer> recordIds) {
+        HashMap<Integer, List<StoredIndex>> storedIndices = new HashMap<>();
+        String[] projection = new String[]{DatabaseHelper.ID_COL, COL_CASE_RECORD_ID,
+                COL_INDEX_NAME, COL_INDEX_TYPE, COL_INDEX_TARGET, COL_INDEX_RELATIONSHIP};
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds, "CAST(? as INT)");
+        for (Pair<String, String[]> whereParams : whereParamList) {
+            Cursor c = db.query(TABLE_NAME, projection, COL_CASE_RECORD_ID + " IN " + whereParams.first,
+                    whereParams.second, null, null, null);
+            try {
+                int rowIdColumn = c.getColumnIndexOrThrow(DatabaseHelper.ID_COL);
+                int recordColumn = c.getColumnIndexOrThrow(COL_CASE_RECORD_ID);
+                int nameColumn = c.getColumnIndexOrThrow(COL_INDEX_NAME);
+                int typeColumn = c.getColumnIndexOrThrow(COL_INDEX_TYPE);
+                int targetColumn = c.getColumnIndexOrThrow(COL_INDEX_TARGET);
+                int relationshipColumn = c.getColumnIndexOrThrow(COL_INDEX_RELATIONSHIP);
+                while (c.moveToNext()) {
+                    int recordId = c.getInt(recordColumn);
+                    List<StoredIndex> forRecord = storedIndices.get(recordId);
+                    if (forRecord == null) {
+                        forRecord = new ArrayList<>();
+                        storedIndices.put(recordId, forRecord);
+                    }
+                    forRecord.add(new StoredIndex(c.getLong(rowIdColumn), c.getString(nameColumn),
+                            c.getString(typeColumn), c.getString(targetColumn),
+                            c.getString(relationshipColumn)));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return storedIndices;
+    }
+
+    /**
+     * Remove a stored row equivalent to the given index, if there is one
+     */
+    private static boolean removeMatch(List<StoredIndex> stored, CaseIndex ci) {
+        if (stored == null) {
+            return false;
+        }
+        for (Iterator<StoredIndex> it = stored.iterator(); it.hasNext(); ) {
+            if (it.next().matches(ci)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * @return A cursor over every index row, ordered by the record id of the indexing case, so
+     * that it can be walked alongside the case table without holding all indices in memory
+     */
+    public IndexRowCursor getIndicesOrderedByCase() {
+        Cursor c = db.query(TABLE_NAME,
+                new String[]{COL_CASE_RECORD_ID, COL_INDEX_TARGET, COL_INDEX_RELATIONSHIP},
+                null, null, null, null, COL_CASE_RECORD_ID);
+        return new IndexRowCursor(c);
+    }
+
     public HashMap<Integer,Vector<Pair<String, String>>> getCaseIndexMap() {
         String[] projection = new String[] {COL_CASE_RECORD_ID, COL_INDEX_TARGET, COL_INDEX_RELATIONSHIP};
         HashMap<Integer,Vector<Pair<String, String>>> caseIndexMap = new HashMap<>();
@@ -128,6 +280,80 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         }
     }
 
+    /**
+     * @return The indices of the given cases, keyed by the record id of the indexing case
+     */
+    public HashMap<Integer, Vector<Pair<String, String>>> getCaseIndexMap(Collection<Integer> recordIds) {
+        String[] projection = new String[]{COL_CASE_RECORD_ID, COL_INDEX_TARGET, COL_INDEX_RELATIONSHIP};
+        HashMap<Integer, Vector<Pair<String, String>>> caseIndexMap = new HashMap<>();
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds, "CAST(? as INT)");
+        for (Pair<String, String[]> whereParams : whereParamList) {
+            Cursor c = db.query(TABLE_NAME, projection, COL_CASE_RECORD_ID + " IN " + whereParams.first,
+                    whereParams.second, null, null, null);
+            try {
+                int recordColumn = c.getColumnIndexOrThrow(COL_CASE_RECORD_ID);
+                int targetColumn = c.getColumnIndexOrThrow(COL_INDEX_TARGET);
+                int relationshipColumn = c.getColumnIndexOrThrow(COL_INDEX_RELATIONSHIP);
+                while (c.moveToNext()) {
+                    int caseRecordId = c.getInt(recordColumn);
+                    Vector<Pair<String, String>> indexList = caseIndexMap.get(caseRecordId);
+                    if (indexList == null) {
+                        indexList = new Vector<>();
+                        caseIndexMap.put(caseRecordId, indexList);
+                    }
+                    indexList.add(new Pair<>(c.getString(targetColumn), c.getString(relationshipColumn)));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return caseIndexMap;
+    }
+
+    /**
+     * @return The case ids of all cases with an index pointing at one of the given cases
+     */
+    public Set<String> getCaseIdsIndexing(Collection<String> targetCaseIds) {
+        Set<String> indexingCases = new HashSet<>();
+        String caseIdColumn = ACase.STORAGE_KEY + "." + TableBuilder.scrubName(Case.INDEX_CASE_ID);
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(targetCaseIds);
+        for (Pair<String, String[]> whereParams : whereParamList) {
+            String query = String.format(
+                    "SELECT %s FROM %s INNER JOIN %s ON %s = %s WHERE %s IN %s",
+                    caseIdColumn,
+                    TABLE_NAME,
+                    ACase.STORAGE_KEY,
+                    COL_CASE_RECORD_ID, ACase.STORAGE_KEY + "." + DatabaseHelper.ID_COL,
+                    COL_INDEX_TARGET, whereParams.first);
+            Cursor c = db.rawQuery(query, whereParams.second);
+            try {
+                while (c.moveToNext()) {
+                    indexingCases.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return indexingCases;
+    }
+
+    /**
+     * @return The cases targeted by the stored indices of the given case
+     */
+    public List<String> getIndexTargets(int recordId) {
+        List<String> targets = new ArrayList<>();
+        Cursor c = db.query(TABLE_NAME, new String[]{COL_INDEX_TARGET},
+                COL_CASE_RECORD_ID + " = CAST(? as INT)", new String[]{String.valueOf(recordId)},
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                targets.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return targets;
+    }
 
     public void clearCaseIndices(Case c) {
         clearCaseIndices(c.getID());
@@ -327,6 +553,86 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         return sb.toString();
     }
 
+    private static class StoredIndex {
+        final long rowId;
+        final String name;
+        final String type;
+        final String target;
+        final String relationship;
+
+        StoredIndex(long rowId, String name, String type, String target, String relationship) {
+            this.rowId = rowId;
+            this.name = name;
+            this.type = type;
+            this.target = target;
+            this.relationship = relationship;
+        }
+
+        boolean matches(CaseIndex ci) {
+            return equal(name, ci.getName()) && equal(type, ci.getTargetType()) &&
+                    equal(target, ci.getTarget()) && equal(relationship, ci.getRelationship());
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * Forward-only view over index rows, positioned on the current row until advanced
+     */
+    public static class IndexRowCursor {
+        private final Cursor c;
+        private final int recordColumn;
+        private final int targetColumn;
+        private final int relationshipColumn;
+        private boolean hasRow;
+
+        IndexRowCursor(Cursor c) {
+            this.c = c;
+            recordColumn = c.getColumnIndexOrThrow(COL_CASE_RECORD_ID);
+            targetColumn = c.getColumnIndexOrThrow(COL_INDEX_TARGET);
+            relationshipColumn = c.getColumnIndexOrThrow(COL_INDEX_RELATIONSHIP);
+            hasRow = c.moveToFirst();
+        }
+
+        public boolean hasRow() {
+            return hasRow;
+        }
+
+        public int getRecordId() {
+            return c.getInt(recordColumn);
+        }
+
+        public String getTarget() {
+            return c.getString(targetColumn);
+        }
+
+        public String getRelationship() {
+            return c.getString(relationshipColumn);
+        }
+
+        public void advance() {
+            hasRow = c.moveToNext();
+        }
+
+        public void close() {
+            c.close();
+        }
+    }
+
+    public static class BulkIndexResult {
+        public int rowsInserted;
+        public int rowsDeleted;
+        public int rowsUnchanged;
+        // cases which were pointed at by an index that has been removed
+        public final Set<String> removedTargets = new HashSet<>();
+
+        public int getRowsWritten() {
+            return rowsInserted + rowsDeleted;
+        }
+    }
+
     public void reIndexAllCases(SqlStorage<ACase> caseStorage) {
         db.beginTransaction();
         try {
@@ -0,0 +1,150 @@
+package org.commcare.models.database.user.models;
+
+import android.content.ContentValues;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.models.database.SqlStorage;
+import org.javarosa.core.util.MD5;
+
+import java.util.Collection;
+
+import static org.commcare.cases.util.CaseDBUtils.xordata;
+
+/**
+ * Persisted copy of the case database digest sent to the server with sync requests: the XOR of
+ * the MD5 hash of every case id on the device.
+ *
+ * Since XOR is its own inverse, adding or removing a case just XORs its hash into the stored
+ * digest, so the digest is kept current as cases are written instead of being recomputed from
+ * every case at sync time. Updates should happen in the same transaction as the case writes
+ * they describe. A new database starts from the empty digest; when there is no stored digest
+ * (a database upgraded from before the table existed, or after an invalidation) no updates are
+ * tracked until the digest has been recomputed and stored again.
+ */
+public class CaseDbDigest {
+    public static final String TABLE_NAME = "case_db_digest";
+
+    private static final String COL_DIGEST = "digest";
+    private static final String COL_CASE_COUNT = "case_count";
+
+    // The table only ever holds this row
+    private static final int DIGEST_ROW_ID = 1;
+
+    private final SQLiteDatabase db;
+
+    public CaseDbDigest() {
+        this.db = CommCareApplication.instance().getUserDbHandle();
+    }
+
+    public CaseDbDigest(SQLiteDatabase dbHandle) {
+        this.db = dbHandle;
+    }
+
+    public static String getTableDefinition() {
+        return "CREATE TABLE " + TABLE_NAME + "(" +
+                "_id INTEGER PRIMARY KEY, " +
+                COL_DIGEST + " BLOB, " +
+                COL_CASE_COUNT + " INTEGER" +
+                ")";
+    }
+
+    /**
+     * @return The stored digest, or null if it isn't currently being maintained
+     */
+    public Digest read() {
+        Cursor c = db.query(TABLE_NAME, new String[]{COL_DIGEST, COL_CASE_COUNT}, null, null,
+                null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new Digest(c.getBlob(0), c.getInt(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void store(Digest digest) {
+        ContentValues cv = new ContentValues();
+        cv.put("_id", DIGEST_ROW_ID);
+        cv.put(COL_DIGEST, digest.data);
+        cv.put(COL_CASE_COUNT, digest.caseCount);
+        db.replaceOrThrow(TABLE_NAME, null, cv);
+    }
+
+    /**
+     * Start tracking from an empty case database
+     */
+    public void reset() {
+        store(new Digest());
+    }
+
+    /**
+     * Stop tracking, so the digest is recomputed the next time it's needed
+     */
+    public void invalidate() {
+        SqlStorage.wipeTableWithoutCommit(db, TABLE_NAME);
+    }
+
+    public void addCases(Collection<String> caseIds) {
+        update(caseIds, 1);
+    }
+
+    public void removeCases(Collection<String> caseIds) {
+        update(caseIds, -1);
+    }
+
+    private void update(Collection<String> caseIds, int countChange) {
+        if (caseIds.isEmpty()) {
+            return;
+        }
+        Digest digest = read();
+        if (digest == null) {
+            return;
+        }
+        for (String caseId : caseIds) {
+            digest.toggle(caseId, countChange);
+        }
+        store(digest);
+    }
+
+    public static class Digest {
+        private byte[] data;
+        private int caseCount;
+
+        public Digest() {
+            this(new byte[MD5.length], 0);
+        }
+
+        private Digest(byte[] data, int caseCount) {
+            this.data = data;
+            this.caseCount = caseCount;
+        }
+
+        /**
+         * XOR the hash of the given case into the digest, which both adds and removes it
+         */
+        public void toggle(String caseId, int countChange) {
+            data = xordata(data, MD5.hash(caseId.getBytes()));
+            caseCount += countChange;
+        }
+
+        public int getCaseCount() {
+            return caseCount;
+        }
+
+        /**
+         * @return The digest in the form sent to the server. With no cases, the case hash is
+         * empty
+         */
+        public String toHashString() {
+            if (caseCount <= 0) {
+                return "";
+            }
+            return MD5.toHex(data);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.commcare.models.database.user.models;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.commcare.CommCareApplication;
+import org.commcare.models.database.SqlStorage;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records which cases have been written, or have lost an index pointing at them, since the last
+ * case purge, so the next purge only has to re-evaluate the parts of the case graph those cases
+ * belong to.
+ *
+ * Entries are written in the same transaction as the case changes they describe. Anything that
+ * changes the case tables without going through the case parsers (schema upgrades, wipes,
+ * re-indexing) should request a full purge instead.
+ */
+public class CasePurgeJournal {
+    public static final String TABLE_NAME = "case_purge_journal";
+
+    private static final String COL_CASE_ID = "case_id";
+
+    // Stored in place of a case id when the next purge can't trust the journal
+    private static final String FULL_PURGE_MARKER = "*";
+
+    private final SQLiteDatabase db;
+
+    public CasePurgeJournal() {
+        this.db = CommCareApplication.instance().getUserDbHandle();
+    }
+
+    public CasePurgeJournal(SQLiteDatabase dbHandle) {
+        this.db = dbHandle;
+    }
+
+    public static String getTableDefinition() {
+        return "CREATE TABLE " + TABLE_NAME + "(" +
+                COL_CASE_ID + " TEXT PRIMARY KEY" +
+                ")";
+    }
+
+    /**
+     * Make the next purge evaluate the whole case graph
+     */
+    public static void requestFullPurge(SQLiteDatabase db) {
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME + " (" + COL_CASE_ID + ") VALUES (?)",
+                new String[]{FULL_PURGE_MARKER});
+    }
+
+    public void recordTouched(String caseId) {
+        if (caseId != null) {
+            db.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME + " (" + COL_CASE_ID + ") VALUES (?)",
+                    new String[]{caseId});
+        }
+    }
+
+    public void recordTouched(Collection<String> caseIds) {
+        if (caseIds.isEmpty()) {
+            return;
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME +
+                " (" + COL_CASE_ID + ") VALUES (?)");
+        try {
+            for (String caseId : caseIds) {
+                if (caseId != null) {
+                    insert.bindString(1, caseId);
+                    insert.execute();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    public boolean isFullPurgeRequested() {
+        Cursor c = db.query(TABLE_NAME, new String[]{COL_CASE_ID}, COL_CASE_ID + " = ?",
+                new String[]{FULL_PURGE_MARKER}, null, null, null);
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    public int getTouchedCount() {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_NAME, null);
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return The ids of all cases touched since the journal was last cleared
+     */
+    public Set<String> getTouchedCases() {
+        Set<String> touched = new HashSet<>();
+        Cursor c = db.query(TABLE_NAME, new String[]{COL_CASE_ID}, COL_CASE_ID + " != ?",
+                new String[]{FULL_PURGE_MARKER}, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                touched.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return touched;
+    }
+
+    /**
+     * Forget all entries, once a purge has taken them into account
+     */
+    public void clear() {
+        SqlStorage.wipeTableWithoutCommit(db, TABLE_NAME);
+    }
+}
@@ -0,0 +1,326 @@
+package org.commcare.models.database.user.models;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded in-memory tier that sits in front of the entity_cache table. Reads are served from
+ * an LRU map (bounded by an estimate of the memory held by its keys and values), and writes are
+ * held in a pending set until enough of them accumulate to be flushed to the table in one
+ * transaction.
+ *
+ * A tier is bound to a single user database handle. Callers are expected to perform all SQL
+ * while holding the db lock (an open transaction) before taking the tier's monitor, so that the
+ * lock order is always db -> tier.
+ */
+class EntityCacheMemoryTier {
+
+    // ~4MB of strings by default, which covers a handful of sort fields for 20k entities
+    private static final long DEFAULT_MEMORY_BUDGET_BYTES = 4 * 1024 * 1024;
+    static final int DEFAULT_FLUSH_BATCH_SIZE = 256;
+
+    // rough per-entry overhead of the map entry, the key/value String objects and the index
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static EntityCacheMemoryTier currentTier;
+
+    private final SQLiteDatabase db;
+    private final long memoryBudgetBytes;
+    private final int flushBatchSize;
+
+    private final LinkedHashMap<String, String> values = new LinkedHashMap<>(1024, 0.75f, true);
+    // (cache name, entity key) -> full keys currently in memory, so invalidation isn't a scan
+    private final HashMap<String, Set<String>> keysForEntity = new HashMap<>();
+    private final LinkedHashMap<String, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    private long bytesHeld = 0;
+
+    // bumped on every invalidation so that reads racing an invalidation don't repopulate memory
+    private long generation = 0;
+    // bumped whenever rows are written to or removed from the table, so that results derived
+    // from the table's contents can tell when they are stale
+    private long tableVersion = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long flushCount = 0;
+    private long flushedRows = 0;
+    private long largestFlushBatch = 0;
+    private long totalFlushMillis = 0;
+
+    EntityCacheMemoryTier(SQLiteDatabase db, long memoryBudgetBytes, int flushBatchSize) {
+        this.db = db;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.flushBatchSize = flushBatchSize;
+    }
+
+    /**
+     * @return The tier bound to the provided db handle, replacing (and flushing, if possible) the
+     * tier for any previously used handle.
+     */
+    static EntityCacheMemoryTier forDatabase(SQLiteDatabase db) {
+        EntityCacheMemoryTier replaced = null;
+        EntityCacheMemoryTier tier;
+        synchronized (EntityCacheMemoryTier.class) {
+            if (currentTier == null || currentTier.db != db) {
+                replaced = currentTier;
+                currentTier = new EntityCacheMemoryTier(db, DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_FLUSH_BATCH_SIZE);
+            }
+            tier = currentTier;
+        }
+        // flush outside of the class lock, since flushing needs the (old) db lock
+        if (replaced != null) {
+            replaced.flushIfOpen();
+        }
+        return tier;
+    }
+
+    /**
+     * Flush any pending writes and drop the current tier entirely
+     *
+     * @return The stats for the released tier, or null if there was none
+     */
+    static String releaseCurrentTier() {
+        EntityCacheMemoryTier released;
+        synchronized (EntityCacheMemoryTier.class) {
+            released = currentTier;
+            currentTier = null;
+        }
+        if (released == null) {
+            return null;
+        }
+        released.flushIfOpen();
+        return released.getStats();
+    }
+
+    static String buildKey(String cacheName, String appId, String entityKey, String cacheKey) {
+        return buildEntityKey(cacheName, entityKey) + "|" + appId + "|" + cacheKey;
+    }
+
+    private static String buildEntityKey(String cacheName, String entityKey) {
+        return cacheName + "|" + entityKey;
+    }
+
+    /**
+     * @return The cached value, or null if it isn't held in memory
+     */
+    synchronized String get(String key) {
+        PendingWrite pending = pendingWrites.get(key);
+        if (pending != null) {
+            hits++;
+            return pending.value;
+        }
+        String value = values.get(key);
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    synchronized long getTableVersion() {
+        return tableVersion;
+    }
+
+    /**
+     * Store a value that was read from the table, as long as no invalidation has occurred since
+     * the read was started.
+     */
+    synchronized void putFromStorage(String cacheName, String entityKey, String key, String value,
+                                     long generationAtRead) {
+        if (generationAtRead == generation && !pendingWrites.containsKey(key)) {
+            putInMemory(cacheName, entityKey, key, value);
+        }
+    }
+
+    /**
+     * Store a new value in memory and queue it to be written to the table
+     *
+     * @return whether enough writes are pending that the caller should flush
+     */
+    synchronized boolean putAndQueueWrite(String cacheName, String appId, String entityKey,
+                                          String cacheKey, String value) {
+        String key = buildKey(cacheName, appId, entityKey, cacheKey);
+        putInMemory(cacheName, entityKey, key, value);
+        pendingWrites.put(key, new PendingWrite(cacheName, appId, entityKey, cacheKey, value,
+                System.currentTimeMillis()));
+        return pendingWrites.size() >= flushBatchSize;
+    }
+
+    private void putInMemory(String cacheName, String entityKey, String key, String value) {
+        if (value == null) {
+            // null is indistinguishable from a miss, so there's no point holding on to it
+            return;
+        }
+        String previous = values.put(key, value);
+        if (previous != null) {
+            bytesHeld -= estimateSize(key, previous);
+        } else {
+            String entityIndexKey = buildEntityKey(cacheName, entityKey);
+            Set<String> keys = keysForEntity.get(entityIndexKey);
+            if (keys == null) {
+                keys = new HashSet<>();
+                keysForEntity.put(entityIndexKey, keys);
+            }
+            keys.add(key);
+        }
+        bytesHeld += estimateSize(key, value);
+        trimToBudget();
+    }
+
+    private void trimToBudget() {
+        Iterator<Map.Entry<String, String>> eldest = values.entrySet().iterator();
+        while (bytesHeld > memoryBudgetBytes && eldest.hasNext()) {
+            Map.Entry<String, String> entry = eldest.next();
+            String key = entry.getKey();
+            bytesHeld -= estimateSize(key, entry.getValue());
+            eldest.remove();
+            removeFromEntityIndex(key);
+            evictions++;
+        }
+    }
+
+    private void removeFromEntityIndex(String key) {
+        // keys are "cacheName|entityKey|appId|cacheKey", so the first two segments identify the entity
+        int firstSep = key.indexOf('|');
+        int secondSep = key.indexOf('|', firstSep + 1);
+        String entityIndexKey = key.substring(0, secondSep);
+        Set<String> keys = keysForEntity.get(entityIndexKey);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysForEntity.remove(entityIndexKey);
+            }
+        }
+    }
+
+    private static long estimateSize(String key, String value) {
+        return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + (value == null ? 0 : value.length()));
+    }
+
+    /**
+     * Drop all memory and pending state for the given entity in the given cache
+     */
+    synchronized void invalidate(String cacheName, String entityKey) {
+        generation++;
+        tableVersion++;
+        Set<String> keys = keysForEntity.remove(buildEntityKey(cacheName, entityKey));
+        if (keys != null) {
+            for (String key : keys) {
+                String value = values.remove(key);
+                if (value != null) {
+                    bytesHeld -= estimateSize(key, value);
+                }
+            }
+        }
+        for (Iterator<PendingWrite> it = pendingWrites.values().iterator(); it.hasNext(); ) {
+            PendingWrite write = it.next();
+            if (write.cacheName.equals(cacheName) && write.entityKey.equals(entityKey)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all memory and pending state for the given app
+     */
+    synchronized void invalidateApp(String appId) {
+        generation++;
+        tableVersion++;
+        values.clear();
+        keysForEntity.clear();
+        bytesHeld = 0;
+        for (Iterator<PendingWrite> it = pendingWrites.values().iterator(); it.hasNext(); ) {
+            if (it.next().appId.equals(appId)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Hand off all pending writes to the caller, who is responsible for writing them to the table
+     */
+    synchronized List<PendingWrite> drainPendingWrites() {
+        List<PendingWrite> drained = new ArrayList<>(pendingWrites.values());
+        pendingWrites.clear();
+        return drained;
+    }
+
+    synchronized void recordFlush(int batchSize, long millis) {
+        tableVersion++;
+        flushCount++;
+        flushedRows += batchSize;
+        largestFlushBatch = Math.max(largestFlushBatch, batchSize);
+        totalFlushMillis += millis;
+    }
+
+    SQLiteDatabase getDb() {
+        return db;
+    }
+
+    private void flushIfOpen() {
+        if (db.isOpen()) {
+            EntityStorageCache.flushPendingWrites(this);
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getFlushedRows() {
+        return flushedRows;
+    }
+
+    synchronized int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    synchronized String getStats() {
+        long lookups = hits + misses;
+        int hitRatePercent = lookups == 0 ? 0 : (int)((hits * 100) / lookups);
+        long averageBatch = flushCount == 0 ? 0 : flushedRows / flushCount;
+        long averageFlushMillis = flushCount == 0 ? 0 : totalFlushMillis / flushCount;
+        return "hits=" + hits + ", misses=" + misses + ", hitRate=" + hitRatePercent + "%" +
+                ", entries=" + values.size() + ", bytes=" + bytesHeld + ", evictions=" + evictions +
+                ", flushes=" + flushCount + ", flushedRows=" + flushedRows +
+                ", avgBatch=" + averageBatch + ", maxBatch=" + largestFlushBatch +
+                ", avgFlushMs=" + averageFlushMillis;
+    }
+
+    static class PendingWrite {
+        final String cacheName;
+        final String appId;
+        final String entityKey;
+        final String cacheKey;
+        final String value;
+        final long timestamp;
+
+        PendingWrite(String cacheName, String appId, String entityKey, String cacheKey,
+                     String value, long timestamp) {
+            this.cacheName = cacheName;
+            this.appId = appId;
+            this.entityKey = entityKey;
+            this.cacheKey = cacheKey;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.commcare.models.database.user.models;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.commcare.modern.database.DatabaseIndexingUtils;
+import org.commcare.modern.database.TableBuilder;
+import org.commcare.modern.util.Pair;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Trigram index over the values stored in the entity cache, used to answer substring searches
+ * over case list fields without evaluating every entity.
+ *
+ * The index is maintained alongside the entity_cache table: every value flushed to the cache
+ * has its trigrams written here, and invalidating a cached entity removes its trigrams. An
+ * entity whose value for a field contains a search term must have every trigram of the term
+ * indexed under that field, so a lookup returns a superset of the real matches which is then
+ * refined by the normal matching logic.
+ */
+public class EntitySearchIndex {
+    public static final String TABLE_NAME = "entity_search_index";
+
+    private static final String COL_CACHE_NAME = "cache_name";
+    private static final String COL_APP_ID = "app_id";
+    private static final String COL_ENTITY_KEY = "entity_key";
+    private static final String COL_CACHE_KEY = "cache_key";
+    private static final String COL_GRAM = "gram";
+
+    private static final int GRAM_LENGTH = 3;
+
+    public static String getTableDefinition() {
+        return "CREATE TABLE " + TABLE_NAME + "(" +
+                COL_CACHE_NAME + ", " +
+                COL_APP_ID + ", " +
+                COL_ENTITY_KEY + ", " +
+                COL_CACHE_KEY + ", " +
+                COL_GRAM +
+                ")";
+    }
+
+    public static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand("SEARCH_INDEX_GRAM", TABLE_NAME, COL_CACHE_NAME + ", " + COL_APP_ID + ", " + COL_GRAM));
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand("SEARCH_INDEX_ENTITY", TABLE_NAME, COL_CACHE_NAME + ", " + COL_ENTITY_KEY));
+    }
+
+    /**
+     * Compiled statements for writing a batch of cached values to the index. Must be closed.
+     */
+    static class Writer {
+        private final SQLiteStatement delete;
+        private final SQLiteStatement insert;
+
+        Writer(SQLiteDatabase db) {
+            delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " +
+                    COL_CACHE_NAME + " = ? AND " + COL_APP_ID + " = ? AND " +
+                    COL_ENTITY_KEY + " = ? AND " + COL_CACHE_KEY + " = ?");
+            insert = db.compileStatement("INSERT INTO " + TABLE_NAME + " (" +
+                    COL_CACHE_NAME + ", " + COL_APP_ID + ", " + COL_ENTITY_KEY + ", " +
+                    COL_CACHE_KEY + ", " + COL_GRAM + ") VALUES (?, ?, ?, ?, ?)");
+        }
+
+        /**
+         * Replace the indexed trigrams for the given cached value
+         */
+        void index(String cacheName, String appId, String entityKey, String cacheKey, String value) {
+            bindKeys(delete, cacheName, appId, entityKey, cacheKey);
+            delete.execute();
+
+            if (value == null) {
+                return;
+            }
+            for (String gram : getGrams(value.toLowerCase(Locale.getDefault()))) {
+                bindKeys(insert, cacheName, appId, entityKey, cacheKey);
+                insert.bindString(5, gram);
+                insert.executeInsert();
+            }
+        }
+
+        private static void bindKeys(SQLiteStatement statement, String cacheName, String appId,
+                                     String entityKey, String cacheKey) {
+            statement.bindString(1, cacheName);
+            statement.bindString(2, appId);
+            statement.bindString(3, entityKey);
+            statement.bindString(4, cacheKey);
+        }
+
+        void close() {
+            delete.close();
+            insert.close();
+        }
+    }
+
+    static void removeEntity(SQLiteDatabase db, String cacheName, String entityKey) {
+        db.delete(TABLE_NAME, COL_CACHE_NAME + " = ? AND " + COL_ENTITY_KEY + " = ?",
+                new String[]{cacheName, entityKey});
+    }
+
+    static void removeEntities(SQLiteDatabase db, String cacheName, Collection<Integer> recordIds) {
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds);
+        for (Pair<String, String[]> querySet : whereParamList) {
+            db.delete(TABLE_NAME, COL_CACHE_NAME + " = '" + cacheName + "' AND " +
+                    COL_ENTITY_KEY + " IN " + querySet.first, querySet.second);
+        }
+    }
+
+    static void removeApp(SQLiteDatabase db, String appId) {
+        db.delete(TABLE_NAME, COL_APP_ID + " = ?", new String[]{appId});
+    }
+
+    /**
+     * @param cacheKeys The fields to search within
+     * @param term      A normalized search term
+     * @return Keys of every entity which may contain the term within one of the fields, or null
+     * if the term is too short to be looked up in the index
+     */
+    static Set<String> getCandidateEntityKeys(SQLiteDatabase db, String cacheName, String appId,
+                                              Collection<String> cacheKeys, String term) {
+        Set<String> grams = getGrams(term);
+        if (grams.isEmpty()) {
+            return null;
+        }
+
+        String[] args = new String[2 + cacheKeys.size() + grams.size()];
+        int i = 0;
+        args[i++] = cacheName;
+        args[i++] = appId;
+        for (String cacheKey : cacheKeys) {
+            args[i++] = cacheKey;
+        }
+        for (String gram : grams) {
+            args[i++] = gram;
+        }
+
+        // the whole term has to appear within a single field, so group by field as well
+        String query = "SELECT " + COL_ENTITY_KEY + " FROM " + TABLE_NAME + " WHERE " +
+                COL_CACHE_NAME + " = ? AND " + COL_APP_ID + " = ? AND " +
+                COL_CACHE_KEY + " IN " + placeholders(cacheKeys.size()) + " AND " +
+                COL_GRAM + " IN " + placeholders(grams.size()) +
+                " GROUP BY " + COL_ENTITY_KEY + ", " + COL_CACHE_KEY +
+                " HAVING COUNT(DISTINCT " + COL_GRAM + ") = " + grams.size();
+
+        Set<String> entityKeys = new HashSet<>();
+        Cursor c = db.rawQuery(query, args);
+        try {
+            while (c.moveToNext()) {
+                entityKeys.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return entityKeys;
+    }
+
+    static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.append(")").toString();
+    }
+
+    private static Set<String> getGrams(String value) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= value.length(); i++) {
+            grams.add(value.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+}
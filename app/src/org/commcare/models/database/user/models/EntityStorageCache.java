@@ -1,10 +1,10 @@
 package org.commcare.models.database.user.models;
 
-import android.content.ContentValues;
 import android.util.Log;
 
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.commcare.AppUtils;
 import org.commcare.CommCareApplication;
@@ -14,11 +14,22 @@ import org.commcare.models.database.SqlStorage;
 import org.commcare.modern.database.DatabaseHelper;
 import org.commcare.modern.database.DatabaseIndexingUtils;
 import org.commcare.modern.util.Pair;
+import org.commcare.util.LogTypes;
+import org.javarosa.core.services.Logger;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
+ * Persistent cache of computed entity (case list) values, backed by the entity_cache table.
+ *
+ * Reads and writes go through a bounded in-memory tier shared by every cache instance on the
+ * same db handle. Writes are coalesced and flushed to the table in batched transactions, either
+ * once enough of them are pending or when flush() is called explicitly. Flushed values are also
+ * indexed in the {@link EntitySearchIndex}.
+ *
  * @author ctsims
  */
 public class EntityStorageCache {
@@ -36,6 +47,7 @@ public class EntityStorageCache {
     private final SQLiteDatabase db;
     private final String mCacheName;
     private final String mAppId;
+    private final EntityCacheMemoryTier mMemoryTier;
 
     public EntityStorageCache(String cacheName) {
         this(cacheName, CommCareApplication.instance().getUserDbHandle(), AppUtils.getCurrentAppId());
@@ -45,6 +57,7 @@ public class EntityStorageCache {
         this.db = db;
         this.mCacheName = cacheName;
         this.mAppId = appId;
+        this.mMemoryTier = EntityCacheMemoryTier.forDatabase(db);
     }
 
     public static String getTableDefinition() {
@@ -68,23 +81,38 @@ public class EntityStorageCache {
     //TODO: We should do some synchronization to make it the case that nothing can hold
     //an object for the same cache at once
 
+    /**
+     * Stores the value in memory and queues it to be written to the table. The write is only
+     * guaranteed to be persisted after the next flush.
+     */
     public void cache(String entityKey, String cacheKey, String value) {
-
-        ContentValues cv = new ContentValues();
-        cv.put(COL_CACHE_NAME, mCacheName);
-        cv.put(COL_APP_ID, mAppId);
-        cv.put(COL_ENTITY_KEY, entityKey);
-        cv.put(COL_CACHE_KEY, cacheKey);
-        cv.put(COL_VALUE, value);
-        cv.put(COL_TIMESTAMP, System.currentTimeMillis());
-        db.insertWithOnConflict(TABLE_NAME, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+        boolean shouldFlush = mMemoryTier.putAndQueueWrite(mCacheName, mAppId, entityKey, cacheKey, value);
 
         if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
             Log.d(TAG, "Cached value|" + entityKey + "|" + cacheKey);
         }
+
+        if (shouldFlush) {
+            flush();
+        }
     }
 
     public String retrieveCacheValue(String entityKey, String cacheKey) {
+        String key = EntityCacheMemoryTier.buildKey(mCacheName, mAppId, entityKey, cacheKey);
+        String value = mMemoryTier.get(key);
+        if (value != null) {
+            return value;
+        }
+
+        long generation = mMemoryTier.getGeneration();
+        value = retrieveStoredCacheValue(entityKey, cacheKey);
+        if (value != null) {
+            mMemoryTier.putFromStorage(mCacheName, entityKey, key, value, generation);
+        }
+        return value;
+    }
+
+    private String retrieveStoredCacheValue(String entityKey, String cacheKey) {
         String whereClause = String.format("%s = ? AND %s = ? AND %s = ? AND %s = ?", COL_APP_ID, COL_CACHE_NAME, COL_ENTITY_KEY, COL_CACHE_KEY);
 
         Cursor c = db.query(TABLE_NAME, new String[]{COL_VALUE}, whereClause, new String[]{mAppId, mCacheName, entityKey, cacheKey}, null, null, null);
@@ -99,11 +127,84 @@ public class EntityStorageCache {
         }
     }
 
+    /**
+     * Writes all pending cached values to the table in a single transaction
+     */
+    public void flush() {
+        flushPendingWrites(mMemoryTier);
+    }
+
+    static void flushPendingWrites(EntityCacheMemoryTier tier) {
+        SQLiteDatabase tierDb = tier.getDb();
+        long start = System.currentTimeMillis();
+        int flushed;
+
+        // Take the db lock before draining, so that an invalidation can't slip in between
+        // draining a value and writing it to the table
+        tierDb.beginTransaction();
+        try {
+            List<EntityCacheMemoryTier.PendingWrite> writes = tier.drainPendingWrites();
+            flushed = writes.size();
+            if (flushed > 0) {
+                writeBatch(tierDb, writes);
+            }
+            tierDb.setTransactionSuccessful();
+        } finally {
+            tierDb.endTransaction();
+        }
+
+        if (flushed > 0) {
+            long elapsed = System.currentTimeMillis() - start;
+            tier.recordFlush(flushed, elapsed);
+            if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
+                Log.d(TAG, "Flushed " + flushed + " cached values in " + elapsed + "ms");
+            }
+        }
+    }
+
+    private static void writeBatch(SQLiteDatabase db, List<EntityCacheMemoryTier.PendingWrite> writes) {
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME + " (" +
+                COL_CACHE_NAME + ", " + COL_APP_ID + ", " + COL_ENTITY_KEY + ", " +
+                COL_CACHE_KEY + ", " + COL_VALUE + ", " + COL_TIMESTAMP + ") VALUES (?, ?, ?, ?, ?, ?)");
+        EntitySearchIndex.Writer searchIndexWriter = new EntitySearchIndex.Writer(db);
+        try {
+            for (EntityCacheMemoryTier.PendingWrite write : writes) {
+                insert.bindString(1, write.cacheName);
+                insert.bindString(2, write.appId);
+                insert.bindString(3, write.entityKey);
+                insert.bindString(4, write.cacheKey);
+                if (write.value == null) {
+                    insert.bindNull(5);
+                } else {
+                    insert.bindString(5, write.value);
+                }
+                insert.bindLong(6, write.timestamp);
+                insert.executeInsert();
+                insert.clearBindings();
+
+                searchIndexWriter.index(write.cacheName, write.appId, write.entityKey,
+                        write.cacheKey, write.value);
+            }
+        } finally {
+            insert.close();
+            searchIndexWriter.close();
+        }
+    }
+
     /**
      * Removes cache records associated with the provided ID
      */
     public void invalidateCache(String recordId) {
-        int removed = db.delete(TABLE_NAME, COL_CACHE_NAME + " = ? AND " + COL_ENTITY_KEY + " = ?", new String[]{mCacheName, recordId});
+        int removed;
+        db.beginTransaction();
+        try {
+            mMemoryTier.invalidate(mCacheName, recordId);
+            removed = db.delete(TABLE_NAME, COL_CACHE_NAME + " = ? AND " + COL_ENTITY_KEY + " = ?", new String[]{mCacheName, recordId});
+            EntitySearchIndex.removeEntity(db, mCacheName, recordId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
             Log.d(TAG, "Invalidated " + removed + " cached values for entity " + recordId);
         }
@@ -115,15 +216,90 @@ public class EntityStorageCache {
     public void invalidateCaches(Collection<Integer> recordIds) {
         List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds);
         int removed = 0;
-        for (Pair<String, String[]> querySet : whereParamList) {
-            removed += db.delete(TABLE_NAME, COL_CACHE_NAME + " = '" + mCacheName + "' AND " +
-                    COL_ENTITY_KEY + " IN " + querySet.first, querySet.second);
+        db.beginTransaction();
+        try {
+            for (Integer recordId : recordIds) {
+                mMemoryTier.invalidate(mCacheName, String.valueOf(recordId));
+            }
+            for (Pair<String, String[]> querySet : whereParamList) {
+                removed += db.delete(TABLE_NAME, COL_CACHE_NAME + " = '" + mCacheName + "' AND " +
+                        COL_ENTITY_KEY + " IN " + querySet.first, querySet.second);
+            }
+            EntitySearchIndex.removeEntities(db, mCacheName, recordIds);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
         if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
             Log.d(TAG, "Invalidated " + removed + " cached values for bulk entities");
         }
     }
 
+    /**
+     * @return Keys of entities that have a value stored in the table for every one of the
+     * provided cache keys, and hence are fully covered by the search index for those keys
+     */
+    public Set<String> getEntityKeysWithStoredValues(Collection<String> cacheKeys) {
+        String[] args = new String[2 + cacheKeys.size()];
+        args[0] = mCacheName;
+        args[1] = mAppId;
+        int i = 2;
+        for (String cacheKey : cacheKeys) {
+            args[i++] = cacheKey;
+        }
+        String query = "SELECT " + COL_ENTITY_KEY + " FROM " + TABLE_NAME + " WHERE " +
+                COL_CACHE_NAME + " = ? AND " + COL_APP_ID + " = ? AND " +
+                COL_CACHE_KEY + " IN " + EntitySearchIndex.placeholders(cacheKeys.size()) +
+                " GROUP BY " + COL_ENTITY_KEY +
+                " HAVING COUNT(DISTINCT " + COL_CACHE_KEY + ") = " + cacheKeys.size();
+
+        Set<String> entityKeys = new HashSet<>();
+        Cursor c = db.rawQuery(query, args);
+        try {
+            while (c.moveToNext()) {
+                entityKeys.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return entityKeys;
+    }
+
+    /**
+     * @return A counter that changes whenever values are written to or removed from the table,
+     * for callers holding on to the result of a query against it
+     */
+    public long getStoredValuesVersion() {
+        return mMemoryTier.getTableVersion();
+    }
+
+    /**
+     * @return Keys of entities which may contain the normalized search term in one of the
+     * provided fields, or null if the term can't be looked up in the search index
+     */
+    public Set<String> getSearchIndexCandidates(Collection<String> cacheKeys, String term) {
+        return EntitySearchIndex.getCandidateEntityKeys(db, mCacheName, mAppId, cacheKeys, term);
+    }
+
+    /**
+     * @return A summary of the hit rate, flush batch sizes and flush latency of the memory tier
+     * used by this cache
+     */
+    public String getMemoryTierStats() {
+        return mMemoryTier.getStats();
+    }
+
+    /**
+     * Flushes any pending cache writes and releases the memory tier. Must be called before the
+     * user db is closed.
+     */
+    public static void releaseMemoryTier() {
+        String stats = EntityCacheMemoryTier.releaseCurrentTier();
+        if (stats != null) {
+            Logger.log(LogTypes.TYPE_MAINTENANCE, "Entity cache memory tier released: " + stats);
+        }
+    }
+
 
     public static int getSortFieldIdFromCacheKey(String detailId, String cacheKey) {
         String intId = cacheKey.substring(detailId.length() + 1);
@@ -136,7 +312,9 @@ public class EntityStorageCache {
     }
 
     public static void wipeCacheForCurrentAppWithoutCommit(SQLiteDatabase userDb) {
+        EntityCacheMemoryTier.forDatabase(userDb).invalidateApp(AppUtils.getCurrentAppId());
         userDb.delete(TABLE_NAME, COL_APP_ID + " = ?", new String[]{AppUtils.getCurrentAppId()});
+        EntitySearchIndex.removeApp(userDb, AppUtils.getCurrentAppId());
         setEntityCacheWipedPref();
     }
 
@@ -144,7 +322,9 @@ public class EntityStorageCache {
         SQLiteDatabase userDb = CommCareApplication.instance().getUserDbHandle();
         userDb.beginTransaction();
         try {
+            EntityCacheMemoryTier.forDatabase(userDb).invalidateApp(AppUtils.getCurrentAppId());
             userDb.delete(TABLE_NAME, COL_APP_ID + " = ?", new String[]{AppUtils.getCurrentAppId()});
+            EntitySearchIndex.removeApp(userDb, AppUtils.getCurrentAppId());
             setEntityCacheWipedPref();
             userDb.setTransactionSuccessful();
         } finally {
@@ -0,0 +1,225 @@
+package org.commcare.models.database.user.models;
+
+import android.content.ContentValues;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.models.encryption.EncryptionIO;
+import org.commcare.utils.FileUtil;
+import org.commcare.utils.GlobalConstants;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.util.PropertyUtils;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Tracks a restore that is being committed in chunks, so that if the process dies part way
+ * through, the next sync can finish processing the same payload instead of starting over.
+ *
+ * The payload is kept in an encrypted file whose key only lives in this table. Progress is
+ * recorded as the number of top-level restore elements that have been committed, and is
+ * updated in the same transaction as the chunk it describes, so the checkpoint never claims
+ * more or less than what is in the database. The byte offset of the parser in the payload at
+ * that point is kept for reporting; since the xml parser reads ahead, it is only approximate and
+ * isn't used to resume.
+ */
+public class RestoreCheckpoint {
+    public static final String TABLE_NAME = "restore_checkpoint";
+
+    private static final String COL_PAYLOAD_PATH = "payload_path";
+    private static final String COL_PAYLOAD_KEY = "payload_key";
+    private static final String COL_ELEMENTS_COMMITTED = "elements_committed";
+    private static final String COL_BYTES_COMMITTED = "bytes_committed";
+    private static final String COL_SYNC_TOKEN = "sync_token";
+    private static final String COL_STARTED = "started";
+
+    // The table only ever holds this row
+    private static final int CHECKPOINT_ROW_ID = 1;
+
+    private final SQLiteDatabase db;
+    private final String payloadPath;
+    private final byte[] payloadKey;
+    private final long started;
+    private int elementsCommitted;
+    private long bytesCommitted;
+    private String syncToken;
+
+    private long bytesRead;
+
+    private RestoreCheckpoint(SQLiteDatabase db, String payloadPath, byte[] payloadKey,
+                              long started, int elementsCommitted, long bytesCommitted,
+                              String syncToken) {
+        this.db = db;
+        this.payloadPath = payloadPath;
+        this.payloadKey = payloadKey;
+        this.started = started;
+        this.elementsCommitted = elementsCommitted;
+        this.bytesCommitted = bytesCommitted;
+        this.syncToken = syncToken;
+    }
+
+    public static String getTableDefinition() {
+        return "CREATE TABLE " + TABLE_NAME + "(" +
+                "_id INTEGER PRIMARY KEY, " +
+                COL_PAYLOAD_PATH + " TEXT, " +
+                COL_PAYLOAD_KEY + " BLOB, " +
+                COL_ELEMENTS_COMMITTED + " INTEGER, " +
+                COL_BYTES_COMMITTED + " INTEGER, " +
+                COL_SYNC_TOKEN + " TEXT, " +
+                COL_STARTED + " INTEGER" +
+                ")";
+    }
+
+    /**
+     * @return The checkpoint of a restore that didn't finish, or null if there isn't one
+     */
+    public static RestoreCheckpoint read(SQLiteDatabase db) {
+        Cursor c = db.query(TABLE_NAME, new String[]{COL_PAYLOAD_PATH, COL_PAYLOAD_KEY,
+                        COL_STARTED, COL_ELEMENTS_COMMITTED, COL_BYTES_COMMITTED, COL_SYNC_TOKEN},
+                null, null, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new RestoreCheckpoint(db, c.getString(0), c.getBlob(1), c.getLong(2),
+                    c.getInt(3), c.getLong(4), c.getString(5));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Copy the payload somewhere it will survive the process, and record that processing it has
+     * started. Must not be called inside a transaction, since the checkpoint is only useful if
+     * it is committed before any of the payload is.
+     */
+    public static RestoreCheckpoint create(SQLiteDatabase db, InputStream payload) throws IOException {
+        String payloadDir = CommCareApplication.instance().getCurrentApp().fsPath(GlobalConstants.FILE_CC_CACHE);
+        FileUtil.createFolder(payloadDir);
+        String payloadPath = new File(payloadDir, "restore-" + PropertyUtils.genUUID()).getAbsolutePath();
+        byte[] payloadKey = CommCareApplication.instance().createNewSymmetricKey().getEncoded();
+
+        OutputStream out = EncryptionIO.createFileOutputStream(payloadPath,
+                new SecretKeySpec(payloadKey, "AES"));
+        try {
+            StreamsUtil.writeFromInputToOutputUnmanaged(payload, out);
+        } catch (IOException e) {
+            StreamsUtil.closeStream(out);
+            FileUtil.deleteFileOrDir(payloadPath);
+            throw e;
+        }
+        StreamsUtil.closeStream(out);
+
+        RestoreCheckpoint checkpoint = new RestoreCheckpoint(db, payloadPath, payloadKey,
+                System.currentTimeMillis(), 0, 0, null);
+        ContentValues cv = new ContentValues();
+        cv.put("_id", CHECKPOINT_ROW_ID);
+        cv.put(COL_PAYLOAD_PATH, payloadPath);
+        cv.put(COL_PAYLOAD_KEY, payloadKey);
+        cv.put(COL_STARTED, checkpoint.started);
+        cv.put(COL_ELEMENTS_COMMITTED, 0);
+        cv.put(COL_BYTES_COMMITTED, 0);
+        db.replaceOrThrow(TABLE_NAME, null, cv);
+        return checkpoint;
+    }
+
+    /**
+     * Drop any checkpoint along with its payload
+     */
+    public static void discard(SQLiteDatabase db) {
+        RestoreCheckpoint checkpoint = read(db);
+        if (checkpoint != null) {
+            checkpoint.clear();
+            checkpoint.deletePayload();
+        }
+    }
+
+    /**
+     * @return The payload from its start. Only one stream should be open at a time, since the
+     * bytes read from it are tracked for the checkpoint.
+     */
+    public InputStream openPayload() throws IOException {
+        bytesRead = 0;
+        InputStream payload = EncryptionIO.getFileInputStream(payloadPath,
+                new SecretKeySpec(payloadKey, "AES"));
+        return new FilterInputStream(payload) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read != -1) {
+                    bytesRead++;
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    bytesRead += read;
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Record that the given number of top-level elements have been committed. Must be called in
+     * the transaction that commits them.
+     *
+     * @param syncToken The sync token read from the payload so far, if any
+     */
+    public void recordCommitted(int elementsCommitted, String syncToken) {
+        this.elementsCommitted = elementsCommitted;
+        this.bytesCommitted = bytesRead;
+        if (syncToken != null) {
+            this.syncToken = syncToken;
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(COL_ELEMENTS_COMMITTED, this.elementsCommitted);
+        cv.put(COL_BYTES_COMMITTED, this.bytesCommitted);
+        cv.put(COL_SYNC_TOKEN, this.syncToken);
+        db.update(TABLE_NAME, cv, "_id = ?", new String[]{String.valueOf(CHECKPOINT_ROW_ID)});
+    }
+
+    /**
+     * Forget the checkpoint. When the restore has finished, this belongs in the transaction
+     * that commits its last chunk.
+     */
+    public void clear() {
+        SqlStorage.wipeTableWithoutCommit(db, TABLE_NAME);
+    }
+
+    public void deletePayload() {
+        FileUtil.deleteFileOrDir(payloadPath);
+    }
+
+    public int getElementsCommitted() {
+        return elementsCommitted;
+    }
+
+    public long getBytesCommitted() {
+        return bytesCommitted;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return The sync token from the part of the payload that has already been committed, which
+     * won't be read again when resuming
+     */
+    public String getSyncToken() {
+        return syncToken;
+    }
+}
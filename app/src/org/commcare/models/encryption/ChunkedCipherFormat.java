@@ -0,0 +1,156 @@
+package org.commcare.models.encryption;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Layout of encrypted files that are written in independently authenticated chunks, so they can
+ * be read from any position without decrypting everything before it.
+ *
+ * <pre>
+ * header:  magic (8 bytes) | format version (1) | chunk size (4) | iv (16)
+ * chunk n: AES-CTR ciphertext of up to chunk size bytes, with the counter at iv + n * chunk size / 16
+ *          | HMAC-SHA256 over (header | n | last chunk flag | ciphertext), truncated to 16 bytes
+ * </pre>
+ *
+ * The counter runs on from one chunk to the next, so the ciphertext is a single CTR stream. The
+ * last chunk flag is covered by the MAC, so a file cut short at a chunk boundary fails to read
+ * rather than reading as a shorter file. Encryption and MAC keys are both derived from the
+ * file's key, so callers keep handing around a single AES key per file.
+ *
+ * Files written before this format existed are plain "AES" cipher streams, which have no
+ * header. The magic is long enough that one of those starting with it can be ruled out.
+ */
+public final class ChunkedCipherFormat {
+    private static final byte[] MAGIC = {'C', 'C', 'E', 'N', 'C', 'R', 'Y', 'P'};
+    static final byte VERSION = 1;
+
+    static final int IV_LENGTH = 16;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + IV_LENGTH;
+    static final int TAG_LENGTH = 16;
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final String CIPHER = "AES/CTR/NoPadding";
+    private static final String MAC = "HmacSHA256";
+
+    private ChunkedCipherFormat() {
+    }
+
+    /**
+     * @return Whether the open file starts with this format's header. Leaves the file positioned
+     * at its start either way. Files that can't be read are reported as not having it, and fail
+     * when read the old way instead.
+     */
+    public static boolean isChunkedFile(RandomAccessFile file) {
+        try {
+            if (file.length() < HEADER_LENGTH + TAG_LENGTH) {
+                return false;
+            }
+            byte[] magic = new byte[MAGIC.length];
+            file.seek(0);
+            file.readFully(magic);
+            file.seek(0);
+            return Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static byte[] buildHeader(int chunkSize, byte[] iv) {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        writeInt(header, MAGIC.length + 1, chunkSize);
+        System.arraycopy(iv, 0, header, MAGIC.length + 5, IV_LENGTH);
+        return header;
+    }
+
+    /**
+     * @return The chunk size recorded in the header
+     * @throws IOException If the header isn't one this version can read
+     */
+    static int readChunkSize(byte[] header) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new IOException("Not a chunked encrypted file");
+            }
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new IOException("Unsupported encrypted file version " + header[MAGIC.length]);
+        }
+        int chunkSize = readInt(header, MAGIC.length + 1);
+        if (chunkSize <= 0 || chunkSize % AES_BLOCK_SIZE != 0) {
+            throw new IOException("Bad chunk size in encrypted file header: " + chunkSize);
+        }
+        return chunkSize;
+    }
+
+    static byte[] readIv(byte[] header) {
+        return Arrays.copyOfRange(header, MAGIC.length + 5, HEADER_LENGTH);
+    }
+
+    /**
+     * @return The CTR counter that the given chunk starts at
+     */
+    static byte[] counterForChunk(byte[] iv, long chunkIndex, int chunkSize) {
+        byte[] counter = iv.clone();
+        long carry = chunkIndex * (chunkSize / AES_BLOCK_SIZE);
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            int sum = (counter[i] & 0xff) + (int)(carry & 0xff);
+            counter[i] = (byte)sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+
+    static byte[] computeTag(Mac mac, byte[] header, long chunkIndex, boolean lastChunk,
+                             byte[] ciphertext, int length) {
+        mac.update(header);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte)(chunkIndex >>> shift));
+        }
+        mac.update((byte)(lastChunk ? 1 : 0));
+        mac.update(ciphertext, 0, length);
+        return Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+    }
+
+    static Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(CIPHER);
+    }
+
+    static SecretKeySpec deriveEncryptionKey(byte[] fileKey) throws GeneralSecurityException {
+        // same strength as the key it's derived from
+        return new SecretKeySpec(Arrays.copyOf(derive(fileKey, "enc"), fileKey.length), "AES");
+    }
+
+    static Mac newMac(byte[] fileKey) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(derive(fileKey, "mac"), MAC));
+        return mac;
+    }
+
+    private static byte[] derive(byte[] fileKey, String purpose) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(fileKey, MAC));
+        return mac.doFinal(("commcare-chunked-file-" + purpose).getBytes());
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte)(value >>> 24);
+        target[offset + 1] = (byte)(value >>> 16);
+        target[offset + 2] = (byte)(value >>> 8);
+        target[offset + 3] = (byte)value;
+    }
+
+    private static int readInt(byte[] source, int offset) {
+        return ((source[offset] & 0xff) << 24) | ((source[offset + 1] & 0xff) << 16) |
+                ((source[offset + 2] & 0xff) << 8) | (source[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,212 @@
+package org.commcare.models.encryption;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reads a file in the {@link ChunkedCipherFormat}. Only the chunk holding the current position is
+ * decrypted, after its MAC has been checked, so reads can start anywhere in the file and only
+ * pay for the chunks they touch. Skipping moves the position without reading anything.
+ *
+ * The header is read on first use, so opening the stream only fails if the file is missing. A
+ * file whose last chunk is empty has that chunk authenticated along with the header, since
+ * reading to the end would otherwise never check it.
+ */
+public class ChunkedCipherInputStream extends InputStream {
+    private final RandomAccessFile file;
+    private final byte[] fileKey;
+
+    private byte[] header;
+    private byte[] iv;
+    private int chunkSize;
+    private long chunkCount;
+    private int lastChunkLength;
+    private long length;
+    private Cipher cipher;
+    private SecretKeySpec encryptionKey;
+    private Mac mac;
+
+    private byte[] sealed;
+    private byte[] plaintext;
+    private long loadedChunk = -1;
+    private int loadedLength;
+    private long position = 0;
+
+    public ChunkedCipherInputStream(File file, byte[] fileKey) throws FileNotFoundException {
+        this(new RandomAccessFile(file, "r"), fileKey);
+    }
+
+    /**
+     * @param file An open file, which the stream takes over and closes
+     */
+    public ChunkedCipherInputStream(RandomAccessFile file, byte[] fileKey) {
+        this.file = file;
+        this.fileKey = fileKey;
+    }
+
+    private void readHeader() throws IOException {
+        if (header != null) {
+            return;
+        }
+        byte[] header = new byte[ChunkedCipherFormat.HEADER_LENGTH];
+        file.seek(0);
+        file.readFully(header);
+        chunkSize = ChunkedCipherFormat.readChunkSize(header);
+        iv = ChunkedCipherFormat.readIv(header);
+
+        int stride = chunkSize + ChunkedCipherFormat.TAG_LENGTH;
+        long body = file.length() - ChunkedCipherFormat.HEADER_LENGTH;
+        if (body < ChunkedCipherFormat.TAG_LENGTH) {
+            throw new IOException("Encrypted file is truncated");
+        }
+        chunkCount = (body + stride - 1) / stride;
+        lastChunkLength = (int)(body - (chunkCount - 1) * stride);
+        if (chunkCount == 0 || lastChunkLength < ChunkedCipherFormat.TAG_LENGTH) {
+            throw new IOException("Encrypted file is truncated");
+        }
+        length = (chunkCount - 1) * chunkSize + lastChunkLength - ChunkedCipherFormat.TAG_LENGTH;
+
+        try {
+            cipher = ChunkedCipherFormat.newCipher();
+            encryptionKey = ChunkedCipherFormat.deriveEncryptionKey(fileKey);
+            mac = ChunkedCipherFormat.newMac(fileKey);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't set up decryption: " + e.getMessage());
+        }
+        sealed = new byte[stride];
+        plaintext = new byte[chunkSize];
+        this.header = header;
+
+        if (lastChunkLength == ChunkedCipherFormat.TAG_LENGTH) {
+            // a file cut short right after a chunk could otherwise read as complete
+            try {
+                loadChunk(chunkCount - 1);
+            } catch (IOException e) {
+                this.header = null;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return The length of the decrypted contents
+     */
+    public long length() throws IOException {
+        readHeader();
+        return length;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Move to the given position in the decrypted contents
+     */
+    public void seek(long position) throws IOException {
+        readHeader();
+        if (position < 0) {
+            throw new IOException("Negative seek position " + position);
+        }
+        this.position = Math.min(position, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        readHeader();
+        if (position >= length) {
+            return -1;
+        }
+        long chunk = position / chunkSize;
+        if (chunk != loadedChunk) {
+            loadChunk(chunk);
+        }
+        return plaintext[(int)(position++ - chunk * chunkSize)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        readHeader();
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        long chunk = position / chunkSize;
+        if (chunk != loadedChunk) {
+            loadChunk(chunk);
+        }
+        int offsetInChunk = (int)(position - chunk * chunkSize);
+        int count = Math.min(len, loadedLength - offsetInChunk);
+        System.arraycopy(plaintext, offsetInChunk, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        readHeader();
+        if (n <= 0) {
+            return 0;
+        }
+        long target = Math.min(length, position + n);
+        long skipped = target - position;
+        position = target;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        readHeader();
+        if (loadedChunk == -1 || position / chunkSize != loadedChunk) {
+            return 0;
+        }
+        return (int)(loadedLength - (position - loadedChunk * chunkSize));
+    }
+
+    private void loadChunk(long chunk) throws IOException {
+        boolean lastChunk = chunk == chunkCount - 1;
+        int stride = chunkSize + ChunkedCipherFormat.TAG_LENGTH;
+        int sealedLength = lastChunk ? lastChunkLength : stride;
+        int ciphertextLength = sealedLength - ChunkedCipherFormat.TAG_LENGTH;
+
+        file.seek(ChunkedCipherFormat.HEADER_LENGTH + chunk * stride);
+        file.readFully(sealed, 0, sealedLength);
+
+        byte[] expectedTag = ChunkedCipherFormat.computeTag(mac, header, chunk, lastChunk,
+                sealed, ciphertextLength);
+        byte[] tag = new byte[ChunkedCipherFormat.TAG_LENGTH];
+        System.arraycopy(sealed, ciphertextLength, tag, 0, tag.length);
+        if (!MessageDigest.isEqual(expectedTag, tag)) {
+            // don't leave a previous chunk looking like this one
+            loadedChunk = -1;
+            throw new IOException("Encrypted file failed authentication at chunk " + chunk);
+        }
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey,
+                    new IvParameterSpec(ChunkedCipherFormat.counterForChunk(iv, chunk, chunkSize)));
+            loadedLength = cipher.doFinal(sealed, 0, ciphertextLength, plaintext, 0);
+        } catch (GeneralSecurityException e) {
+            loadedChunk = -1;
+            throw new IOException("Couldn't decrypt chunk " + chunk + ": " + e.getMessage());
+        }
+        loadedChunk = chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
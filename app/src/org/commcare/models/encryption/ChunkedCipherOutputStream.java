@@ -0,0 +1,115 @@
+package org.commcare.models.encryption;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Writes a file in the {@link ChunkedCipherFormat}. Plaintext is buffered a chunk at a time, and
+ * a full chunk is only written once more data arrives, so the file's real last chunk is the one
+ * marked as last when the stream is closed. Nothing is complete until then.
+ */
+public class ChunkedCipherOutputStream extends OutputStream {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final OutputStream out;
+    private final int chunkSize;
+    private final byte[] iv;
+    private final byte[] header;
+    private final Cipher cipher;
+    private final SecretKeySpec encryptionKey;
+    private final Mac mac;
+
+    private final byte[] plaintext;
+    private final byte[] ciphertext;
+    private int buffered = 0;
+    private long chunkIndex = 0;
+    private boolean closed = false;
+
+    public ChunkedCipherOutputStream(OutputStream out, byte[] fileKey)
+            throws GeneralSecurityException {
+        this(out, fileKey, ChunkedCipherFormat.DEFAULT_CHUNK_SIZE);
+    }
+
+    ChunkedCipherOutputStream(OutputStream out, byte[] fileKey, int chunkSize)
+            throws GeneralSecurityException {
+        this.out = out;
+        this.chunkSize = chunkSize;
+        this.iv = new byte[ChunkedCipherFormat.IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        this.header = ChunkedCipherFormat.buildHeader(chunkSize, iv);
+        this.cipher = ChunkedCipherFormat.newCipher();
+        this.encryptionKey = ChunkedCipherFormat.deriveEncryptionKey(fileKey);
+        this.mac = ChunkedCipherFormat.newMac(fileKey);
+        this.plaintext = new byte[chunkSize];
+        this.ciphertext = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (buffered == chunkSize) {
+                writeChunk(false);
+            }
+            int count = Math.min(len, chunkSize - buffered);
+            System.arraycopy(b, off, plaintext, buffered, count);
+            buffered += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Only flushes chunks that have already been written, since a partial chunk can't be
+     * written without ending the file
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeChunk(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeChunk(boolean lastChunk) throws IOException {
+        int length;
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey,
+                    new IvParameterSpec(ChunkedCipherFormat.counterForChunk(iv, chunkIndex, chunkSize)));
+            length = cipher.doFinal(plaintext, 0, buffered, ciphertext, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't encrypt chunk " + chunkIndex + ": " + e.getMessage());
+        }
+        if (chunkIndex == 0) {
+            out.write(header);
+        }
+        out.write(ciphertext, 0, length);
+        out.write(ChunkedCipherFormat.computeTag(mac, header, chunkIndex, lastChunk, ciphertext, length));
+        chunkIndex++;
+        buffered = 0;
+    }
+}
@@ -2,21 +2,51 @@ package org.commcare.models.encryption;
 
 import android.util.Log;
 
-import java.util.HashSet;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.Cipher;
 
 /**
+ * Pool of initialized ciphers, so that encrypted reads don't have to pay for cipher setup.
+ *
+ * Each thread keeps the last cipher it remitted for itself, so a thread repeatedly borrowing
+ * and remitting never touches shared state. Any other free ciphers go to a bounded lock-free
+ * overflow queue shared by all threads. Ciphers that sit unused in the overflow queue for a
+ * whole idle interval are dropped.
+ *
+ * Expiring the pool starts a new generation: ciphers from earlier generations, whether free or
+ * issued at the time, are discarded rather than lent out again.
+ *
  * @author ctsims
  */
 public abstract class CipherPool {
     private static final String TAG = CipherPool.class.getSimpleName();
 
     private static final int GROWTH_FACTOR = 5;
+    private static final int MAX_FREE_CIPHERS = 32;
+    private static final long SHRINK_INTERVAL_MILLIS = 30 * 1000;
 
-    private final HashSet<Cipher> issued = new HashSet<>();
-    private final Stack<Cipher> free = new Stack<>();
+    private final ThreadLocal<PooledCipher> threadCipher = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<PooledCipher> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    // issued cipher -> the generation it was created in
+    private final ConcurrentHashMap<Cipher, Long> issued = new ConcurrentHashMap<>();
+
+    private volatile long generation = 0;
+
+    // fewest ciphers left in the overflow queue since the last shrink
+    private final AtomicInteger minFreeSinceShrink = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicLong lastShrink = new AtomicLong(System.currentTimeMillis());
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong threadLocalHits = new AtomicLong();
+    private final AtomicLong totalBorrowNanos = new AtomicLong();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+    private final AtomicInteger createdCount = new AtomicInteger();
+    private final AtomicInteger maxIssued = new AtomicInteger();
 
     //TODO: Pass in factory and finalize all API's rather than
     //leaving the class to be anonymous?
@@ -24,36 +54,176 @@ public abstract class CipherPool {
 
     }
 
-    public synchronized final void init() {
+    public final void init() {
         grow();
     }
 
-    public synchronized final Cipher borrow() {
-        if (free.isEmpty()) {
-            grow();
-            Log.d(TAG, "Growing cipher pool. Current size is: " + free.size() + issued.size());
+    public final Cipher borrow() {
+        long start = System.nanoTime();
+        long currentGeneration = generation;
+
+        PooledCipher toLend = threadCipher.get();
+        if (toLend != null && toLend.generation == currentGeneration) {
+            threadCipher.set(null);
+            threadLocalHits.incrementAndGet();
+        } else {
+            threadCipher.set(null);
+            toLend = pollFree(currentGeneration);
+            if (toLend == null) {
+                grow();
+                Log.d(TAG, "Growing cipher pool. Current size is: " + (freeCount.get() + issued.size()));
+                toLend = pollFree(currentGeneration);
+                if (toLend == null) {
+                    // other threads took everything we grew
+                    toLend = createCipher(currentGeneration);
+                }
+            }
+        }
+
+        if (toLend.cipher == null) {
+            // cipher creation failed, which the borrower will have to deal with
+            return null;
         }
-        Cipher toLend = free.pop();
-        issued.add(toLend);
-        return toLend;
+        issued.put(toLend.cipher, toLend.generation);
+        updateMax(maxIssued, issued.size());
+        recordBorrow(System.nanoTime() - start);
+        return toLend.cipher;
     }
 
-    public synchronized final void remit(Cipher cipher) {
-        issued.remove(cipher);
-        free.push(cipher);
+    public final void remit(Cipher cipher) {
+        if (cipher == null) {
+            return;
+        }
+        Long cipherGeneration = issued.remove(cipher);
+        if (cipherGeneration == null || cipherGeneration != generation) {
+            // issued before the pool was expired
+            return;
+        }
+
+        PooledCipher returned = new PooledCipher(cipher, cipherGeneration);
+        PooledCipher held = threadCipher.get();
+        if (held == null || held.generation != cipherGeneration) {
+            threadCipher.set(returned);
+        } else if (freeCount.incrementAndGet() <= MAX_FREE_CIPHERS) {
+            free.offer(returned);
+        } else {
+            freeCount.decrementAndGet();
+        }
+        shrinkIfIdle();
     }
 
-    private synchronized void grow() {
+    private PooledCipher pollFree(long currentGeneration) {
+        PooledCipher pooled;
+        while ((pooled = free.poll()) != null) {
+            updateMin(minFreeSinceShrink, freeCount.decrementAndGet());
+            if (pooled.generation == currentGeneration) {
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    private void grow() {
+        long currentGeneration = generation;
         for (int i = 0; i < GROWTH_FACTOR; ++i) {
-            free.push(generateNewCipher());
+            if (freeCount.incrementAndGet() > MAX_FREE_CIPHERS) {
+                freeCount.decrementAndGet();
+                return;
+            }
+            free.offer(createCipher(currentGeneration));
+        }
+    }
+
+    private PooledCipher createCipher(long cipherGeneration) {
+        createdCount.incrementAndGet();
+        return new PooledCipher(generateNewCipher(), cipherGeneration);
+    }
+
+    /**
+     * Drop overflow ciphers that haven't been needed since the last shrink
+     */
+    private void shrinkIfIdle() {
+        long last = lastShrink.get();
+        long now = System.currentTimeMillis();
+        if (now - last < SHRINK_INTERVAL_MILLIS || !lastShrink.compareAndSet(last, now)) {
+            return;
+        }
+        int unused = minFreeSinceShrink.getAndSet(freeCount.get());
+        for (int i = 0; i < unused && free.poll() != null; i++) {
+            freeCount.decrementAndGet();
         }
     }
 
     protected abstract Cipher generateNewCipher();
 
-    public synchronized final void expire() {
+    public final void expire() {
         //do we want to try to destroy the final object here?
+        generation++;
         issued.clear();
-        free.clear();
+        while (free.poll() != null) {
+            freeCount.decrementAndGet();
+        }
+        threadCipher.remove();
+        Log.d(TAG, "Expired cipher pool: " + getStats());
+    }
+
+    private void recordBorrow(long nanos) {
+        borrowCount.incrementAndGet();
+        totalBorrowNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxBorrowNanos.get())) {
+            if (maxBorrowNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    private static void updateMax(AtomicInteger value, int candidate) {
+        int current;
+        while (candidate > (current = value.get())) {
+            if (value.compareAndSet(current, candidate)) {
+                return;
+            }
+        }
+    }
+
+    private static void updateMin(AtomicInteger value, int candidate) {
+        int current;
+        while (candidate < (current = value.get())) {
+            if (value.compareAndSet(current, candidate)) {
+                return;
+            }
+        }
+    }
+
+    int getFreeCount() {
+        return freeCount.get();
+    }
+
+    int getIssuedCount() {
+        return issued.size();
+    }
+
+    int getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public String getStats() {
+        long borrows = borrowCount.get();
+        long averageMicros = borrows == 0 ? 0 : totalBorrowNanos.get() / borrows / 1000;
+        return "borrows=" + borrows + ", threadLocalHits=" + threadLocalHits.get() +
+                ", avgBorrowUs=" + averageMicros + ", maxBorrowUs=" + maxBorrowNanos.get() / 1000 +
+                ", created=" + createdCount.get() + ", free=" + freeCount.get() +
+                ", issued=" + issued.size() + ", maxIssued=" + maxIssued.get();
+    }
+
+    private static class PooledCipher {
+        final Cipher cipher;
+        final long generation;
+
+        PooledCipher(Cipher cipher, long generation) {
+            this.cipher = cipher;
+            this.generation = generation;
+        }
     }
 }
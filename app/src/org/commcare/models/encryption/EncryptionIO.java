@@ -1,6 +1,8 @@
 package org.commcare.models.encryption;
 
+import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.util.LogTypes;
+import org.javarosa.core.io.StreamsUtil;
 import org.javarosa.core.services.Logger;
 
 import java.io.BufferedInputStream;
@@ -9,8 +11,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
@@ -23,9 +28,15 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * Methods for dealing with encrypted input/output.
  *
+ * Files are read in whichever format they were written in: the chunked format from
+ * {@link ChunkedCipherFormat}, or the original single "AES" cipher stream. New files are only
+ * written in the chunked format when it's enabled, since older versions can't read it.
+ *
  * @author Phillip Mates (pmates@dimagi.com).
  */
 public class EncryptionIO {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     public static OutputStream createFileOutputStream(String filename,
                                                       SecretKeySpec symetricKey)
             throws FileNotFoundException {
@@ -33,11 +44,19 @@ public class EncryptionIO {
         FileOutputStream fos = new FileOutputStream(path);
         if (symetricKey == null) {
             return fos;
+        } else if (DeveloperPreferences.isChunkedFileEncryptionEnabled()) {
+            try {
+                return new ChunkedCipherOutputStream(fos, symetricKey.getEncoded());
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                Logger.log(LogTypes.TYPE_ERROR_CRYPTO, "Unavailable chunked file encryption: " + e.getMessage());
+                throw new RuntimeException(e.getMessage());
+            }
         } else {
             try {
                 Cipher cipher = Cipher.getInstance("AES");
                 cipher.init(Cipher.ENCRYPT_MODE, symetricKey);
-                return new BufferedOutputStream(new CipherOutputStream(fos, cipher));
+                return new BufferedOutputStream(new CipherOutputStream(fos, cipher), BUFFER_SIZE);
 
                 //All of these exceptions imply a bad platform and should be irrecoverable (Don't ever
                 //write out data if the key isn't good, or the crypto isn't available)
@@ -60,14 +79,20 @@ public class EncryptionIO {
     public static InputStream getFileInputStream(String filepath,
                                                  SecretKeySpec symetricKey) throws FileNotFoundException {
         final File file = new File(filepath);
-        InputStream is;
+        if (symetricKey == null) {
+            return new FileInputStream(file);
+        }
+        // the format is detected from the same handle the contents are read through
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        if (ChunkedCipherFormat.isChunkedFile(raf)) {
+            // reads whole chunks, so there's nothing to gain from buffering it
+            return new ChunkedCipherInputStream(raf, symetricKey.getEncoded());
+        }
+        InputStream is = new RandomAccessFileInputStream(raf);
         try {
-            is = new FileInputStream(file);
-            if (symetricKey != null) {
-                Cipher cipher = Cipher.getInstance("AES");
-                cipher.init(Cipher.DECRYPT_MODE, symetricKey);
-                is = new BufferedInputStream(new CipherInputStream(is, cipher));
-            }
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.DECRYPT_MODE, symetricKey);
+            is = new BufferedInputStream(new CipherInputStream(is, cipher), BUFFER_SIZE);
 
             //CTS - Removed a lot of weird checks  here. file size < max int? We're shoving this
             //form into a _Byte array_, I don't think there's a lot of concern than 2GB of data
@@ -82,7 +107,55 @@ public class EncryptionIO {
         } catch (InvalidKeyException | NoSuchPaddingException
                 | NoSuchAlgorithmException e) {
             e.printStackTrace();
+            StreamsUtil.closeStream(is);
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Copy an encrypted file to a plaintext one, whichever format it was encrypted in
+     */
+    public static void decryptFile(File encrypted, File destination, SecretKeySpec key)
+            throws IOException {
+        if (!destination.createNewFile()) {
+            throw new IOException("Couldn't create new file @ " + destination.toString());
+        }
+        InputStream is = getFileInputStream(encrypted.getAbsolutePath(), key);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(destination);
+            StreamsUtil.writeFromInputToOutputUnmanaged(is, os);
+        } finally {
+            is.close();
+            if (os != null) {
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * Reads an already open file from its current position, and closes it when done
+     */
+    private static class RandomAccessFileInputStream extends InputStream {
+        private final RandomAccessFile file;
+
+        RandomAccessFileInputStream(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return file.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return file.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
 }
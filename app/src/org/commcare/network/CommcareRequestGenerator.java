@@ -3,7 +3,6 @@ package org.commcare.network;
 import android.net.Uri;
 
 import org.commcare.CommCareApplication;
-import org.commcare.android.database.user.models.ACase;
 import org.commcare.core.network.AuthInfo;
 import org.commcare.core.network.HTTPMethod;
 import org.commcare.core.network.ModernHttpRequester;
@@ -183,8 +182,7 @@ public class CommcareRequestGenerator implements CommcareRequestEndpoints {
             // For integration tests, use fake hash to trigger 412 recovery on this sync
             return fakeHash;
         } else {
-            return CaseUtils.computeCaseDbHash(
-                    CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class));
+            return CaseUtils.getCaseDbHash();
         }
     }
 
@@ -1,16 +1,16 @@
 package org.commcare.network;
 
+import org.commcare.models.encryption.EncryptionIO;
 import org.javarosa.core.io.StreamsUtil;
 import org.javarosa.core.io.StreamsUtil.InputIOException;
 import org.javarosa.core.io.StreamsUtil.OutputIOException;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.annotation.Nullable;
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
+import javax.crypto.spec.SecretKeySpec;
 
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
@@ -21,13 +21,13 @@ import okio.BufferedSink;
  */
 public class EncryptedFileBody extends RequestBody {
     private final File file;
-    private final Cipher cipher;
+    private final SecretKeySpec key;
     private final MediaType contentType;
 
-    public EncryptedFileBody(MediaType contentType, File file, Cipher cipher) {
+    public EncryptedFileBody(MediaType contentType, File file, SecretKeySpec key) {
         this.contentType = contentType;
         this.file = file;
-        this.cipher = cipher;
+        this.key = key;
     }
 
     @Override
@@ -39,9 +39,9 @@ public class EncryptedFileBody extends RequestBody {
     public void writeTo(BufferedSink sink) throws IOException {
         //The only time this can cause issues is if the body has disappeared since construction. Don't worry about that, since
         //it'll get caught when we initialize.
-        CipherInputStream cis = new CipherInputStream(new FileInputStream(file), cipher);
+        InputStream is = EncryptionIO.getFileInputStream(file.getAbsolutePath(), key);
         try {
-            StreamsUtil.writeFromInputToOutputUnmanaged(cis, sink.outputStream());
+            StreamsUtil.writeFromInputToOutputUnmanaged(is, sink.outputStream());
         } catch (InputIOException iioe) {
             //Here we want to retain the fundamental problem of the _input_ being responsible for the issue
             //so we can differentiate between bad reads and bad network
@@ -50,7 +50,7 @@ public class EncryptedFileBody extends RequestBody {
             //We want the original exception here.
             throw oe.getWrapped();
         } finally {
-            cis.close();
+            is.close();
         }
     }
 
@@ -0,0 +1,171 @@
+package org.commcare.network;
+
+import android.util.Log;
+
+import org.commcare.core.network.bitcache.BitCache;
+import org.javarosa.core.io.StreamsUtil;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Downloads a response body into a local cache on a background thread, while handing the same
+ * bytes to a reader as they arrive, so a restore can be parsed while it is still downloading.
+ *
+ * The bytes between the download and the reader pass through a bounded buffer, so a slow parser
+ * throttles the download rather than letting it run ahead in memory. The cached copy is complete
+ * once the download finishes, and is available for retries.
+ *
+ * The stream handed to the reader fails, rather than ending early, if the download fails, so a
+ * truncated payload can never be mistaken for a complete one.
+ */
+public class PipelinedDownload {
+    private static final String TAG = PipelinedDownload.class.getSimpleName();
+
+    private static final int PIPE_BUFFER_SIZE = 256 * 1024;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final InputStream networkStream;
+    private final BitCache cache;
+    private final StreamsUtil.StreamReadObserver observer;
+
+    private final PipedInputStream pipeIn;
+    private final PipedOutputStream pipeOut;
+    private final Thread downloadThread;
+
+    private volatile IOException downloadFailure;
+    private volatile boolean abandoned;
+    // guarded by this
+    private boolean finished;
+    private boolean cacheReleased;
+
+    PipelinedDownload(InputStream networkStream, BitCache cache,
+                      StreamsUtil.StreamReadObserver observer) throws IOException {
+        this.networkStream = networkStream;
+        this.cache = cache;
+        this.observer = observer;
+        this.pipeIn = new PipedInputStream(PIPE_BUFFER_SIZE);
+        this.pipeOut = new PipedOutputStream(pipeIn);
+        this.downloadThread = new Thread(this::download, "restore-download");
+    }
+
+    void start() {
+        downloadThread.start();
+    }
+
+    private void download() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long bytesRead = 0;
+        try {
+            OutputStream cacheOut = cache.getCacheStream();
+            try {
+                int read;
+                while ((read = networkStream.read(buffer)) != -1) {
+                    if (abandoned) {
+                        throw new IOException("Restore download abandoned");
+                    }
+                    cacheOut.write(buffer, 0, read);
+                    pipeOut.write(buffer, 0, read);
+                    bytesRead += read;
+                    observer.notifyCurrentCount(bytesRead);
+                }
+            } finally {
+                cacheOut.close();
+            }
+            Log.i(TAG, "Restore download complete after " + bytesRead + "b");
+        } catch (IOException e) {
+            downloadFailure = e;
+            releaseCache();
+        } finally {
+            closeQuietly(networkStream);
+            closeQuietly(pipeOut);
+            synchronized (this) {
+                finished = true;
+                if (abandoned) {
+                    releaseCache();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The downloaded bytes, as they arrive. Must only be read from one thread.
+     */
+    public InputStream getStream() {
+        return new FilterInputStream(pipeIn) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read == -1) {
+                    awaitCompletion();
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read == -1) {
+                    awaitCompletion();
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wait for the download to finish
+     *
+     * @return The cache holding the full response
+     * @throws IOException If the download didn't complete
+     */
+    public BitCache awaitCompletion() throws IOException {
+        try {
+            downloadThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for restore download");
+        }
+        if (downloadFailure != null) {
+            throw downloadFailure;
+        }
+        return cache;
+    }
+
+    /**
+     * Stop the download without waiting for it, since its bytes are no longer wanted, and
+     * release the cache. If the download is still running the cache is released once the
+     * download thread notices; if it already finished the cache is released here.
+     */
+    public void abandon() {
+        synchronized (this) {
+            abandoned = true;
+            if (finished) {
+                releaseCache();
+            }
+        }
+        // unblocks the download thread if it's waiting on a full pipe
+        closeQuietly(pipeIn);
+    }
+
+    private synchronized void releaseCache() {
+        if (!cacheReleased) {
+            cacheReleased = true;
+            cache.release();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
@@ -63,43 +63,7 @@ public class RemoteDataPullResponse {
 
             Log.i("commcare-network", "Starting network read, expected content size: " + dataSizeGuess + "b");
             StreamsUtil.writeFromInputToOutputNew(new BufferedInputStream(input),
-                    cacheOut,
-                    new StreamsUtil.StreamReadObserver() {
-                        long lastOutput = 0;
-
-                        /** The notification threshold. **/
-                        static final int PERCENT_INCREASE_THRESHOLD = 4;
-
-                        @Override
-                        public void notifyCurrentCount(long bytesRead) {
-                            boolean notify;
-
-                            //We always wanna notify when we get our first bytes
-                            if (lastOutput == 0) {
-                                Log.i("commcare-network", "First" + bytesRead + " bytes received from network: ");
-                            }
-                            //After, if we don't know how much data to expect, we can't do
-                            //anything useful
-                            if (dataSizeGuess == -1) {
-                                //set this so the first notification up there doesn't keep firing
-                                lastOutput = bytesRead;
-                                return;
-                            }
-
-                            int percentIncrease = (int)(((bytesRead - lastOutput) * 100) / dataSizeGuess);
-
-                            //Now see if we're over the reporting threshold
-                            //TODO: Is this actually necessary? In theory this shouldn't
-                            //matter due to android task polling magic?
-                            notify = percentIncrease > PERCENT_INCREASE_THRESHOLD;
-
-                            if (notify && task != null) {
-                                lastOutput = bytesRead;
-                                int totalRead = (int)(((bytesRead) * 100) / dataSizeGuess);
-                                task.reportDownloadProgress(totalRead);
-                            }
-                        }
-                    });
+                    cacheOut, getProgressObserver(dataSizeGuess));
 
             return cache;
 
@@ -111,6 +75,68 @@ public class RemoteDataPullResponse {
         }
     }
 
+    /**
+     * Starts writing the response to an initialized safe local cache in the background, while
+     * making the response available to be read as it downloads.
+     *
+     * @throws IOException If the cache can't be set up
+     */
+    public PipelinedDownload startPipelinedDownload(Context c) throws IOException {
+        final long dataSizeGuess = ModernHttpRequester.getContentLength(response);
+        BitCache cache = BitCacheFactory.getCache(new AndroidCacheDirSetup(c), dataSizeGuess);
+        cache.initializeCache();
+
+        Log.i("commcare-network", "Starting pipelined network read, expected content size: " + dataSizeGuess + "b");
+        PipelinedDownload download;
+        try {
+            download = new PipelinedDownload(getInputStream(), cache, getProgressObserver(dataSizeGuess));
+        } catch (IOException e) {
+            cache.release();
+            throw e;
+        }
+        download.start();
+        return download;
+    }
+
+    private StreamsUtil.StreamReadObserver getProgressObserver(final long dataSizeGuess) {
+        return new StreamsUtil.StreamReadObserver() {
+            long lastOutput = 0;
+
+            /** The notification threshold. **/
+            static final int PERCENT_INCREASE_THRESHOLD = 4;
+
+            @Override
+            public void notifyCurrentCount(long bytesRead) {
+                boolean notify;
+
+                //We always wanna notify when we get our first bytes
+                if (lastOutput == 0) {
+                    Log.i("commcare-network", "First" + bytesRead + " bytes received from network: ");
+                }
+                //After, if we don't know how much data to expect, we can't do
+                //anything useful
+                if (dataSizeGuess == -1) {
+                    //set this so the first notification up there doesn't keep firing
+                    lastOutput = bytesRead;
+                    return;
+                }
+
+                int percentIncrease = (int)(((bytesRead - lastOutput) * 100) / dataSizeGuess);
+
+                //Now see if we're over the reporting threshold
+                //TODO: Is this actually necessary? In theory this shouldn't
+                //matter due to android task polling magic?
+                notify = percentIncrease > PERCENT_INCREASE_THRESHOLD;
+
+                if (notify && task != null) {
+                    lastOutput = bytesRead;
+                    int totalRead = (int)(((bytesRead) * 100) / dataSizeGuess);
+                    task.reportDownloadProgress(totalRead);
+                }
+            }
+        };
+    }
+
     protected InputStream getInputStream() throws IOException {
         return response.body().byteStream();
     }
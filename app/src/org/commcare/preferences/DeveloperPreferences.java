@@ -56,6 +56,16 @@ public class DeveloperPreferences extends CommCarePreferenceFragment {
     private final static String ENFORCE_SECURE_ENDPOINT = "cc-enforce-secure-endpoint";
     private final static String ALLOW_SPACE_IN_SELECT_CHOICES = "cc-allow-space-in-select-choices";
     private final static String USE_EXPRESSION_CACHING_IN_FORMS = "use-expression-caching-in-forms";
+    private final static String PARALLEL_ENTITY_LOADING = "cc-parallel-entity-loading";
+    private final static String STREAM_ENTITY_LOADING = "cc-stream-entity-loading";
+    private final static String VERIFY_CASE_DB_HASH = "cc-verify-case-db-hash";
+    private final static String PIPELINED_RESTORE = "cc-pipelined-restore";
+    private final static String CHUNKED_RESTORE_COMMITS = "cc-chunked-restore-commits";
+    private final static String PARALLEL_RESTORE_PARSING = "cc-parallel-restore-parsing";
+    private final static String CHUNKED_FILE_ENCRYPTION = "cc-chunked-file-encryption";
+    private final static String BACKGROUND_RELEVANCY_UPDATES = "cc-background-relevancy-updates";
+    private final static String LAZY_QUESTION_LISTS = "cc-lazy-question-lists";
+    private final static String BUFFERED_LOGGING = "cc-buffered-logging";
 
     public final static String PROJECT_SET_ACCESS_CODE = "cc-dev-prefs-access-code";
     public final static String USER_ENTERED_ACCESS_CODE = "cc-dev-prefs-user-entered-code";
@@ -413,6 +423,46 @@ public class DeveloperPreferences extends CommCarePreferenceFragment {
         return doesPropertyMatch(USE_EXPRESSION_CACHING_IN_FORMS, PrefValues.NO, PrefValues.YES);
     }
 
+    public static boolean isParallelEntityLoadingEnabled() {
+        return doesPropertyMatch(PARALLEL_ENTITY_LOADING, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean isEntityStreamingEnabled() {
+        return doesPropertyMatch(STREAM_ENTITY_LOADING, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean shouldVerifyCaseDbHash() {
+        return doesPropertyMatch(VERIFY_CASE_DB_HASH, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean isPipelinedRestoreEnabled() {
+        return doesPropertyMatch(PIPELINED_RESTORE, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean areChunkedRestoreCommitsEnabled() {
+        return doesPropertyMatch(CHUNKED_RESTORE_COMMITS, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean isParallelRestoreParsingEnabled() {
+        return doesPropertyMatch(PARALLEL_RESTORE_PARSING, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean isChunkedFileEncryptionEnabled() {
+        return doesPropertyMatch(CHUNKED_FILE_ENCRYPTION, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean areBackgroundRelevancyUpdatesEnabled() {
+        return doesPropertyMatch(BACKGROUND_RELEVANCY_UPDATES, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean isLazyQuestionListEnabled() {
+        return doesPropertyMatch(LAZY_QUESTION_LISTS, PrefValues.NO, PrefValues.YES);
+    }
+
+    public static boolean isBufferedLoggingEnabled() {
+        return doesPropertyMatch(BUFFERED_LOGGING, PrefValues.NO, PrefValues.YES);
+    }
+
     private void hideOrShowDangerousSettings() {
         Preference[] onScreenPrefs = getOnScreenPrefs();
         if (!GlobalPrivilegesManager.isAdvancedSettingsAccessEnabled() && !BuildConfig.DEBUG) {
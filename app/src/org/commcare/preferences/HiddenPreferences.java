@@ -43,6 +43,8 @@ public class HiddenPreferences {
     public final static String LATEST_COMMCARE_VERSION = "latest-commcare-version";
     public final static String LATEST_APP_VERSION = "latest-app-version";
     private static final String LAST_LOG_DELETION_TIME = "last_log_deletion_time";
+    private static final String LAST_FULL_CASE_PURGE_TIME = "last_full_case_purge_time";
+    private static final String LAST_CASE_PURGE_OWNERS = "last_case_purge_owners";
     private final static String FORCE_LOGS = "force-logs";
 
     // Preferences whose values are only ever set by being sent down from HQ via the profile file
@@ -402,6 +404,27 @@ public class HiddenPreferences {
                 .getLong(getUserSpecificKey(userId, LAST_LOG_DELETION_TIME), 0);
     }
 
+    /**
+     * Record that every case was just evaluated for purging, against the given set of owners
+     */
+    public static void setLastFullCasePurge(String userId, String ownersHash) {
+        CommCareApplication.instance().getCurrentApp().getAppPreferences()
+                .edit()
+                .putLong(getUserSpecificKey(userId, LAST_FULL_CASE_PURGE_TIME), new Date().getTime())
+                .putString(getUserSpecificKey(userId, LAST_CASE_PURGE_OWNERS), ownersHash)
+                .apply();
+    }
+
+    public static long getLastFullCasePurgeTime(String userId) {
+        return CommCareApplication.instance().getCurrentApp().getAppPreferences()
+                .getLong(getUserSpecificKey(userId, LAST_FULL_CASE_PURGE_TIME), 0);
+    }
+
+    public static String getLastCasePurgeOwners(String userId) {
+        return CommCareApplication.instance().getCurrentApp().getAppPreferences()
+                .getString(getUserSpecificKey(userId, LAST_CASE_PURGE_OWNERS), null);
+    }
+
     private static String getUserSpecificKey(String userId, String preferenceName) {
         return userId + "_" + preferenceName;
     }
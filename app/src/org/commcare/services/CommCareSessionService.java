@@ -27,6 +27,7 @@ import org.commcare.heartbeat.HeartbeatLifecycleManager;
 import org.commcare.interfaces.FormSaveCallback;
 import org.commcare.models.database.user.DatabaseUserOpenHelper;
 import org.commcare.models.database.user.UserSandboxUtils;
+import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.models.encryption.CipherPool;
 import org.commcare.preferences.HiddenPreferences;
 import org.commcare.tasks.DataSubmissionListener;
@@ -452,6 +453,7 @@ public class CommCareSessionService extends Service {
 
             if (userDatabase != null) {
                 if (userDatabase.isOpen()) {
+                    EntityStorageCache.releaseMemoryTier();
                     userDatabase.close();
                 }
                 userDatabase = null;
@@ -21,12 +21,17 @@ import org.commcare.google.services.analytics.AnalyticsParamValue;
 import org.commcare.interfaces.CommcareRequestEndpoints;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.CaseDbDigest;
+import org.commcare.models.database.user.models.CasePurgeJournal;
 import org.commcare.models.database.user.models.EntityStorageCache;
+import org.commcare.models.database.user.models.RestoreCheckpoint;
 import org.commcare.models.encryption.ByteEncrypter;
 import org.commcare.modern.models.RecordTooLargeException;
 import org.commcare.network.DataPullRequester;
 import org.commcare.network.HttpUtils;
+import org.commcare.network.PipelinedDownload;
 import org.commcare.network.RemoteDataPullResponse;
+import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.preferences.HiddenPreferences;
 import org.commcare.preferences.ServerUrls;
 import org.commcare.resources.model.CommCareOTARestoreListener;
@@ -38,6 +43,8 @@ import org.commcare.utils.SessionUnavailableException;
 import org.commcare.utils.SyncDetailCalculations;
 import org.commcare.utils.UnknownSyncError;
 import org.commcare.xml.AndroidTransactionParserFactory;
+import org.commcare.xml.CheckpointedParserFactory;
+import org.javarosa.core.io.StreamsUtil;
 import org.javarosa.core.model.User;
 import org.javarosa.core.services.Logger;
 import org.javarosa.core.services.locale.Localization;
@@ -47,14 +54,17 @@ import org.javarosa.xml.util.InvalidStructureException;
 import org.javarosa.xml.util.UnfullfilledRequirementsException;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.NoSuchElementException;
 
+import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
 
 /**
@@ -72,6 +82,14 @@ public abstract class DataPullTask<R>
     private int mTotalItems;
     private long mSyncStartTime;
 
+    // case index writes done by the bulk case parser during this sync
+    private int caseIndexRowsWritten;
+    private int caseIndexRowsUnchanged;
+    private long caseIndexMillis;
+
+    // top-level restore elements committed together when restores are committed in chunks
+    public static int RESTORE_CHUNK_SIZE = 1000;
+
     public static final int DATA_PULL_TASK_ID = 10;
 
     public static final int PROGRESS_STARTED = 0;
@@ -151,7 +169,10 @@ public abstract class DataPullTask<R>
         Logger.log(LogTypes.TYPE_USER, "Starting Sync");
         determineIfLoginNeeded();
 
-        AndroidTransactionParserFactory factory = getTransactionParserFactory();
+        // buffered case writes can't be split across chunks
+        AndroidTransactionParserFactory factory = getTransactionParserFactory(
+                DeveloperPreferences.isBulkPerformanceEnabled()
+                        && !DeveloperPreferences.areChunkedRestoreCommitsEnabled());
         byte[] wrappedEncryptionKey = getEncryptionKey();
         if (wrappedEncryptionKey == null) {
             this.publishProgress(PROGRESS_DONE);
@@ -161,6 +182,7 @@ public abstract class DataPullTask<R>
 
         factory.initUserParser(wrappedEncryptionKey);
         if (!loginNeeded) {
+            resumeInterruptedRestore(wrappedEncryptionKey);
             //Only purge cases if we already had a logged in user. Otherwise we probably can't read the DB.
             CaseUtils.purgeCases();
         }
@@ -177,8 +199,8 @@ public abstract class DataPullTask<R>
         }
     }
 
-    private AndroidTransactionParserFactory getTransactionParserFactory() {
-        return new AndroidTransactionParserFactory(context, requestor) {
+    private AndroidTransactionParserFactory getTransactionParserFactory(boolean bulkProcessingEnabled) {
+        return new AndroidTransactionParserFactory(context, requestor, bulkProcessingEnabled) {
             boolean publishedAuth = false;
 
             @Override
@@ -188,6 +210,13 @@ public abstract class DataPullTask<R>
                     publishedAuth = true;
                 }
             }
+
+            @Override
+            public void reportCaseIndexProgress(AndroidCaseIndexTable.BulkIndexResult result, long millis) {
+                caseIndexRowsWritten += result.getRowsWritten();
+                caseIndexRowsUnchanged += result.rowsUnchanged;
+                caseIndexMillis += millis;
+            }
         };
     }
 
@@ -344,8 +373,32 @@ public abstract class DataPullTask<R>
         Logger.log(LogTypes.TYPE_USER, "Remote Auth Successful|" + username);
 
         try {
-            BitCache cache = pullResponse.writeResponseToCache(context);
-            String syncToken = readInput(cache.retrieveCache(), factory);
+            String syncToken;
+            // this response also covers anything a restore interrupted before login left behind
+            RestoreCheckpoint.discard(CommCareApplication.instance().getUserDbHandle());
+            if (DeveloperPreferences.areChunkedRestoreCommitsEnabled()) {
+                BitCache cache = pullResponse.writeResponseToCache(context);
+                RestoreCheckpoint checkpoint = createRestoreCheckpoint(cache);
+                try {
+                    syncToken = readInputInChunks(checkpoint, factory);
+                } catch (InvalidStructureException | XmlPullParserException
+                        | UnfullfilledRequirementsException e) {
+                    if (checkpoint.getElementsCommitted() == 0) {
+                        throw e;
+                    }
+                    // resuming would only hit the same error, and the part that was
+                    // committed can't be applied again, so start over from a full restore
+                    Logger.log(LogTypes.TYPE_USER,
+                            "Chunked restore failed after partial commit|" + e.getMessage());
+                    wipeStorageForFullRestore();
+                    return handleBadLocalState(factory);
+                }
+            } else if (DeveloperPreferences.isPipelinedRestoreEnabled()) {
+                syncToken = readInputWhileDownloading(pullResponse.startPipelinedDownload(context), factory);
+            } else {
+                BitCache cache = pullResponse.writeResponseToCache(context);
+                syncToken = readInput(cache.retrieveCache(), factory);
+            }
             updateUserSyncToken(syncToken);
 
             onSuccessfulSync();
@@ -549,13 +602,33 @@ public abstract class DataPullTask<R>
         }
     }
 
-    private void wipeStorageForFourTwelveSync(SQLiteDatabase userDb) {
+    public static void wipeStorageForFourTwelveSync(SQLiteDatabase userDb) {
         SqlStorage.wipeTableWithoutCommit(userDb, ACase.STORAGE_KEY);
         SqlStorage.wipeTableWithoutCommit(userDb, Ledger.STORAGE_KEY);
         SqlStorage.wipeTableWithoutCommit(userDb, AndroidCaseIndexTable.TABLE_NAME);
+        CasePurgeJournal.requestFullPurge(userDb);
+        new CaseDbDigest(userDb).reset();
+        RestoreCheckpoint.discard(userDb);
         EntityStorageCache.wipeCacheForCurrentAppWithoutCommit(userDb);
     }
 
+    /**
+     * Wipe the data a restore is applied to and clear the sync token, in one transaction, so
+     * that the next restore is a full one applied to empty storage. Used when a restore was
+     * partly committed and can't be finished.
+     */
+    private void wipeStorageForFullRestore() {
+        SQLiteDatabase userDb = CommCareApplication.instance().getUserDbHandle();
+        userDb.beginTransaction();
+        try {
+            wipeStorageForFourTwelveSync(userDb);
+            updateUserSyncToken(null);
+            userDb.setTransactionSuccessful();
+        } finally {
+            userDb.endTransaction();
+        }
+    }
+
     private void updateCurrentUser(String password) {
         SqlStorage<User> storage = CommCareApplication.instance().getUserStorage("USER", User.class);
         User u = storage.getRecordForValue(User.META_USERNAME, username);
@@ -600,21 +673,180 @@ public abstract class DataPullTask<R>
     private String readInput(InputStream stream, AndroidTransactionParserFactory factory)
             throws InvalidStructureException, IOException, XmlPullParserException,
             UnfullfilledRequirementsException {
+        return readInput(stream, factory, null);
+    }
+
+    /**
+     * Parse the restore as it downloads. Nothing is committed unless both the parse and the
+     * download complete; if either fails, or the task is cancelled, the download is abandoned
+     * and its cache released.
+     */
+    private String readInputWhileDownloading(final PipelinedDownload download,
+                                             AndroidTransactionParserFactory factory)
+            throws InvalidStructureException, IOException, XmlPullParserException,
+            UnfullfilledRequirementsException {
+        InputStream stream = new FilterInputStream(download.getStream()) {
+            @Override
+            public int read() throws IOException {
+                checkCancelled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                checkCancelled();
+                return super.read(b, off, len);
+            }
+
+            private void checkCancelled() throws IOException {
+                if (isCancelled()) {
+                    download.abandon();
+                    throw new InterruptedIOException("Restore cancelled while downloading");
+                }
+            }
+        };
+
+        boolean completed = false;
+        try {
+            String syncToken = readInput(stream, factory, download);
+            completed = true;
+            return syncToken;
+        } finally {
+            if (!completed) {
+                // covers failures after the download finished, which leave the cache in place
+                download.abandon();
+            }
+        }
+    }
+
+    private String readInput(InputStream stream, AndroidTransactionParserFactory factory,
+                             @Nullable PipelinedDownload download)
+            throws InvalidStructureException, IOException, XmlPullParserException,
+            UnfullfilledRequirementsException {
         initParsers(factory);
+        if (DeveloperPreferences.isParallelRestoreParsingEnabled()) {
+            factory.startParallelWork();
+        }
         //this is _really_ coupled, but we'll tolerate it for now because of the absurd performance gains
         SQLiteDatabase db = CommCareApplication.instance().getUserDbHandle();
         db.beginTransaction();
         try {
             parseStream(stream, factory);
+            if (download != null) {
+                // the parser can finish before trailing bytes arrive
+                download.awaitCompletion();
+            }
+            factory.finishParallelWork();
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            factory.abandonParallelWork();
         }
+        logCaseIndexThroughput();
 
         //Return the sync token ID
         return factory.getSyncToken();
     }
 
+    /**
+     * Finish processing a restore that was being committed in chunks when the app last stopped,
+     * so that the sync token can advance past it. If it can't be finished, the part of it that
+     * was committed can't be undone or safely applied again, so storage is wiped and the sync
+     * that follows is a full restore.
+     */
+    private void resumeInterruptedRestore(byte[] wrappedEncryptionKey) {
+        RestoreCheckpoint checkpoint =
+                RestoreCheckpoint.read(CommCareApplication.instance().getUserDbHandle());
+        if (checkpoint == null) {
+            return;
+        }
+        Logger.log(LogTypes.TYPE_USER, "Resuming interrupted restore after " +
+                checkpoint.getElementsCommitted() + " elements (~" +
+                checkpoint.getBytesCommitted() + "b)");
+
+        AndroidTransactionParserFactory factory = getTransactionParserFactory(false);
+        factory.initUserParser(wrappedEncryptionKey);
+        try {
+            updateUserSyncToken(readInputInChunks(checkpoint, factory));
+            Logger.log(LogTypes.TYPE_USER, "Interrupted restore completed");
+        } catch (InvalidStructureException | IOException | XmlPullParserException
+                | UnfullfilledRequirementsException | RuntimeException e) {
+            e.printStackTrace();
+            Logger.log(LogTypes.TYPE_USER,
+                    "Couldn't resume interrupted restore|" + e.getMessage());
+            if (RestoreCheckpoint.read(CommCareApplication.instance().getUserDbHandle()) != null) {
+                wipeStorageForFullRestore();
+            }
+        }
+    }
+
+    private static RestoreCheckpoint createRestoreCheckpoint(BitCache cache) throws IOException {
+        InputStream payload = cache.retrieveCache();
+        try {
+            return RestoreCheckpoint.create(CommCareApplication.instance().getUserDbHandle(), payload);
+        } finally {
+            StreamsUtil.closeStream(payload);
+            cache.release();
+        }
+    }
+
+    /**
+     * Parse the restore held by the checkpoint, committing every few elements and recording
+     * how far it got in the same transaction, so it can be resumed if the process dies part way
+     * through. The checkpoint is cleared in the transaction that commits the last chunk, which
+     * is the only point where the restore is complete.
+     *
+     * If processing fails before anything was committed, the checkpoint is dropped. Otherwise it
+     * is kept, so that the elements already committed are skipped rather than applied again
+     * when the restore is resumed; callers decide whether the failure can be resumed at all.
+     */
+    private String readInputInChunks(RestoreCheckpoint checkpoint,
+                                     AndroidTransactionParserFactory factory)
+            throws InvalidStructureException, IOException, XmlPullParserException,
+            UnfullfilledRequirementsException {
+        initParsers(factory);
+        SQLiteDatabase db = CommCareApplication.instance().getUserDbHandle();
+        CheckpointedParserFactory chunkedFactory =
+                new CheckpointedParserFactory(factory, checkpoint, db, RESTORE_CHUNK_SIZE);
+        InputStream stream = null;
+        boolean completed = false;
+        db.beginTransaction();
+        try {
+            stream = checkpoint.openPayload();
+            new DataModelPullParser(stream, chunkedFactory, true, false, this).parse();
+            checkpoint.clear();
+            db.setTransactionSuccessful();
+            completed = true;
+        } finally {
+            db.endTransaction();
+            StreamsUtil.closeStream(stream);
+            if (completed) {
+                checkpoint.deletePayload();
+            } else if (checkpoint.getElementsCommitted() == 0) {
+                RestoreCheckpoint.discard(db);
+            }
+        }
+        logCaseIndexThroughput();
+        Logger.log(LogTypes.TYPE_MAINTENANCE, "Restore committed in " +
+                (chunkedFactory.getChunksCommitted() + 1) + " chunks, after skipping " +
+                chunkedFactory.getElementsSkipped() + " already committed elements");
+
+        // the sync token may have been in a part of the payload that was skipped
+        String syncToken = factory.getSyncToken();
+        return syncToken != null ? syncToken : checkpoint.getSyncToken();
+    }
+
+    private void logCaseIndexThroughput() {
+        if (caseIndexRowsWritten + caseIndexRowsUnchanged == 0) {
+            return;
+        }
+        long rowsPerSecond = caseIndexMillis == 0 ? caseIndexRowsWritten :
+                (caseIndexRowsWritten * 1000L) / caseIndexMillis;
+        Logger.log(LogTypes.TYPE_MAINTENANCE, "Case index writes during sync: " +
+                caseIndexRowsWritten + " rows written, " + caseIndexRowsUnchanged +
+                " unchanged, in " + caseIndexMillis + "ms (" + rowsPerSecond + " rows/sec)");
+    }
+
     //BEGIN - OTA Listener methods below - Note that most of the methods
     //below weren't really implemented
 
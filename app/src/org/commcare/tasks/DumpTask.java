@@ -8,11 +8,11 @@ import org.commcare.CommCareApplication;
 import org.commcare.activities.CommCareFormDumpActivity;
 import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.encryption.EncryptionIO;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.util.LogTypes;
 import org.commcare.utils.FileUtil;
 import org.commcare.utils.FormUploadResult;
-import org.commcare.utils.FormUploadUtil;
 import org.commcare.utils.ReflectionUtil;
 import org.commcare.utils.SessionUnavailableException;
 import org.commcare.utils.StorageUtils;
@@ -31,7 +31,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Vector;
 
-import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -109,14 +108,12 @@ public abstract class DumpTask extends CommCareTask<String, String, Boolean, Com
 
         //this.startSubmission(submissionNumber, bytes);
 
-        final Cipher decrypter = FormUploadUtil.getDecryptCipher(key);
-
         for (File file : files) {
 
             // This is not the ideal long term solution for determining whether we need decryption, but works
             if (file.getName().endsWith(".xml")) {
                 try {
-                    FileUtil.copyFile(file, new File(myDir, file.getName()), decrypter, null);
+                    EncryptionIO.decryptFile(file, new File(myDir, file.getName()), key);
                 } catch (IOException ie) {
                     Logger.log(TAG, "Error copying file: " + file + " exception: " + ie.getMessage());
                     publishProgress(("File writing failed: " + ie.getMessage()));
@@ -12,5 +12,12 @@ public interface EntityLoaderListener {
     void deliverLoadResult(List<Entity<TreeReference>> entities, List<TreeReference> references,
                            NodeEntityFactory factory, int focusTargetIndex);
 
+    /**
+     * Receive the next chunk of entities from a load that is still in progress. Only called
+     * when result streaming was requested on the loader.
+     */
+    void deliverPartialLoadResult(List<Entity<TreeReference>> entities, List<TreeReference> references,
+                                  NodeEntityFactory factory);
+
     void deliverLoadError(Exception e);
 }
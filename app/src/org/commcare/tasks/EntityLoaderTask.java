@@ -19,23 +19,60 @@ import org.javarosa.xpath.XPathException;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author ctsims
  */
 public class EntityLoaderTask
-        extends ManagedAsyncTask<TreeReference, Integer, Pair<List<Entity<TreeReference>>, List<TreeReference>>> {
+        extends ManagedAsyncTask<TreeReference, List<Entity<TreeReference>>, Pair<List<Entity<TreeReference>>, List<TreeReference>>> {
 
     private final static Object lock = new Object();
     private static EntityLoaderTask pendingTask = null;
 
+    // Lists smaller than this aren't worth the overhead of handing out to workers
+    private static final int PARALLEL_LOAD_THRESHOLD = 200;
+    private static final int MAX_LOADING_THREADS = 4;
+    // Split the list into more chunks than workers so that uneven chunks balance out
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    // Size of the first chunk handed to the listener when streaming. Each later chunk is as
+    // large as everything delivered so far, so only O(log n) chunks are merged into the list.
+    private static final int FIRST_STREAMED_CHUNK_SIZE = 50;
+
     private final NodeEntityFactory factory;
+    private final Detail detail;
+    private final int parallelLoadThreshold;
+    // Builds a context for each worker, none of which share instances with each other or with
+    // the factory's own context
+    private WorkerContextSource workerContextSource;
+    private int workerCount;
     private EntityLoaderListener listener;
     private Exception mException = null;
     private int focusTargetIndex;
 
+    private boolean streamResults = false;
+    private List<TreeReference> references;
+    private int streamedCount = 0;
+    private int nextStreamThreshold = FIRST_STREAMED_CHUNK_SIZE;
+
     public EntityLoaderTask(Detail detail, EvaluationContext evalCtx) {
+        this(detail, evalCtx, PARALLEL_LOAD_THRESHOLD);
+    }
+
+    /**
+     * @param parallelLoadThreshold The smallest list that's built on several threads, when
+     *                              that's enabled
+     */
+    EntityLoaderTask(Detail detail, EvaluationContext evalCtx, int parallelLoadThreshold) {
         evalCtx.addFunctionHandler(EntitySelectActivity.getHereFunctionHandler());
+        this.detail = detail;
+        this.parallelLoadThreshold = parallelLoadThreshold;
         if (detail.useAsyncStrategy()) {
             this.factory = new AsyncNodeEntityFactory(detail, evalCtx);
         } else {
@@ -49,23 +86,25 @@ public class EntityLoaderTask
     @Override
     protected Pair<List<Entity<TreeReference>>, List<TreeReference>> doInBackground(TreeReference... nodeset) {
         try {
-            List<TreeReference> references = factory.expandReferenceList(nodeset[0]);
+            references = factory.expandReferenceList(nodeset[0]);
 
-            List<Entity<TreeReference>> full = new ArrayList<>();
-            focusTargetIndex = -1;
-            int indexInFullList = 0;
-            for (TreeReference ref : references) {
-                if (this.isCancelled()) {
-                    return null;
-                }
+            List<Entity<TreeReference>> full;
+            if (shouldLoadInParallel(references)) {
+                full = loadEntitiesInParallel(references);
+            } else {
+                full = loadEntities(factory, references, true);
+            }
+            if (full == null) {
+                return null;
+            }
+            if (streamedCount > 0) {
+                streamRemainder(full);
+            }
 
-                Entity<TreeReference> e = factory.getEntity(ref);
-                if (e != null) {
-                    full.add(e);
-                    if (e.shouldReceiveFocus()) {
-                        focusTargetIndex = indexInFullList;
-                    }
-                    indexInFullList++;
+            focusTargetIndex = -1;
+            for (int i = 0; i < full.size(); i++) {
+                if (full.get(i).shouldReceiveFocus()) {
+                    focusTargetIndex = i;
                 }
             }
 
@@ -81,6 +120,177 @@ public class EntityLoaderTask
         }
     }
 
+    public interface WorkerContextSource {
+        /**
+         * @return A context whose instances aren't shared with any other context
+         */
+        EvaluationContext newIsolatedContext();
+    }
+
+    /**
+     * Allow large lists to be built on several threads. Instances aren't safe to read from
+     * more than one thread at a time, so each worker gets its own context. The contexts are
+     * only built, on the loading thread, once the list turns out to be large enough to be
+     * split up. Must be called before the task is executed.
+     *
+     * Async entities are lazily evaluated, so building them is already cheap, and the
+     * async factory keeps shared state across the entities it builds, so async lists are
+     * always built serially.
+     */
+    public void enableParallelLoading(WorkerContextSource contextSource) {
+        enableParallelLoading(contextSource,
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADING_THREADS));
+    }
+
+    void enableParallelLoading(WorkerContextSource contextSource, int workerCount) {
+        if (!DeveloperPreferences.isParallelEntityLoadingEnabled() ||
+                factory instanceof AsyncNodeEntityFactory || workerCount < 2) {
+            return;
+        }
+        this.workerContextSource = contextSource;
+        this.workerCount = workerCount;
+    }
+
+    private boolean shouldLoadInParallel(List<TreeReference> references) {
+        return workerContextSource != null && references.size() >= parallelLoadThreshold;
+    }
+
+    /**
+     * @return entities for the references, in order, or null if the task was cancelled
+     */
+    private List<Entity<TreeReference>> loadEntities(NodeEntityFactory entityFactory,
+                                                     List<TreeReference> references,
+                                                     boolean streamProgress) {
+        List<Entity<TreeReference>> entities = new ArrayList<>();
+        for (TreeReference ref : references) {
+            if (this.isCancelled()) {
+                return null;
+            }
+
+            Entity<TreeReference> e = entityFactory.getEntity(ref);
+            if (e != null) {
+                entities.add(e);
+                if (streamProgress) {
+                    streamIfChunkReady(entities);
+                }
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Request that entities be handed to the listener in chunks as they are built, ahead of
+     * the final result. Must be called before the task is executed.
+     */
+    public void streamPartialResults() {
+        this.streamResults = true;
+    }
+
+    /**
+     * Blocking async lists need their cache primed before entities can be sorted or
+     * displayed, so they are never streamed.
+     */
+    private boolean isStreamable() {
+        return streamResults &&
+                !(factory instanceof AsyncNodeEntityFactory &&
+                        ((AsyncNodeEntityFactory)factory).isBlockingAsyncMode());
+    }
+
+    private void streamIfChunkReady(List<Entity<TreeReference>> loaded) {
+        if (isStreamable() && loaded.size() >= nextStreamThreshold) {
+            streamRemainder(loaded);
+            nextStreamThreshold = loaded.size() * 2;
+        }
+    }
+
+    private void streamRemainder(List<Entity<TreeReference>> loaded) {
+        if (loaded.size() > streamedCount) {
+            List<Entity<TreeReference>> chunk =
+                    new ArrayList<>(loaded.subList(streamedCount, loaded.size()));
+            streamedCount = loaded.size();
+            publishProgress(chunk);
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(List<Entity<TreeReference>>... chunks) {
+        super.onProgressUpdate(chunks);
+        synchronized (lock) {
+            // chunks delivered while detached are picked up by the final result
+            if (listener != null && !isCancelled()) {
+                listener.deliverPartialLoadResult(chunks[0], references, factory);
+            }
+        }
+    }
+
+    /**
+     * Partition the references into contiguous chunks that are built by a bounded pool of
+     * workers. Each worker builds its chunks with a factory over its own context, so no two
+     * threads ever evaluate against the same instances. Chunks are merged back in their
+     * original order.
+     *
+     * @return entities for the references, in order, or null if the task was cancelled
+     */
+    private List<Entity<TreeReference>> loadEntitiesInParallel(List<TreeReference> references) {
+        int chunkCount = workerCount * CHUNKS_PER_WORKER;
+        int chunkSize = (references.size() + chunkCount - 1) / chunkCount;
+
+        // a chunk borrows an idle factory for as long as it runs, and there are as many
+        // factories as workers, so a factory is never used by two threads at once
+        final BlockingQueue<NodeEntityFactory> idleFactories = new ArrayBlockingQueue<>(workerCount);
+        List<NodeEntityFactory> workerFactories = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            EvaluationContext workerContext = workerContextSource.newIsolatedContext();
+            workerContext.addFunctionHandler(EntitySelectActivity.getHereFunctionHandler());
+            NodeEntityFactory workerFactory = new NodeEntityFactory(detail, workerContext);
+            if (DeveloperPreferences.collectAndDisplayEntityTraces()) {
+                workerFactory.activateDebugTraceOutput();
+            }
+            workerFactories.add(workerFactory);
+            idleFactories.add(workerFactory);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<List<Entity<TreeReference>>>> chunks = new ArrayList<>();
+            for (int start = 0; start < references.size(); start += chunkSize) {
+                final List<TreeReference> chunk =
+                        references.subList(start, Math.min(start + chunkSize, references.size()));
+                chunks.add(workers.submit(() -> {
+                    NodeEntityFactory chunkFactory = idleFactories.take();
+                    try {
+                        return loadEntities(chunkFactory, chunk, false);
+                    } finally {
+                        idleFactories.add(chunkFactory);
+                    }
+                }));
+            }
+
+            List<Entity<TreeReference>> full = new ArrayList<>(references.size());
+            for (Future<List<Entity<TreeReference>>> chunk : chunks) {
+                List<Entity<TreeReference>> chunkEntities = chunk.get();
+                if (chunkEntities == null || isCancelled()) {
+                    return null;
+                }
+                full.addAll(chunkEntities);
+                streamIfChunkReady(full);
+            }
+            for (NodeEntityFactory workerFactory : workerFactories) {
+                workerFactory.printAndClearTraces("build");
+            }
+            return full;
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof XPathException) {
+                throw (XPathException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
     @Override
     protected void onPostExecute(Pair<List<Entity<TreeReference>>, List<TreeReference>> result) {
         super.onPostExecute(result);
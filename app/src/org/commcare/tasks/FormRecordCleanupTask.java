@@ -14,6 +14,7 @@ import org.commcare.data.xml.TransactionParser;
 import org.commcare.data.xml.TransactionParserFactory;
 import org.commcare.models.AndroidSessionWrapper;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.encryption.EncryptionIO;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.util.CommCarePlatform;
 import org.commcare.util.LogTypes;
@@ -29,19 +30,13 @@ import org.javarosa.xml.util.UnfullfilledRequirementsException;
 import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.Vector;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -248,32 +243,15 @@ public abstract class FormRecordCleanupTask<R> extends CommCareTask<Void, Intege
         };
 
         String path = r.getFilePath();
-        InputStream is = null;
-        FileInputStream fis = new FileInputStream(path);
+        InputStream is = EncryptionIO.getFileInputStream(path, new SecretKeySpec(r.getAesKey(), "AES"));
         try {
-            Cipher decrypter = Cipher.getInstance("AES");
-            decrypter.init(Cipher.DECRYPT_MODE, new SecretKeySpec(r.getAesKey(), "AES"));
-            is = new CipherInputStream(fis, decrypter);
-
             // Construct parser for this form's internal data.
             DataModelPullParser parser = new DataModelPullParser(is, factory);
 
             // populate uuid, modified, and caseIDs arrays by parsing
             parser.parse();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            throw new RuntimeException("No Algorithm while attempting to decode form submission for processing");
-        } catch (NoSuchPaddingException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Invalid cipher data while attempting to decode form submission for processing");
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Invalid Key Data while attempting to decode form submission for processing");
         } finally {
-            fis.close();
-            if (is != null) {
-                is.close();
-            }
+            is.close();
         }
 
         // TODO: We should be committing all changes to form record models via the ASW objects,
@@ -10,12 +10,12 @@ import org.commcare.activities.CommCareWiFiDirectActivity;
 import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.dalvik.R;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.encryption.EncryptionIO;
 import org.commcare.preferences.ServerUrls;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.util.LogTypes;
 import org.commcare.utils.FileUtil;
 import org.commcare.utils.FormUploadResult;
-import org.commcare.utils.FormUploadUtil;
 import org.commcare.utils.StorageUtils;
 import org.commcare.views.notifications.NotificationMessageFactory;
 import org.commcare.views.notifications.ProcessIssues;
@@ -32,7 +32,6 @@ import java.util.Arrays;
 import java.util.Properties;
 import java.util.Vector;
 
-import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -71,9 +70,8 @@ public abstract class FormRecordToFileTask extends CommCareTask<String, String,
 
         logTransferBytes(files);
 
-        final Cipher decryptCipher = FormUploadUtil.getDecryptCipher(decryptionKey);
         try {
-            decryptCopyFiles(files, myDir, decryptCipher);
+            decryptCopyFiles(files, myDir, decryptionKey);
         } catch (IOException e){
             Log.d(TAG, "Copying file failed with: " + e.getMessage());
             publishProgress(("File writing failed: " + e.getMessage()));
@@ -85,11 +83,11 @@ public abstract class FormRecordToFileTask extends CommCareTask<String, String,
         return FormUploadResult.FULL_SUCCESS;
     }
 
-    private void decryptCopyFiles(File[] files, File targetDirectory, Cipher decryptCipher) throws IOException{
+    private void decryptCopyFiles(File[] files, File targetDirectory, SecretKeySpec decryptionKey) throws IOException{
         for (File file : files) {
             // This is not the ideal long term solution for determining whether we need decryption, but works
             if (file.getName().endsWith(".xml")) {
-                FileUtil.copyFile(file, new File(targetDirectory, file.getName()), decryptCipher, null);
+                EncryptionIO.decryptFile(file, new File(targetDirectory, file.getName()), decryptionKey);
             } else {
                 FileUtil.copyFile(file, new File(targetDirectory, file.getName()));
             }
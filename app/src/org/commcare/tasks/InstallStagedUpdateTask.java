@@ -52,6 +52,7 @@ public abstract class InstallStagedUpdateTask<R>
         }
 
         ResourceInstallUtils.initAndCommitApp(app);
+        CommCareApplication.instance().schedulePrewarmFormDefs(true);
 
         return AppInstallStatus.Installed;
     }
@@ -0,0 +1,98 @@
+package org.commcare.tasks
+
+import android.content.Context
+import android.os.Build
+import androidx.work.Constraints
+import androidx.work.ExistingWorkPolicy
+import androidx.work.OneTimeWorkRequest
+import androidx.work.WorkManager
+import androidx.work.Worker
+import androidx.work.WorkerParameters
+import org.commcare.CommCareApplication
+import org.commcare.android.database.app.models.FormDefRecord
+import org.commcare.android.logging.ForceCloseLogger
+import org.commcare.logic.FormDefCache
+import org.commcare.util.LogTypes
+import org.javarosa.core.services.Logger
+
+
+// A Worker class that parses and caches the current version of every installed form, most
+// frequently opened forms first, so that opening a form never has to parse its xml
+class PrewarmFormDefs(appContext: Context, workerParams: WorkerParameters)
+    : Worker(appContext, workerParams) {
+
+    override fun doWork(): Result {
+        val app = CommCareApplication.instance().currentApp ?: return Result.retry()
+        val start = System.currentTimeMillis()
+        FormDefCache.flushOpenCounts()
+
+        // only the latest version of each form can be opened
+        val latestForms = HashMap<String, FormDefRecord>()
+        for (record in app.getStorage(FormDefRecord::class.java)) {
+            val latest = latestForms[record.jrFormId]
+            if (latest == null || latest.resourceVersion < record.resourceVersion) {
+                latestForms[record.jrFormId] = record
+            }
+        }
+        val forms = latestForms.values.sortedByDescending { FormDefCache.getOpenCount(app, it.jrFormId) }
+
+        var parsed = 0
+        var failed = 0
+        for (record in forms) {
+            if (isStopped) {
+                break
+            }
+            try {
+                if (FormDefCache.warmCache(record)) {
+                    parsed++
+                }
+            } catch (e: RuntimeException) {
+                // the form will be parsed (and fail loudly) when opened instead
+                failed++
+                Logger.log(LogTypes.TYPE_RESOURCES, "Pre-warming form " + record.jrFormId + " failed: " +
+                        ForceCloseLogger.getStackTrace(e))
+            }
+        }
+
+        Logger.log(LogTypes.TYPE_MAINTENANCE, "Pre-warmed form definitions: parsed " + parsed +
+                " of " + forms.size + " forms, " + failed + " failed, stopped=" + isStopped +
+                ", took " + (System.currentTimeMillis() - start) + "ms. " + FormDefCache.getStats())
+        return Result.success()
+    }
+
+    companion object {
+        private const val PREWARM_FORM_DEFS_REQUEST = "prewarm-form-defs-request"
+
+        /**
+         * Warm up forms soon, replacing any pending warm-up, since an install or update has just
+         * introduced new form versions
+         */
+        @JvmStatic
+        fun scheduleAfterInstall() {
+            val constraints = Constraints.Builder()
+                    .setRequiresBatteryNotLow(true)
+                    .build()
+            enqueue(constraints, ExistingWorkPolicy.REPLACE)
+        }
+
+        /**
+         * Warm up any forms that still need it the next time the device is idle and charging
+         */
+        @JvmStatic
+        fun scheduleWhenIdle() {
+            val builder = Constraints.Builder().setRequiresCharging(true)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                builder.setRequiresDeviceIdle(true)
+            }
+            enqueue(builder.build(), ExistingWorkPolicy.KEEP)
+        }
+
+        private fun enqueue(constraints: Constraints, policy: ExistingWorkPolicy) {
+            val request = OneTimeWorkRequest.Builder(PrewarmFormDefs::class.java)
+                    .setConstraints(constraints)
+                    .build()
+            WorkManager.getInstance(CommCareApplication.instance())
+                    .enqueueUniqueWork(PREWARM_FORM_DEFS_REQUEST, policy, request)
+        }
+    }
+}
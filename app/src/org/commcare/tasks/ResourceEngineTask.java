@@ -3,6 +3,7 @@ package org.commcare.tasks;
 import android.os.SystemClock;
 
 import org.commcare.CommCareApp;
+import org.commcare.CommCareApplication;
 import org.commcare.engine.resource.AppInstallStatus;
 import org.commcare.engine.resource.ResourceInstallUtils;
 import org.commcare.engine.resource.installers.LocalStorageUnavailableException;
@@ -122,6 +123,7 @@ public abstract class ResourceEngineTask<R>
             }
 
             ResourceInstallUtils.initAndCommitApp(app, profileRef);
+            CommCareApplication.instance().schedulePrewarmFormDefs(true);
 
             return AppInstallStatus.Installed;
         } catch (Exception e) {
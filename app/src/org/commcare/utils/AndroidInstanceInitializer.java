@@ -16,12 +16,15 @@ import org.commcare.session.CommCareSession;
 import org.commcare.util.CommCarePlatform;
 import org.javarosa.core.model.instance.AbstractTreeElement;
 import org.javarosa.core.model.instance.ExternalDataInstance;
+import org.javarosa.core.model.instance.TreeElement;
 
 /**
  * @author ctsims
  */
 public class AndroidInstanceInitializer extends CommCareInstanceInitializer {
 
+    private boolean privateFixtureCopies = false;
+
     /**
      * For testing: allows for data instanced backed evaluation when an app
      * isn't present.
@@ -38,6 +41,15 @@ public class AndroidInstanceInitializer extends CommCareInstanceInitializer {
         super(session, sandbox, platform);
     }
 
+    /**
+     * Give each fixture instance set up by this initializer its own copy of any cached fixture,
+     * instead of the root that's shared with every other context
+     */
+    public AndroidInstanceInitializer withPrivateFixtureCopies() {
+        privateFixtureCopies = true;
+        return this;
+    }
+
     @Override
     protected AbstractTreeElement setupLedgerData(ExternalDataInstance instance) {
         if (stockbase == null) {
@@ -72,6 +84,15 @@ public class AndroidInstanceInitializer extends CommCareInstanceInitializer {
 
         if (indexedFixture != null) {
             return indexedFixture;
+        }
+
+        TreeElement cachedFixture = FixtureInstanceCache.getFixtureRoot(
+                mSandbox,
+                instance,
+                getRefId(instance.getReference()),
+                privateFixtureCopies);
+        if (cachedFixture != null) {
+            return cachedFixture;
         } else {
             return loadFixtureRoot(instance, instance.getReference());
         }
@@ -0,0 +1,243 @@
+package org.commcare.utils;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.core.interfaces.UserSandbox;
+import org.commcare.models.database.SqlStorage;
+import org.javarosa.core.model.User;
+import org.javarosa.core.model.instance.ExternalDataInstance;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.util.ArrayUtilities;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds deserialized non-indexed fixtures for the current session, so that every evaluation
+ * context that references a lookup table doesn't read and deserialize the whole fixture again.
+ *
+ * Entries are looked up by instance name and fixture id, and are only used while they still
+ * match the storage record the fixture resolves to and no fixture has been written since they
+ * were loaded. Any write to fixture storage, which happens during restores, invalidates the
+ * whole cache, and nothing is served from or added to the cache until the transaction holding
+ * the write has ended, so fixtures read before it commits, or from a write that's rolled back,
+ * are never kept. Fixture instances are read-only, so a cached root is shared by every instance
+ * that uses it, apart from instances that ask for a private copy because they're read on
+ * another thread; keeping entries per instance name means a shared root's parent always has the
+ * name it is referenced by.
+ *
+ * The memory budget is measured in serialized bytes, since that's what's known without walking
+ * the tree. Deserialized trees are several times larger, so the budget is kept small.
+ */
+public class FixtureInstanceCache {
+    private static final long MEMORY_BUDGET_BYTES = 2 * 1024 * 1024;
+
+    private static final LinkedHashMap<String, CachedFixture> fixtures =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytesHeld = 0;
+    private static long generation = 0;
+    // the database with fixture writes that may not have been committed yet
+    private static SQLiteDatabase uncommittedWrites;
+
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+    private static final AtomicLong bytesSaved = new AtomicLong();
+
+    private static class CachedFixture {
+        final boolean fromUserStorage;
+        final int recordId;
+        final long generation;
+        final int serializedSize;
+        final TreeElement root;
+
+        CachedFixture(boolean fromUserStorage, int recordId, long generation,
+                      int serializedSize, TreeElement root) {
+            this.fromUserStorage = fromUserStorage;
+            this.recordId = recordId;
+            this.generation = generation;
+            this.serializedSize = serializedSize;
+            this.root = root;
+        }
+    }
+
+    /**
+     * @param privateCopy Whether to return a copy of the cached root, for instances that will
+     *                    be read on a different thread from the ones sharing the cached root
+     * @return The root of the fixture the instance references, from the cache if it's still
+     * current, or null if the fixture can't be found, in which case the caller should load it
+     * the usual way and report the failure from there
+     */
+    public static TreeElement getFixtureRoot(UserSandbox sandbox, ExternalDataInstance instance,
+                                             String refId, boolean privateCopy) {
+        User user = sandbox == null ? null : sandbox.getLoggedInUser();
+        if (user == null || !(sandbox.getUserFixtureStorage() instanceof SqlStorage)) {
+            return null;
+        }
+        SqlStorage<FormInstance> userFixtureStorage =
+                (SqlStorage<FormInstance>)sandbox.getUserFixtureStorage();
+        SqlStorage<FormInstance> appFixtureStorage =
+                (SqlStorage<FormInstance>)sandbox.getAppFixtureStorage();
+
+        Integer recordId = findUserFixture(userFixtureStorage, refId, user.getUniqueId());
+        boolean fromUserStorage = recordId != null;
+        if (!fromUserStorage) {
+            recordId = findAppFixture(appFixtureStorage, refId, user.getUniqueId());
+            if (recordId == null) {
+                return null;
+            }
+        }
+
+        String key = instance.getBase().getInstanceName() + "|" + refId;
+        long loadGeneration;
+        synchronized (fixtures) {
+            CachedFixture cached = awaitingCommit() ? null : fixtures.get(key);
+            if (cached != null && cached.generation == generation &&
+                    cached.fromUserStorage == fromUserStorage && cached.recordId == recordId) {
+                hits.incrementAndGet();
+                bytesSaved.addAndGet(cached.serializedSize);
+                return privateCopy ? copyRoot(cached.root, instance) : cached.root;
+            }
+            loadGeneration = generation;
+        }
+
+        misses.incrementAndGet();
+        SqlStorage<FormInstance> storage = fromUserStorage ? userFixtureStorage : appFixtureStorage;
+        byte[] serialized = storage.readBytes(recordId);
+        TreeElement root = storage.newObject(serialized, recordId).getRoot();
+        root.setParent(instance.getBase());
+
+        cache(key, new CachedFixture(fromUserStorage, recordId, loadGeneration,
+                serialized.length, root));
+        return privateCopy ? copyRoot(root, instance) : root;
+    }
+
+    private static TreeElement copyRoot(TreeElement root, ExternalDataInstance instance) {
+        TreeElement copy = root.deepCopy(true);
+        copy.setParent(instance.getBase());
+        return copy;
+    }
+
+    private static Integer findUserFixture(SqlStorage<FormInstance> storage,
+                                           String refId, String userId) {
+        Vector<Integer> userFixtures = storage.getIDsForValue(FormInstance.META_ID, refId);
+        if (userFixtures.size() == 1) {
+            return userFixtures.elementAt(0);
+        } else if (userFixtures.size() > 1) {
+            return ArrayUtilities.intersectSingle(userFixtures,
+                    storage.getIDsForValue(FormInstance.META_XMLNS, userId));
+        }
+        return null;
+    }
+
+    private static Integer findAppFixture(SqlStorage<FormInstance> storage,
+                                          String refId, String userId) {
+        Vector<Integer> appFixtures = storage.getIDsForValue(FormInstance.META_ID, refId);
+        Integer globalFixture = ArrayUtilities.intersectSingle(
+                storage.getIDsForValue(FormInstance.META_XMLNS, ""), appFixtures);
+        if (globalFixture != null) {
+            return globalFixture;
+        }
+        return ArrayUtilities.intersectSingle(
+                storage.getIDsForValue(FormInstance.META_XMLNS, userId), appFixtures);
+    }
+
+    private static void cache(String key, CachedFixture fixture) {
+        if (fixture.serializedSize > MEMORY_BUDGET_BYTES) {
+            return;
+        }
+        synchronized (fixtures) {
+            if (fixture.generation != generation || awaitingCommit()) {
+                // fixtures were written while this one was loading, so it may already be stale
+                return;
+            }
+            CachedFixture previous = fixtures.put(key, fixture);
+            if (previous != null) {
+                bytesHeld -= previous.serializedSize;
+            }
+            bytesHeld += fixture.serializedSize;
+
+            Iterator<Map.Entry<String, CachedFixture>> leastRecentlyUsed =
+                    fixtures.entrySet().iterator();
+            while (bytesHeld > MEMORY_BUDGET_BYTES && leastRecentlyUsed.hasNext()) {
+                bytesHeld -= leastRecentlyUsed.next().getValue().serializedSize;
+                leastRecentlyUsed.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop every cached fixture, and keep the cache out of use until the transaction that the
+     * caller is writing fixtures in has ended. Must be called from inside that transaction.
+     */
+    public static void fixturesWritten(SQLiteDatabase db) {
+        synchronized (fixtures) {
+            invalidate();
+            uncommittedWrites = db;
+        }
+    }
+
+    /**
+     * Whether fixture writes may still be uncommitted, in which case what's read from storage
+     * can't be cached yet. The first check after they've been committed (or rolled back) starts
+     * the cache over, since fixtures may have been loaded while they were in progress. Must be
+     * called holding the lock on the cache.
+     */
+    private static boolean awaitingCommit() {
+        if (uncommittedWrites == null) {
+            return false;
+        }
+        if (uncommittedWrites.isOpen() && (uncommittedWrites.inTransaction() ||
+                uncommittedWrites.isDbLockedByOtherThreads())) {
+            return true;
+        }
+        uncommittedWrites = null;
+        invalidate();
+        return false;
+    }
+
+    /**
+     * Drop every cached fixture, since fixture storage has changed
+     */
+    public static void invalidate() {
+        synchronized (fixtures) {
+            generation++;
+            fixtures.clear();
+            bytesHeld = 0;
+        }
+    }
+
+    /**
+     * Drop every cached fixture and reset the stats, since the session they belong to is ending
+     *
+     * @return The stats for the session that's ending
+     */
+    public static String clear() {
+        synchronized (fixtures) {
+            uncommittedWrites = null;
+            invalidate();
+        }
+        String stats = getStats();
+        hits.set(0);
+        misses.set(0);
+        bytesSaved.set(0);
+        return stats;
+    }
+
+    public static int getHitCount() {
+        return hits.get();
+    }
+
+    public static int getMissCount() {
+        return misses.get();
+    }
+
+    public static String getStats() {
+        return "Fixture instance cache: hits=" + hits.get() + ", misses=" + misses.get() +
+                ", bytesSaved=" + bytesSaved.get();
+    }
+}
@@ -26,14 +26,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.UnknownHostException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 import okhttp3.MediaType;
@@ -57,20 +53,6 @@ public class FormUploadUtil {
                     ".wav", ".amr", ".mp4", ".3gp2", ".mpg4", ".mpeg4",
                     ".m4v", ".mpg", ".mpeg", ".qcp", ".ogg"};
 
-    public static Cipher getDecryptCipher(SecretKeySpec key) {
-        Cipher cipher;
-        try {
-            cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            return cipher;
-            //TODO: Something smart here;
-        } catch (NoSuchAlgorithmException |
-                NoSuchPaddingException | InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
     /**
      * Send unencrypted data to the server without user facing progress
      * reporting.
@@ -398,7 +380,7 @@ public class FormUploadUtil {
         RequestBody requestFile = new EncryptedFileBody(
                 MediaType.parse(contentType),
                 file,
-                FormUploadUtil.getDecryptCipher(key));
+                key);
 
         // MultipartBody.Part is used to send also the actual file name
         return MultipartBody.Part.createFormData(partName, file.getName(), requestFile);
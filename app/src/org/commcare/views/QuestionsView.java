@@ -11,6 +11,8 @@ import android.text.SpannableStringBuilder;
 import android.util.TypedValue;
 import android.view.View;
 import android.view.View.OnLongClickListener;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.TextView;
@@ -21,6 +23,7 @@ import org.commcare.dalvik.R;
 import org.commcare.interfaces.WidgetChangedListener;
 import org.commcare.logic.PendingCalloutInterface;
 import org.commcare.models.ODKStorage;
+import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.preferences.FormEntryPreferences;
 import org.commcare.util.LogTypes;
 import org.commcare.utils.BlockingActionsManager;
@@ -44,6 +47,15 @@ import java.util.Collections;
 import java.util.HashMap;
 
 /**
+ * Shows the questions of a single question or field-list screen.
+ *
+ * On long field-lists, when enabled in the developer preferences, widgets are only built for
+ * the questions on or near the screen, and the rest of the list is held by placeholders. Widgets
+ * that scroll far out of view are released once their answers are saved, unless they're in the
+ * middle of something the user would lose, like a callout. Widgets can't be recycled between
+ * questions the way list rows are, since each one holds its own answer and is built for its
+ * question's type.
+ *
  * @author carlhartung
  */
 public class QuestionsView extends ScrollView
@@ -52,11 +64,34 @@ public class QuestionsView extends ScrollView
     // starter random number for view IDs
     private final static int VIEW_ID = 12345;
 
+    // field-lists with more questions than this only build the widgets near the screen
+    private static final int LAZY_WIDGETS_THRESHOLD = 20;
+    // built when a lazy field-list is created, before its layout is known
+    private static final int INITIAL_LAZY_WIDGETS = 8;
+    // how far from the screen, in screen heights, widgets are built or released
+    private static final float BUILD_DISTANCE_SCREENS = 1;
+    private static final float RELEASE_DISTANCE_SCREENS = 3;
+    private static final int ESTIMATED_WIDGET_HEIGHT_DP = 96;
+
     private final LinearLayout mView;
     private final LinearLayout.LayoutParams mLayout;
+    // one for every question on the screen, in order
+    private final ArrayList<QuestionSlot> slots;
+    // the widgets that have been built, in question order
     private final ArrayList<QuestionWidget> widgets;
     private final ArrayList<View> dividers;
 
+    private WidgetFactory factory;
+    private boolean buildWidgetsLazily = false;
+    private boolean widgetUpdatePosted = false;
+    private OnWidgetBuiltListener onWidgetBuiltListener;
+    private Runnable beforeBuildingOnDemand;
+    private OnFocusChangeListener widgetFocusChangeListener;
+
+    // a view that should stay put on screen through the next layout
+    private View scrollAnchor;
+    private int scrollAnchorOffset;
+
     private final int mQuestionFontsize;
 
     private WidgetChangedListener wcListener;
@@ -74,6 +109,31 @@ public class QuestionsView extends ScrollView
      */
     private static final boolean SEPERATORS_ENABLED = false;
 
+    public interface OnWidgetBuiltListener {
+        void onWidgetBuilt(QuestionWidget widget);
+    }
+
+    private static class QuestionSlot {
+        final FormEntryPrompt prompt;
+        final boolean inCompactGroup;
+        final boolean hideHintText;
+        QuestionWidget widget;
+        // kept when the widget is released, so that a rebuilt widget has the same id
+        int widgetId;
+        // when building lazily, holds the widget, or keeps its place while it isn't built
+        FrameLayout container;
+
+        QuestionSlot(FormEntryPrompt prompt, boolean inCompactGroup, boolean hideHintText) {
+            this.prompt = prompt;
+            this.inCompactGroup = inCompactGroup;
+            this.hideHintText = hideHintText;
+        }
+
+        View getView() {
+            return container != null ? container : widget;
+        }
+    }
+
     public QuestionsView(Context context, BlockingActionsManager blockingActionsManager) {
         super(context);
 
@@ -84,6 +144,7 @@ public class QuestionsView extends ScrollView
                 settings.getString(FormEntryPreferences.KEY_FONT_SIZE, ODKStorage.DEFAULT_FONTSIZE);
 
         mQuestionFontsize = Integer.valueOf(question_font);
+        slots = new ArrayList<>();
         widgets = new ArrayList<>();
         dividers = new ArrayList<>();
 
@@ -100,6 +161,18 @@ public class QuestionsView extends ScrollView
     public QuestionsView(Context context, FormEntryPrompt[] questionPrompts,
                          FormEntryCaption[] groups, WidgetFactory factory,
                          WidgetChangedListener wcl, BlockingActionsManager blockingActionsManager) {
+        this(context, questionPrompts, groups, factory, wcl, blockingActionsManager,
+                LAZY_WIDGETS_THRESHOLD);
+    }
+
+    /**
+     * @param lazyWidgetsThreshold Field-lists with more questions than this only build the
+     *                             widgets near the screen, when that's enabled
+     */
+    QuestionsView(Context context, FormEntryPrompt[] questionPrompts,
+                  FormEntryCaption[] groups, WidgetFactory factory,
+                  WidgetChangedListener wcl, BlockingActionsManager blockingActionsManager,
+                  int lazyWidgetsThreshold) {
         this(context, blockingActionsManager);
 
         if (wcl != null) {
@@ -107,6 +180,10 @@ public class QuestionsView extends ScrollView
             wcListener = wcl;
         }
 
+        this.factory = factory;
+        buildWidgetsLazily = questionPrompts.length > lazyWidgetsThreshold &&
+                DeveloperPreferences.isLazyQuestionListEnabled();
+
         // display which group you are in as well as the question
         mGroupLabel = deriveGroupText(groups);
 
@@ -129,29 +206,242 @@ public class QuestionsView extends ScrollView
             } else {
                 first = false;
             }
-            QuestionWidget qw;
-            // if question or answer type is not supported, use text widget
-            qw = factory.createWidgetFromPrompt(p,
-                    getContext(),
-                    FormEntryActivity.mFormController.indexIsInCompact(p.getIndex()));
-            qw.setLongClickable(true);
-            qw.setOnLongClickListener(this);
-            qw.setId(VIEW_ID + widgetIdCount++);
-
-            //Suppress the hint text if we bubbled it
-            if (hintText != null) {
-                qw.hideHintText();
+            QuestionSlot slot = new QuestionSlot(p,
+                    FormEntryActivity.mFormController.indexIsInCompact(p.getIndex()),
+                    //Suppress the hint text if we bubbled it
+                    hintText != null);
+            slots.add(slot);
+            mView.addView(createSlotView(slot, slots.size() <= INITIAL_LAZY_WIDGETS), mLayout);
+        }
+
+        onBuiltWidgetsChanged();
+
+        addView(mView);
+    }
+
+    /**
+     * @param build Whether to build the widget now if widgets are being built lazily
+     * @return The view that holds the question's place in the list
+     */
+    private View createSlotView(QuestionSlot slot, boolean build) {
+        if (!buildWidgetsLazily) {
+            buildWidget(slot);
+        } else {
+            slot.container = new FrameLayout(getContext());
+            if (build || mustStayBuilt(slot.prompt)) {
+                buildWidget(slot);
+            } else {
+                slot.container.setMinimumHeight(estimateWidgetHeight());
             }
+        }
+        return slot.getView();
+    }
+
+    /**
+     * Intent widgets are always built, since the compound callout for the screen is made up
+     * from all of them, and callouts need to find their widget when they return
+     */
+    private static boolean mustStayBuilt(FormEntryPrompt prompt) {
+        String appearance = prompt.getAppearanceHint();
+        return appearance != null && appearance.startsWith("intent:");
+    }
+
+    private QuestionWidget buildWidget(QuestionSlot slot) {
+        if (slot.widget != null) {
+            return slot.widget;
+        }
+        // if question or answer type is not supported, use text widget
+        QuestionWidget qw = factory.createWidgetFromPrompt(slot.prompt, getContext(),
+                slot.inCompactGroup);
+        qw.setLongClickable(true);
+        qw.setOnLongClickListener(this);
+        if (slot.widgetId == 0) {
+            slot.widgetId = VIEW_ID + widgetIdCount++;
+        }
+        qw.setId(slot.widgetId);
 
-            widgets.add(qw);
-            mView.addView(qw, mLayout);
+        if (slot.hideHintText) {
+            qw.hideHintText();
+        }
+        if (widgetFocusChangeListener != null) {
+            qw.setOnFocusChangeListener(widgetFocusChangeListener);
+        }
+        int height = getMeasuredHeight();
+        if (height > 0) {
+            qw.updateFrameSize(height);
+            qw.updateHintHeight(height / 4);
+        }
+
+        slot.widget = qw;
+        if (slot.container != null) {
+            slot.container.setMinimumHeight(0);
+            slot.container.addView(qw, new FrameLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        }
+
+        qw.setChangedListeners(this, blockingActionsManager);
+        if (onWidgetBuiltListener != null) {
+            onWidgetBuiltListener.onWidgetBuilt(qw);
+        }
+        return qw;
+    }
+
+    /**
+     * Release the widget at the given position as if it had scrolled far out of view
+     */
+    void releaseWidget(int position) {
+        releaseWidget(slots.get(position));
+        onBuiltWidgetsChanged();
+    }
+
+    private void releaseWidget(QuestionSlot slot) {
+        // keep the widget's height so that nothing around it moves
+        slot.container.setMinimumHeight(slot.container.getHeight());
+        slot.container.removeView(slot.widget);
+        slot.widget.unsetListeners();
+        slot.widget.setOnCreateContextMenuListener(null);
+        slot.widget = null;
+    }
+
+    private boolean canRelease(QuestionSlot slot, FormIndex pendingCalloutIndex) {
+        return !mustStayBuilt(slot.prompt) &&
+                !slot.widget.hasFocus() &&
+                !slot.prompt.getIndex().equals(pendingCalloutIndex) &&
+                !slot.widget.hasUnsavedAnswer();
+    }
+
+    /**
+     * @return The widget for the question in the given slot, building it if it isn't already
+     */
+    private QuestionWidget getOrBuildWidget(QuestionSlot slot) {
+        if (slot.widget == null) {
+            buildWidget(slot);
+            onBuiltWidgetsChanged();
+        }
+        return slot.widget;
+    }
 
-            qw.setChangedListeners(this, blockingActionsManager);
+    /**
+     * Called before looking up the questions whose widgets may be built on demand, since
+     * getting ready to build them can change which questions are on the screen
+     */
+    private void prepareToBuildOnDemand() {
+        if (buildWidgetsLazily && beforeBuildingOnDemand != null) {
+            beforeBuildingOnDemand.run();
         }
+    }
 
+    private void onBuiltWidgetsChanged() {
+        widgets.clear();
+        for (QuestionSlot slot : slots) {
+            if (slot.widget != null) {
+                widgets.add(slot.widget);
+            }
+        }
         markLastStringWidget();
+    }
 
-        addView(mView);
+    private int estimateWidgetHeight() {
+        int totalHeight = 0;
+        int measured = 0;
+        for (QuestionSlot slot : slots) {
+            if (slot.widget != null && slot.container.getHeight() > 0) {
+                totalHeight += slot.container.getHeight();
+                measured++;
+            }
+        }
+        if (measured > 0) {
+            return totalHeight / measured;
+        }
+        return (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                ESTIMATED_WIDGET_HEIGHT_DP, getResources().getDisplayMetrics());
+    }
+
+    /**
+     * Build the widgets that are on or near the screen, and release the ones that are far from
+     * it, keeping the questions on screen where they are
+     */
+    private void updateBuiltWidgets() {
+        int screenHeight = getHeight();
+        if (!buildWidgetsLazily || screenHeight == 0) {
+            return;
+        }
+        prepareToBuildOnDemand();
+        int screenTop = getScrollY() - mView.getTop();
+        int buildAbove = screenTop - (int)(BUILD_DISTANCE_SCREENS * screenHeight);
+        int buildBelow = screenTop + screenHeight + (int)(BUILD_DISTANCE_SCREENS * screenHeight);
+        int releaseAbove = screenTop - (int)(RELEASE_DISTANCE_SCREENS * screenHeight);
+        int releaseBelow = screenTop + screenHeight + (int)(RELEASE_DISTANCE_SCREENS * screenHeight);
+        FormIndex pendingCalloutIndex = FormEntryActivity.mFormController == null ?
+                null : FormEntryActivity.mFormController.getPendingCalloutFormIndex();
+
+        boolean changed = false;
+        for (QuestionSlot slot : slots) {
+            int top = slot.container.getTop();
+            int bottom = slot.container.getBottom();
+            if (slot.widget == null && bottom >= buildAbove && top <= buildBelow) {
+                if (!changed) {
+                    rememberScrollAnchor();
+                }
+                buildWidget(slot);
+                changed = true;
+            } else if (slot.widget != null && (bottom < releaseAbove || top > releaseBelow) &&
+                    canRelease(slot, pendingCalloutIndex)) {
+                if (!changed) {
+                    rememberScrollAnchor();
+                }
+                releaseWidget(slot);
+                changed = true;
+            }
+        }
+        if (changed) {
+            onBuiltWidgetsChanged();
+        }
+    }
+
+    private void scheduleBuiltWidgetsUpdate() {
+        if (buildWidgetsLazily && !widgetUpdatePosted) {
+            widgetUpdatePosted = true;
+            post(() -> {
+                widgetUpdatePosted = false;
+                updateBuiltWidgets();
+            });
+        }
+    }
+
+    /**
+     * Widgets that are built above the screen are rarely the height of the placeholders they
+     * replace, so remember where the first view on screen is, to put it back there once the
+     * new heights are known
+     */
+    private void rememberScrollAnchor() {
+        int screenTop = getScrollY() - mView.getTop();
+        for (int i = 0; i < mView.getChildCount(); i++) {
+            View child = mView.getChildAt(i);
+            if (child.getBottom() > screenTop) {
+                scrollAnchor = child;
+                scrollAnchorOffset = child.getTop() - screenTop;
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+        if (scrollAnchor != null) {
+            if (scrollAnchor.getParent() == mView) {
+                scrollTo(0, mView.getTop() + scrollAnchor.getTop() - scrollAnchorOffset);
+            }
+            scrollAnchor = null;
+        }
+        scheduleBuiltWidgetsUpdate();
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        scheduleBuiltWidgetsUpdate();
     }
 
     private void removeQuestionFromIndex(int i) {
@@ -162,10 +452,13 @@ public class QuestionsView extends ScrollView
             dividers.remove(dividerIndex);
         }
 
-        if (i < widgets.size()) {
-            mView.removeView(widgets.get(i));
-            widgets.get(i).unsetListeners();
-            widgets.remove(i);
+        if (i < slots.size()) {
+            QuestionSlot slot = slots.get(i);
+            mView.removeView(slot.getView());
+            if (slot.widget != null) {
+                slot.widget.unsetListeners();
+            }
+            slots.remove(i);
         }
     }
 
@@ -178,6 +471,7 @@ public class QuestionsView extends ScrollView
         for (int i = 0; i < indexes.size(); i++) {
             removeQuestionFromIndex(indexes.get(i));
         }
+        onBuiltWidgetsChanged();
     }
 
     public void addQuestionToIndex(FormEntryPrompt fep, WidgetFactory factory, int i, boolean inCompactGroup) {
@@ -195,20 +489,21 @@ public class QuestionsView extends ScrollView
         mView.addView(divider, getViewIndex(dividerIndex));
         dividers.add(Math.max(0, i - 1), divider);
 
-        QuestionWidget qw = factory.createWidgetFromPrompt(fep, getContext(), inCompactGroup);
-        qw.setLongClickable(true);
-        qw.setOnLongClickListener(this);
-        qw.setId(VIEW_ID + widgetIdCount++);
-
+        this.factory = factory;
         //Suppress the hint text if we bubbled it
 //        if(hintText != null) { //TODO figure this out
 //            qw.hideHintText();
 //        }
-
-        widgets.add(i, qw);
-        mView.addView(qw, getViewIndex(2 * i + mViewBannerCount), mLayout);
-
-        qw.setChangedListeners(this, blockingActionsManager);
+        QuestionSlot slot = new QuestionSlot(fep, inCompactGroup, false);
+        // a question that becomes relevant next to one the user can see should show up right away
+        boolean nextToBuiltWidget = (i > 0 && slots.get(i - 1).widget != null) ||
+                (i < slots.size() && slots.get(i).widget != null);
+        slots.add(i, slot);
+        mView.addView(createSlotView(slot, nextToBuiltWidget),
+                getViewIndex(2 * i + mViewBannerCount), mLayout);
+
+        onBuiltWidgetsChanged();
+        scheduleBuiltWidgetsUpdate();
     }
 
 
@@ -217,11 +512,13 @@ public class QuestionsView extends ScrollView
      */
     public HashMap<FormIndex, IAnswerData> getAnswers() {
         HashMap<FormIndex, IAnswerData> answers = new HashMap<>();
-        for (QuestionWidget q : widgets) {
+        for (QuestionSlot slot : slots) {
             // The FormEntryPrompt has the FormIndex, which is where the answer gets stored. The
-            // QuestionWidget has the answer the user has entered.
-            FormEntryPrompt p = q.getPrompt();
-            answers.put(p.getIndex(), q.getAnswer());
+            // QuestionWidget has the answer the user has entered. Widgets are only released once
+            // their answers are saved, so questions without one already have theirs in the form.
+            FormEntryPrompt p = slot.prompt;
+            answers.put(p.getIndex(),
+                    slot.widget != null ? slot.widget.getAnswer() : p.getAnswerValue());
         }
 
         return answers;
@@ -343,20 +640,25 @@ public class QuestionsView extends ScrollView
         }
     }
 
+    /**
+     * @param indexOfLastChangedWidget The position of the question to focus
+     */
     public void setFocus(Context context, int indexOfLastChangedWidget) {
-        QuestionWidget widgetToFocus = null;
-        if (indexOfLastChangedWidget != -1 && indexOfLastChangedWidget < widgets.size()) {
-            widgetToFocus = widgets.get(indexOfLastChangedWidget);
-        } else if (widgets.size() > 0) {
-            widgetToFocus = widgets.get(0);
-        }
-        if (widgetToFocus != null) {
-            scrollToWidget(widgetToFocus);
+        prepareToBuildOnDemand();
+        QuestionSlot slotToFocus = null;
+        if (indexOfLastChangedWidget != -1 && indexOfLastChangedWidget < slots.size()) {
+            slotToFocus = slots.get(indexOfLastChangedWidget);
+        } else if (slots.size() > 0) {
+            slotToFocus = slots.get(0);
+        }
+        if (slotToFocus != null) {
+            QuestionWidget widgetToFocus = getOrBuildWidget(slotToFocus);
+            scrollToWidget(slotToFocus.getView());
             widgetToFocus.setFocus(context);
         }
     }
 
-    private void scrollToWidget(final QuestionWidget widget) {
+    private void scrollToWidget(final View widget) {
         new Handler().post(() -> QuestionsView.this.scrollTo(0, widget.getTop()));
     }
 
@@ -368,7 +670,7 @@ public class QuestionsView extends ScrollView
      */
     public int restoreFocusToQuestionThatCalledOut(Context context, QuestionWidget pendingIntentWidget) {
         if (pendingIntentWidget != null) {
-            int index = widgets.indexOf(pendingIntentWidget);
+            int index = getPosition(pendingIntentWidget);
             setFocus(context, index);
             return index;
         }
@@ -386,11 +688,10 @@ public class QuestionsView extends ScrollView
             return;
         }
 
-        for (QuestionWidget q : widgets) {
-            if (questionFormIndex.equals(q.getFormId())) {
-                q.setBinaryData(answer);
-                return;
-            }
+        QuestionWidget q = getWidget(questionFormIndex);
+        if (q != null) {
+            q.setBinaryData(answer);
+            return;
         }
         Logger.log(LogTypes.SOFT_ASSERT,
                 "Unable to find question widget to attach pending data to.");
@@ -402,24 +703,87 @@ public class QuestionsView extends ScrollView
     public boolean clearAnswer() {
         // If there's only one widget, clear the answer.
         // If there are more, then force a long-press to clear the answer.
-        if (widgets.size() == 1 && !widgets.get(0).getPrompt().isReadOnly()) {
-            widgets.get(0).clearAnswer();
+        prepareToBuildOnDemand();
+        if (slots.size() == 1 && !slots.get(0).prompt.isReadOnly()) {
+            getOrBuildWidget(slots.get(0)).clearAnswer();
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * @return The widgets that have been built, which is every question on the screen unless
+     * widgets are being built lazily
+     */
     public ArrayList<QuestionWidget> getWidgets() {
         return widgets;
     }
 
+    public int getQuestionCount() {
+        return slots.size();
+    }
+
+    public FormEntryPrompt getPrompt(int position) {
+        return slots.get(position).prompt;
+    }
+
+    /**
+     * @return The widget for the question at the given position, or null if it isn't built
+     */
+    public QuestionWidget getBuiltWidget(int position) {
+        return slots.get(position).widget;
+    }
+
+    /**
+     * @return The widget for the question with the given index, building it if needed, or
+     * null if the question isn't on this screen
+     */
+    public QuestionWidget getWidget(FormIndex index) {
+        prepareToBuildOnDemand();
+        for (QuestionSlot slot : slots) {
+            if (slot.prompt.getIndex().equals(index)) {
+                return getOrBuildWidget(slot);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The position of the widget's question on the screen, or -1 if it isn't on it
+     */
+    public int getPosition(QuestionWidget widget) {
+        for (int i = 0; i < slots.size(); i++) {
+            if (slots.get(i).widget == widget) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param listener Told about every widget built after it's set, including the ones built
+     *                 as the screen is scrolled
+     */
+    public void setOnWidgetBuiltListener(OnWidgetBuiltListener listener) {
+        onWidgetBuiltListener = listener;
+    }
+
+    /**
+     * @param action Run before any widget is built after the screen is set up, as it's
+     *               scrolled or when a question's widget is asked for
+     */
+    public void setBeforeBuildingOnDemand(Runnable action) {
+        beforeBuildingOnDemand = action;
+    }
+
     public boolean isQuestionList() {
-        return widgets.size() > 1;
+        return slots.size() > 1;
     }
 
     @Override
     public void setOnFocusChangeListener(OnFocusChangeListener l) {
+        widgetFocusChangeListener = l;
         for (QuestionWidget qw : widgets) {
             qw.setOnFocusChangeListener(l);
         }
@@ -431,6 +795,7 @@ public class QuestionsView extends ScrollView
             widget.setOnCreateContextMenuListener(null);
         }
         wcListener = null;
+        onWidgetBuiltListener = null;
     }
 
     @Override
@@ -482,9 +847,9 @@ public class QuestionsView extends ScrollView
      */
     public FormEntryPrompt getOnScreenPrompt(FormEntryPrompt prompt) {
         FormIndex index = prompt.getIndex();
-        for (QuestionWidget widget : this.getWidgets()) {
-            if (widget.getFormId().equals(index)) {
-                return widget.getPrompt();
+        for (QuestionSlot slot : slots) {
+            if (slot.prompt.getIndex().equals(index)) {
+                return slot.prompt;
             }
         }
         return prompt;
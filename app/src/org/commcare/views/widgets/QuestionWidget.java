@@ -656,6 +656,23 @@ public abstract class QuestionWidget extends LinearLayout implements QuestionExt
         return mPrompt.getIndex();
     }
 
+    /**
+     * @return Whether the answer entered in the widget differs from the one saved in the form
+     */
+    public boolean hasUnsavedAnswer() {
+        return !isSameAnswer(getAnswer(), mPrompt.getAnswerValue());
+    }
+
+    public static boolean isSameAnswer(IAnswerData answer, IAnswerData otherAnswer) {
+        if (answer == null || otherAnswer == null) {
+            return answer == otherAnswer;
+        }
+        if (answer instanceof InvalidData || otherAnswer instanceof InvalidData) {
+            return false;
+        }
+        return answer.uncast().getString().equals(otherAnswer.uncast().getString());
+    }
+
     public void setChangedListeners(WidgetChangedListener wcl,
                                     BlockingActionsManager blockingActionsManager) {
         widgetChangedListener = wcl;
@@ -7,6 +7,8 @@ import org.commcare.android.database.user.models.ACase;
 import org.commcare.cases.model.Case;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.CaseDbDigest;
+import org.commcare.models.database.user.models.CasePurgeJournal;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.xml.bulk.BulkProcessingCaseXmlParser;
 import org.javarosa.xml.util.InvalidStructureException;
@@ -74,27 +76,40 @@ public class AndroidBulkCaseXmlParser extends BulkProcessingCaseXmlParser {
         SQLiteDatabase db;
         db = getDbHandle();
         ArrayList<Integer> recordIdsToWipe = new ArrayList<>();
+        ArrayList<String> newCaseIds = new ArrayList<>();
 
         db.beginTransaction();
         try {
-            for (String cid : writeLog.keySet()) {
-                Case c = writeLog.get(cid);
+            for (Case c : writeLog.values()) {
+                if (c.getID() == -1) {
+                    newCaseIds.add(c.getCaseId());
+                }
                 storage.write(c);
                 recordIdsToWipe.add(c.getID());
             }
             if (mEntityCache != null) {
                 mEntityCache.invalidateCaches(recordIdsToWipe);
             }
-            mCaseIndexTable.clearCaseIndices(recordIdsToWipe);
 
-            for (String cid : writeLog.keySet()) {
-                Case c = writeLog.get(cid);
-                mCaseIndexTable.indexCase(c);
-            }
+            long indexStart = System.currentTimeMillis();
+            AndroidCaseIndexTable.BulkIndexResult indexResult =
+                    mCaseIndexTable.indexCases(writeLog.values());
+            onCaseIndicesWritten(indexResult, System.currentTimeMillis() - indexStart);
+
+            CasePurgeJournal purgeJournal = new CasePurgeJournal(db);
+            purgeJournal.recordTouched(writeLog.keySet());
+            purgeJournal.recordTouched(indexResult.removedTargets);
+            new CaseDbDigest(db).addCases(newCaseIds);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
 
     }
+
+    /**
+     * Called after the indices for each batch of cases have been written
+     */
+    protected void onCaseIndicesWritten(AndroidCaseIndexTable.BulkIndexResult result, long millis) {
+    }
 }
@@ -12,6 +12,8 @@ import org.commcare.cases.model.Case;
 import org.commcare.engine.references.JavaHttpReference;
 import org.commcare.interfaces.CommcareRequestEndpoints;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.CaseDbDigest;
+import org.commcare.models.database.user.models.CasePurgeJournal;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.util.LogTypes;
 import org.commcare.utils.FileUtil;
@@ -28,6 +30,7 @@ import org.kxml2.io.KXmlParser;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collections;
 
 import javax.annotation.Nullable;
 
@@ -95,10 +98,18 @@ public class AndroidCaseXmlParser extends CaseXmlParser {
         db = getDbHandle();
         db.beginTransaction();
         try {
+            boolean isNewCase = parsed.getID() == -1;
             super.commit(parsed);
+            if (isNewCase) {
+                new CaseDbDigest(db).addCases(Collections.singletonList(parsed.getCaseId()));
+            }
             if (mEntityCache != null) {
                 mEntityCache.invalidateCache(String.valueOf(parsed.getID()));
             }
+            CasePurgeJournal purgeJournal = new CasePurgeJournal(db);
+            purgeJournal.recordTouched(parsed.getCaseId());
+            // cases this one stops indexing may have become purgeable
+            purgeJournal.recordTouched(mCaseIndexTable.getIndexTargets(parsed.getID()));
             mCaseIndexTable.clearCaseIndices(parsed);
             mCaseIndexTable.indexCase(parsed);
             db.setTransactionSuccessful();
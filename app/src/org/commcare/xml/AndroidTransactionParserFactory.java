@@ -10,10 +10,12 @@ import org.commcare.data.xml.TransactionParserFactory;
 import org.commcare.interfaces.CommcareRequestEndpoints;
 import org.commcare.models.database.AndroidSandbox;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.user.models.AndroidCaseIndexTable;
 import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.utils.GlobalConstants;
 import org.kxml2.io.KXmlParser;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
@@ -43,13 +45,25 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
     private TransactionParserFactory formInstanceParser;
     private boolean caseIndexesWereDisrupted = false;
 
+    // Set while transactions may hand their database-independent work to background workers
+    private ParallelParseWorkers parallelWorkers;
+
     /**
      * A mapping from an installed form's namespace its install path.
      */
     private Hashtable<String, String> formInstanceNamespaces;
 
     public AndroidTransactionParserFactory(Context context, CommcareRequestEndpoints generator) {
-        super(new AndroidSandbox(CommCareApplication.instance()), DeveloperPreferences.isBulkPerformanceEnabled());
+        this(context, generator, DeveloperPreferences.isBulkPerformanceEnabled());
+    }
+
+    /**
+     * @param bulkProcessingEnabled Whether cases may be buffered and written in batches, rather
+     *                              than as each one is parsed
+     */
+    public AndroidTransactionParserFactory(Context context, CommcareRequestEndpoints generator,
+                                           boolean bulkProcessingEnabled) {
+        super(new AndroidSandbox(CommCareApplication.instance()), bulkProcessingEnabled);
         this.context = context;
         this.generator = generator;
     }
@@ -103,7 +117,8 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
                     //TODO: We really don't wanna keep using fsPath eventually
                     created = new FormInstanceXmlParser(parser,
                             Collections.unmodifiableMap(formInstanceNamespaces),
-                            CommCareApplication.instance().getCurrentApp().fsPath(GlobalConstants.FILE_CC_FORMS));
+                            CommCareApplication.instance().getCurrentApp().fsPath(GlobalConstants.FILE_CC_FORMS),
+                            parallelWorkers);
                 }
 
                 return created;
@@ -111,6 +126,43 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
         };
     }
 
+    /**
+     * Let the parsers created from here on hand work that doesn't touch the database (currently,
+     * writing out form instance files) to background workers, so it overlaps with parsing the
+     * cases and other elements that follow. Transactions are still parsed, and their database
+     * writes made, in document order. Callers must call finishParallelWork() before committing
+     * anything parsed in the meantime.
+     */
+    public void startParallelWork() {
+        abandonParallelWork();
+        parallelWorkers = new ParallelParseWorkers();
+    }
+
+    /**
+     * Wait for all work handed to background workers, which has to happen before the
+     * transactions that queued it are committed
+     *
+     * @throws IOException The first failure of any of that work
+     */
+    public void finishParallelWork() throws IOException {
+        if (parallelWorkers != null) {
+            ParallelParseWorkers workers = parallelWorkers;
+            parallelWorkers = null;
+            workers.finish();
+        }
+    }
+
+    /**
+     * Drop any work handed to background workers, since the transactions it belongs to are not
+     * going to be committed
+     */
+    public void abandonParallelWork() {
+        if (parallelWorkers != null) {
+            parallelWorkers.abandon();
+            parallelWorkers = null;
+        }
+    }
+
     public boolean wereCaseIndexesDisrupted() {
         return caseIndexesWereDisrupted;
     }
@@ -161,6 +213,12 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
                         protected void onCaseCreateUpdate(String caseId) {
                             createdAndUpdatedCases.add(caseId);
                         }
+
+                        @Override
+                        protected void onCaseIndicesWritten(AndroidCaseIndexTable.BulkIndexResult result,
+                                                            long millis) {
+                            reportCaseIndexProgress(result, millis);
+                        }
                     };
                 }
 
@@ -168,4 +226,10 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
             }
         };
     }
+
+    /**
+     * Called after each batch of case indices is written by the bulk case parser
+     */
+    public void reportCaseIndexProgress(AndroidCaseIndexTable.BulkIndexResult result, long millis) {
+    }
 }
@@ -0,0 +1,99 @@
+package org.commcare.xml;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.data.xml.TransactionParser;
+import org.commcare.data.xml.TransactionParserFactory;
+import org.commcare.models.database.user.models.RestoreCheckpoint;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * Hands out parsers for the top-level elements of a restore payload, committing the restore's
+ * transaction every so many elements and recording how far it got in the restore checkpoint.
+ *
+ * A parser is asked for when its element starts, by which point every earlier element has been
+ * fully processed, so that is where the transaction can be split. This relies on every parser
+ * writing its element before returning, which doesn't hold for the bulk case parser.
+ *
+ * When resuming, the elements the checkpoint says are already committed are skipped over
+ * without being processed again, since most transactions can't safely be applied twice.
+ */
+public class CheckpointedParserFactory implements TransactionParserFactory {
+
+    private final AndroidTransactionParserFactory factory;
+    private final RestoreCheckpoint checkpoint;
+    private final SQLiteDatabase db;
+    private final int chunkSize;
+
+    private final int elementsToSkip;
+    private int elementsStarted = 0;
+    private int chunksCommitted = 0;
+
+    public CheckpointedParserFactory(AndroidTransactionParserFactory factory,
+                                     RestoreCheckpoint checkpoint,
+                                     SQLiteDatabase db, int chunkSize) {
+        this.factory = factory;
+        this.checkpoint = checkpoint;
+        this.db = db;
+        this.chunkSize = chunkSize;
+        this.elementsToSkip = checkpoint.getElementsCommitted();
+    }
+
+    @Override
+    public TransactionParser getParser(KXmlParser parser) {
+        int element = elementsStarted++;
+        if (element < elementsToSkip) {
+            return new SkippedElementParser(parser);
+        }
+        if (element > elementsToSkip && element % chunkSize == 0) {
+            commitChunk(element);
+        }
+        return factory.getParser(parser);
+    }
+
+    private void commitChunk(int elementsCommitted) {
+        checkpoint.recordCommitted(elementsCommitted, factory.getSyncToken());
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        db.beginTransaction();
+        chunksCommitted++;
+    }
+
+    public int getChunksCommitted() {
+        return chunksCommitted;
+    }
+
+    public int getElementsSkipped() {
+        return Math.min(elementsStarted, elementsToSkip);
+    }
+
+    /**
+     * Moves past an element that was committed before the restore was interrupted
+     */
+    private static class SkippedElementParser extends TransactionParser<Object> {
+
+        SkippedElementParser(KXmlParser parser) {
+            super(parser);
+        }
+
+        @Override
+        protected void commit(Object parsed) throws IOException {
+            //nothing;
+        }
+
+        @Override
+        public Object parse() throws IOException, XmlPullParserException {
+            int depth = parser.getDepth();
+            int event = parser.getEventType();
+            while (!(event == XmlPullParser.END_TAG && parser.getDepth() == depth)
+                    && event != XmlPullParser.END_DOCUMENT) {
+                event = parser.next();
+            }
+            return null;
+        }
+    }
+}
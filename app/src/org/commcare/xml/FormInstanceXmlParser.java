@@ -20,8 +20,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -29,7 +28,6 @@ import java.util.Map;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -52,12 +50,26 @@ public class FormInstanceXmlParser extends TransactionParser<FormRecord> {
      */
     private final String rootInstanceDir;
 
+    /**
+     * If present, instance files are written by these workers rather than as each instance is
+     * parsed
+     */
+    private final ParallelParseWorkers workers;
+
     public FormInstanceXmlParser(KXmlParser parser,
                                  Map<String, String> namespaceToInstallPath,
                                  String destination) {
+        this(parser, namespaceToInstallPath, destination, null);
+    }
+
+    public FormInstanceXmlParser(KXmlParser parser,
+                                 Map<String, String> namespaceToInstallPath,
+                                 String destination,
+                                 ParallelParseWorkers workers) {
         super(parser);
         this.namespaceToInstallPath = namespaceToInstallPath;
         this.rootInstanceDir = destination;
+        this.workers = workers;
     }
 
     @Override
@@ -73,10 +85,9 @@ public class FormInstanceXmlParser extends TransactionParser<FormRecord> {
         //this.parser.next();
 
         //create an actual document out of it.
-        Document document = new Document();
+        final Document document = new Document();
         document.addChild(Node.ELEMENT, element);
 
-        KXmlSerializer serializer = new KXmlSerializer();
         SqlStorage<FormRecord> formRecordStorage = cachedStorage();
 
         FormRecord formRecord = new FormRecord(FormRecord.STATUS_UNINDEXED,
@@ -89,17 +100,44 @@ public class FormInstanceXmlParser extends TransactionParser<FormRecord> {
 
         formRecord.setDisplayName("Historical Form");
 
-        String filePath = getInstanceDestination(namespaceToInstallPath.get(xmlns));
+        final String filePath = getInstanceDestination(namespaceToInstallPath.get(xmlns));
         formRecord.setFilePath(filePath);
         formRecordStorage.write(formRecord);
 
+        final byte[] aesKey = formRecord.getAesKey();
+        if (workers != null) {
+            // The record is only committed along with the rest of the restore, which waits for
+            // this to finish, and fails if it doesn't
+            workers.submit(() -> {
+                try {
+                    writeInstance(document, filePath, aesKey);
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeException(e.getMessage());
+                }
+            });
+            return formRecord;
+        }
+
+        try {
+            writeInstance(document, filePath, aesKey);
+        } catch (GeneralSecurityException e) {
+            // writing the form instance to xml failed, so remove the record
+            storage.remove(formRecord);
+            throw new RuntimeException(e.getMessage());
+        }
+        return formRecord;
+    }
+
+    private static void writeInstance(Document document, String filePath, byte[] aesKey)
+            throws IOException, GeneralSecurityException {
+        KXmlSerializer serializer = new KXmlSerializer();
         OutputStream o = new FileOutputStream(filePath);
         BufferedOutputStream bos = null;
 
         try {
             Cipher encrypter = Cipher.getInstance("AES");
 
-            SecretKeySpec key = new SecretKeySpec(formRecord.getAesKey(), "AES");
+            SecretKeySpec key = new SecretKeySpec(aesKey, "AES");
             encrypter.init(Cipher.ENCRYPT_MODE, key);
             CipherOutputStream cos = new CipherOutputStream(o, encrypter);
             bos = new BufferedOutputStream(cos, 1024 * 256);
@@ -107,10 +145,6 @@ public class FormInstanceXmlParser extends TransactionParser<FormRecord> {
             serializer.setOutput(bos, "UTF-8");
 
             document.write(serializer);
-        } catch (InvalidKeyException | NoSuchPaddingException | NoSuchAlgorithmException e) {
-            // writing the form instance to xml failed, so remove the record
-            storage.remove(formRecord);
-            throw new RuntimeException(e.getMessage());
         } finally {
             //since bos might not have even been created.
             if (bos != null) {
@@ -119,7 +153,6 @@ public class FormInstanceXmlParser extends TransactionParser<FormRecord> {
                 o.close();
             }
         }
-        return formRecord;
     }
 
     private SqlStorage<FormRecord> cachedStorage() {
@@ -0,0 +1,96 @@
+package org.commcare.xml;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the parts of transaction processing that don't touch the user database on a small pool of
+ * background threads, so they overlap with parsing the rest of the restore.
+ *
+ * Database writes have to stay on the parsing thread: the restore's transaction belongs to it,
+ * and any other thread would block on the database until the restore was committed. Work handed
+ * here must only use what it was given, and whatever it leaves behind must be harmless if the
+ * restore is rolled back. The amount of outstanding work is bounded, so a parser that gets ahead
+ * of the workers waits rather than buffering an unbounded number of elements.
+ */
+public class ParallelParseWorkers {
+    private static final int MAX_WORKERS = 3;
+    private static final int MAX_PENDING_WORK = 16;
+
+    public interface Work {
+        void run() throws IOException;
+    }
+
+    private final ExecutorService workers;
+    private final Semaphore pendingSlots = new Semaphore(MAX_PENDING_WORK);
+    private final List<Future<Void>> submitted = new ArrayList<>();
+
+    public ParallelParseWorkers() {
+        // leave a core for the parsing thread
+        int workerCount = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_WORKERS));
+        workers = Executors.newFixedThreadPool(workerCount,
+                runnable -> new Thread(runnable, "restore-worker"));
+    }
+
+    /**
+     * Queue work to run in the background, waiting first if too much is already queued
+     */
+    public void submit(final Work work) throws InterruptedIOException {
+        try {
+            pendingSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for restore workers");
+        }
+        submitted.add(workers.submit(() -> {
+            try {
+                work.run();
+            } finally {
+                pendingSlots.release();
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Wait for all queued work, and stop the workers
+     *
+     * @throws IOException The first failure of any queued work
+     */
+    public void finish() throws IOException {
+        try {
+            for (Future<Void> work : submitted) {
+                work.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for restore workers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            abandon();
+        }
+    }
+
+    /**
+     * Stop the workers without waiting for queued work, since the restore it belongs to failed
+     */
+    public void abandon() {
+        workers.shutdownNow();
+        submitted.clear();
+    }
+}
@@ -234,6 +234,11 @@ public class CommCareTestApplication extends CommCareApplication implements Test
         return new TestHeartbeatRequester();
     }
 
+    @Override
+    public void schedulePrewarmFormDefs(boolean afterInstall) {
+        // forms are parsed on demand in tests
+    }
+
     @Override
     public void afterTest(Method method) {
         Robolectric.flushBackgroundThreadScheduler();
@@ -0,0 +1,88 @@
+package org.commcare.activities;
+
+import android.content.Intent;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.util.ActivityLaunchUtils;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.views.widgets.IntegerWidget;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowActivity;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that relevancy updates running in the background are finished before the form is
+ * used from the UI thread
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class BackgroundRelevancyUpdateTest {
+
+    private FormEntryActivity formEntryActivity;
+    private FormEntryActivityUIController uiController;
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_save_regressions/profile.ccpr",
+                "test", "123");
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString("cc-background-relevancy-updates", "yes").commit();
+
+        ShadowActivity shadowActivity =
+                ActivityLaunchUtils.buildHomeActivityForFormEntryLaunch("m0-f0");
+        Intent formEntryIntent = shadowActivity.getNextStartedActivity();
+        formEntryActivity = Robolectric.buildActivity(FormEntryActivity.class, formEntryIntent)
+                .create().start().resume().get();
+        uiController = (FormEntryActivityUIController)formEntryActivity.getUIController();
+
+        // keep results from being handed over until something asks for them
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @After
+    public void teardown() {
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void languageChangeFinishesPendingUpdateTest() {
+        startRelevancyUpdate("1");
+
+        String[] languages = FormEntryActivity.mFormController.getLanguages();
+        formEntryActivity.setFormLanguage(languages, 0);
+        assertFalse(uiController.isRelevancyUpdatePending());
+    }
+
+    @Test
+    public void navigationFinishesPendingUpdateTest() {
+        startRelevancyUpdate("2");
+
+        uiController.showNextView();
+        assertFalse(uiController.isRelevancyUpdatePending());
+
+        // the next screen is the label that completes registration
+        formEntryActivity.widgetEntryChanged(formEntryActivity.getODKView().getWidgets().get(0));
+        assertTrue(uiController.isRelevancyUpdatePending());
+        uiController.showPreviousView(false);
+        assertFalse(uiController.isRelevancyUpdatePending());
+    }
+
+    private void startRelevancyUpdate(String cohort) {
+        IntegerWidget cohortWidget =
+                (IntegerWidget)formEntryActivity.getODKView().getWidgets().get(0);
+        cohortWidget.setAnswer(cohort);
+        formEntryActivity.widgetEntryChanged(cohortWidget);
+        assertTrue(uiController.isRelevancyUpdatePending());
+    }
+}
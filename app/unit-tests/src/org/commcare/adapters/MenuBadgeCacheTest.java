@@ -0,0 +1,56 @@
+package org.commcare.adapters;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.models.database.StoreFixturesOnFilesystemTests;
+import org.commcare.models.database.UserDataVersion;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that cached menu badges outlive the data they were computed from only as stale values.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class MenuBadgeCacheTest {
+    private static final String RESTORE = "odk_level_ipm_restore.xml";
+
+    @Before
+    public void setup() {
+        StoreFixturesOnFilesystemTests.installAppWithFixtureData(this.getClass(), RESTORE);
+        MenuBadgeCache.clear();
+    }
+
+    @Test
+    public void badgeGoesStaleWhenDataIsWrittenTest() throws Exception {
+        String key = MenuBadgeCache.buildKey("m0", "");
+        assertNull(MenuBadgeCache.get(key));
+
+        MenuBadgeCache.put(key, "12", UserDataVersion.get());
+        assertTrue(MenuBadgeCache.get(key).isCurrent());
+
+        // writes cases, ledgers and fixtures
+        StoreFixturesOnFilesystemTests.parseIntoSandbox(
+                this.getClass().getClassLoader().getResourceAsStream(RESTORE), false);
+
+        MenuBadgeCache.CachedBadge stale = MenuBadgeCache.get(key);
+        assertEquals("12", stale.text);
+        assertFalse(stale.isCurrent());
+    }
+
+    @Test
+    public void badgesAreKeptPerSessionStateTest() {
+        MenuBadgeCache.put(MenuBadgeCache.buildKey("m1", "case-a"), "1", UserDataVersion.get());
+        MenuBadgeCache.put(MenuBadgeCache.buildKey("m1", "case-b"), "2", UserDataVersion.get());
+
+        assertEquals("1", MenuBadgeCache.get(MenuBadgeCache.buildKey("m1", "case-a")).text);
+        assertEquals("2", MenuBadgeCache.get(MenuBadgeCache.buildKey("m1", "case-b")).text);
+    }
+}
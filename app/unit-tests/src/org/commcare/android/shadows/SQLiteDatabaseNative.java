@@ -60,7 +60,7 @@ public class SQLiteDatabaseNative {
 
     @Implementation
     public SQLiteStatement compileStatement(String sql) throws SQLException {
-        throw new UnsupportedOperationException("Can't use compiled statements on mock db");
+        return SQLiteStatementNative.wrap(db.compileStatement(sql));
     }
 
     @Implementation
@@ -0,0 +1,55 @@
+package org.commcare.android.shadows;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Backs a SQL-Cipher compiled program with a plain android SQLite statement, so that the
+ * statement's bindings go to the mock db
+ */
+@Implements(net.sqlcipher.database.SQLiteProgram.class)
+public class SQLiteProgramNative {
+    protected android.database.sqlite.SQLiteStatement statement;
+
+    public void __constructor__(net.sqlcipher.database.SQLiteDatabase db, String sql) {
+    }
+
+    void setStatement(android.database.sqlite.SQLiteStatement statement) {
+        this.statement = statement;
+    }
+
+    @Implementation
+    public void bindNull(int index) {
+        statement.bindNull(index);
+    }
+
+    @Implementation
+    public void bindLong(int index, long value) {
+        statement.bindLong(index, value);
+    }
+
+    @Implementation
+    public void bindDouble(int index, double value) {
+        statement.bindDouble(index, value);
+    }
+
+    @Implementation
+    public void bindString(int index, String value) {
+        statement.bindString(index, value);
+    }
+
+    @Implementation
+    public void bindBlob(int index, byte[] value) {
+        statement.bindBlob(index, value);
+    }
+
+    @Implementation
+    public void clearBindings() {
+        statement.clearBindings();
+    }
+
+    @Implementation
+    public void close() {
+        statement.close();
+    }
+}
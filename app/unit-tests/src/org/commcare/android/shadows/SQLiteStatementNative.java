@@ -0,0 +1,53 @@
+package org.commcare.android.shadows;
+
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadow.api.Shadow;
+
+/**
+ * Runs SQL-Cipher compiled statements against the plain android SQLite db behind the mock
+ * db, so that code paths using compiled statements can be exercised in tests
+ */
+@Implements(SQLiteStatement.class)
+public class SQLiteStatementNative extends SQLiteProgramNative {
+
+    public void __constructor__(net.sqlcipher.database.SQLiteDatabase db, String sql) {
+    }
+
+    /**
+     * @return A SQL-Cipher statement which runs the given android statement
+     */
+    static SQLiteStatement wrap(android.database.sqlite.SQLiteStatement statement) {
+        SQLiteStatement wrapped = Shadow.newInstanceOf(SQLiteStatement.class);
+        SQLiteStatementNative shadow = Shadow.extract(wrapped);
+        shadow.setStatement(statement);
+        return wrapped;
+    }
+
+    @Implementation
+    public void execute() {
+        statement.execute();
+    }
+
+    @Implementation
+    public long executeInsert() {
+        return statement.executeInsert();
+    }
+
+    @Implementation
+    public int executeUpdateDelete() {
+        return statement.executeUpdateDelete();
+    }
+
+    @Implementation
+    public long simpleQueryForLong() {
+        return statement.simpleQueryForLong();
+    }
+
+    @Implementation
+    public String simpleQueryForString() {
+        return statement.simpleQueryForString();
+    }
+}
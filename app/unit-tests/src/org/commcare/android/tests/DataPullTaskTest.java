@@ -1,21 +1,38 @@
 package org.commcare.android.tests;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.commcare.CommCareApp;
 import org.commcare.CommCareApplication;
 import org.commcare.CommCareTestApplication;
 import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.cases.ledger.Ledger;
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.data.xml.TransactionParser;
 import org.commcare.network.CommcareRequestEndpointsMock;
 import org.commcare.android.util.TestAppInstaller;
+import org.commcare.android.util.TestUtils;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.user.models.RestoreCheckpoint;
 import org.commcare.network.LocalReferencePullResponseFactory;
 import org.commcare.tasks.DataPullTask;
 import org.commcare.tasks.ResultAndError;
+import org.commcare.xml.AndroidTransactionParserFactory;
+import org.commcare.xml.CheckpointedParserFactory;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.kxml2.io.KXmlParser;
 import org.robolectric.Robolectric;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Coverage for different DataPullTask codepaths.
  * Doesn't yet check logical correctness of any actions.
@@ -31,6 +48,9 @@ public class DataPullTaskTest {
     private final static String SELF_INDEXING_CASE_RESTORE = APP_BASE + "self_indexing_case_data_restore.xml";
     private final static String RETRY_RESPONSE = APP_BASE + "async_restore_response.xml";
 
+    private final static int RESUMABLE_CASES = 4;
+    private final static int RESUMABLE_TRANSFERS = 16;
+
     /**
      * Stores the result of the data pull task
      */
@@ -123,6 +143,157 @@ public class DataPullTaskTest {
         Assert.assertEquals(DataPullTask.PullTaskResult.BAD_DATA, dataPullResult.data);
     }
 
+    @Test
+    public void pipelinedDataPullTest() {
+        installLoginAndUseLocalKeys();
+        enablePipelinedRestore();
+        runDataPull(200, GOOD_RESTORE);
+        Assert.assertEquals(DataPullTask.PullTaskResult.DOWNLOAD_SUCCESS, dataPullResult.data);
+    }
+
+    @Test
+    public void pipelinedDataPullBadRestoreXMLTest() {
+        installAndUseLocalKeys();
+        enablePipelinedRestore();
+        runDataPull(200, BAD_RESTORE_XML);
+        Assert.assertEquals(DataPullTask.PullTaskResult.BAD_DATA, dataPullResult.data);
+    }
+
+    @Test
+    public void chunkedDataPullTest() {
+        installLoginAndUseLocalKeys();
+        enableChunkedRestoreCommits();
+        runDataPull(200, GOOD_RESTORE);
+        Assert.assertEquals(DataPullTask.PullTaskResult.DOWNLOAD_SUCCESS, dataPullResult.data);
+        Assert.assertNull(RestoreCheckpoint.read(CommCareApplication.instance().getUserDbHandle()));
+    }
+
+    @Test
+    public void chunkedDataPullBadRestoreXMLTest() {
+        installLoginAndUseLocalKeys();
+        enableChunkedRestoreCommits();
+        runDataPull(200, BAD_RESTORE_XML);
+        Assert.assertEquals(DataPullTask.PullTaskResult.BAD_DATA, dataPullResult.data);
+        // a payload that can't be parsed isn't worth resuming
+        Assert.assertNull(RestoreCheckpoint.read(CommCareApplication.instance().getUserDbHandle()));
+    }
+
+    /**
+     * Interrupt a chunked restore after two chunks have been committed, as if the process died,
+     * and check that the next sync finishes it without applying the committed part again
+     */
+    @Test
+    public void chunkedRestoreResumesAfterInterruptionTest() throws Exception {
+        installLoginAndUseLocalKeys();
+        enableChunkedRestoreCommits();
+        int defaultChunkSize = DataPullTask.RESTORE_CHUNK_SIZE;
+        DataPullTask.RESTORE_CHUNK_SIZE = 5;
+        try {
+            byte[] restore = buildResumableRestore();
+
+            // what the restore leaves behind when it isn't interrupted
+            TestUtils.processTransactionIntoAppDb(new ByteArrayInputStream(restore));
+            Map<String, String> uninterrupted = readResumableRestoreState();
+            SQLiteDatabase db = CommCareApplication.instance().getUserDbHandle();
+            db.beginTransaction();
+            try {
+                DataPullTask.wipeStorageForFourTwelveSync(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // the thirteenth element fails, after elements 0-9 were committed in two chunks
+            RestoreCheckpoint checkpoint = RestoreCheckpoint.create(db, new ByteArrayInputStream(restore));
+            AndroidTransactionParserFactory dyingFactory =
+                    new AndroidTransactionParserFactory(RuntimeEnvironment.application, null) {
+                        int parsersRequested = 0;
+
+                        @Override
+                        public TransactionParser getParser(KXmlParser parser) {
+                            if (++parsersRequested > 12) {
+                                throw new IllegalStateException("process died");
+                            }
+                            return super.getParser(parser);
+                        }
+                    };
+            InputStream payload = checkpoint.openPayload();
+            db.beginTransaction();
+            try {
+                new DataModelPullParser(payload,
+                        new CheckpointedParserFactory(dyingFactory, checkpoint, db, 5), true, true).parse();
+                Assert.fail("Restore should have been interrupted");
+            } catch (IllegalStateException e) {
+                // expected
+            } finally {
+                db.endTransaction();
+                payload.close();
+            }
+            Assert.assertEquals(10, RestoreCheckpoint.read(db).getElementsCommitted());
+            // the first six transfers made it in
+            Assert.assertEquals(2, getStockLevel("resume_case_0"));
+            Assert.assertEquals(1, getStockLevel("resume_case_3"));
+
+            runDataPull(200, GOOD_RESTORE);
+            Assert.assertEquals(DataPullTask.PullTaskResult.DOWNLOAD_SUCCESS, dataPullResult.data);
+            Assert.assertNull(RestoreCheckpoint.read(db));
+            Assert.assertEquals(uninterrupted, readResumableRestoreState());
+            for (int i = 0; i < RESUMABLE_CASES; i++) {
+                Assert.assertEquals(RESUMABLE_TRANSFERS / RESUMABLE_CASES, getStockLevel("resume_case_" + i));
+            }
+        } finally {
+            DataPullTask.RESTORE_CHUNK_SIZE = defaultChunkSize;
+        }
+    }
+
+    /**
+     * Cases, then transfers into their ledgers, then updates to them. Transfers add to the
+     * ledger, so any that are applied twice show up in the stock levels.
+     */
+    private static byte[] buildResumableRestore() throws Exception {
+        String owner = CommCareApplication.instance().getSession().getLoggedInUser().getUniqueId();
+        StringBuilder restore = new StringBuilder(
+                "<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\">");
+        for (int i = 0; i < RESUMABLE_CASES; i++) {
+            restore.append(resumableCaseBlock(i, owner, "<create><case_type>resume_test</case_type>" +
+                    "<case_name>case " + i + "</case_name><owner_id>" + owner + "</owner_id></create>"));
+        }
+        for (int i = 0; i < RESUMABLE_TRANSFERS; i++) {
+            restore.append("<ns0:transfer xmlns:ns0=\"http://commcarehq.org/ledger/v1\"")
+                    .append(" date=\"2016-03-10T11:16:54.774000Z\" section-id=\"stock\"")
+                    .append(" dest=\"resume_case_").append(i % RESUMABLE_CASES).append("\">")
+                    .append("<ns0:entry id=\"product\" quantity=\"1\"/></ns0:transfer>");
+        }
+        for (int i = 0; i < RESUMABLE_CASES; i++) {
+            restore.append(resumableCaseBlock(i, owner,
+                    "<update><last_element>update " + i + "</last_element></update>"));
+        }
+        return restore.append("</OpenRosaResponse>").toString().getBytes("UTF-8");
+    }
+
+    private static String resumableCaseBlock(int index, String owner, String body) {
+        return "<case case_id=\"resume_case_" + index + "\" date_modified=\"2016-03-10T11:16:54.774000Z\"" +
+                " user_id=\"" + owner + "\" xmlns=\"http://commcarehq.org/case/transaction/v2\">" +
+                body + "</case>";
+    }
+
+    private static Map<String, String> readResumableRestoreState() {
+        SqlStorage<ACase> cases = CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class);
+        Map<String, String> state = new HashMap<>();
+        for (int i = 0; i < RESUMABLE_CASES; i++) {
+            String caseId = "resume_case_" + i;
+            ACase c = cases.getRecordForValue(ACase.INDEX_CASE_ID, caseId);
+            state.put(caseId, c.getName() + "|" + c.getPropertyString("last_element") + "|" +
+                    getStockLevel(caseId));
+        }
+        return state;
+    }
+
+    private static int getStockLevel(String caseId) {
+        SqlStorage<Ledger> ledgers = CommCareApplication.instance().getUserStorage(Ledger.STORAGE_KEY, Ledger.class);
+        return ledgers.getRecordForValue(Ledger.INDEX_ENTITY_ID, caseId).getEntry("stock", "product");
+    }
+
     @Test
     public void dataPullSelfIndexingCaseTest() {
         installAndUseLocalKeys();
@@ -200,6 +371,16 @@ public class DataPullTaskTest {
         useLocalKeys();
     }
 
+    private static void enablePipelinedRestore() {
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        app.getAppPreferences().edit().putString("cc-pipelined-restore", "yes").commit();
+    }
+
+    private static void enableChunkedRestoreCommits() {
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        app.getAppPreferences().edit().putString("cc-chunked-restore-commits", "yes").commit();
+    }
+
     private static void useLocalKeys() {
         CommCareApp app = CommCareApplication.instance().getCurrentApp();
         app.getAppPreferences().edit().putString("key_server", null).commit();
@@ -0,0 +1,180 @@
+package org.commcare.android.tests.caselist;
+
+import android.database.DataSetObserver;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.activities.EntitySelectActivity;
+import org.commcare.adapters.EntityListAdapter;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.util.CaseLoadUtils;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.android.util.TestUtils;
+import org.commcare.cases.entity.Entity;
+import org.commcare.cases.entity.NodeEntityFactory;
+import org.commcare.session.CommCareSession;
+import org.commcare.suite.model.Detail;
+import org.commcare.suite.model.EntityDatum;
+import org.javarosa.core.model.instance.TreeReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a case list built up from streamed chunks ends up in the same order as one
+ * built from the whole list at once, and that a search picks up each chunk as it arrives
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class EntityListStreamingTest {
+    private static final int EXTRA_CASE_COUNT = 100;
+    // a handful of names so that many rows tie on the sort field
+    private static final String[] NAMES = {"bo", "al", "di", "cy", "ed"};
+    private static final int FIRST_CHUNK_SIZE = 4;
+
+    private EntitySelectActivity activity;
+    private Detail detail;
+    private NodeEntityFactory factory;
+    private List<TreeReference> references;
+    private List<Entity<TreeReference>> entities;
+
+    @Before
+    public void setup() throws Exception {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/case_list_lookup/profile.ccpr", "test", "123");
+        TestUtils.processResourceTransactionIntoAppDb("/commcare-apps/case_list_lookup/restore.xml");
+        TestUtils.processTransactionIntoAppDb(new ByteArrayInputStream(buildRestore().getBytes("UTF-8")));
+
+        activity = CaseLoadUtils.launchEntitySelectActivity("m1-f0");
+        CaseLoadUtils.loadList(activity);
+
+        CommCareSession session = CommCareApplication.instance().getCurrentSessionWrapper().getSession();
+        EntityDatum selectDatum = (EntityDatum)session.getNeededDatum();
+        detail = session.getDetail(selectDatum.getShortDetail());
+
+        factory = new NodeEntityFactory(detail, activity.evalContext());
+        references = factory.expandReferenceList(selectDatum.getNodeset());
+        entities = new ArrayList<>();
+        for (TreeReference ref : references) {
+            entities.add(factory.getEntity(ref));
+        }
+        factory.prepareEntities(entities);
+        Collections.shuffle(entities, new Random(4));
+    }
+
+    @Test
+    public void streamedListMatchesFullListTest() {
+        int[] sortKeys = new int[]{0};
+
+        EntityListAdapter whole = new EntityListAdapter(activity, detail, references,
+                new ArrayList<>(entities), factory, true, null, false);
+        whole.sortEntities(sortKeys);
+
+        EntityListAdapter streamed = buildFirstChunkAdapter();
+        streamed.sortEntities(sortKeys);
+        streamRemainingChunks(streamed);
+
+        assertEquals(entities.size(), whole.getCurrentCount());
+        assertEquals(whole.getCurrentCount(), streamed.getCurrentCount());
+        for (int i = 0; i < whole.getCurrentCount(); i++) {
+            assertEquals(whole.getItem(i), streamed.getItem(i));
+        }
+    }
+
+    @Test
+    public void streamedChunksAreSearchedTest() {
+        String query = NAMES[1];
+        EntityListAdapter whole = new EntityListAdapter(activity, detail, references,
+                new ArrayList<>(entities), factory, true, null, false);
+        filterAndWait(whole, query);
+
+        EntityListAdapter streamed = buildFirstChunkAdapter();
+        filterAndWait(streamed, query);
+        int firstChunkMatches = streamed.getCurrentCount();
+        streamRemainingChunks(streamed);
+
+        // the list on screen picks up the matches from every chunk as it arrives
+        assertTrue(whole.getCurrentCount() > firstChunkMatches);
+        assertEquals(whole.getCurrentCount(), streamed.getCurrentCount());
+        assertEquals(getShownReferences(whole), getShownReferences(streamed));
+        assertEquals(entities.size(), streamed.getFullCount());
+    }
+
+    private EntityListAdapter buildFirstChunkAdapter() {
+        return new EntityListAdapter(activity, detail, references,
+                new ArrayList<>(entities.subList(0, FIRST_CHUNK_SIZE)), factory, true, null, false);
+    }
+
+    private void streamRemainingChunks(EntityListAdapter adapter) {
+        int chunkSize = FIRST_CHUNK_SIZE;
+        int start = chunkSize;
+        while (start < entities.size()) {
+            chunkSize *= 2;
+            int end = Math.min(start + chunkSize, entities.size());
+            adapter.appendEntities(new ArrayList<>(entities.subList(start, end)));
+            start = end;
+        }
+    }
+
+    /**
+     * Searches run on the search thread, so wait for the results to reach the list
+     */
+    private static void filterAndWait(EntityListAdapter adapter, String query) {
+        final AtomicBoolean applied = new AtomicBoolean();
+        DataSetObserver observer = new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                applied.set(true);
+            }
+        };
+        adapter.registerDataSetObserver(observer);
+        adapter.filterByString(query);
+        long waitStart = System.currentTimeMillis();
+        while (!applied.get()) {
+            Robolectric.flushForegroundThreadScheduler();
+            if (System.currentTimeMillis() - waitStart > 5000) {
+                fail("Search took too long to be applied");
+            }
+        }
+        adapter.unregisterDataSetObserver(observer);
+    }
+
+    private static Set<TreeReference> getShownReferences(EntityListAdapter adapter) {
+        Set<TreeReference> shown = new HashSet<>();
+        for (int i = 0; i < adapter.getCurrentCount(); i++) {
+            shown.add(adapter.getItem(i));
+        }
+        return shown;
+    }
+
+    private static String buildRestore() {
+        StringBuilder restore = new StringBuilder(
+                "<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\">");
+        for (int i = 0; i < EXTRA_CASE_COUNT; i++) {
+            restore.append("<case case_id=\"streamed-").append(i)
+                    .append("\" date_modified=\"2016-03-10T11:16:54.774000Z\"")
+                    .append(" user_id=\"441bdbb17001bade54aa23dcb7313950\"")
+                    .append(" xmlns=\"http://commcarehq.org/case/transaction/v2\">")
+                    .append("<create><case_type>case</case_type>")
+                    .append("<case_name>").append(NAMES[i % NAMES.length]).append("</case_name>")
+                    .append("<owner_id>441bdbb17001bade54aa23dcb7313950</owner_id></create>")
+                    .append("</case>");
+        }
+        return restore.append("</OpenRosaResponse>").toString();
+    }
+}
@@ -0,0 +1,96 @@
+package org.commcare.android.tests.processing;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.util.TestUtils;
+import org.commcare.models.database.AndroidSandbox;
+import org.commcare.models.database.StoreFixturesOnFilesystemTests;
+import org.commcare.test.utilities.CaseTestUtils;
+import org.commcare.utils.FixtureInstanceCache;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that non-indexed fixtures are only deserialized once per session, and are read again
+ * after fixture storage is written to.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class FixtureInstanceCacheTest {
+    private static final String PROGRAMS_REF = "jr://fixture/commtrack:programs";
+    private static final String PROGRAM_NAME =
+            "instance('programs')/programs/program[@id = '31ab899368d38c2d0207fe80c00fc3f3']/name";
+
+    private AndroidSandbox sandbox;
+
+    @Before
+    public void setup() {
+        sandbox = StoreFixturesOnFilesystemTests.installAppWithFixtureData(this.getClass(),
+                "odk_level_ipm_restore.xml");
+        FixtureInstanceCache.clear();
+    }
+
+    @Test
+    public void fixtureIsReusedAcrossContextsTest() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            EvaluationContext ec = TestUtils.buildContextWithInstance(sandbox, "programs", PROGRAMS_REF);
+            assertTrue(CaseTestUtils.xpathEvalAndCompare(ec, PROGRAM_NAME, "Default"));
+        }
+        assertEquals(1, FixtureInstanceCache.getMissCount());
+        assertEquals(2, FixtureInstanceCache.getHitCount());
+    }
+
+    @Test
+    public void restoreInvalidatesCachedFixturesTest() throws Exception {
+        TestUtils.buildContextWithInstance(sandbox, "programs", PROGRAMS_REF);
+        assertEquals(1, FixtureInstanceCache.getMissCount());
+
+        StoreFixturesOnFilesystemTests.parseIntoSandbox(
+                this.getClass().getClassLoader().getResourceAsStream("odk_level_ipm_restore.xml"),
+                false);
+
+        EvaluationContext ec = TestUtils.buildContextWithInstance(sandbox, "programs", PROGRAMS_REF);
+        assertTrue(CaseTestUtils.xpathEvalAndCompare(ec, PROGRAM_NAME, "Default"));
+        assertEquals(2, FixtureInstanceCache.getMissCount());
+        assertEquals(0, FixtureInstanceCache.getHitCount());
+    }
+
+    @Test
+    public void fixturesAreNotCachedUntilWritesCommitTest() throws Exception {
+        IStorageUtilityIndexed<FormInstance> storage = sandbox.getUserFixtureStorage();
+        int programsId = storage.getIDsForValue(FormInstance.META_ID, "commtrack:programs").firstElement();
+        SQLiteDatabase db = CommCareApplication.instance().getUserDbHandle();
+
+        db.beginTransaction();
+        try {
+            storage.write(storage.read(programsId));
+            // what's read now may never be committed
+            for (int i = 0; i < 2; i++) {
+                TestUtils.buildContextWithInstance(sandbox, "programs", PROGRAMS_REF);
+            }
+            assertEquals(2, FixtureInstanceCache.getMissCount());
+            assertEquals(0, FixtureInstanceCache.getHitCount());
+        } finally {
+            // rolled back
+            db.endTransaction();
+        }
+
+        for (int i = 0; i < 2; i++) {
+            EvaluationContext ec = TestUtils.buildContextWithInstance(sandbox, "programs", PROGRAMS_REF);
+            assertTrue(CaseTestUtils.xpathEvalAndCompare(ec, PROGRAM_NAME, "Default"));
+        }
+        assertEquals(3, FixtureInstanceCache.getMissCount());
+        assertEquals(1, FixtureInstanceCache.getHitCount());
+    }
+}
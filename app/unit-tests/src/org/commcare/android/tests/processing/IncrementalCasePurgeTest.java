@@ -0,0 +1,170 @@
+package org.commcare.android.tests.processing;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.android.util.TestUtils;
+import org.commcare.cases.model.Case;
+import org.commcare.cases.util.CasePurgeFilter;
+import org.commcare.engine.cases.CaseUtils;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.SqlStorageIterator;
+import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.CasePurgeJournal;
+import org.javarosa.core.model.User;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a purge which only evaluates the cases recorded in the purge journal removes
+ * exactly the cases a purge of the whole case graph would, across several syncs which own,
+ * disown, close, index and un-index cases
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class IncrementalCasePurgeTest {
+    private static final String OTHER_OWNER = "someone_else";
+
+    private String userId;
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/case_list_lookup/profile.ccpr", "test", "123");
+        userId = CommCareApplication.instance().getSession().getLoggedInUser().getUniqueId();
+    }
+
+    @Test
+    public void incrementalPurgeMatchesFullPurgeTest() throws Exception {
+        // the first purge has no baseline, so it evaluates every case
+        processCases(
+                create("owned_parent", userId),
+                index(create("unowned_child", OTHER_OWNER), "parent", "owned_parent", "child"),
+                create("host", OTHER_OWNER),
+                index(create("extension", userId), "host", "host", "extension"),
+                create("closed_owned", userId) + close("closed_owned"),
+                create("chain_top", OTHER_OWNER),
+                index(create("chain_middle", OTHER_OWNER), "parent", "chain_top", "child"),
+                index(create("chain_bottom", userId), "parent", "chain_middle", "child"));
+        assertPurgeMatchesFullPurge();
+        assertFalse(new CasePurgeJournal().isFullPurgeRequested());
+
+        // close the parent and pick up a case that wasn't there before
+        processCases(
+                close("owned_parent"),
+                create("stray", OTHER_OWNER),
+                index(create("second_extension", OTHER_OWNER), "host", "extension", "extension"));
+        assertPurgeMatchesFullPurge();
+
+        // cut the chain, and move ownership down the extension chain
+        processCases(
+                removeIndex("chain_middle", "parent"),
+                update("extension", OTHER_OWNER),
+                update("second_extension", userId));
+        assertPurgeMatchesFullPurge();
+
+        // hand the bottom of the chain away, leaving nothing there that's owned
+        processCases(update("chain_bottom", OTHER_OWNER));
+        assertPurgeMatchesFullPurge();
+
+        Set<String> remaining = getCaseIds();
+        assertFalse(remaining.contains("stray"));
+        assertFalse(remaining.contains("chain_bottom"));
+        assertTrue(remaining.contains("second_extension"));
+        assertTrue(remaining.contains("host"));
+    }
+
+    /**
+     * Work out what a full purge would remove without changing anything, then run the normal
+     * (incremental) purge and check that it removed exactly that
+     */
+    private void assertPurgeMatchesFullPurge() {
+        SqlStorage<ACase> storage = TestUtils.getCaseStorage();
+        Set<String> expected = getCaseIds();
+        CasePurgeFilter fullPurge = new CasePurgeFilter(CaseUtils.getFullCaseGraph(storage,
+                new AndroidCaseIndexTable(), getOwners()));
+        for (int recordId : fullPurge.getCasesToRemove()) {
+            expected.remove(storage.read(recordId).getCaseId());
+        }
+
+        CaseUtils.purgeCases();
+
+        assertEquals(expected, getCaseIds());
+        assertEquals(0, new CasePurgeJournal().getTouchedCount());
+    }
+
+    private static Vector<String> getOwners() {
+        Vector<String> owners = new Vector<>();
+        for (IStorageIterator<User> users = CommCareApplication.instance()
+                .getUserStorage(User.STORAGE_KEY, User.class).iterate(); users.hasMore(); ) {
+            owners.add(users.nextRecord().getUniqueId());
+        }
+        return owners;
+    }
+
+    private static Set<String> getCaseIds() {
+        Set<String> caseIds = new HashSet<>();
+        for (SqlStorageIterator<ACase> i = TestUtils.getCaseStorage().iterate(false,
+                new String[]{Case.INDEX_CASE_ID}); i.hasMore(); ) {
+            caseIds.add(i.peekIncludedMetadata(Case.INDEX_CASE_ID));
+            i.nextID();
+        }
+        return caseIds;
+    }
+
+    private static void processCases(String... cases) throws Exception {
+        StringBuilder restore = new StringBuilder(
+                "<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\">");
+        for (String c : cases) {
+            restore.append(c);
+        }
+        restore.append("</OpenRosaResponse>");
+        TestUtils.processTransactionIntoAppDb(new ByteArrayInputStream(restore.toString().getBytes("UTF-8")));
+    }
+
+    private String create(String caseId, String ownerId) {
+        return caseBlock(caseId, "<create><case_type>purge_test</case_type><case_name>" + caseId +
+                "</case_name><owner_id>" + ownerId + "</owner_id></create>");
+    }
+
+    private String update(String caseId, String ownerId) {
+        return caseBlock(caseId, "<update><owner_id>" + ownerId + "</owner_id></update>");
+    }
+
+    private String close(String caseId) {
+        return caseBlock(caseId, "<close/>");
+    }
+
+    private String removeIndex(String caseId, String indexName) {
+        return caseBlock(caseId, "<index><" + indexName + " case_type=\"purge_test\"/></index>");
+    }
+
+    /**
+     * Add an index to a case block built by {@link #create}
+     */
+    private static String index(String caseBlock, String indexName, String target, String relationship) {
+        return caseBlock.replace("</create>", "</create><index><" + indexName +
+                " case_type=\"purge_test\" relationship=\"" + relationship + "\">" + target +
+                "</" + indexName + "></index>");
+    }
+
+    private String caseBlock(String caseId, String body) {
+        return "<case case_id=\"" + caseId + "\" date_modified=\"2016-03-10T11:16:54.774000Z\"" +
+                " user_id=\"" + userId + "\" xmlns=\"http://commcarehq.org/case/transaction/v2\">" +
+                body + "</case>";
+    }
+}
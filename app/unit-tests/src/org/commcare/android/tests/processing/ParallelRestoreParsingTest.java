@@ -0,0 +1,117 @@
+package org.commcare.android.tests.processing;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.app.models.FormDefRecord;
+import org.commcare.android.database.user.models.FormRecord;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.data.xml.DataModelPullParser;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.utils.FormSaveUtil;
+import org.commcare.xml.AndroidTransactionParserFactory;
+import org.javarosa.core.io.StreamsUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that restores which write form instance files in the background produce the same
+ * records and files as ones that write them inline, and reports how long each took.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class ParallelRestoreParsingTest {
+    private static final String PAYLOAD = "/commcare-apps/form_nav_tests/form_instances_restore.xml";
+    private static final String ROOT_END = "</OpenRosaResponse>";
+
+    // copies of the payload's elements in each restore, so there's enough work to time
+    private static final int PAYLOAD_COPIES = 100;
+
+    private byte[] restore;
+    private int instancesPerRestore;
+
+    @Before
+    public void setup() throws Exception {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_nav_tests/profile.ccpr",
+                "test", "123");
+        restore = buildRestore();
+    }
+
+    @Test
+    public void parallelRestoreMatchesSequentialRestore() throws Exception {
+        SqlStorage<FormRecord> storage =
+                CommCareApplication.instance().getUserStorage(FormRecord.class);
+
+        long sequentialMillis = processRestore(false);
+        assertEquals(instancesPerRestore, storage.getNumRecords());
+        assertInstanceFilesWritten(storage);
+
+        long parallelMillis = processRestore(true);
+        assertEquals(instancesPerRestore * 2, storage.getNumRecords());
+        assertInstanceFilesWritten(storage);
+
+        System.out.println("Restore of " + instancesPerRestore + " form instances: sequential " +
+                sequentialMillis + "ms, parallel " + parallelMillis + "ms");
+    }
+
+    private long processRestore(boolean parallel) throws Exception {
+        AndroidTransactionParserFactory factory =
+                new AndroidTransactionParserFactory(RuntimeEnvironment.application, null);
+        factory.initFormInstanceParser(FormSaveUtil.getNamespaceToFilePathMap(
+                CommCareApplication.instance().getAppStorage(FormDefRecord.class)));
+
+        long start = System.currentTimeMillis();
+        if (parallel) {
+            factory.startParallelWork();
+        }
+        SQLiteDatabase db = CommCareApplication.instance().getUserDbHandle();
+        db.beginTransaction();
+        try {
+            new DataModelPullParser(new ByteArrayInputStream(restore), factory, true, true).parse();
+            factory.finishParallelWork();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            factory.abandonParallelWork();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void assertInstanceFilesWritten(SqlStorage<FormRecord> storage) {
+        for (FormRecord record : storage) {
+            File instance = new File(record.getFilePath());
+            assertTrue(instance.exists() && instance.length() > 0);
+        }
+    }
+
+    private byte[] buildRestore() throws Exception {
+        InputStream is = System.class.getResourceAsStream(PAYLOAD);
+        String payload = new String(StreamsUtil.inputStreamToByteArray(is), "UTF-8");
+        is.close();
+
+        int bodyStart = payload.indexOf('>', payload.indexOf("<OpenRosaResponse")) + 1;
+        int bodyEnd = payload.lastIndexOf(ROOT_END);
+        String body = payload.substring(bodyStart, bodyEnd);
+        instancesPerRestore = (body.split("<data ").length - 1) * PAYLOAD_COPIES;
+
+        StringBuilder restore = new StringBuilder(payload.substring(0, bodyStart));
+        for (int i = 0; i < PAYLOAD_COPIES; i++) {
+            restore.append(body);
+        }
+        restore.append(ROOT_END);
+        return restore.toString().getBytes("UTF-8");
+    }
+}
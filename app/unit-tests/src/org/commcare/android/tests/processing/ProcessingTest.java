@@ -1,13 +1,18 @@
 package org.commcare.android.tests.processing;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.commcare.CommCareApplication;
 import org.commcare.CommCareTestApplication;
 import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.util.TestAppInstaller;
 import org.commcare.android.util.TestUtils;
 import org.commcare.cases.model.Case;
 import org.commcare.android.database.user.models.ACase;
 import org.commcare.cases.util.CaseDBUtils;
 import org.commcare.engine.cases.CaseUtils;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.tasks.DataPullTask;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -69,11 +74,57 @@ public class ProcessingTest {
         assertHashesEqual();
     }
 
+    /**
+     * Purging and 412 recovery change the case table outside of the case parsers, so check
+     * that the maintained digest follows them as well
+     */
+    @Test
+    public void testHashingParityThroughPurgeAndWipe() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/case_list_lookup/profile.ccpr", "test", "123");
+        SqlStorage<ACase> storage =
+                CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class);
+        SQLiteDatabase db = CommCareApplication.instance().getUserDbHandle();
+
+        assertHashesEqual(storage, db);
+        TestUtils.processResourceTransactionIntoAppDb("/inputs/case_create.xml");
+        TestUtils.processResourceTransactionIntoAppDb("/inputs/case_update.xml");
+        TestUtils.processResourceTransactionIntoAppDb("/inputs/case_create_and_index.xml");
+        assertHashesEqual(storage, db);
+
+        // None of these cases are owned by the user
+        CaseUtils.purgeCases();
+        assertEquals("cases left after purge", 0, storage.getNumRecords());
+        assertHashesEqual(storage, db);
+
+        TestUtils.processResourceTransactionIntoAppDb("/inputs/case_create.xml");
+        db.beginTransaction();
+        try {
+            DataPullTask.wipeStorageForFourTwelveSync(db);
+            TestUtils.processResourceTransactionIntoAppDb("/inputs/case_create_and_index.xml");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertEquals("cases after recovery", 2, storage.getNumRecords());
+        assertHashesEqual(storage, db);
+    }
+
     private void assertHashesEqual() {
-        String rawCalcHash = CaseDBUtils.computeCaseDbHash(TestUtils.getCaseStorage());
+        SqlStorage<ACase> storage = TestUtils.getCaseStorage();
+        assertHashesEqual(storage, storage.getAccessLock());
+    }
+
+    private static void assertHashesEqual(SqlStorage<ACase> storage, SQLiteDatabase db) {
+        String rawCalcHash = CaseDBUtils.computeCaseDbHash(storage);
 
-        String fastCalcHash = CaseUtils.computeCaseDbHash(TestUtils.getCaseStorage());
+        String fastCalcHash = CaseUtils.computeCaseDbHash(storage);
 
         assertEquals("fasthash incorrect", rawCalcHash, fastCalcHash);
+
+        // The digest is seeded when the database is created and maintained as cases change
+        String maintainedHash = CaseUtils.getCaseDbHash(storage, db, false);
+
+        assertEquals("maintained hash incorrect", rawCalcHash, maintainedHash);
     }
 }
@@ -171,6 +171,13 @@ public class TestUtils {
     }
 
     public static void processResourceTransactionIntoAppDb(String resourcePath) {
+        processTransactionIntoAppDb(System.class.getResourceAsStream(resourcePath));
+    }
+
+    /**
+     * Process transactions from the stream into the current app's databases, and close it
+     */
+    public static void processTransactionIntoAppDb(InputStream is) {
         DataModelPullParser parser;
 
         AndroidTransactionParserFactory androidTransactionFactory =
@@ -183,8 +190,6 @@ public class TestUtils {
         }
 
         try {
-            InputStream is = System.class.getResourceAsStream(resourcePath);
-
             parser = new DataModelPullParser(is, androidTransactionFactory, true, true);
             parser.parse();
             is.close();
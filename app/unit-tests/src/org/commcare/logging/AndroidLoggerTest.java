@@ -0,0 +1,126 @@
+package org.commcare.logging;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.javarosa.AndroidLogEntry;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.util.LogTypes;
+import org.javarosa.core.log.LogEntry;
+import org.javarosa.core.log.StreamLogSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that buffered log entries are all written, and counted, before anyone reads the logs,
+ * and that serialized logs are read in pages and purged without touching newer entries
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class AndroidLoggerTest {
+
+    private SqlStorage<AndroidLogEntry> storage;
+    private AndroidLogger logger;
+
+    @Before
+    public void setup() {
+        storage = CommCareApplication.instance().getGlobalStorage(AndroidLogEntry.STORAGE_KEY,
+                AndroidLogEntry.class);
+        storage.removeAll();
+        // only write entries when the tests flush them
+        logger = new AndroidLogger(storage, true, TimeUnit.HOURS.toMillis(1));
+    }
+
+    @After
+    public void teardown() {
+        logger.halt();
+    }
+
+    @Test
+    public void bufferedEntriesAreWrittenOnFlushTest() {
+        // more than fits in a single batch
+        for (int i = 0; i < 250; i++) {
+            logger.log(LogTypes.TYPE_MAINTENANCE, "entry " + i, new Date());
+        }
+        assertEquals(250, logger.logSize());
+
+        assertTrue(logger.flush());
+        assertEquals(250, storage.getNumRecords());
+        assertEquals(250, logger.logSize());
+    }
+
+    @Test
+    public void haltedLoggerDropsEntriesTest() {
+        logger.log(LogTypes.TYPE_MAINTENANCE, "before halt", new Date());
+        logger.halt();
+        assertEquals(1, storage.getNumRecords());
+
+        logger.log(LogTypes.TYPE_MAINTENANCE, "after halt", new Date());
+        logger.flush();
+        assertEquals(1, storage.getNumRecords());
+    }
+
+    @Test
+    public void fullBufferDropsAndReportsEntriesTest() {
+        int overflow = 5;
+        for (int i = 0; i < AndroidLogger.MAX_BUFFERED_ENTRIES + overflow; i++) {
+            logger.log(LogTypes.TYPE_MAINTENANCE, "entry " + i, new Date());
+        }
+        assertEquals(AndroidLogger.MAX_BUFFERED_ENTRIES, logger.logSize());
+
+        assertTrue(logger.flush());
+        // the entries that fit, and one reporting the ones that didn't
+        assertEquals(AndroidLogger.MAX_BUFFERED_ENTRIES + 1, storage.getNumRecords());
+        List<String> messages = new ArrayList<>();
+        for (AndroidLogEntry entry : storage) {
+            messages.add(entry.getMessage());
+        }
+        assertEquals("entry " + (AndroidLogger.MAX_BUFFERED_ENTRIES - 1),
+                messages.get(AndroidLogger.MAX_BUFFERED_ENTRIES - 1));
+        assertEquals("Dropped " + overflow + " log entries while logging was backed up",
+                messages.get(AndroidLogger.MAX_BUFFERED_ENTRIES));
+        assertTrue(logger.getStats().contains("dropped=" + overflow));
+
+        // the drops are only reported once
+        assertTrue(logger.flush());
+        assertEquals(AndroidLogger.MAX_BUFFERED_ENTRIES + 1, storage.getNumRecords());
+    }
+
+    @Test
+    public void serializedLogsArePurgedTest() throws IOException {
+        // spans several pages
+        int entryCount = AndroidLogSerializer.STORAGE_PAGE_SIZE * 2 + 7;
+        for (int i = 0; i < entryCount; i++) {
+            storage.write(new AndroidLogEntry(LogTypes.TYPE_MAINTENANCE, "entry " + i, new Date()));
+        }
+
+        final int[] serialized = {0};
+        StreamLogSerializer serializer = new StreamLogSerializer() {
+            @Override
+            protected void serializeLog(LogEntry entry) {
+                assertEquals("entry " + serialized[0], entry.getMessage());
+                serialized[0]++;
+            }
+        };
+        serializer.setPurger(new AndroidLogPurger<>(storage));
+        logger.serializeLogs(serializer);
+        assertEquals(entryCount, serialized[0]);
+
+        storage.write(new AndroidLogEntry(LogTypes.TYPE_MAINTENANCE, "after serializing", new Date()));
+        serializer.purge();
+        assertEquals(1, storage.getNumRecords());
+        assertEquals("after serializing", storage.iterator().next().getMessage());
+    }
+}
@@ -0,0 +1,153 @@
+package org.commcare.logic;
+
+import org.commcare.CommCareApp;
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.app.models.FormDefRecord;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.utils.GlobalConstants;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.model.FormDef;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that cached form definitions and their recorded hashes are dropped once the form's
+ * xml no longer matches what was cached, and that a form is only parsed once however it gets
+ * loaded
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class FormDefCacheTest {
+    private static final String TITLE = "Hidden Group";
+
+    private CommCareApp app;
+    private FormDefRecord record;
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_nav_tests/profile.ccpr", "test", "123");
+        app = CommCareApplication.instance().getCurrentApp();
+        record = app.getStorage(FormDefRecord.class).iterate().nextRecord();
+    }
+
+    @Test
+    public void changedFingerprintInvalidatesCacheTest() throws Exception {
+        assertEquals(TITLE, FormDefCache.getFormDef(RuntimeEnvironment.application, record).getTitle());
+        List<File> sidecars = getHashSidecars();
+        assertEquals(1, sidecars.size());
+
+        renameForm("Renamed " + TITLE);
+
+        assertEquals("Renamed " + TITLE,
+                FormDefCache.getFormDef(RuntimeEnvironment.application, record).getTitle());
+        // the hash recorded for the old xml is gone, and only the new one is left
+        assertFalse(sidecars.get(0).exists());
+        assertEquals(1, getHashSidecars().size());
+    }
+
+    @Test
+    public void forgottenFormLeavesNoSidecarsTest() {
+        FormDefCache.getFormDef(RuntimeEnvironment.application, record);
+        assertEquals(1, getHashSidecars().size());
+
+        FormDefCache.forgetFormHashes(app, record.getID());
+        assertTrue(getHashSidecars().isEmpty());
+
+        // the hash is recomputed on the next open
+        assertEquals(TITLE, FormDefCache.getFormDef(RuntimeEnvironment.application, record).getTitle());
+        assertEquals(1, getHashSidecars().size());
+    }
+
+    @Test
+    public void warmUpAndOpenParseFormOnceTest() throws Exception {
+        // a form that hasn't been cached under any name yet
+        renameForm("Concurrent " + TITLE);
+        int parsesBefore = FormDefCache.getParseCount();
+
+        Thread warmUp = new Thread(() -> FormDefCache.warmCache(record));
+        warmUp.start();
+        FormDef opened = FormDefCache.getFormDef(RuntimeEnvironment.application, record);
+        warmUp.join();
+
+        assertEquals("Concurrent " + TITLE, opened.getTitle());
+        assertEquals(parsesBefore + 1, FormDefCache.getParseCount());
+        assertFalse(FormDefCache.warmCache(record));
+    }
+
+    @Test
+    public void openCountsAreWrittenInBatchesTest() {
+        String key = "form-open-count-" + record.getJrFormId();
+        FormDefCache.flushOpenCounts();
+        int before = FormDefCache.getOpenCount(app, record.getJrFormId());
+
+        for (int i = 0; i < 3; i++) {
+            FormDefCache.getFormDef(RuntimeEnvironment.application, record);
+        }
+        assertEquals(before + 3, FormDefCache.getOpenCount(app, record.getJrFormId()));
+        // the counts were just written, so these opens are held back for the next write
+        assertEquals(before, app.getAppPreferences().getInt(key, 0));
+
+        FormDefCache.flushOpenCounts();
+        assertEquals(before + 3, app.getAppPreferences().getInt(key, 0));
+        assertEquals(before + 3, FormDefCache.getOpenCount(app, record.getJrFormId()));
+    }
+
+    private void renameForm(String title) throws Exception {
+        File formXml = new File(record.getFilePath());
+        long modified = formXml.lastModified();
+        String xml = new String(readFile(formXml), "UTF-8");
+        writeFile(formXml, xml.replace("<h:title>" + TITLE + "</h:title>",
+                "<h:title>" + title + "</h:title>").getBytes("UTF-8"));
+        formXml.setLastModified(modified + 2000);
+    }
+
+    private List<File> getHashSidecars() {
+        List<File> sidecars = new ArrayList<>();
+        File[] files = new File(app.fsPath(GlobalConstants.FILE_CC_CACHE)).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("form-" + record.getID() + "-") &&
+                        file.getName().endsWith(".md5")) {
+                    sidecars.add(file);
+                }
+            }
+        }
+        return sidecars;
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        InputStream is = new FileInputStream(file);
+        try {
+            return StreamsUtil.inputStreamToByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws Exception {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
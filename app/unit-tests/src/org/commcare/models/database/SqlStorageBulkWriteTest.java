@@ -0,0 +1,119 @@
+package org.commcare.models.database;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.javarosa.AndroidLogEntry;
+import org.commcare.util.LogTypes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Checks that records written in bulk are stored, and given ids, the same way as records
+ * written one at a time, and compares how long the two take. Runs with storage optimizations
+ * on, so that bulk writes go through the compiled statements they use on devices.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class SqlStorageBulkWriteTest {
+    private static final int RECORD_COUNT = 2000;
+
+    private SqlStorage<AndroidLogEntry> storage;
+    private boolean optimizationsWereActive;
+
+    @Before
+    public void setup() {
+        optimizationsWereActive = SqlStorage.STORAGE_OPTIMIZATIONS_ACTIVE;
+        SqlStorage.STORAGE_OPTIMIZATIONS_ACTIVE = true;
+        storage = CommCareApplication.instance().getGlobalStorage(AndroidLogEntry.STORAGE_KEY,
+                AndroidLogEntry.class);
+        storage.removeAll();
+    }
+
+    @After
+    public void teardown() {
+        SqlStorage.STORAGE_OPTIMIZATIONS_ACTIVE = optimizationsWereActive;
+    }
+
+    @Test
+    public void writeAllAssignsIdsTest() {
+        List<AndroidLogEntry> entries = buildEntries("bulk");
+        int[] ids = storage.writeAll(entries, true);
+
+        assertEquals(RECORD_COUNT, storage.getNumRecords());
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            assertEquals(ids[i], entries.get(i).getID());
+            assertEquals("bulk " + i, storage.read(ids[i]).getMessage());
+        }
+    }
+
+    @Test
+    public void updateAllTest() {
+        List<AndroidLogEntry> entries = buildEntries("before");
+        int[] ids = storage.writeAll(entries);
+
+        List<AndroidLogEntry> updated = new ArrayList<>();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            AndroidLogEntry entry = new AndroidLogEntry(LogTypes.TYPE_MAINTENANCE, "after " + i, new Date());
+            entry.setID(ids[i]);
+            updated.add(entry);
+        }
+        storage.updateAll(updated, true);
+
+        assertEquals(RECORD_COUNT, storage.getNumRecords());
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            assertEquals("after " + i, storage.read(ids[i]).getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateAllRejectsNewRecordsTest() {
+        storage.updateAll(buildEntries("new"));
+    }
+
+    @Test
+    public void bulkWriteTimingTest() {
+        List<AndroidLogEntry> entries = buildEntries("single");
+        long start = System.currentTimeMillis();
+        for (AndroidLogEntry entry : entries) {
+            storage.write(entry);
+        }
+        long singleWrites = System.currentTimeMillis() - start;
+        assertEquals(RECORD_COUNT, storage.getNumRecords());
+        storage.removeAll();
+
+        entries = buildEntries("bulk");
+        start = System.currentTimeMillis();
+        storage.writeAll(entries);
+        long bulkWrite = System.currentTimeMillis() - start;
+        assertEquals(RECORD_COUNT, storage.getNumRecords());
+        storage.removeAll();
+
+        entries = buildEntries("parallel");
+        start = System.currentTimeMillis();
+        storage.writeAll(entries, true);
+        long parallelBulkWrite = System.currentTimeMillis() - start;
+        assertEquals(RECORD_COUNT, storage.getNumRecords());
+
+        System.out.println("Wrote " + RECORD_COUNT + " records: one at a time " + singleWrites +
+                "ms; in bulk " + bulkWrite + "ms; in bulk, serialized in parallel " +
+                parallelBulkWrite + "ms");
+    }
+
+    private static List<AndroidLogEntry> buildEntries(String message) {
+        List<AndroidLogEntry> entries = new ArrayList<>();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            entries.add(new AndroidLogEntry(LogTypes.TYPE_MAINTENANCE, message + " " + i, new Date()));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,82 @@
+package org.commcare.models.database;
+
+import org.commcare.CommCareApp;
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.app.models.FormDefRecord;
+import org.commcare.android.javarosa.AndroidLogEntry;
+import org.commcare.android.util.TestAppInstaller;
+import org.javarosa.core.model.instance.FormInstance;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that shared storage is reused within a scope, and never handed out once the app or
+ * user session it was built for has been replaced
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class SqlStorageRegistryTest {
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_nav_tests/profile.ccpr", "test", "123");
+    }
+
+    @Test
+    public void storageIsKeyedByScopeTest() {
+        SqlStorageRegistry registry = new SqlStorageRegistry("test");
+        SqlStorage<AndroidLogEntry> first = getLogStorage(registry, "a");
+
+        assertSame(first, getLogStorage(registry, "a"));
+        assertNotSame(first, getLogStorage(registry, "b"));
+
+        registry.clear();
+        assertNotSame(first, getLogStorage(registry, "a"));
+    }
+
+    @Test
+    public void newSessionGetsFreshUserStorageTest() {
+        CommCareApplication app = CommCareApplication.instance();
+        SqlStorage<AndroidLogEntry> userStorage =
+                app.getUserStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class);
+        SqlStorage<FormInstance> fileBackedStorage = getFixtureStorage(app);
+        assertSame(userStorage, app.getUserStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class));
+        assertSame(fileBackedStorage, getFixtureStorage(app));
+
+        TestAppInstaller.login("test", "123");
+
+        assertNotSame(userStorage, app.getUserStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class));
+        assertNotSame(fileBackedStorage, getFixtureStorage(app));
+    }
+
+    @Test
+    public void reseatedAppGetsFreshAppStorageTest() {
+        CommCareApplication application = CommCareApplication.instance();
+        CommCareApp app = application.getCurrentApp();
+        SqlStorage<FormDefRecord> appStorage = application.getAppStorage(FormDefRecord.class);
+        assertSame(appStorage, application.getAppStorage(FormDefRecord.class));
+
+        application.initializeAppResources(app);
+
+        assertNotSame(appStorage, application.getAppStorage(FormDefRecord.class));
+    }
+
+    private static SqlStorage<FormInstance> getFixtureStorage(CommCareApplication app) {
+        return app.getFileBackedUserStorage(HybridFileBackedSqlStorage.FIXTURE_STORAGE_TABLE_NAME,
+                FormInstance.class);
+    }
+
+    private static SqlStorage<AndroidLogEntry> getLogStorage(SqlStorageRegistry registry, String scopeId) {
+        return registry.get(scopeId, SqlStorage.class, AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class,
+                () -> CommCareApplication.instance().getRawStorage(AndroidLogEntry.STORAGE_KEY,
+                        AndroidLogEntry.class, CommCareApplication.instance().getUserDbHandle()));
+    }
+}
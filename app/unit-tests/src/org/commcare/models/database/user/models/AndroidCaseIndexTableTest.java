@@ -0,0 +1,121 @@
+package org.commcare.models.database.user.models;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.commcare.models.database.user.DatabaseUserOpenHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that writing a batch's case indices as a diff leaves the index table the same as
+ * clearing every index of the batch and writing them all again
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class AndroidCaseIndexTableTest {
+
+    private SQLiteDatabase diffDb;
+    private SQLiteDatabase reinsertDb;
+
+    @Before
+    public void setup() {
+        diffDb = new DatabaseUserOpenHelper(RuntimeEnvironment.application, "diff").getWritableDatabase("diff");
+        reinsertDb = new DatabaseUserOpenHelper(RuntimeEnvironment.application, "reinsert").getWritableDatabase("reinsert");
+    }
+
+    @Test
+    public void diffWriteMatchesReinsertTest() {
+        List<Case> firstBatch = Arrays.asList(
+                buildCase(1, index("parent", "a", "child")),
+                buildCase(2, index("parent", "a", "child"), index("host", "b", "extension")),
+                buildCase(3),
+                buildCase(4, index("parent", "c", "child")));
+        AndroidCaseIndexTable.BulkIndexResult result = writeBothWays(firstBatch);
+        assertEquals(4, result.rowsInserted);
+        assertEquals(0, result.rowsUnchanged);
+
+        List<Case> secondBatch = Arrays.asList(
+                // retargeted
+                buildCase(1, index("parent", "b", "child")),
+                // one index dropped
+                buildCase(2, index("host", "b", "extension")),
+                // one index added
+                buildCase(3, index("parent", "d", "child")),
+                // unchanged
+                buildCase(4, index("parent", "c", "child")),
+                // not written before
+                buildCase(5, index("parent", "a", "child"), index("host", "a", "extension")));
+        result = writeBothWays(secondBatch);
+
+        assertEquals(4, result.rowsInserted);
+        assertEquals(2, result.rowsDeleted);
+        assertEquals(2, result.rowsUnchanged);
+        // the targets that lost an index
+        assertEquals(new HashSet<>(Collections.singletonList("a")), result.removedTargets);
+    }
+
+    private AndroidCaseIndexTable.BulkIndexResult writeBothWays(List<Case> batch) {
+        AndroidCaseIndexTable.BulkIndexResult result = new AndroidCaseIndexTable(diffDb).indexCases(batch);
+
+        AndroidCaseIndexTable reinsertTable = new AndroidCaseIndexTable(reinsertDb);
+        List<Integer> recordIds = new ArrayList<>();
+        for (Case c : batch) {
+            recordIds.add(c.getID());
+        }
+        reinsertTable.clearCaseIndices(recordIds);
+        for (Case c : batch) {
+            reinsertTable.indexCase(c);
+        }
+
+        assertEquals(readIndexRows(reinsertDb), readIndexRows(diffDb));
+        return result;
+    }
+
+    private static Case buildCase(int recordId, CaseIndex... indices) {
+        Case c = new Case("case " + recordId, "patient");
+        c.setID(recordId);
+        for (CaseIndex index : indices) {
+            c.setIndex(index);
+        }
+        return c;
+    }
+
+    private static CaseIndex index(String name, String target, String relationship) {
+        return new CaseIndex(name, "patient", target, relationship);
+    }
+
+    /**
+     * @return Every index row, without its row id, in a fixed order
+     */
+    private static List<String> readIndexRows(SQLiteDatabase db) {
+        List<String> rows = new ArrayList<>();
+        Cursor c = db.rawQuery("SELECT case_rec_id, name, type, target, relationship FROM " +
+                AndroidCaseIndexTable.TABLE_NAME, new String[]{});
+        try {
+            while (c.moveToNext()) {
+                rows.add(c.getInt(0) + "|" + c.getString(1) + "|" + c.getString(2) + "|" +
+                        c.getString(3) + "|" + c.getString(4));
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+}
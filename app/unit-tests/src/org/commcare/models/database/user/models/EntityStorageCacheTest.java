@@ -0,0 +1,155 @@
+package org.commcare.models.database.user.models;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.models.database.user.DatabaseUserOpenHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the memory tier in front of the entity cache table serves reads, batches its
+ * writes and stays coherent with invalidation.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class EntityStorageCacheTest {
+
+    private SQLiteDatabase db;
+    private EntityStorageCache cache;
+
+    @Before
+    public void setup() {
+        db = new DatabaseUserOpenHelper(RuntimeEnvironment.application, "Test").getWritableDatabase("Test");
+        cache = new EntityStorageCache("case", db, "app-id");
+    }
+
+    @After
+    public void tearDown() {
+        EntityCacheMemoryTier.releaseCurrentTier();
+    }
+
+    @Test
+    public void writesAreServedFromMemoryUntilFlushed() {
+        cache.cache("1", "detail_0", "alpha");
+
+        assertEquals(0, countStoredRows());
+        assertEquals("alpha", cache.retrieveCacheValue("1", "detail_0"));
+
+        cache.flush();
+        assertEquals(1, countStoredRows());
+
+        // a fresh tier has to go back to the table for the value
+        EntityCacheMemoryTier.releaseCurrentTier();
+        EntityStorageCache freshCache = new EntityStorageCache("case", db, "app-id");
+        assertEquals("alpha", freshCache.retrieveCacheValue("1", "detail_0"));
+    }
+
+    @Test
+    public void writesAreFlushedInBatches() {
+        int writes = EntityCacheMemoryTier.DEFAULT_FLUSH_BATCH_SIZE + 10;
+        for (int i = 0; i < writes; i++) {
+            cache.cache(String.valueOf(i), "detail_0", "value" + i);
+        }
+
+        EntityCacheMemoryTier tier = EntityCacheMemoryTier.forDatabase(db);
+        assertEquals(EntityCacheMemoryTier.DEFAULT_FLUSH_BATCH_SIZE, countStoredRows());
+        assertEquals(10, tier.getPendingWriteCount());
+
+        cache.flush();
+        assertEquals(writes, countStoredRows());
+        assertEquals(writes, tier.getFlushedRows());
+    }
+
+    @Test
+    public void invalidationDropsPendingAndStoredValues() {
+        cache.cache("1", "detail_0", "alpha");
+        cache.cache("2", "detail_0", "beta");
+        cache.flush();
+        cache.cache("1", "detail_1", "gamma");
+
+        cache.invalidateCache("1");
+        assertNull(cache.retrieveCacheValue("1", "detail_0"));
+        assertNull(cache.retrieveCacheValue("1", "detail_1"));
+        assertEquals("beta", cache.retrieveCacheValue("2", "detail_0"));
+
+        cache.flush();
+        assertEquals(1, countStoredRows());
+
+        cache.invalidateCaches(Arrays.asList(2));
+        assertNull(cache.retrieveCacheValue("2", "detail_0"));
+        assertEquals(0, countStoredRows());
+    }
+
+    @Test
+    public void flushedValuesAreSearchable() {
+        cache.cache("1", "detail_0", "jonathan smith");
+        cache.cache("2", "detail_0", "mary jones");
+        cache.cache("2", "detail_1", "smithville");
+        cache.flush();
+
+        List<String> nameField = Collections.singletonList("detail_0");
+        assertEquals(asSet("1"), cache.getSearchIndexCandidates(nameField, "smith"));
+        assertEquals(asSet("1", "2"), cache.getSearchIndexCandidates(nameField, "jon"));
+        assertEquals(asSet("2"), cache.getSearchIndexCandidates(Arrays.asList("detail_0", "detail_1"), "smithv"));
+        // too short to be looked up
+        assertNull(cache.getSearchIndexCandidates(nameField, "jo"));
+
+        assertEquals(asSet("1", "2"), cache.getEntityKeysWithStoredValues(nameField));
+        assertEquals(asSet("2"), cache.getEntityKeysWithStoredValues(Arrays.asList("detail_0", "detail_1")));
+
+        cache.invalidateCache("1");
+        assertTrue(cache.getSearchIndexCandidates(nameField, "smith").isEmpty());
+    }
+
+    @Test
+    public void storedValuesVersionTracksTableWrites() {
+        long version = cache.getStoredValuesVersion();
+
+        cache.cache("1", "detail_0", "alpha");
+        cache.retrieveCacheValue("1", "detail_0");
+        // nothing has reached the table yet
+        assertEquals(version, cache.getStoredValuesVersion());
+
+        cache.flush();
+        assertTrue(cache.getStoredValuesVersion() != version);
+
+        version = cache.getStoredValuesVersion();
+        cache.flush();
+        // an empty flush leaves the table as it was
+        assertEquals(version, cache.getStoredValuesVersion());
+
+        cache.invalidateCache("1");
+        assertTrue(cache.getStoredValuesVersion() != version);
+    }
+
+    private static Set<String> asSet(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    private int countStoredRows() {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + EntityStorageCache.TABLE_NAME, new String[]{});
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.commcare.models.encryption;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.javarosa.core.io.StreamsUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that files written in the chunked encryption format read back intact from any position,
+ * that tampering with them is caught, and that files in the original format still read.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class ChunkedCipherStreamTest {
+    private static final int SMALL_CHUNK_SIZE = 1024;
+    private static final int LARGE_PAYLOAD_SIZE = 8 * 1024 * 1024;
+
+    private SecretKeySpec key;
+    private File file;
+
+    @Before
+    public void setup() throws Exception {
+        byte[] keyBytes = new byte[16];
+        new Random(7).nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+        file = File.createTempFile("chunked", ".enc");
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        // sizes around the chunk boundaries, where the last chunk is handled differently
+        int[] sizes = {0, 1, SMALL_CHUNK_SIZE - 1, SMALL_CHUNK_SIZE, SMALL_CHUNK_SIZE + 1,
+                3 * SMALL_CHUNK_SIZE, 3 * SMALL_CHUNK_SIZE + 17};
+        for (int size : sizes) {
+            byte[] payload = randomBytes(size);
+            writeChunked(payload, SMALL_CHUNK_SIZE);
+            assertTrue(isChunkedFile());
+            assertArrayEquals("Round trip of " + size + " bytes", payload, readAll());
+            file.delete();
+        }
+    }
+
+    @Test
+    public void legacyFileStillReadsTest() throws Exception {
+        byte[] payload = randomBytes(3 * SMALL_CHUNK_SIZE + 5);
+        writeLegacy(payload);
+
+        assertFalse(isChunkedFile());
+        assertArrayEquals(payload, readAll());
+    }
+
+    @Test
+    public void seekTest() throws Exception {
+        byte[] payload = randomBytes(5 * SMALL_CHUNK_SIZE + 300);
+        writeChunked(payload, SMALL_CHUNK_SIZE);
+
+        ChunkedCipherInputStream in = new ChunkedCipherInputStream(file, key.getEncoded());
+        try {
+            assertEquals(payload.length, in.length());
+
+            int[] positions = {4 * SMALL_CHUNK_SIZE + 10, 3, SMALL_CHUNK_SIZE - 2, payload.length - 5};
+            for (int position : positions) {
+                in.seek(position);
+                byte[] read = new byte[Math.min(50, payload.length - position)];
+                readFully(in, read);
+                assertArrayEquals(Arrays.copyOfRange(payload, position, position + read.length), read);
+            }
+
+            in.seek(SMALL_CHUNK_SIZE);
+            assertEquals(2 * SMALL_CHUNK_SIZE, in.skip(2 * SMALL_CHUNK_SIZE));
+            assertEquals(payload[3 * SMALL_CHUNK_SIZE] & 0xff, in.read());
+
+            in.seek(payload.length);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void tamperedChunkFailsTest() throws Exception {
+        byte[] payload = randomBytes(4 * SMALL_CHUNK_SIZE);
+        writeChunked(payload, SMALL_CHUNK_SIZE);
+
+        // flip a bit in the middle of the third chunk's ciphertext
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long offset = ChunkedCipherFormat.HEADER_LENGTH +
+                2 * (SMALL_CHUNK_SIZE + ChunkedCipherFormat.TAG_LENGTH) + 100;
+        raf.seek(offset);
+        int original = raf.read();
+        raf.seek(offset);
+        raf.write(original ^ 1);
+        raf.close();
+
+        ChunkedCipherInputStream in = new ChunkedCipherInputStream(file, key.getEncoded());
+        try {
+            // chunks before the tampered one still read
+            byte[] firstChunk = new byte[SMALL_CHUNK_SIZE];
+            readFully(in, firstChunk);
+            assertArrayEquals(Arrays.copyOf(payload, SMALL_CHUNK_SIZE), firstChunk);
+
+            in.seek(2 * SMALL_CHUNK_SIZE);
+            in.read();
+            fail("Tampered chunk should fail authentication");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void truncatedAtChunkBoundaryFailsTest() throws Exception {
+        byte[] payload = randomBytes(4 * SMALL_CHUNK_SIZE);
+        writeChunked(payload, SMALL_CHUNK_SIZE);
+
+        // drop the last chunk, leaving a file that ends cleanly on a chunk boundary
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - (SMALL_CHUNK_SIZE + ChunkedCipherFormat.TAG_LENGTH));
+        raf.close();
+
+        try {
+            readAll();
+            fail("Truncated file should fail authentication");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedToOneTagFailsTest() throws Exception {
+        writeChunked(randomBytes(100), SMALL_CHUNK_SIZE);
+
+        // what's left looks like an empty last chunk
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(ChunkedCipherFormat.HEADER_LENGTH + ChunkedCipherFormat.TAG_LENGTH);
+        raf.close();
+
+        assertTrue(isChunkedFile());
+        try {
+            readAll();
+            fail("File cut down to one tag should fail authentication");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // and shorter than a tag
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(ChunkedCipherFormat.HEADER_LENGTH + ChunkedCipherFormat.TAG_LENGTH - 1);
+        raf.close();
+        ChunkedCipherInputStream in = new ChunkedCipherInputStream(file, key.getEncoded());
+        try {
+            in.read();
+            fail("File with less than a tag after the header should be rejected");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void wrongKeyFailsTest() throws Exception {
+        writeChunked(randomBytes(100), SMALL_CHUNK_SIZE);
+        byte[] otherKey = key.getEncoded().clone();
+        otherKey[0] ^= 1;
+
+        InputStream in = new ChunkedCipherInputStream(file, otherKey);
+        try {
+            in.read();
+            fail("Reading with the wrong key should fail authentication");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void throughputTest() throws Exception {
+        byte[] payload = randomBytes(LARGE_PAYLOAD_SIZE);
+
+        long start = System.currentTimeMillis();
+        writeLegacy(payload);
+        long legacyWrite = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        assertArrayEquals(payload, readAll());
+        long legacyRead = System.currentTimeMillis() - start;
+        file.delete();
+
+        start = System.currentTimeMillis();
+        writeChunked(payload, ChunkedCipherFormat.DEFAULT_CHUNK_SIZE);
+        long chunkedWrite = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        assertArrayEquals(payload, readAll());
+        long chunkedRead = System.currentTimeMillis() - start;
+
+        System.out.println("Encrypted " + LARGE_PAYLOAD_SIZE + " bytes: legacy write " + legacyWrite +
+                "ms, read " + legacyRead + "ms; chunked write " + chunkedWrite + "ms, read " +
+                chunkedRead + "ms");
+    }
+
+    private void writeChunked(byte[] payload, int chunkSize) throws Exception {
+        OutputStream out = new ChunkedCipherOutputStream(new FileOutputStream(file),
+                key.getEncoded(), chunkSize);
+        out.write(payload);
+        out.close();
+    }
+
+    private void writeLegacy(byte[] payload) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        OutputStream out = new CipherOutputStream(new FileOutputStream(file), cipher);
+        out.write(payload);
+        out.close();
+    }
+
+    private boolean isChunkedFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return ChunkedCipherFormat.isChunkedFile(raf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private byte[] readAll() throws IOException {
+        InputStream in = EncryptionIO.getFileInputStream(file.getAbsolutePath(), key);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamsUtil.writeFromInputToOutputUnmanaged(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] target) throws IOException {
+        int read = 0;
+        while (read < target.length) {
+            int count = in.read(target, read, target.length - read);
+            if (count == -1) {
+                throw new IOException("Unexpected end of stream");
+            }
+            read += count;
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
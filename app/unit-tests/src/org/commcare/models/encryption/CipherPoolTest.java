@@ -0,0 +1,118 @@
+package org.commcare.models.encryption;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that ciphers are reused per thread, never lent to two borrowers at once, and not reused
+ * once the pool has expired.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class CipherPoolTest {
+
+    private CipherPool pool;
+
+    @Before
+    public void setup() {
+        pool = new CipherPool() {
+            @Override
+            protected Cipher generateNewCipher() {
+                try {
+                    Cipher cipher = Cipher.getInstance("AES");
+                    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(new byte[16], "AES"));
+                    return cipher;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        pool.init();
+    }
+
+    @Test
+    public void remittedCipherIsReusedByTheSameThread() {
+        Cipher first = pool.borrow();
+        pool.remit(first);
+        int freeBefore = pool.getFreeCount();
+
+        assertSame(first, pool.borrow());
+        assertEquals(freeBefore, pool.getFreeCount());
+        assertEquals(1, pool.getIssuedCount());
+    }
+
+    @Test
+    public void outstandingCiphersAreDistinct() {
+        Set<Cipher> borrowed = Collections.newSetFromMap(new IdentityHashMap<Cipher, Boolean>());
+        for (int i = 0; i < 12; i++) {
+            assertTrue(borrowed.add(pool.borrow()));
+        }
+        assertEquals(12, pool.getIssuedCount());
+
+        for (Cipher cipher : borrowed) {
+            pool.remit(cipher);
+        }
+        assertEquals(0, pool.getIssuedCount());
+    }
+
+    @Test
+    public void expiredCiphersAreNotReused() {
+        Cipher beforeExpiry = pool.borrow();
+        Cipher freeBeforeExpiry = pool.borrow();
+        pool.remit(freeBeforeExpiry);
+
+        pool.expire();
+        pool.remit(beforeExpiry);
+        assertEquals(0, pool.getFreeCount());
+
+        Cipher afterExpiry = pool.borrow();
+        assertNotSame(beforeExpiry, afterExpiry);
+        assertNotSame(freeBeforeExpiry, afterExpiry);
+    }
+
+    @Test
+    public void concurrentBorrowersNeverShareACipher() throws InterruptedException {
+        final Set<Cipher> inUse = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<Cipher, Boolean>()));
+        final AtomicBoolean shared = new AtomicBoolean(false);
+        int threadCount = 8;
+        final CountDownLatch done = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    Cipher cipher = pool.borrow();
+                    if (!inUse.add(cipher)) {
+                        shared.set(true);
+                    }
+                    inUse.remove(cipher);
+                    pool.remit(cipher);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        assertFalse(shared.get());
+        assertEquals(0, pool.getIssuedCount());
+    }
+}
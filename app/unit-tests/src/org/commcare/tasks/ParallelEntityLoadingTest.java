@@ -0,0 +1,170 @@
+package org.commcare.tasks;
+
+import android.util.Pair;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.android.util.TestUtils;
+import org.commcare.cases.entity.Entity;
+import org.commcare.models.database.AndroidSandbox;
+import org.commcare.suite.model.Detail;
+import org.commcare.utils.AndroidInstanceInitializer;
+import org.commcare.xml.AndroidDetailParser;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.instance.DataInstance;
+import org.javarosa.core.model.instance.ExternalDataInstance;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xml.ElementParser;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a case list built on several workers, each with its own instances, comes out
+ * the same as one built serially, for a detail that sorts, calculates and looks values up in
+ * a fixture
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class ParallelEntityLoadingTest {
+    private static final int CASE_COUNT = 60;
+    private static final String[] DISTRICTS = {"North", "South", "East", "West"};
+
+    private static final String DETAIL_XML =
+            "<detail id=\"parallel_case_short\">" +
+            "  <title><text>Cases</text></title>" +
+            "  <variables>" +
+            "    <district_name function=\"instance('districts')/district_list/district[@id = current()/district]/name\"/>" +
+            "  </variables>" +
+            "  <field>" +
+            "    <header><text>Name</text></header>" +
+            "    <template><text><xpath function=\"case_name\"/></text></template>" +
+            "    <sort type=\"string\" order=\"1\" direction=\"ascending\">" +
+            "      <text><xpath function=\"case_name\"/></text>" +
+            "    </sort>" +
+            "  </field>" +
+            "  <field>" +
+            "    <header><text>District</text></header>" +
+            "    <template><text><xpath function=\"$district_name\"/></text></template>" +
+            "  </field>" +
+            "  <field>" +
+            "    <header><text>Age group</text></header>" +
+            "    <template><text><xpath function=\"if(age &gt; 50, 'older', 'younger')\"/></text></template>" +
+            "    <sort type=\"int\" order=\"2\" direction=\"descending\">" +
+            "      <text><xpath function=\"age\"/></text>" +
+            "    </sort>" +
+            "  </field>" +
+            "</detail>";
+
+    @Before
+    public void setup() throws Exception {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/case_list_lookup/profile.ccpr", "test", "123");
+        TestUtils.processTransactionIntoAppDb(new ByteArrayInputStream(buildRestore().getBytes("UTF-8")));
+    }
+
+    @Test
+    public void parallelLoadMatchesSerialLoadTest() throws Exception {
+        Detail detail = parseDetail();
+        TreeReference nodeset = XPathReference.getPathExpr(
+                "instance('casedb')/casedb/case[@case_type='patient']").getReference();
+
+        List<Entity<TreeReference>> serial =
+                new EntityLoaderTask(detail, buildContext(false)).doInBackground(nodeset).first;
+
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString("cc-parallel-entity-loading", "yes").commit();
+        EntityLoaderTask parallelTask = new EntityLoaderTask(detail, buildContext(false), 10);
+        parallelTask.enableParallelLoading(() -> buildContext(true), 3);
+        Pair<List<Entity<TreeReference>>, List<TreeReference>> parallelResult =
+                parallelTask.doInBackground(nodeset);
+        List<Entity<TreeReference>> parallel = parallelResult.first;
+
+        assertEquals(CASE_COUNT, serial.size());
+        assertEquals(serial.size(), parallel.size());
+        for (int i = 0; i < serial.size(); i++) {
+            Entity<TreeReference> expected = serial.get(i);
+            Entity<TreeReference> actual = parallel.get(i);
+            assertEquals(expected.getElement(), actual.getElement());
+            for (int field = 0; field < detail.getFields().length; field++) {
+                assertEquals(String.valueOf(expected.getField(field)), String.valueOf(actual.getField(field)));
+                assertEquals(expected.getSortField(field), actual.getSortField(field));
+            }
+        }
+        // the fixture lookup resolved rather than matching on empty values
+        assertTrue(DISTRICTS[0].equals(String.valueOf(parallel.get(0).getField(1))));
+    }
+
+    @Test
+    public void smallListsDontBuildWorkerContextsTest() throws Exception {
+        Detail detail = parseDetail();
+        TreeReference nodeset = XPathReference.getPathExpr(
+                "instance('casedb')/casedb/case[@case_type='patient']").getReference();
+
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString("cc-parallel-entity-loading", "yes").commit();
+        final int[] contextsBuilt = {0};
+        EntityLoaderTask task = new EntityLoaderTask(detail, buildContext(false), CASE_COUNT + 1);
+        task.enableParallelLoading(() -> {
+            contextsBuilt[0]++;
+            return buildContext(true);
+        }, 3);
+
+        assertEquals(CASE_COUNT, task.doInBackground(nodeset).first.size());
+        assertEquals(0, contextsBuilt[0]);
+    }
+
+    private static Detail parseDetail() throws Exception {
+        return new AndroidDetailParser(ElementParser.instantiateParser(
+                new ByteArrayInputStream(DETAIL_XML.getBytes("UTF-8")))).parse();
+    }
+
+    private static EvaluationContext buildContext(boolean privateFixtureCopies) {
+        AndroidInstanceInitializer iif = new AndroidInstanceInitializer(null,
+                new AndroidSandbox(CommCareApplication.instance()), null);
+        if (privateFixtureCopies) {
+            iif.withPrivateFixtureCopies();
+        }
+        Hashtable<String, DataInstance> instances = new Hashtable<>();
+        instances.put("casedb", new ExternalDataInstance("jr://instance/casedb", "casedb")
+                .initialize(iif, "casedb"));
+        instances.put("districts", new ExternalDataInstance("jr://fixture/districts", "districts")
+                .initialize(iif, "districts"));
+        return new EvaluationContext(null, instances);
+    }
+
+    private static String buildRestore() {
+        StringBuilder restore = new StringBuilder(
+                "<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\">" +
+                "<fixture id=\"districts\" user_id=\"441bdbb17001bade54aa23dcb7313950\"><district_list>");
+        for (int i = 0; i < DISTRICTS.length; i++) {
+            restore.append("<district id=\"d").append(i).append("\"><name>")
+                    .append(DISTRICTS[i]).append("</name></district>");
+        }
+        restore.append("</district_list></fixture>");
+        for (int i = 0; i < CASE_COUNT; i++) {
+            restore.append("<case case_id=\"parallel-").append(i)
+                    .append("\" date_modified=\"2016-03-10T11:16:54.774000Z\"")
+                    .append(" user_id=\"441bdbb17001bade54aa23dcb7313950\"")
+                    .append(" xmlns=\"http://commcarehq.org/case/transaction/v2\">")
+                    .append("<create><case_type>patient</case_type>")
+                    .append("<case_name>patient ").append(String.format("%03d", i)).append("</case_name>")
+                    .append("<owner_id>441bdbb17001bade54aa23dcb7313950</owner_id></create>")
+                    .append("<update><district>d").append(i % DISTRICTS.length).append("</district>")
+                    .append("<age>").append((i * 7) % 90).append("</age></update>")
+                    .append("</case>");
+        }
+        return restore.append("</OpenRosaResponse>").toString();
+    }
+}
@@ -0,0 +1,80 @@
+package org.commcare.views;
+
+import android.content.Intent;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.activities.FormEntryActivity;
+import org.commcare.activities.components.FormEntryConstants;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.util.ActivityLaunchUtils;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.logic.AndroidFormController;
+import org.commcare.utils.BlockingActionsManager;
+import org.commcare.views.widgets.IntegerWidget;
+import org.commcare.views.widgets.QuestionWidget;
+import org.javarosa.core.model.FormIndex;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowActivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that widgets released from a field-list built lazily are rebuilt the way they were
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class QuestionsViewTest {
+
+    private FormEntryActivity formEntryActivity;
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_save_regressions/profile.ccpr",
+                "test", "123");
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString("cc-lazy-question-lists", "yes").commit();
+        ShadowActivity shadowActivity =
+                ActivityLaunchUtils.buildHomeActivityForFormEntryLaunch("m0-f0");
+        Intent formEntryIntent = shadowActivity.getNextStartedActivity();
+        formEntryActivity = Robolectric.buildActivity(FormEntryActivity.class, formEntryIntent)
+                .create().start().resume().get();
+    }
+
+    @Test
+    public void releasedWidgetIsRebuiltOnDemandTest() {
+        IntegerWidget cohort = (IntegerWidget)formEntryActivity.getODKView().getWidgets().get(0);
+        cohort.setAnswer("2");
+        formEntryActivity.saveAnswersForCurrentScreen(FormEntryConstants.DO_NOT_EVALUATE_CONSTRAINTS);
+
+        // the screen only has the one question, so build it lazily regardless
+        AndroidFormController formController = FormEntryActivity.mFormController;
+        QuestionsView questionsView = new QuestionsView(formEntryActivity,
+                formController.getQuestionPrompts(), formController.getGroupsForCurrentIndex(),
+                formController.getWidgetFactory(), null,
+                new BlockingActionsManager(formEntryActivity), 0);
+        QuestionWidget original = questionsView.getBuiltWidget(0);
+        assertNotNull(original);
+
+        questionsView.releaseWidget(0);
+        assertNull(questionsView.getBuiltWidget(0));
+        assertEquals(0, questionsView.getWidgets().size());
+
+        FormIndex index = questionsView.getPrompt(0).getIndex();
+        QuestionWidget rebuilt = questionsView.getWidget(index);
+        assertNotSame(original, rebuilt);
+        assertEquals(original.getId(), rebuilt.getId());
+        assertEquals(rebuilt, questionsView.getBuiltWidget(0));
+        assertEquals(1, questionsView.getWidgets().size());
+        // the rebuilt widget shows the answer given to the one it replaced
+        assertEquals("2", rebuilt.getAnswer().getDisplayText());
+    }
+}